@@ -52,6 +52,11 @@ public void addOptions(Options options)
   Option fraction = new Option("f", "fraction", true, "The fraction of pixel values to sample. Must be between 0.0 - 1.0");
   fraction.setRequired(false);
   options.addOption(fraction);
+
+  Option approximate = new Option("a", "approximate", false,
+      "Compute approximate quantiles (within about 1.65% of the pixel count in rank) in a single pass");
+  approximate.setRequired(false);
+  options.addOption(approximate);
 }
 
 @Override
@@ -90,7 +95,14 @@ public int run(CommandLine line, final Configuration conf,
       }
       int numQuantiles = Integer.parseInt(line.getOptionValue("numQuantiles", "0"));
       if (numQuantiles > 0) {
-        if (line.hasOption("fraction")) {
+        if (line.hasOption("approximate")) {
+          float fraction = Float.parseFloat(line.getOptionValue("fraction", "1.0"));
+          if (!org.mrgeo.quantiles.Quantiles.compute(input, numQuantiles, fraction, true,
+                  conf, providerProperties)) {
+            log.error("Quantiles exited with error");
+            return -1;
+          }
+        } else if (line.hasOption("fraction")) {
           float fraction = Float.parseFloat(line.getOptionValue("fraction"));
           if (!org.mrgeo.quantiles.Quantiles.compute(input, numQuantiles, fraction,
                   conf, providerProperties)) {
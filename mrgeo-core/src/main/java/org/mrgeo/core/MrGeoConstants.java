@@ -70,6 +70,7 @@ public static final String MRGEO_HDFS_DISTRIBUTED_CACHE = "distributed.base";
  *
  */
 public static final String MRGEO_USE_KRYO = "use.kryo.serialization";
+public static final String MRGEO_RDD_COMPRESS = "rdd.compress";
 public static final String MRGEO_AUTOPERSISTANCE = "autopersistance";
 
 public static final String MRGEO_MAXMEMORY = "max.memory";
@@ -98,6 +99,34 @@ public static final int MRGEO_MRS_TILESIZE_DEFAULT_INT = 512;
 public static final String MRGEO_MRS_TILESIZE_DEFAULT = Integer.toString(MRGEO_MRS_TILESIZE_DEFAULT_INT);
 
 public static final String MRGEO_DEFAULT_COLORSCALE = "default-colorscale";
+
+// gather bounds, stats and splits while the tiles are written, instead of with separate passes
+public static final String MRGEO_SINGLE_PASS_SAVE = "mrsimage.save.singlepass";
+
+// the order tiles of new pyramids are stored in (row, morton or hilbert), see TileOrder
+public static final String MRGEO_TILE_ORDER = "mrsimage.tile.order";
+
+// how the tiles of new pyramids are encoded (none or predictive), see TileCodec
+public static final String MRGEO_TILE_CODEC = "mrsimage.tile.codec";
+
+// drop tiles that are entirely nodata when ingesting and building pyramids (constant tiles, including
+// nodata ones, are always kept as a constant tile, see TileCodec)
+public static final String MRGEO_SKIP_EMPTY_TILES = "mrsimage.skip.empty.tiles";
+
+// the size (in tiles on a side) of the windows each ingested image is split into, each window is
+// warped and tiled in its own task
+public static final String MRGEO_INGEST_WINDOW_TILES = "ingest.window.tiles";
+
+// the number of pyramid levels built from each shuffle in BuildPyramid
+public static final String MRGEO_BUILDPYRAMID_LEVELS_PER_SHUFFLE = "buildpyramid.levels.per.shuffle";
+
+/*
+ * Map algebra configuration keys
+ */
+public static final String MRGEO_MAPALGEBRA_FUSION = "mapalgebra.fusion";
+// load pyramids partitioned by their splits, so inputs with the same splits are combined without a shuffle
+public static final String MRGEO_COPARTITION = "mapalgebra.copartition";
+
 /*
  * Security classification keys
  */
@@ -110,6 +139,25 @@ public static final String MRGEO_PROTECTION_LEVEL = "protectionLevel";
  */
 public static final String MRGEO_WCS_CAPABILITIES_CACHE = "wcs.capabilities.cache";
 public static final String MRGEO_WCS_CAPABILITIES_REFRESH = "wcs.capabilities.refresh";
+public static final String MRGEO_WMS_JAVA_RENDER = "wms.render.java";
+public static final String MRGEO_IMAGE_ENCODER = "image.encoder";
+public static final String MRGEO_PNG_DEFLATE_LEVEL = "png.deflate.level";
+public static final String MRGEO_JPEG_QUALITY = "jpeg.quality";
+
+/*
+ * TMS/WMS rendered tile cache keys
+ */
+public static final String MRGEO_TILE_CACHE = "tile.cache";
+public static final String MRGEO_TILE_CACHE_SIZE = "tile.cache.size";
+public static final String MRGEO_TILE_CACHE_DIR = "tile.cache.dir";
+public static final String MRGEO_TILE_CACHE_DISK_SIZE = "tile.cache.disk.size";
+
+/*
+ * S3 MapFile read keys
+ */
+public static final String MRGEO_S3_READ_MODE = "s3.read.mode";
+public static final String MRGEO_S3_BLOCK_SIZE = "s3.block.size";
+public static final String MRGEO_S3_BLOCK_CACHE_SIZE = "s3.block.cache.size";
 
 /*
  * Postgres keys
@@ -27,6 +27,7 @@ import org.mrgeo.mapreduce.splitters.MrsPyramidInputSplit;
 import org.mrgeo.mapreduce.splitters.TiledInputSplit;
 import org.mrgeo.utils.tms.TMSUtils;
 import org.mrgeo.utils.tms.TileBounds;
+import org.mrgeo.utils.tms.TileOrder;
 
 import java.io.IOException;
 import java.util.ArrayList;
@@ -72,7 +73,7 @@ public List<InputSplit> getSplits(JobContext context) throws IOException, Interr
   List<TiledInputSplit> nativeSplits = getNativeSplits(context, ifContext, pyramid);
   List<TiledInputSplit> filteredSplits = filterInputSplits(ifContext,
       nativeSplits,
-      p.getTileSize());
+      p.getTileSize(), p.getMetadata().getTileOrder());
 
   List<InputSplit> results = new LinkedList<>();
   // remove the current bounds from the post bounds list.
@@ -125,7 +126,7 @@ protected List<TiledInputSplit> getNativeSplits(JobContext context,
  */
 List<TiledInputSplit> filterInputSplits(ImageInputFormatContext ifContext,
     List<TiledInputSplit> splits,
-    int tileSize)
+    int tileSize, TileOrder order)
 {
   // If there are no splits or no crop region, just return the splits
   if (splits.size() == 0 || ifContext.getBounds() == null)
@@ -136,7 +137,7 @@ List<TiledInputSplit> filterInputSplits(ImageInputFormatContext ifContext,
   TileBounds cropBounds = TMSUtils.boundsToTile(ifContext.getBounds(),
       ifContext.getZoomLevel(), tileSize);
 
-  SplitIterator splitIter = new SplitIterator(splits, new RegionSplitVisitor(cropBounds));
+  SplitIterator splitIter = new SplitIterator(splits, new RegionSplitVisitor(cropBounds, order));
   TiledInputSplit split = splitIter.next();
   while (split != null)
   {
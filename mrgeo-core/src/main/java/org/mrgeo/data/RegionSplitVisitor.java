@@ -19,6 +19,7 @@ import org.mrgeo.mapreduce.splitters.TiledInputSplit;
 import org.mrgeo.utils.tms.TMSUtils;
 import org.mrgeo.utils.tms.Tile;
 import org.mrgeo.utils.tms.TileBounds;
+import org.mrgeo.utils.tms.TileOrder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -26,10 +27,20 @@ public class RegionSplitVisitor implements SplitVisitor
 {
 static Logger log = LoggerFactory.getLogger(SplitVisitor.class);
 private TileBounds region;
+private TileOrder order;
 
 public RegionSplitVisitor(TileBounds region)
+{
+  this(region, TileOrder.ROW_MAJOR);
+}
+
+/**
+ * @param order the order the tiles are stored in, the split start and end ids are stored keys
+ */
+public RegionSplitVisitor(TileBounds region, TileOrder order)
 {
   this.region = region;
+  this.order = order;
   log.debug("Created RegionSplitVisitor with region: " + region);
 }
 
@@ -39,10 +50,18 @@ public boolean accept(TiledInputSplit split)
   int zoom = split.getZoomLevel();
 //    Tile startTile = TMSUtils.tileid(split.getStartTileId(), zoom);
 //    Tile endTile = TMSUtils.tileid(split.getEndTileId(), zoom);
-  boolean result = splitOverlapsTileBounds(
-      TMSUtils.tileid(split.getStartTileId(), zoom),
-      TMSUtils.tileid(split.getEndTileId(), zoom),
-      region);
+  boolean result;
+  if (order == TileOrder.ROW_MAJOR)
+  {
+    result = splitOverlapsTileBounds(
+        TMSUtils.tileid(split.getStartTileId(), zoom),
+        TMSUtils.tileid(split.getEndTileId(), zoom),
+        region);
+  }
+  else
+  {
+    result = TileOrder.intersects(order.ranges(region, zoom), split.getStartTileId(), split.getEndTileId());
+  }
   if (!result)
   {
     log.info("Skipping split starting at tile " + split.getStartTileId());
@@ -16,7 +16,9 @@
 package org.mrgeo.data.image;
 
 
+import org.mrgeo.data.raster.TileCodec;
 import org.mrgeo.utils.tms.Bounds;
+import org.mrgeo.utils.tms.TileOrder;
 
 public class ImageOutputFormatContext
 {
@@ -27,6 +29,8 @@ private int bands;
 private Bounds bounds;
 private int tiletype;
 private String protectionLevel;
+private TileOrder tileOrder = TileOrder.ROW_MAJOR;
+private TileCodec tileCodec = TileCodec.NONE;
 
 /**
  * This constructor is used when producing a single image output.
@@ -95,4 +99,32 @@ public String getProtectionLevel()
 {
   return protectionLevel;
 }
+
+/**
+ * The order the tiles are stored in, the tiles given to the output format are always keyed by
+ * (row-major) tile id.
+ */
+public TileOrder getTileOrder()
+{
+  return tileOrder;
+}
+
+public void setTileOrder(TileOrder tileOrder)
+{
+  this.tileOrder = tileOrder;
+}
+
+/**
+ * How the tiles are encoded when stored, the tiles given to the output format are always raw
+ * (or already encoded) RasterWritables.
+ */
+public TileCodec getTileCodec()
+{
+  return tileCodec;
+}
+
+public void setTileCodec(TileCodec tileCodec)
+{
+  this.tileCodec = tileCodec;
+}
 }
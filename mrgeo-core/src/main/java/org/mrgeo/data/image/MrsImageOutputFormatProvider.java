@@ -44,6 +44,22 @@ public MrsImageOutputFormatProvider(ImageOutputFormatContext context)
 
 public abstract void save(RasterRDD raster, Configuration conf);
 
+/**
+ * Save the raster, gathering the tile bounds and statistics of the tiles as they are
+ * written, so the caller doesn't need to make separate passes over the data to finalize
+ * the metadata.  Providers that can't do this return null, in which case the caller
+ * should use save() and calculate the bounds and statistics itself.
+ *
+ * @param raster the tiles to save
+ * @param nodatas the nodata value of each band, used for the statistics
+ * @param conf the configuration
+ * @return a summary of the saved tiles, or null if the provider doesn't support it
+ */
+public ImageSaveSummary saveAndSummarize(RasterRDD raster, double[] nodatas, Configuration conf)
+{
+  return null;
+}
+
 public abstract void finalizeExternalSave(Configuration conf) throws DataProviderException;
 
 /**
@@ -455,6 +455,29 @@ final public void fill(int band, double value) throws MrGeoRasterException
   }
 }
 
+/**
+ * Whether every pixel in every band is nodata (stops at the first pixel that isn't)
+ */
+final public boolean isAllNodata(double[] nodatas)
+{
+  for (int b = 0; b < bands; b++)
+  {
+    boolean nan = Double.isNaN(nodatas[b]);
+    for (int y = 0; y < height; y++)
+    {
+      for (int x = 0; x < width; x++)
+      {
+        double v = getPixelDouble(x, y, b);
+        if (nan ? !Double.isNaN(v) : v != nodatas[b])
+        {
+          return false;
+        }
+      }
+    }
+  }
+  return true;
+}
+
 // Scaling algorithm taken from: http://willperone.net/Code/codescaling.php and modified to use
 // Rasters. It is an optimized Bresenham's algorithm.
 // Interpolated algorithm was http://tech-algorithm.com/articles/bilinear-image-scaling/
@@ -562,6 +585,12 @@ final public MrGeoRaster reduce(int xfactor, int yfactor, Aggregator aggregator,
 {
   MrGeoRaster child = createCompatibleRaster(width / xfactor, height / yfactor);
 
+  // 2x2 is what BuildPyramid uses, so there are specialized kernels for the common aggregators
+  if (xfactor == 2 && yfactor == 2 && RasterDecimator.decimate(this, child, aggregator, nodatas))
+  {
+    return child;
+  }
+
   int subsize = xfactor * yfactor;
   byte[] bytesamples = new byte[subsize];
   short[] shortsamples = new short[subsize];
@@ -0,0 +1,668 @@
+/*
+ * Copyright 2009-2017. DigitalGlobe, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.mrgeo.data.raster;
+
+import org.mrgeo.aggregators.*;
+import org.mrgeo.utils.ByteArrayUtils;
+import org.mrgeo.utils.FloatUtils;
+
+import java.awt.image.DataBuffer;
+
+/**
+ * 2x2 decimation kernels for the common aggregators.  These read the source's backing byte array
+ * a row pair at a time, instead of copying each block into a sample array through the pixel
+ * accessors and calling the aggregator, which is what MrGeoRaster.reduce() does in general.
+ * <p>
+ * The results match the aggregators exactly (including the integer overflow behavior of their
+ * byte and short versions), with the exception of ModeAggregator, where ties are resolved in
+ * favor of the first value of the block instead of by the iteration order of a HashMap.
+ */
+final class RasterDecimator
+{
+private static final int MEAN = 1;
+private static final int NEAREST = 2;
+private static final int MIN = 3;
+private static final int MAX = 4;
+private static final int MODE = 5;
+
+private RasterDecimator()
+{
+}
+
+/**
+ * Decimate src into dst (which must be half the width and height of src, with the same type
+ * and bands).
+ *
+ * @return false if there is no fast path for this aggregator or raster, in which case dst is untouched
+ */
+static boolean decimate(MrGeoRaster src, MrGeoRaster dst, Aggregator aggregator, double[] nodatas)
+{
+  int agg = kernel(aggregator);
+  if (agg == 0 || src.width() % 2 != 0 || src.height() % 2 != 0 || src.datatype() != dst.datatype())
+  {
+    return false;
+  }
+
+  switch (src.datatype())
+  {
+  case DataBuffer.TYPE_BYTE:
+    decimateByte(src, dst, agg, nodatas);
+    return true;
+  case DataBuffer.TYPE_SHORT:
+  case DataBuffer.TYPE_USHORT:
+    // MrGeoRaster.reduce() treats unsigned shorts as (signed) shorts, so we do too
+    decimateShort(src, dst, agg, nodatas);
+    return true;
+  case DataBuffer.TYPE_INT:
+    decimateInt(src, dst, agg, nodatas);
+    return true;
+  case DataBuffer.TYPE_FLOAT:
+    decimateFloat(src, dst, agg, nodatas);
+    return true;
+  case DataBuffer.TYPE_DOUBLE:
+    decimateDouble(src, dst, agg, nodatas);
+    return true;
+  default:
+    return false;
+  }
+}
+
+// only the exact classes, a subclass may have changed the behavior
+private static int kernel(Aggregator aggregator)
+{
+  Class<?> clazz = aggregator.getClass();
+  if (clazz == MeanAggregator.class)
+  {
+    return MEAN;
+  }
+  if (clazz == NearestAggregator.class)
+  {
+    return NEAREST;
+  }
+  if (clazz == MinAggregator.class)
+  {
+    return MIN;
+  }
+  if (clazz == MaxAggregator.class)
+  {
+    return MAX;
+  }
+  if (clazz == ModeAggregator.class)
+  {
+    return MODE;
+  }
+  return 0;
+}
+
+private static void decimateByte(MrGeoRaster src, MrGeoRaster dst, int agg, double[] nodatas)
+{
+  byte[] s = src.data;
+  byte[] d = dst.data;
+
+  int width = src.width();
+  for (int b = 0; b < src.bands(); b++)
+  {
+    int nodata = (byte) nodatas[b];
+    for (int y = 0; y < src.height(); y += 2)
+    {
+      int r0 = src.calculateByteOffset(0, y, b);
+      int r1 = src.calculateByteOffset(0, y + 1, b);
+      int out = dst.calculateByteOffset(0, y / 2, b);
+
+      for (int x = 0; x < width; x += 2)
+      {
+        int v = aggregate(agg, s[r0], s[r0 + 1], s[r1], s[r1 + 1], nodata,
+            24, Byte.MAX_VALUE);
+        d[out] = (byte) v;
+
+        r0 += 2;
+        r1 += 2;
+        out++;
+      }
+    }
+  }
+}
+
+private static void decimateShort(MrGeoRaster src, MrGeoRaster dst, int agg, double[] nodatas)
+{
+  byte[] s = src.data;
+  byte[] d = dst.data;
+
+  int width = src.width();
+  for (int b = 0; b < src.bands(); b++)
+  {
+    int nodata = (short) nodatas[b];
+    for (int y = 0; y < src.height(); y += 2)
+    {
+      int r0 = src.calculateByteOffset(0, y, b);
+      int r1 = src.calculateByteOffset(0, y + 1, b);
+      int out = dst.calculateByteOffset(0, y / 2, b);
+
+      for (int x = 0; x < width; x += 2)
+      {
+        int v = aggregate(agg,
+            ByteArrayUtils.getShort(s, r0), ByteArrayUtils.getShort(s, r0 + 2),
+            ByteArrayUtils.getShort(s, r1), ByteArrayUtils.getShort(s, r1 + 2),
+            nodata, 16, Short.MAX_VALUE);
+        ByteArrayUtils.setShort((short) v, d, out);
+
+        r0 += 4;
+        r1 += 4;
+        out += 2;
+      }
+    }
+  }
+}
+
+private static void decimateInt(MrGeoRaster src, MrGeoRaster dst, int agg, double[] nodatas)
+{
+  byte[] s = src.data;
+  byte[] d = dst.data;
+
+  int width = src.width();
+  for (int b = 0; b < src.bands(); b++)
+  {
+    int nodata = (int) nodatas[b];
+    for (int y = 0; y < src.height(); y += 2)
+    {
+      int r0 = src.calculateByteOffset(0, y, b);
+      int r1 = src.calculateByteOffset(0, y + 1, b);
+      int out = dst.calculateByteOffset(0, y / 2, b);
+
+      for (int x = 0; x < width; x += 2)
+      {
+        int v = aggregate(agg,
+            ByteArrayUtils.getInt(s, r0), ByteArrayUtils.getInt(s, r0 + 4),
+            ByteArrayUtils.getInt(s, r1), ByteArrayUtils.getInt(s, r1 + 4),
+            nodata, 0, Integer.MAX_VALUE);
+        ByteArrayUtils.setInt(v, d, out);
+
+        r0 += 8;
+        r1 += 8;
+        out += 4;
+      }
+    }
+  }
+}
+
+private static void decimateFloat(MrGeoRaster src, MrGeoRaster dst, int agg, double[] nodatas)
+{
+  byte[] s = src.data;
+  byte[] d = dst.data;
+
+  int width = src.width();
+  for (int b = 0; b < src.bands(); b++)
+  {
+    float nodata = (float) nodatas[b];
+    for (int y = 0; y < src.height(); y += 2)
+    {
+      int r0 = src.calculateByteOffset(0, y, b);
+      int r1 = src.calculateByteOffset(0, y + 1, b);
+      int out = dst.calculateByteOffset(0, y / 2, b);
+
+      for (int x = 0; x < width; x += 2)
+      {
+        float v = aggregate(agg,
+            ByteArrayUtils.getFloat(s, r0), ByteArrayUtils.getFloat(s, r0 + 4),
+            ByteArrayUtils.getFloat(s, r1), ByteArrayUtils.getFloat(s, r1 + 4), nodata);
+        ByteArrayUtils.setFloat(v, d, out);
+
+        r0 += 8;
+        r1 += 8;
+        out += 4;
+      }
+    }
+  }
+}
+
+private static void decimateDouble(MrGeoRaster src, MrGeoRaster dst, int agg, double[] nodatas)
+{
+  byte[] s = src.data;
+  byte[] d = dst.data;
+
+  int width = src.width();
+  for (int b = 0; b < src.bands(); b++)
+  {
+    double nodata = nodatas[b];
+    for (int y = 0; y < src.height(); y += 2)
+    {
+      int r0 = src.calculateByteOffset(0, y, b);
+      int r1 = src.calculateByteOffset(0, y + 1, b);
+      int out = dst.calculateByteOffset(0, y / 2, b);
+
+      for (int x = 0; x < width; x += 2)
+      {
+        double v = aggregate(agg,
+            ByteArrayUtils.getDouble(s, r0), ByteArrayUtils.getDouble(s, r0 + 8),
+            ByteArrayUtils.getDouble(s, r1), ByteArrayUtils.getDouble(s, r1 + 8), nodata);
+        ByteArrayUtils.setDouble(v, d, out);
+
+        r0 += 16;
+        r1 += 16;
+        out += 8;
+      }
+    }
+  }
+}
+
+// Integer types.  v0, v1 are the upper row of the block, v2, v3 the lower.  The aggregators'
+// byte and short versions do their arithmetic in bytes and shorts, shift sign-extends a sum
+// back to that size (24 for byte, 16 for short, 0 for int).  sentinel is the type's MAX_VALUE,
+// which the aggregators use as the starting point for min and max.
+private static int aggregate(int agg, int v0, int v1, int v2, int v3, int nodata, int shift, int sentinel)
+{
+  switch (agg)
+  {
+  case MEAN:
+  {
+    int sum = 0;
+    int count = 0;
+    if (v0 != nodata)
+    {
+      sum += v0;
+      count++;
+    }
+    if (v1 != nodata)
+    {
+      sum += v1;
+      count++;
+    }
+    if (v2 != nodata)
+    {
+      sum += v2;
+      count++;
+    }
+    if (v3 != nodata)
+    {
+      sum += v3;
+      count++;
+    }
+    return (count == 0) ? nodata : (((sum << shift) >> shift) / count);
+  }
+  case NEAREST:
+    if (v0 != nodata)
+    {
+      return v0;
+    }
+    if (v1 != nodata)
+    {
+      return v1;
+    }
+    if (v3 != nodata)
+    {
+      return v3;
+    }
+    if (v2 != nodata)
+    {
+      return v2;
+    }
+    return nodata;
+  case MIN:
+  {
+    int min = sentinel;
+    if (v0 != nodata)
+    {
+      min = Math.min(min, v0);
+    }
+    if (v1 != nodata)
+    {
+      min = Math.min(min, v1);
+    }
+    if (v2 != nodata)
+    {
+      min = Math.min(min, v2);
+    }
+    if (v3 != nodata)
+    {
+      min = Math.min(min, v3);
+    }
+    return (min == sentinel) ? nodata : min;
+  }
+  case MAX:
+  {
+    int max = -sentinel;
+    if (v0 != nodata)
+    {
+      max = Math.max(max, v0);
+    }
+    if (v1 != nodata)
+    {
+      max = Math.max(max, v1);
+    }
+    if (v2 != nodata)
+    {
+      max = Math.max(max, v2);
+    }
+    if (v3 != nodata)
+    {
+      max = Math.max(max, v3);
+    }
+    return (max == -sentinel) ? nodata : max;
+  }
+  case MODE:
+  {
+    int mode = nodata;
+    int maxFreq = 0;
+    int freq;
+    if (v0 != nodata)
+    {
+      freq = 1 + (v1 == v0 ? 1 : 0) + (v2 == v0 ? 1 : 0) + (v3 == v0 ? 1 : 0);
+      maxFreq = freq;
+      mode = v0;
+    }
+    if (v1 != nodata)
+    {
+      freq = 1 + (v2 == v1 ? 1 : 0) + (v3 == v1 ? 1 : 0);
+      if (freq > maxFreq)
+      {
+        maxFreq = freq;
+        mode = v1;
+      }
+    }
+    if (v2 != nodata)
+    {
+      freq = 1 + (v3 == v2 ? 1 : 0);
+      if (freq > maxFreq)
+      {
+        maxFreq = freq;
+        mode = v2;
+      }
+    }
+    if (v3 != nodata && maxFreq == 0)
+    {
+      mode = v3;
+    }
+    return mode;
+  }
+  default:
+    throw new IllegalArgumentException("Unknown decimation kernel: " + agg);
+  }
+}
+
+private static float aggregate(int agg, float v0, float v1, float v2, float v3, float nodata)
+{
+  boolean d0 = FloatUtils.isNotNodata(v0, nodata);
+  boolean d1 = FloatUtils.isNotNodata(v1, nodata);
+  boolean d2 = FloatUtils.isNotNodata(v2, nodata);
+  boolean d3 = FloatUtils.isNotNodata(v3, nodata);
+
+  switch (agg)
+  {
+  case MEAN:
+  {
+    float sum = 0;
+    int count = 0;
+    if (d0)
+    {
+      sum += v0;
+      count++;
+    }
+    if (d1)
+    {
+      sum += v1;
+      count++;
+    }
+    if (d2)
+    {
+      sum += v2;
+      count++;
+    }
+    if (d3)
+    {
+      sum += v3;
+      count++;
+    }
+    return (count == 0) ? nodata : (sum / count);
+  }
+  case NEAREST:
+    if (d0)
+    {
+      return v0;
+    }
+    if (d1)
+    {
+      return v1;
+    }
+    if (d3)
+    {
+      return v3;
+    }
+    if (d2)
+    {
+      return v2;
+    }
+    return nodata;
+  case MIN:
+  {
+    float min = Float.MAX_VALUE;
+    if (d0)
+    {
+      min = Math.min(min, v0);
+    }
+    if (d1)
+    {
+      min = Math.min(min, v1);
+    }
+    if (d2)
+    {
+      min = Math.min(min, v2);
+    }
+    if (d3)
+    {
+      min = Math.min(min, v3);
+    }
+    return FloatUtils.isEqual(min, Float.MAX_VALUE) ? nodata : min;
+  }
+  case MAX:
+  {
+    float max = -Float.MAX_VALUE;
+    if (d0)
+    {
+      max = Math.max(max, v0);
+    }
+    if (d1)
+    {
+      max = Math.max(max, v1);
+    }
+    if (d2)
+    {
+      max = Math.max(max, v2);
+    }
+    if (d3)
+    {
+      max = Math.max(max, v3);
+    }
+    return FloatUtils.isEqual(max, -Float.MAX_VALUE) ? nodata : max;
+  }
+  case MODE:
+  {
+    // Float.compare() is 0 when the boxed values would be equal() as HashMap keys
+    float mode = nodata;
+    int maxFreq = 0;
+    int freq;
+    if (d0)
+    {
+      freq = 1 + (Float.compare(v1, v0) == 0 ? 1 : 0) + (Float.compare(v2, v0) == 0 ? 1 : 0) +
+          (Float.compare(v3, v0) == 0 ? 1 : 0);
+      maxFreq = freq;
+      mode = v0;
+    }
+    if (d1)
+    {
+      freq = 1 + (Float.compare(v2, v1) == 0 ? 1 : 0) + (Float.compare(v3, v1) == 0 ? 1 : 0);
+      if (freq > maxFreq)
+      {
+        maxFreq = freq;
+        mode = v1;
+      }
+    }
+    if (d2)
+    {
+      freq = 1 + (Float.compare(v3, v2) == 0 ? 1 : 0);
+      if (freq > maxFreq)
+      {
+        maxFreq = freq;
+        mode = v2;
+      }
+    }
+    if (d3 && maxFreq == 0)
+    {
+      mode = v3;
+    }
+    return mode;
+  }
+  default:
+    throw new IllegalArgumentException("Unknown decimation kernel: " + agg);
+  }
+}
+
+private static double aggregate(int agg, double v0, double v1, double v2, double v3, double nodata)
+{
+  boolean d0 = FloatUtils.isNotNodata(v0, nodata);
+  boolean d1 = FloatUtils.isNotNodata(v1, nodata);
+  boolean d2 = FloatUtils.isNotNodata(v2, nodata);
+  boolean d3 = FloatUtils.isNotNodata(v3, nodata);
+
+  switch (agg)
+  {
+  case MEAN:
+  {
+    double sum = 0;
+    int count = 0;
+    if (d0)
+    {
+      sum += v0;
+      count++;
+    }
+    if (d1)
+    {
+      sum += v1;
+      count++;
+    }
+    if (d2)
+    {
+      sum += v2;
+      count++;
+    }
+    if (d3)
+    {
+      sum += v3;
+      count++;
+    }
+    return (count == 0) ? nodata : (sum / count);
+  }
+  case NEAREST:
+    if (d0)
+    {
+      return v0;
+    }
+    if (d1)
+    {
+      return v1;
+    }
+    if (d3)
+    {
+      return v3;
+    }
+    if (d2)
+    {
+      return v2;
+    }
+    return nodata;
+  case MIN:
+  {
+    double min = Double.MAX_VALUE;
+    if (d0)
+    {
+      min = Math.min(min, v0);
+    }
+    if (d1)
+    {
+      min = Math.min(min, v1);
+    }
+    if (d2)
+    {
+      min = Math.min(min, v2);
+    }
+    if (d3)
+    {
+      min = Math.min(min, v3);
+    }
+    return FloatUtils.isEqual(min, Double.MAX_VALUE) ? nodata : min;
+  }
+  case MAX:
+  {
+    double max = -Double.MAX_VALUE;
+    if (d0)
+    {
+      max = Math.max(max, v0);
+    }
+    if (d1)
+    {
+      max = Math.max(max, v1);
+    }
+    if (d2)
+    {
+      max = Math.max(max, v2);
+    }
+    if (d3)
+    {
+      max = Math.max(max, v3);
+    }
+    return FloatUtils.isEqual(max, -Double.MAX_VALUE) ? nodata : max;
+  }
+  case MODE:
+  {
+    // Double.compare() is 0 when the boxed values would be equal() as HashMap keys
+    double mode = nodata;
+    int maxFreq = 0;
+    int freq;
+    if (d0)
+    {
+      freq = 1 + (Double.compare(v1, v0) == 0 ? 1 : 0) + (Double.compare(v2, v0) == 0 ? 1 : 0) +
+          (Double.compare(v3, v0) == 0 ? 1 : 0);
+      maxFreq = freq;
+      mode = v0;
+    }
+    if (d1)
+    {
+      freq = 1 + (Double.compare(v2, v1) == 0 ? 1 : 0) + (Double.compare(v3, v1) == 0 ? 1 : 0);
+      if (freq > maxFreq)
+      {
+        maxFreq = freq;
+        mode = v1;
+      }
+    }
+    if (d2)
+    {
+      freq = 1 + (Double.compare(v3, v2) == 0 ? 1 : 0);
+      if (freq > maxFreq)
+      {
+        maxFreq = freq;
+        mode = v2;
+      }
+    }
+    if (d3 && maxFreq == 0)
+    {
+      mode = v3;
+    }
+    return mode;
+  }
+  default:
+    throw new IllegalArgumentException("Unknown decimation kernel: " + agg);
+  }
+}
+}
@@ -0,0 +1,526 @@
+/*
+ * Copyright 2009-2017. DigitalGlobe, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.mrgeo.data.raster;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Encodes byte rasters (i.e. color scaled tiles) as PNG or JPEG straight from the raster's
+ * band planes, without making a GDAL dataset.
+ * <p>
+ * PNGs with 256 or fewer colors (most color scaled tiles) are written as indexed (palette) images,
+ * and tiles that are completely transparent are written from a cached, pre-encoded image.
+ */
+public final class RasterImageEncoder
+{
+private static final byte[] PNG_SIGNATURE = {(byte) 137, 80, 78, 71, 13, 10, 26, 10};
+
+private static final int COLOR_GRAY = 0;
+private static final int COLOR_RGB = 2;
+private static final int COLOR_INDEXED = 3;
+private static final int COLOR_RGBA = 6;
+
+private static final int FILTER_NONE = 0;
+private static final int FILTER_SUB = 1;
+
+private static final int MAX_PALETTE = 256;
+
+// (width, height) -> encoded, fully transparent png
+private static final Map<Long, byte[]> transparent = new ConcurrentHashMap<>();
+
+private RasterImageEncoder()
+{
+}
+
+public static boolean canEncodePng(MrGeoRaster raster)
+{
+  int bands = raster.bands();
+  return raster.datatype() == DataBuffer.TYPE_BYTE && (bands == 1 || bands == 3 || bands == 4);
+}
+
+public static boolean canEncodeJpeg(MrGeoRaster raster)
+{
+  return canEncodePng(raster);
+}
+
+/**
+ * Write the raster as a PNG.  A 4 band raster is RGBA, for 1 (gray) and 3 (RGB) band rasters the pixels
+ * matching the nodata values are transparent.
+ *
+ * @param raster  byte raster with 1, 3 or 4 bands
+ * @param nodatas nodata values (may be null), not used for 4 band rasters
+ * @param stream  stream to write to
+ * @param level   deflate level (0 - 9)
+ */
+public static void writePng(MrGeoRaster raster, double[] nodatas, OutputStream stream, int level) throws IOException
+{
+  if (!canEncodePng(raster))
+  {
+    throw new IOException("Can only encode 1, 3 or 4 band byte rasters as PNG");
+  }
+
+  int width = raster.width();
+  int height = raster.height();
+  int bands = raster.bands();
+
+  byte[] data = raster.data();
+  int offset = raster.dataoffset();
+  int plane = width * height;
+
+  // the nodata color (for 1 and 3 bands), or null if there is none
+  int[] nodata = bands == 4 ? null : nodataColor(nodatas, bands);
+
+  if (isTransparent(data, offset, plane, bands, nodata))
+  {
+    stream.write(transparentPng(width, height));
+    return;
+  }
+
+  DataOutputStream out = new DataOutputStream(stream);
+  out.write(PNG_SIGNATURE);
+
+  byte[] indexes = bands == 1 ? null : new byte[plane];
+  int[] palette = bands == 1 ? null : buildPalette(data, offset, plane, bands, nodata, indexes);
+
+  if (palette != null)
+  {
+    writeHeader(out, width, height, COLOR_INDEXED);
+    writePalette(out, palette);
+
+    writeImage(out, level, indexes, 0, width, height, 1, 0, FILTER_NONE);
+  }
+  else
+  {
+    int colortype = bands == 4 ? COLOR_RGBA : (bands == 3 ? COLOR_RGB : COLOR_GRAY);
+    writeHeader(out, width, height, colortype);
+
+    if (nodata != null)
+    {
+      // tRNS for gray/rgb is a 16 bit sample per channel
+      byte[] trns = new byte[nodata.length * 2];
+      for (int i = 0; i < nodata.length; i++)
+      {
+        trns[i * 2 + 1] = (byte) nodata[i];
+      }
+      writeChunk(out, "tRNS", trns, trns.length);
+    }
+
+    writeImage(out, level, data, offset, width, height, bands, plane, bands == 1 ? FILTER_NONE : FILTER_SUB);
+  }
+
+  writeChunk(out, "IEND", new byte[0], 0);
+  out.flush();
+}
+
+/**
+ * Write the raster as a JPEG.  For a 4 band raster, the alpha is dropped.
+ *
+ * @param raster  byte raster with 1, 3 or 4 bands
+ * @param stream  stream to write to
+ * @param quality JPEG quality (0 - 100)
+ */
+public static void writeJpeg(MrGeoRaster raster, OutputStream stream, int quality) throws IOException
+{
+  if (!canEncodeJpeg(raster))
+  {
+    throw new IOException("Can only encode 1, 3 or 4 band byte rasters as JPEG");
+  }
+
+  int width = raster.width();
+  int height = raster.height();
+  int bands = raster.bands();
+
+  byte[] data = raster.data();
+  int offset = raster.dataoffset();
+  int plane = width * height;
+
+  BufferedImage image;
+  if (bands == 1)
+  {
+    image = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+    byte[] pixels = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+    System.arraycopy(data, offset, pixels, 0, plane);
+  }
+  else
+  {
+    image = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+    byte[] pixels = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+    for (int p = 0, ndx = 0; p < plane; p++)
+    {
+      pixels[ndx++] = data[offset + 2 * plane + p];
+      pixels[ndx++] = data[offset + plane + p];
+      pixels[ndx++] = data[offset + p];
+    }
+  }
+
+  Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpeg");
+  if (!writers.hasNext())
+  {
+    throw new IOException("No JPEG writer available");
+  }
+
+  ImageWriter writer = writers.next();
+  try (ImageOutputStream ios = ImageIO.createImageOutputStream(stream))
+  {
+    ImageWriteParam param = writer.getDefaultWriteParam();
+    param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+    param.setCompressionQuality(Math.max(0, Math.min(100, quality)) / 100.0f);
+
+    writer.setOutput(ios);
+    writer.write(null, new IIOImage(image, null, null), param);
+  }
+  finally
+  {
+    writer.dispose();
+  }
+}
+
+private static int[] nodataColor(double[] nodatas, int bands)
+{
+  if (nodatas == null || nodatas.length == 0)
+  {
+    return null;
+  }
+
+  int[] color = new int[bands];
+  for (int b = 0; b < bands; b++)
+  {
+    double nodata = nodatas[Math.min(b, nodatas.length - 1)];
+    if (Double.isNaN(nodata) || nodata < 0 || nodata > 255 || nodata != Math.floor(nodata))
+    {
+      // can't be represented in a byte, so nothing is nodata
+      return null;
+    }
+    color[b] = (int) nodata;
+  }
+  return color;
+}
+
+private static boolean isTransparent(byte[] data, int offset, int plane, int bands, int[] nodata)
+{
+  if (bands == 4)
+  {
+    int alpha = offset + 3 * plane;
+    for (int p = 0; p < plane; p++)
+    {
+      if (data[alpha + p] != 0)
+      {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  if (nodata == null)
+  {
+    return false;
+  }
+
+  for (int b = 0; b < bands; b++)
+  {
+    byte value = (byte) nodata[b];
+    int start = offset + b * plane;
+    for (int p = 0; p < plane; p++)
+    {
+      if (data[start + p] != value)
+      {
+        return false;
+      }
+    }
+  }
+  return true;
+}
+
+// Builds the palette (as packed RGBA), and the index of each pixel.  Returns null if there are too many colors.
+private static int[] buildPalette(byte[] data, int offset, int plane, int bands, int[] nodata, byte[] indexes)
+{
+  int nodataColor = 0;
+  if (nodata != null)
+  {
+    nodataColor = (nodata[0] << 24) | (nodata[1] << 16) | (nodata[2] << 8);
+  }
+
+  // open addressing hash of color -> palette index + 1
+  int[] keys = new int[MAX_PALETTE * 4];
+  int[] values = new int[MAX_PALETTE * 4];
+  int mask = keys.length - 1;
+
+  int[] palette = new int[MAX_PALETTE];
+  int colors = 0;
+
+  int r = offset;
+  int g = offset + plane;
+  int b = offset + 2 * plane;
+  int a = offset + 3 * plane;
+
+  int last = 0;
+  int lastIndex = -1;
+  for (int p = 0; p < plane; p++)
+  {
+    int color = ((data[r + p] & 0xff) << 24) | ((data[g + p] & 0xff) << 16) | ((data[b + p] & 0xff) << 8);
+    if (bands == 4)
+    {
+      color |= data[a + p] & 0xff;
+    }
+    else if (nodata == null || color != nodataColor)
+    {
+      color |= 0xff;
+    }
+
+    // runs of the same color are common
+    if (color == last && lastIndex >= 0)
+    {
+      indexes[p] = (byte) lastIndex;
+      continue;
+    }
+
+    int slot = hash(color) & mask;
+    while (values[slot] != 0 && keys[slot] != color)
+    {
+      slot = (slot + 1) & mask;
+    }
+
+    if (values[slot] == 0)
+    {
+      if (colors == MAX_PALETTE)
+      {
+        return null;
+      }
+      palette[colors] = color;
+      keys[slot] = color;
+      values[slot] = ++colors;
+    }
+
+    last = color;
+    lastIndex = values[slot] - 1;
+    indexes[p] = (byte) lastIndex;
+  }
+
+  int[] result = new int[colors];
+  System.arraycopy(palette, 0, result, 0, colors);
+  return result;
+}
+
+private static int hash(int value)
+{
+  int h = value * 0x9E3779B9;
+  return h ^ (h >>> 16);
+}
+
+private static void writeHeader(DataOutputStream out, int width, int height, int colortype) throws IOException
+{
+  ByteArrayOutputStream ihdr = new ByteArrayOutputStream(13);
+  DataOutputStream hdr = new DataOutputStream(ihdr);
+  hdr.writeInt(width);
+  hdr.writeInt(height);
+  hdr.writeByte(8); // bit depth
+  hdr.writeByte(colortype);
+  hdr.writeByte(0); // compression
+  hdr.writeByte(0); // filter
+  hdr.writeByte(0); // interlace
+
+  writeChunk(out, "IHDR", ihdr.toByteArray(), ihdr.size());
+}
+
+private static void writePalette(DataOutputStream out, int[] palette) throws IOException
+{
+  byte[] plte = new byte[palette.length * 3];
+  byte[] trns = new byte[palette.length];
+
+  int alphas = 0;
+  for (int i = 0; i < palette.length; i++)
+  {
+    plte[i * 3] = (byte) (palette[i] >>> 24);
+    plte[i * 3 + 1] = (byte) (palette[i] >>> 16);
+    plte[i * 3 + 2] = (byte) (palette[i] >>> 8);
+    trns[i] = (byte) palette[i];
+
+    if ((palette[i] & 0xff) != 0xff)
+    {
+      alphas = i + 1;
+    }
+  }
+
+  writeChunk(out, "PLTE", plte, plte.length);
+
+  // trailing opaque entries can be left out
+  if (alphas > 0)
+  {
+    writeChunk(out, "tRNS", trns, alphas);
+  }
+}
+
+// Writes the scanlines, pulling the samples from each band plane, through the deflater into IDAT chunks
+private static void writeImage(DataOutputStream out, int level, byte[] data, int offset, int width, int height,
+    int bands, int plane, int filter) throws IOException
+{
+  Deflater deflater = new Deflater(level);
+  try
+  {
+    IdatOutputStream idat = new IdatOutputStream(out);
+    DeflaterOutputStream deflate = new DeflaterOutputStream(idat, deflater, 1 << 15);
+
+    int rowlen = width * bands;
+    byte[] row = new byte[rowlen + 1];
+    byte[] raw = new byte[rowlen];
+
+    row[0] = (byte) filter;
+    for (int y = 0; y < height; y++)
+    {
+      int start = offset + y * width;
+      if (bands == 1)
+      {
+        System.arraycopy(data, start, raw, 0, width);
+      }
+      else
+      {
+        for (int b = 0; b < bands; b++)
+        {
+          int src = start + b * plane;
+          for (int x = 0, ndx = b; x < width; x++, ndx += bands)
+          {
+            raw[ndx] = data[src + x];
+          }
+        }
+      }
+
+      if (filter == FILTER_SUB)
+      {
+        System.arraycopy(raw, 0, row, 1, bands);
+        for (int i = bands; i < rowlen; i++)
+        {
+          row[i + 1] = (byte) (raw[i] - raw[i - bands]);
+        }
+      }
+      else
+      {
+        System.arraycopy(raw, 0, row, 1, rowlen);
+      }
+
+      deflate.write(row);
+    }
+
+    deflate.finish();
+    idat.flush();
+  }
+  finally
+  {
+    deflater.end();
+  }
+}
+
+private static void writeChunk(DataOutputStream out, String type, byte[] data, int length) throws IOException
+{
+  byte[] typebytes = type.getBytes("US-ASCII");
+
+  CRC32 crc = new CRC32();
+  crc.update(typebytes);
+  crc.update(data, 0, length);
+
+  out.writeInt(length);
+  out.write(typebytes);
+  out.write(data, 0, length);
+  out.writeInt((int) crc.getValue());
+}
+
+private static byte[] transparentPng(int width, int height) throws IOException
+{
+  long key = ((long) width << 32) | (height & 0xffffffffL);
+  byte[] png = transparent.get(key);
+  if (png == null)
+  {
+    ByteArrayOutputStream stream = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(stream);
+    out.write(PNG_SIGNATURE);
+    writeHeader(out, width, height, COLOR_INDEXED);
+    writePalette(out, new int[]{0});
+    writeImage(out, Deflater.BEST_COMPRESSION, new byte[width * height], 0, width, height, 1, 0, FILTER_NONE);
+    writeChunk(out, "IEND", new byte[0], 0);
+    out.flush();
+
+    png = stream.toByteArray();
+    transparent.put(key, png);
+  }
+  return png;
+}
+
+// Buffers the compressed data into IDAT chunks
+private static class IdatOutputStream extends OutputStream
+{
+  private final DataOutputStream out;
+  private final byte[] buffer = new byte[1 << 15];
+  private int count = 0;
+
+  IdatOutputStream(DataOutputStream out)
+  {
+    this.out = out;
+  }
+
+  @Override
+  public void write(int b) throws IOException
+  {
+    if (count == buffer.length)
+    {
+      flush();
+    }
+    buffer[count++] = (byte) b;
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException
+  {
+    while (len > 0)
+    {
+      if (count == buffer.length)
+      {
+        flush();
+      }
+      int n = Math.min(len, buffer.length - count);
+      System.arraycopy(b, off, buffer, count, n);
+      count += n;
+      off += n;
+      len -= n;
+    }
+  }
+
+  @Override
+  public void flush() throws IOException
+  {
+    if (count > 0)
+    {
+      writeChunk(out, "IDAT", buffer, count);
+      count = 0;
+    }
+  }
+}
+}
@@ -67,19 +67,47 @@ public static MrGeoRaster toMrGeoRaster(RasterWritable writable) throws IOExcept
     // this is an old MrsPyramid v2 image, read it into a MrGeoRaster
     return convertFromV2(writable.bytes);
   }
+  if (TileCodec.isEncoded(writable.bytes))
+  {
+    return TileCodec.decode(writable.bytes);
+  }
   return MrGeoRaster.createRaster(writable.bytes);
 }
 
+/**
+ * Decompress (with a SequenceFile codec) and read a raster.  The header gives the size of the
+ * raster, so a plain raster is inflated straight into its backing array, without a copy.  Old (v2)
+ * and predictive encoded tiles are inflated whole, then read as usual.
+ */
 public static MrGeoRaster toMrGeoRaster(RasterWritable writable,
     CompressionCodec codec, Decompressor decompressor) throws IOException
 {
   decompressor.reset();
   ByteArrayInputStream bis = new ByteArrayInputStream(writable.bytes, 0, writable.getSize());
-  CompressionInputStream gis = codec.createInputStream(bis, decompressor);
-  ByteArrayOutputStream baos = new ByteArrayOutputStream();
-  IOUtils.copyBytes(gis, baos, 1024 * 1024 * 2, true);
+  try (CompressionInputStream gis = codec.createInputStream(bis, decompressor))
+  {
+    byte[] header = new byte[MrGeoRaster.HEADER_LEN];
+    int read = 0;
+    int len;
+    while (read < header.length && (len = gis.read(header, read, header.length - read)) > 0)
+    {
+      read += len;
+    }
 
-  return toMrGeoRaster(new RasterWritable(baos.toByteArray()));
+    if (read == header.length && header[0] != 0 && !TileCodec.isEncoded(header))
+    {
+      int[] hdr = MrGeoRaster.readHeader(header);
+      MrGeoRaster raster = MrGeoRaster.createEmptyRaster(hdr[1], hdr[2], hdr[3], hdr[4]);
+      IOUtils.readFully(gis, raster.data, raster.dataoffset(), raster.datasize());
+      return raster;
+    }
+
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    baos.write(header, 0, read);
+    IOUtils.copyBytes(gis, baos, 1024 * 1024 * 2, false);
+
+    return toMrGeoRaster(new RasterWritable(baos.toByteArray()));
+  }
 }
 
 public static RasterWritable toWritable(MrGeoRaster raster) throws IOException
@@ -275,6 +303,17 @@ public int getSize()
   return bytes.length;
 }
 
+/**
+ * The raster's bytes, NOT a copy, so they can be read (serialized, checked for an encoding, etc.)
+ * without copying them first.  The array is shared with this writable, and possibly the raster it
+ * was made from, so it must never be changed; use copyBytes() to get an array that can be.
+ */
+@SuppressFBWarnings(value = {"EI_EXPOSE_REP", "PZLA_PREFER_ZERO_LENGTH_ARRAYS"}, justification = "Read only, documented")
+public byte[] getBytes()
+{
+  return bytes;
+}
+
 @SuppressFBWarnings(value = "PZLA_PREFER_ZERO_LENGTH_ARRAYS", justification = "API")
 public byte[] copyBytes()
 {
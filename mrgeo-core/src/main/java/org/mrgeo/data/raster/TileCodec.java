@@ -0,0 +1,542 @@
+/*
+ * Copyright 2009-2017. DigitalGlobe, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.mrgeo.data.raster;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import org.mrgeo.utils.ByteArrayUtils;
+
+import java.awt.image.DataBuffer;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * How the tiles of a pyramid are encoded when they are stored.
+ * <p>
+ * NONE stores the raw MrGeoRaster bytes, and leaves compression to the storage (i.e. SequenceFile
+ * record compression).  PREDICTIVE encodes each tile itself, band by band: a band where every pixel
+ * is the same (e.g. all nodata) is stored as that one value, any other band is run through a
+ * horizontal predictor (a zigzag coded difference for integer types, an XOR of the bits for floating
+ * point types), its bytes are shuffled so the like bytes of every pixel are together, and the result is
+ * deflated.  Data the predictor doesn't help (e.g. decimal values stored as doubles) is deflated as is,
+ * whichever is smaller is kept.
+ * <p>
+ * Encoded tiles are recognized by their version byte, so RasterWritable.toMrGeoRaster() reads either
+ * kind, and decodes straight into the new raster's data.
+ * <p>
+ * A tile where every band is constant is only a few bytes with either codec (see compact()), and is
+ * only expanded into a full raster when it is read.  Operators can use constantValues() to work on
+ * the values of such a tile without expanding it.
+ */
+public enum TileCodec
+{
+NONE,
+PREDICTIVE;
+
+// the first byte of a predictive encoded tile, where the MrGeoRaster version (never 0x50) would be
+static final byte PREDICTIVE_VERSION = 0x50;
+
+// each band is stored as the mode, followed by the value (constant) or the deflated length and bytes
+private static final byte BAND_CONSTANT = 0;
+private static final byte BAND_PREDICTED = 1;
+private static final byte BAND_RAW = 2;
+
+/**
+ * Parse a codec (case insensitive)
+ */
+public static TileCodec fromString(String codec)
+{
+  return valueOf(codec.trim().toUpperCase());
+}
+
+/**
+ * Whether the raster bytes (i.e. from a RasterWritable) are a predictive encoded tile
+ */
+public static boolean isEncoded(byte[] bytes)
+{
+  return bytes != null && bytes.length > 0 && bytes[0] == PREDICTIVE_VERSION;
+}
+
+/**
+ * A tile where every pixel of each band is that band's value, without the pixels
+ */
+public static RasterWritable constant(int width, int height, int datatype, double[] values) throws IOException
+{
+  MrGeoRaster pixel = MrGeoRaster.createEmptyRaster(1, 1, values.length, datatype);
+  for (int b = 0; b < values.length; b++)
+  {
+    pixel.setPixel(0, 0, b, values[b]);
+  }
+  return constant(width, height, pixel);
+}
+
+/**
+ * A constant tile the same size as the tile, which must be a constant tile itself
+ */
+public static RasterWritable constant(RasterWritable tile, int datatype, double[] values) throws IOException
+{
+  int[] header = MrGeoRaster.readHeader(Arrays.copyOfRange(tile.getBytes(), 1, MrGeoRaster.HEADER_LEN + 1));
+  return constant(header[1], header[2], datatype, values);
+}
+
+/**
+ * The tile, as a constant tile when every band of the raster is constant
+ */
+public static RasterWritable compact(MrGeoRaster raster) throws IOException
+{
+  RasterWritable constant = compact(raster.data(), raster.dataoffset(), raster.width(), raster.height(),
+      raster.bands(), raster.datatype());
+  return constant == null ? RasterWritable.toWritable(raster) : constant;
+}
+
+/**
+ * The tile, as a constant tile when every band is constant.  The raw raster bytes are checked
+ * in place, without making a raster from them, and encoded tiles are returned as they are.
+ */
+public static RasterWritable compact(RasterWritable tile) throws IOException
+{
+  byte[] bytes = tile.getBytes();
+  // encoded, or an old (version 0) tile
+  if (bytes == null || bytes.length < MrGeoRaster.HEADER_LEN || bytes[0] == 0 || isEncoded(bytes))
+  {
+    return tile;
+  }
+
+  int[] header = MrGeoRaster.readHeader(bytes);
+  RasterWritable constant = compact(bytes, header[5], header[1], header[2], header[3], header[4]);
+  return constant == null ? tile : constant;
+}
+
+/**
+ * The values of each band of a constant tile, or null if the tile isn't constant (or isn't
+ * encoded as one)
+ */
+@SuppressFBWarnings(value = "PZLA_PREFER_ZERO_LENGTH_ARRAYS", justification = "null means not constant")
+public static double[] constantValues(RasterWritable tile) throws IOException
+{
+  byte[] bytes = tile.getBytes();
+  if (!isEncoded(bytes))
+  {
+    return null;
+  }
+
+  int[] header = MrGeoRaster.readHeader(Arrays.copyOfRange(bytes, 1, MrGeoRaster.HEADER_LEN + 1));
+  int bands = header[3];
+  MrGeoRaster pixel = MrGeoRaster.createEmptyRaster(1, 1, bands, header[4]);
+  int bpp = pixel.bytesPerPixel();
+
+  int offset = MrGeoRaster.HEADER_LEN + 1;
+  if (bytes.length != offset + bands * (1 + bpp))
+  {
+    return null;
+  }
+
+  double[] values = new double[bands];
+  for (int b = 0; b < bands; b++)
+  {
+    if (bytes[offset] != BAND_CONSTANT)
+    {
+      return null;
+    }
+    System.arraycopy(bytes, offset + 1, pixel.data(), pixel.dataoffset() + b * bpp, bpp);
+    values[b] = pixel.getPixelDouble(0, 0, b);
+    offset += 1 + bpp;
+  }
+  return values;
+}
+
+/**
+ * Whether every pixel of the tile is nodata, constant tiles are checked without expanding them
+ */
+public static boolean isAllNodata(RasterWritable tile, double[] nodatas) throws IOException
+{
+  double[] values = constantValues(tile);
+  if (values == null)
+  {
+    return RasterWritable.toMrGeoRaster(tile).isAllNodata(nodatas);
+  }
+
+  for (int b = 0; b < values.length; b++)
+  {
+    if (!(Double.isNaN(nodatas[b]) ? Double.isNaN(values[b]) : values[b] == nodatas[b]))
+    {
+      return false;
+    }
+  }
+  return true;
+}
+
+/**
+ * Decode a predictive encoded tile
+ */
+public static MrGeoRaster decode(byte[] bytes) throws IOException
+{
+  int[] header = MrGeoRaster.readHeader(Arrays.copyOfRange(bytes, 1, MrGeoRaster.HEADER_LEN + 1));
+  int width = header[1];
+  int height = header[2];
+  int bands = header[3];
+  int datatype = header[4];
+
+  MrGeoRaster raster = MrGeoRaster.createEmptyRaster(width, height, bands, datatype);
+  byte[] data = raster.data();
+  int bpp = raster.bytesPerPixel();
+  int bandlen = width * height * bpp;
+  boolean fp = isFloatingPoint(datatype);
+
+  int offset = MrGeoRaster.HEADER_LEN + 1;
+  byte[] predicted = null;
+
+  Inflater inflater = new Inflater();
+  try
+  {
+    for (int b = 0; b < bands; b++)
+    {
+      int start = raster.dataoffset() + b * bandlen;
+      byte mode = bytes[offset++];
+      switch (mode)
+      {
+      case BAND_CONSTANT:
+        // copy the value, then keep doubling what's been filled
+        System.arraycopy(bytes, offset, data, start, bpp);
+        for (int filled = bpp; filled < bandlen; filled <<= 1)
+        {
+          System.arraycopy(data, start, data, start + filled, Math.min(filled, bandlen - filled));
+        }
+        offset += bpp;
+        break;
+      case BAND_PREDICTED:
+        if (predicted == null)
+        {
+          predicted = new byte[bandlen];
+        }
+        offset = inflate(inflater, bytes, offset, predicted, 0, bandlen);
+        unpredict(predicted, data, start, width, height, bpp, fp);
+        break;
+      case BAND_RAW:
+        offset = inflate(inflater, bytes, offset, data, start, bandlen);
+        break;
+      default:
+        throw new IOException("Unknown band encoding (" + mode + ") in a predictive encoded tile");
+      }
+    }
+  }
+  catch (DataFormatException e)
+  {
+    throw new IOException("Error decoding a predictive encoded tile", e);
+  }
+  finally
+  {
+    inflater.end();
+  }
+
+  return raster;
+}
+
+/**
+ * Encode a raster for storage
+ */
+public RasterWritable encode(MrGeoRaster raster) throws IOException
+{
+  if (this == NONE)
+  {
+    return RasterWritable.toWritable(raster);
+  }
+
+  int width = raster.width();
+  int height = raster.height();
+  int bands = raster.bands();
+  int bpp = raster.bytesPerPixel();
+  int bandlen = width * height * bpp;
+  boolean fp = isFloatingPoint(raster.datatype());
+  byte[] data = raster.data();
+
+  byte[] header = new byte[MrGeoRaster.HEADER_LEN];
+  MrGeoRaster.writeHeader(width, height, bands, raster.datatype(), header);
+
+  // room for the header and modes, the rest grows as needed
+  byte[] encoded = new byte[1 + MrGeoRaster.HEADER_LEN + bands * (5 + bpp)];
+  encoded[0] = PREDICTIVE_VERSION;
+  System.arraycopy(header, 0, encoded, 1, MrGeoRaster.HEADER_LEN);
+  int offset = 1 + MrGeoRaster.HEADER_LEN;
+
+  byte[] predicted = null;
+  byte[] deflated = new byte[bandlen + (bandlen >> 3) + 64];
+
+  Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+  try
+  {
+    for (int b = 0; b < bands; b++)
+    {
+      int start = raster.dataoffset() + b * bandlen;
+      if (isConstant(data, start, bandlen, bpp))
+      {
+        encoded[offset++] = BAND_CONSTANT;
+        System.arraycopy(data, start, encoded, offset, bpp);
+        offset += bpp;
+        continue;
+      }
+
+      if (predicted == null)
+      {
+        predicted = new byte[bandlen];
+      }
+      predict(data, start, predicted, width, height, bpp, fp);
+
+      byte mode = BAND_PREDICTED;
+      int len = deflate(deflater, predicted, 0, bandlen, deflated);
+      byte[] best = Arrays.copyOf(deflated, len);
+
+      len = deflate(deflater, data, start, bandlen, deflated);
+      if (len < best.length)
+      {
+        mode = BAND_RAW;
+        best = Arrays.copyOf(deflated, len);
+      }
+
+      if (offset + 5 + best.length > encoded.length)
+      {
+        encoded = Arrays.copyOf(encoded, Math.max(encoded.length * 2, offset + 5 + best.length + bands * (5 + bpp)));
+      }
+
+      encoded[offset++] = mode;
+      ByteArrayUtils.setInt(best.length, encoded, offset);
+      offset += 4;
+      System.arraycopy(best, 0, encoded, offset, best.length);
+      offset += best.length;
+    }
+  }
+  finally
+  {
+    deflater.end();
+  }
+
+  return RasterWritable.fromBytes(Arrays.copyOf(encoded, offset));
+}
+
+/**
+ * Encode a tile for storage
+ */
+public RasterWritable encode(RasterWritable writable) throws IOException
+{
+  if (this == NONE || isEncoded(writable.getBytes()))
+  {
+    return writable;
+  }
+  return encode(RasterWritable.toMrGeoRaster(writable));
+}
+
+// a constant tile from the bands of the raster data (at offset), or null if any band isn't constant
+private static RasterWritable compact(byte[] data, int offset, int width, int height, int bands, int datatype)
+    throws IOException
+{
+  MrGeoRaster pixel = MrGeoRaster.createEmptyRaster(1, 1, bands, datatype);
+  int bpp = pixel.bytesPerPixel();
+  int bandlen = width * height * bpp;
+  if (data.length < offset + bands * bandlen)
+  {
+    return null;
+  }
+
+  for (int b = 0; b < bands; b++)
+  {
+    if (!isConstant(data, offset + b * bandlen, bandlen, bpp))
+    {
+      return null;
+    }
+  }
+
+  for (int b = 0; b < bands; b++)
+  {
+    System.arraycopy(data, offset + b * bandlen, pixel.data(), pixel.dataoffset() + b * bpp, bpp);
+  }
+  return constant(width, height, pixel);
+}
+
+// a constant tile from the values in a 1x1 raster
+private static RasterWritable constant(int width, int height, MrGeoRaster pixel)
+{
+  int bands = pixel.bands();
+  int bpp = pixel.bytesPerPixel();
+
+  byte[] encoded = new byte[1 + MrGeoRaster.HEADER_LEN + bands * (1 + bpp)];
+  encoded[0] = PREDICTIVE_VERSION;
+
+  byte[] header = new byte[MrGeoRaster.HEADER_LEN];
+  MrGeoRaster.writeHeader(width, height, bands, pixel.datatype(), header);
+  System.arraycopy(header, 0, encoded, 1, MrGeoRaster.HEADER_LEN);
+
+  int offset = 1 + MrGeoRaster.HEADER_LEN;
+  for (int b = 0; b < bands; b++)
+  {
+    encoded[offset] = BAND_CONSTANT;
+    System.arraycopy(pixel.data(), pixel.dataoffset() + b * bpp, encoded, offset + 1, bpp);
+    offset += 1 + bpp;
+  }
+  return RasterWritable.fromBytes(encoded);
+}
+
+// deflate the bytes into dst (which is big enough for incompressible data), returning the length
+private static int deflate(Deflater deflater, byte[] src, int offset, int len, byte[] dst)
+{
+  deflater.reset();
+  deflater.setInput(src, offset, len);
+  deflater.finish();
+
+  int written = 0;
+  while (!deflater.finished())
+  {
+    written += deflater.deflate(dst, written, dst.length - written);
+  }
+  return written;
+}
+
+// inflate the length prefixed, deflated bytes at offset into dst, returning the offset after them
+private static int inflate(Inflater inflater, byte[] src, int offset, byte[] dst, int dstOffset, int len)
+    throws IOException, DataFormatException
+{
+  int deflated = ByteArrayUtils.getInt(src, offset);
+  inflater.reset();
+  inflater.setInput(src, offset + 4, deflated);
+
+  int read = 0;
+  while (read < len)
+  {
+    int n = inflater.inflate(dst, dstOffset + read, len - read);
+    if (n == 0 && (inflater.finished() || inflater.needsInput()))
+    {
+      throw new IOException("Predictive encoded tile is truncated");
+    }
+    read += n;
+  }
+  return offset + 4 + deflated;
+}
+
+private static boolean isFloatingPoint(int datatype)
+{
+  return datatype == DataBuffer.TYPE_FLOAT || datatype == DataBuffer.TYPE_DOUBLE;
+}
+
+private static boolean isConstant(byte[] data, int offset, int len, int bpp)
+{
+  for (int i = bpp; i < len; i++)
+  {
+    if (data[offset + i] != data[offset + (i % bpp)])
+    {
+      return false;
+    }
+  }
+  return true;
+}
+
+// little-endian pixel bits
+private static long bits(byte[] data, int offset, int bpp)
+{
+  long v = 0;
+  for (int k = 0; k < bpp; k++)
+  {
+    v |= (data[offset + k] & 0xffL) << (k << 3);
+  }
+  return v;
+}
+
+// Replace each pixel by its residual from the pixel to its left (the first pixel of the row above for
+// the first column), and write the residuals' bytes shuffled: all the first bytes, then all the second
+// bytes...  Integer residuals are the difference, zigzag coded so small negative ones stay small, floating
+// point residuals are the XOR of the bits.
+private static void predict(byte[] src, int offset, byte[] dst, int width, int height, int bpp, boolean xor)
+{
+  int pixels = width * height;
+  int bits = bpp << 3;
+  long mask = bpp == 8 ? -1L : (1L << bits) - 1;
+  long prev = 0;
+  long rowstart = 0;
+  for (int p = 0; p < pixels; p++)
+  {
+    long v = bits(src, offset + p * bpp, bpp);
+    if (p % width == 0)
+    {
+      prev = rowstart;
+      rowstart = v;
+    }
+
+    long residual;
+    if (xor)
+    {
+      residual = v ^ prev;
+    }
+    else
+    {
+      // sign extend the difference, then zigzag
+      long diff = ((v - prev) << (64 - bits)) >> (64 - bits);
+      residual = ((diff << 1) ^ (diff >> 63)) & mask;
+    }
+
+    for (int k = 0; k < bpp; k++)
+    {
+      dst[k * pixels + p] = (byte) (residual >>> (k << 3));
+    }
+    prev = v;
+  }
+}
+
+// The inverse of predict(), unshuffling and undoing the prediction into the raster's data
+private static void unpredict(byte[] src, byte[] dst, int offset, int width, int height, int bpp, boolean xor)
+{
+  int pixels = width * height;
+  long mask = bpp == 8 ? -1L : (1L << (bpp << 3)) - 1;
+  long prev = 0;
+  long rowstart = 0;
+  for (int p = 0; p < pixels; p++)
+  {
+    long residual = 0;
+    for (int k = 0; k < bpp; k++)
+    {
+      residual |= (src[k * pixels + p] & 0xffL) << (k << 3);
+    }
+
+    boolean first = p % width == 0;
+    if (first)
+    {
+      prev = rowstart;
+    }
+
+    long v;
+    if (xor)
+    {
+      v = residual ^ prev;
+    }
+    else
+    {
+      long diff = (residual >>> 1) ^ -(residual & 1);
+      v = (prev + diff) & mask;
+    }
+
+    if (first)
+    {
+      rowstart = v;
+    }
+
+    int o = offset + p * bpp;
+    for (int k = 0; k < bpp; k++)
+    {
+      dst[o + k] = (byte) (v >>> (k << 3));
+    }
+    prev = v;
+  }
+}
+}
@@ -25,10 +25,13 @@ import org.mrgeo.image.MrsImageException;
 import org.mrgeo.utils.LongRectangle;
 import org.mrgeo.utils.tms.TMSUtils;
 import org.mrgeo.utils.tms.Tile;
+import org.mrgeo.utils.tms.TileBounds;
+import org.mrgeo.utils.tms.TileOrder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.List;
 import java.util.NoSuchElementException;
 
 /**
@@ -44,6 +47,11 @@ private final HdfsMrsImageReader reader;
 private final long rowStart;
 private final long rowEnd;
 private final int zoom;
+// the order the tiles are stored in, and for anything but row-major, the ranges of keys to return
+private final TileOrder order;
+private final int keyZoom;
+private List<long[]> ranges;
+private int rangeIndex;
 // hdfs specific reader
 private MapFileReaderWrapper mapfile;
 // keep track of where the reader is
@@ -67,9 +75,19 @@ HdfsImageResultScanner(LongRectangle bounds,
   rowStart = bounds.getMinX();
   rowEnd = bounds.getMaxX();
   zoom = reader.getZoomlevel();
+  order = reader.getTileOrder();
+  keyZoom = zoom;
 
-  primeScanner(TMSUtils.tileid(bounds.getMinX(), bounds.getMinY(), zoom),
-      TMSUtils.tileid(bounds.getMaxX(), bounds.getMaxY(), zoom));
+  if (order == TileOrder.ROW_MAJOR)
+  {
+    primeScanner(TMSUtils.tileid(bounds.getMinX(), bounds.getMinY(), zoom),
+        TMSUtils.tileid(bounds.getMaxX(), bounds.getMaxY(), zoom));
+  }
+  else
+  {
+    primeRanges(order.ranges(new TileBounds(bounds.getMinX(), bounds.getMinY(), bounds.getMaxX(),
+        bounds.getMaxY()), zoom));
+  }
 }
 
 /**
@@ -92,9 +110,17 @@ HdfsImageResultScanner(TileIdWritable startKey, TileIdWritable endKey,
   rowStart = Long.MIN_VALUE;
   rowEnd = Long.MAX_VALUE;
   zoom = -1;
+  order = reader.getTileOrder();
+  keyZoom = reader.getZoomlevel();
 
-  primeScanner(startTileId, endTileId);
-
+  if (order == TileOrder.ROW_MAJOR || (startKey == null && endKey == null))
+  {
+    primeScanner(startTileId, endTileId);
+  }
+  else
+  {
+    primeRanges(order.ranges(startTileId, endTileId, keyZoom));
+  }
 }
 
 @Override
@@ -112,6 +138,10 @@ public TileIdWritable currentKey()
 {
   // TODO eaw Should probably have a null check, especially because key will be null if the tile was not found
   // don't reuse the tileidwritable, spark persist() doesn't like it...
+  if (order != TileOrder.ROW_MAJOR)
+  {
+    return new TileIdWritable(order.toTileId(currentKey.get(), keyZoom));
+  }
   return new TileIdWritable(currentKey);
 }
 
@@ -137,6 +167,11 @@ public boolean hasNext()
 {
   try
   {
+    if (ranges != null && ranges.isEmpty())
+    {
+      return false;
+    }
+
     if (mapfile == null)
     {
       throw new MrsImageException("Mapfile.Reader has been closed");
@@ -149,11 +184,15 @@ public boolean hasNext()
 
     // TODO eaw - This causes the first call to hasNext after the primeScanner to not advance the key.  This means 2 calls
     //            to has next are needed in order to get past the first element
+    boolean found;
     if (readFirstKey)
     {
       readFirstKey = false;
-      // handle boundary cases: startKey >= endKey
-      return (currentKey.compareTo(endKey) <= 0);
+      found = true;
+    }
+    else
+    {
+      found = mapfile.getReader().next(currentKey, currentValue);
     }
 
       /*
@@ -165,31 +204,15 @@ public boolean hasNext()
     {
       // TODO eaw - The contract on java.util.Iterator requires that this method implementation not advance the iterator.
       //            This code should be on next()
-      boolean found = mapfile.getReader().next(currentKey, currentValue);
       if (found)
       {
-        if (currentKey.compareTo(endKey) <= 0)
-        {
-          // only need to check start/end tx if we've set the zoom...
-          if (zoom > 0)
-          {
-            // if we fall within the boundries return positive, otherwise slerp up the tile and
-            // try the next one.
-            Tile t = TMSUtils.tileid(currentKey.get(), zoom);
-            if (t.tx >= rowStart && t.tx <= rowEnd)
-            {
-              return true;
-            }
-          }
-          else
-          {
-            return true;
-          }
-        }
-        else
-        {
-          return false;
-        }
+        found = (ranges == null) ? skipToColumns() : skipToRange();
+      }
+
+      if (found)
+      {
+        // handle boundary cases: startKey >= endKey
+        return currentKey.compareTo(endKey) <= 0;
       }
       else
       {
@@ -203,6 +226,7 @@ public boolean hasNext()
         }
 
         mapfile = reader.getReaderWrapper(curPartitionIndex);
+        found = mapfile.getReader().next(currentKey, currentValue);
       }
     }
   }
@@ -242,27 +266,79 @@ public void remove()
   throw new UnsupportedOperationException("iterator is read-only");
 }
 
-private boolean inRange(TileIdWritable key)
+// If the current tile is outside of the columns we want, use the MapFile index to seek to the
+// first column of this (or the next) row, instead of reading (and deserializing) every tile in
+// between.  Returns false if there are no more tiles in this partition.
+private boolean skipToColumns() throws IOException
 {
-  if (key.compareTo(endKey) <= 0)
+  // only need to check start/end tx if we've set the zoom...
+  while (zoom > 0 && currentKey.compareTo(endKey) <= 0)
   {
-    // only need to check start/end tx if we've set the zoom...
-    if (zoom > 0)
+    Tile t = TMSUtils.tileid(currentKey.get(), zoom);
+    if (t.tx >= rowStart && t.tx <= rowEnd)
     {
-      // if we fall within the boundries return positive, otherwise slerp up the tile and
-      // try the next one.
-      Tile t = TMSUtils.tileid(key.get(), zoom);
-      if (t.tx >= rowStart && t.tx <= rowEnd)
-      {
-        return true;
-      }
+      return true;
     }
-    else
+
+    long ty = (t.tx < rowStart) ? t.ty : t.ty + 1;
+    TileIdWritable seekKey = new TileIdWritable(TMSUtils.tileid(rowStart, ty, zoom));
+    if (seekKey.compareTo(endKey) > 0)
+    {
+      // no more rows, just leave the key past the end
+      currentKey.set(seekKey.get());
+      return true;
+    }
+
+    TileIdWritable closest = (TileIdWritable) mapfile.getReader().getClosest(seekKey, currentValue);
+    if (closest == null)
+    {
+      return false;
+    }
+    currentKey.set(closest.get());
+  }
+  return true;
+}
+
+// If the current key is before the key range we want, use the MapFile index to seek to the start
+// of it.  Returns false if there are no more tiles in this partition.
+private boolean skipToRange() throws IOException
+{
+  while (currentKey.compareTo(endKey) <= 0)
+  {
+    long key = currentKey.get();
+    while (rangeIndex < ranges.size() - 1 && ranges.get(rangeIndex)[1] < key)
+    {
+      rangeIndex++;
+    }
+
+    long start = ranges.get(rangeIndex)[0];
+    if (key >= start)
     {
+      // either in the range, or past the last one (and the end key)
       return true;
     }
+
+    TileIdWritable closest = (TileIdWritable) mapfile.getReader().getClosest(new TileIdWritable(start),
+        currentValue);
+    if (closest == null)
+    {
+      return false;
+    }
+    currentKey.set(closest.get());
+  }
+  return true;
+}
+
+// Scan the (sorted) key ranges, from the start of the first to the end of the last, skipping the
+// keys in between
+private void primeRanges(List<long[]> keyRanges)
+{
+  ranges = keyRanges;
+  rangeIndex = 0;
+  if (!ranges.isEmpty())
+  {
+    primeScanner(ranges.get(0)[0], ranges.get(ranges.size() - 1)[1]);
   }
-  return false;
 }
 
 @SuppressWarnings({"unchecked", "squid:S1166"}) // Splits.SplitException is caught and handled
@@ -316,12 +392,15 @@ private void primeScanner(long startTileId, long endTileId)
       {
         throw new MrsImageException(e);
       }
-      currentKey = (TileIdWritable) mapfile.getReader().getClosest(startKey, currentValue);
-      if (currentKey != null)
+      TileIdWritable closest = (TileIdWritable) mapfile.getReader().getClosest(startKey, currentValue);
+      if (closest != null)
       {
-        // Did we get a key and have we not run past the end key
-        // TODO eaw - inRange does the first part of this check, so the first condition can be dropped
-        if ((currentKey.compareTo(endKey) <= 0) && inRange(currentKey))
+        // copy the key, the one returned belongs to the reader
+        currentKey = new TileIdWritable(closest);
+
+        // Did we get a key and have we not run past the end key (hasNext() will skip forward if the
+        // tile is outside of the columns)
+        if (currentKey.compareTo(endKey) <= 0)
         {
           readFirstKey = true;
           curPartitionIndex = partitionIndex;
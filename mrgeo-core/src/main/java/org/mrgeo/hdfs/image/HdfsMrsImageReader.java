@@ -35,12 +35,14 @@ import org.mrgeo.hdfs.tile.FileSplit;
 import org.mrgeo.hdfs.tile.FileSplit.FileSplitInfo;
 import org.mrgeo.hdfs.utils.HadoopFileUtils;
 import org.mrgeo.hdfs.utils.HadoopFileUtils.MapFileReaderWrapper;
+import org.mrgeo.image.MrsPyramidMetadata;
 import org.mrgeo.utils.HadoopUtils;
 import org.mrgeo.utils.LongRectangle;
 import org.mrgeo.utils.tms.Bounds;
 import org.mrgeo.utils.tms.TMSUtils;
 import org.mrgeo.utils.tms.Tile;
 import org.mrgeo.utils.tms.TileBounds;
+import org.mrgeo.utils.tms.TileOrder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -61,6 +63,8 @@ private final static int READER_CACHE_EXPIRE = 10; // minutes
 @SuppressWarnings("unused")
 private static Logger log = LoggerFactory.getLogger(HdfsMrsImageReader.class);
 final int tileSize;
+// the order the tiles are stored in
+final TileOrder tileOrder;
 // location of data
 final Path imagePath;
 // Hadoop Configuration for connection to HDFS
@@ -106,7 +110,9 @@ public HdfsMrsImageReader(HdfsMrsImageDataProvider provider,
 
 //    this.provider = provider;
   this.context = context;
-  tileSize = provider.getMetadataReader().read().getTilesize();
+  MrsPyramidMetadata metadata = provider.getMetadataReader().read();
+  tileSize = metadata.getTilesize();
+  tileOrder = metadata.getTileOrder();
 
   String modifiedPath = path;
 
@@ -152,6 +158,15 @@ public int getTileSize()
   return tileSize;
 }
 
+/**
+ * The order the tiles are stored in.  Tile ids going in and out of this reader are always
+ * row-major, for the other orders they're converted to/from the stored keys.
+ */
+public TileOrder getTileOrder()
+{
+  return tileOrder;
+}
+
 public KVIterator<TileIdWritable, MrGeoRaster> get(LongRectangle tileBounds)
 {
   return new HdfsImageResultScanner(tileBounds, this);
@@ -251,8 +266,14 @@ public MrGeoRaster get(TileIdWritable key)
   MapFileReaderWrapper readerWrapper = null;
   try
   {
+    TileIdWritable storedKey = key;
+    if (tileOrder != TileOrder.ROW_MAJOR)
+    {
+      storedKey = new TileIdWritable(tileOrder.toKey(key.get(), getZoomlevel()));
+    }
+
     // get the reader that handles the partition/map file
-    readerWrapper = getReaderWrapper(getPartitionIndex(key));
+    readerWrapper = getReaderWrapper(getPartitionIndex(storedKey));
 
     // return object
     RasterWritable val = (RasterWritable) readerWrapper.getReader().getValueClass().newInstance();
@@ -262,7 +283,7 @@ public MrGeoRaster get(TileIdWritable key)
     {
       // log.debug("getting " + key);
       try {
-        readerWrapper.getReader().get(key, val);
+        readerWrapper.getReader().get(storedKey, val);
       }
       catch(java.io.EOFException e) {
         log.error("Got EOF exception trying to read " + readerWrapper);
@@ -330,7 +351,7 @@ public int getMaxPartitions()
 /**
  * This will return the partition for the tile requested.
  *
- * @param key the item to find the range for
+ * @param key the (stored) key to find the range for
  * @return the partition of the requested key
  */
 public int getPartitionIndex(TileIdWritable key) throws IOException
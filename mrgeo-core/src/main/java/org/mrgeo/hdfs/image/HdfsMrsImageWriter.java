@@ -25,8 +25,11 @@ import org.mrgeo.data.image.MrsImageWriter;
 import org.mrgeo.data.image.MrsPyramidWriterContext;
 import org.mrgeo.data.raster.MrGeoRaster;
 import org.mrgeo.data.raster.RasterWritable;
+import org.mrgeo.data.raster.TileCodec;
+import org.mrgeo.image.MrsPyramidMetadata;
 import org.mrgeo.data.tile.TileIdWritable;
 import org.mrgeo.utils.HadoopUtils;
+import org.mrgeo.utils.tms.TileOrder;
 
 import java.io.IOException;
 
@@ -36,6 +39,9 @@ final private HdfsMrsImageDataProvider provider;
 final private MrsPyramidWriterContext context;
 
 private Writer writer;
+private TileOrder order;
+private TileCodec codec;
+private TileIdWritable key = new TileIdWritable();
 
 
 // image = path to mapfile directory- e.g., /hdfs/path/to/mapfile (will contain data and index
@@ -47,6 +53,10 @@ HdfsMrsImageWriter(HdfsMrsImageDataProvider provider, MrsPyramidWriterContext co
 
 }
 
+/**
+ * Append a tile, keyed by its (row-major) tile id.  The tiles must be appended in the order of the
+ * keys they are stored under (see TileOrder).
+ */
 @Override
 public void append(TileIdWritable k, MrGeoRaster raster) throws IOException
 {
@@ -54,7 +64,16 @@ public void append(TileIdWritable k, MrGeoRaster raster) throws IOException
   {
     openWriter();
   }
-  writer.append(k, RasterWritable.toWritable(raster));
+
+  if (order == TileOrder.ROW_MAJOR)
+  {
+    writer.append(k, codec.encode(raster));
+  }
+  else
+  {
+    key.set(order.toKey(k.get(), context.getZoomlevel()));
+    writer.append(key, codec.encode(raster));
+  }
 }
 
 @Override
@@ -99,10 +118,15 @@ private void openWriter() throws IOException
   // tile
   conf.set("dfs.client.write-packet-size", "786500");
 
+  MrsPyramidMetadata metadata = provider.getMetadataReader().read();
+  order = metadata.getTileOrder();
+  codec = metadata.getTileCodec();
+
+  // encoded tiles are already compressed
   writer = new Writer(conf, imagePath,
       Writer.keyClass(TileIdWritable.class.asSubclass(WritableComparable.class)),
       Writer.valueClass(RasterWritable.class.asSubclass(Writable.class)),
-      Writer.compression(CompressionType.RECORD));
+      Writer.compression(codec == TileCodec.NONE ? CompressionType.RECORD : CompressionType.NONE));
 
   writer.setIndexInterval(1);
 }
@@ -34,6 +34,7 @@ import org.mrgeo.mapreduce.splitters.TiledInputSplit;
 import org.mrgeo.utils.tms.Bounds;
 import org.mrgeo.utils.tms.TMSUtils;
 import org.mrgeo.utils.tms.Tile;
+import org.mrgeo.utils.tms.TileOrder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -45,6 +46,7 @@ import java.util.List;
 public class HdfsMrsPyramidInputFormat extends InputFormat<TileIdWritable, RasterWritable>
 {
 private static Logger log = LoggerFactory.getLogger(HdfsMrsPyramidInputFormat.class);
+private static final String TILE_ORDER = HdfsMrsPyramidInputFormat.class.getSimpleName() + ".tileOrder";
 private String input;
 
 /**
@@ -93,6 +95,19 @@ public static void setInputInfo(Job job, String inputWithZoom) throws IOExceptio
   FileInputFormat.setInputPathFilter(job, MapFileFilter.class);
 }
 
+public static void setTileOrder(Configuration conf, TileOrder order)
+{
+  conf.set(TILE_ORDER, order.name());
+}
+
+/**
+ * The order the tiles being read are stored in, row-major if it hasn't been set
+ */
+public static TileOrder getTileOrder(Configuration conf)
+{
+  return TileOrder.valueOf(conf.get(TILE_ORDER, TileOrder.ROW_MAJOR.name()));
+}
+
 @Override
 public RecordReader<TileIdWritable, RasterWritable> createRecordReader(InputSplit split,
     TaskAttemptContext context)
@@ -136,6 +151,16 @@ public List<InputSplit> getSplits(JobContext context) throws IOException
   List<InputSplit> result = new ArrayList<>(splits.length);
 
   Bounds requestedBounds = ifContext.getBounds();
+
+  // the split start and end ids are stored keys, for anything but row-major pyramids, only keep
+  // the splits containing at least one of the key ranges within the bounds
+  TileOrder order = metadata.getTileOrder();
+  List<long[]> ranges = null;
+  if (requestedBounds != null && order != TileOrder.ROW_MAJOR)
+  {
+    ranges = order.ranges(TMSUtils.boundsToTile(requestedBounds, zoom, tilesize), zoom);
+  }
+
   for (FileSplitInfo split : splits)
   {
     Path part = new Path(inputWithZoom, split.getName());
@@ -144,7 +169,15 @@ public List<InputSplit> getSplits(JobContext context) throws IOException
     long endTileId = split.getEndId();
     long startTileId = split.getStartId();
 
-    if (requestedBounds != null)
+    if (ranges != null)
+    {
+      if (TileOrder.intersects(ranges, startTileId, endTileId))
+      {
+        result.add(new TiledInputSplit(new FileSplit(dataFile, 0, 0, null), startTileId, endTileId,
+            zoom, metadata.getTilesize()));
+      }
+    }
+    else if (requestedBounds != null)
     {
       // Do not include splits that can't possibly intersect the requested bounds. This
       // is an HDFS-specific efficiency to avoid needlessly processing splits.
@@ -121,6 +121,16 @@ private void setupConfig(Job job) throws DataProviderException
 
   String zoomInput = image;
 
+  // the record reader needs to know how the keys it reads map to tile ids
+  try
+  {
+    HdfsMrsPyramidInputFormat.setTileOrder(conf, dp.getMetadataReader().read().getTileOrder());
+  }
+  catch (IOException e)
+  {
+    throw new DataProviderException("Failure reading the metadata for " + input, e);
+  }
+
   try
   {
     HdfsMrsPyramidInputFormat.setInputInfo(job, zoomInput);
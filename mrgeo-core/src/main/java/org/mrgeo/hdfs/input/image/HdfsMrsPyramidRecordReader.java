@@ -18,19 +18,32 @@ package org.mrgeo.hdfs.input.image;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.MapFile;
 import org.apache.hadoop.io.SequenceFile.Reader;
 import org.apache.hadoop.mapreduce.InputSplit;
 import org.apache.hadoop.mapreduce.RecordReader;
 import org.apache.hadoop.mapreduce.TaskAttemptContext;
 import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.mrgeo.data.image.ImageInputFormatContext;
 import org.mrgeo.data.raster.RasterWritable;
 import org.mrgeo.data.tile.TileIdWritable;
 import org.mrgeo.mapreduce.splitters.TiledInputSplit;
+import org.mrgeo.utils.tms.Bounds;
+import org.mrgeo.utils.tms.TMSUtils;
+import org.mrgeo.utils.tms.TileBounds;
+import org.mrgeo.utils.tms.TileOrder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
 
 public class HdfsMrsPyramidRecordReader extends RecordReader<TileIdWritable, RasterWritable>
 {
+private static final Logger log = LoggerFactory.getLogger(HdfsMrsPyramidRecordReader.class);
+
 private Reader reader;
 private TileIdWritable key;
 private RasterWritable value;
@@ -39,6 +52,24 @@ private long endTileId;
 private long recordCount;
 private boolean more = true;
 
+// the order the tiles are stored in, keys are converted to tile ids as they are read
+private TileOrder order = TileOrder.ROW_MAJOR;
+private int zoom;
+
+// when loading a cropped region, only the tiles within these bounds (the key ranges covering them)
+// are returned, and the MapFile index is used to seek past the ones that aren't
+private TileBounds crop;
+private List<long[]> ranges;
+private int rangeIndex;
+private long[] indexKeys;
+private long[] indexPositions;
+
+// bytes read sequentially and bytes seeked past, for cropped reads
+private Path path;
+private long segmentStart;
+private long bytesRead;
+private long bytesSkipped;
+
 // Factory for creating instances of SequenceFile.Reader
 private ReaderFactory readerFactory;
 
@@ -83,9 +114,33 @@ public float getProgress() throws IOException, InterruptedException
 @Override
 public void close() throws IOException
 {
+  if (crop != null && reader != null)
+  {
+    bytesRead += reader.getPosition() - segmentStart;
+    segmentStart = reader.getPosition();
+
+    log.info("Read " + bytesRead + " bytes of " + path + ", skipped " + bytesSkipped + " bytes outside of " + crop);
+  }
   reader.close();
 }
 
+/**
+ * The number of bytes of the data file actually read.  Only tracked for cropped reads.
+ */
+public long getBytesRead()
+{
+  return bytesRead;
+}
+
+/**
+ * The number of bytes of the data file seeked past because the tiles were outside of the crop
+ * region.  Only tracked for cropped reads.
+ */
+public long getBytesSkipped()
+{
+  return bytesSkipped;
+}
+
 @Override
 public void initialize(InputSplit split, TaskAttemptContext context) throws IOException,
     InterruptedException
@@ -115,6 +170,21 @@ public void initialize(InputSplit split, TaskAttemptContext context) throws IOEx
     {
       throw new IOException(e);
     }
+
+    ImageInputFormatContext ifContext = ImageInputFormatContext.load(conf);
+    zoom = ifContext.getZoomLevel();
+    order = HdfsMrsPyramidInputFormat.getTileOrder(conf);
+
+    Bounds bounds = ifContext.getBounds();
+    if (bounds != null)
+    {
+      this.path = path;
+      crop = TMSUtils.boundsToTile(bounds, zoom, ifContext.getTileSize());
+      ranges = order.ranges(crop, zoom);
+      rangeIndex = 0;
+      readIndex(fs, new Path(path.getParent(), MapFile.INDEX_FILE_NAME), conf);
+      segmentStart = reader.getPosition();
+    }
   }
   else
   {
@@ -129,19 +199,126 @@ public boolean nextKeyValue() throws IOException, InterruptedException
   // TODO eaw evaluate whether it is needed to store more as an instance member.  If not, use a local variable instead
   if (more)
   {
-    more = reader.next(key, value);
+    more = (crop == null) ? reader.next(key, value) : nextInCrop();
     if (!more)
     {
       key = null;
       value = null;
     }
     else {
+      if (order != TileOrder.ROW_MAJOR)
+      {
+        key.set(order.toTileId(key.get(), zoom));
+      }
       recordCount++;
     }
   }
   return more;
 }
 
+// Read the next tile within the crop region, only deserializing the tiles that are returned.  Once
+// a key is before the key range we want (for row-major tiles, west of the crop, or the row runs
+// past its east edge), seek (using the index) to the start of the range.
+private boolean nextInCrop() throws IOException
+{
+  while (reader.next(key))
+  {
+    long k = key.get();
+    while (rangeIndex < ranges.size() && ranges.get(rangeIndex)[1] < k)
+    {
+      rangeIndex++;
+    }
+
+    if (rangeIndex >= ranges.size())
+    {
+      // past the crop, we're done
+      return false;
+    }
+
+    long start = ranges.get(rangeIndex)[0];
+    if (k < start)
+    {
+      seek(start);
+    }
+    else
+    {
+      reader.getCurrentValue(value);
+      return true;
+    }
+  }
+  return false;
+}
+
+// Move the reader to the last indexed record at or before the key, if that's ahead of where
+// we are, otherwise keep reading sequentially
+private void seek(long tileid) throws IOException
+{
+  if (indexKeys == null || indexKeys.length == 0)
+  {
+    return;
+  }
+
+  int ndx = Arrays.binarySearch(indexKeys, tileid);
+  if (ndx < 0)
+  {
+    // the entry before the insertion point
+    ndx = -ndx - 2;
+  }
+  if (ndx < 0)
+  {
+    return;
+  }
+
+  long current = reader.getPosition();
+  long position = indexPositions[ndx];
+  if (position > current)
+  {
+    bytesRead += current - segmentStart;
+    bytesSkipped += position - current;
+
+    reader.seek(position);
+    segmentStart = position;
+  }
+}
+
+private void readIndex(FileSystem fs, Path indexPath, Configuration conf) throws IOException
+{
+  if (!fs.exists(indexPath))
+  {
+    log.info("No index for " + indexPath.getParent() + ", tiles outside of the crop region will be read and skipped");
+    return;
+  }
+
+  long[] keys = new long[1024];
+  long[] positions = new long[1024];
+  int count = 0;
+
+  Reader index = readerFactory.createReader(fs, indexPath, conf);
+  try
+  {
+    TileIdWritable k = new TileIdWritable();
+    LongWritable v = new LongWritable();
+    while (index.next(k, v))
+    {
+      if (count == keys.length)
+      {
+        keys = Arrays.copyOf(keys, count * 2);
+        positions = Arrays.copyOf(positions, count * 2);
+      }
+      keys[count] = k.get();
+      positions[count] = v.get();
+      count++;
+    }
+  }
+  finally
+  {
+    index.close();
+  }
+
+  indexKeys = Arrays.copyOf(keys, count);
+  indexPositions = Arrays.copyOf(positions, count);
+}
+
 // Default ReaderFactory
 static class ReaderFactory
 {
@@ -18,6 +18,7 @@ package org.mrgeo.hdfs.utils;
 import com.amazonaws.auth.DefaultAWSCredentialsProviderChain;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.S3ClientOptions;
 import com.amazonaws.services.s3.model.GetObjectRequest;
 import com.amazonaws.services.s3.model.S3Object;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
@@ -31,6 +32,8 @@ import org.apache.hadoop.fs.permission.FsPermission;
 import org.apache.hadoop.io.IOUtils;
 import org.apache.hadoop.io.MapFile;
 import org.apache.hadoop.io.SequenceFile;
+import org.mrgeo.core.MrGeoConstants;
+import org.mrgeo.core.MrGeoProperties;
 import org.mrgeo.utils.HadoopUtils;
 import org.mrgeo.utils.S3Utils;
 import org.mrgeo.utils.S3Utils.S3Cache;
@@ -876,7 +879,13 @@ public static class MapFileReaderWrapper
       URI indexUri = UriBuilder.fromUri(pathUri).path("index").build();
       URI dataUri = UriBuilder.fromUri(pathUri).path("data").build();
       String scheme = pathUri.getScheme().toLowerCase();
-      if ("s3".equals(scheme) || "s3a".equals(scheme) || "s3n".equals(scheme)) {
+      if (RangedMapFileReader.isS3(scheme) && useRangedReads()) {
+        // Only the index is read up front, tiles are read from the data file with ranged GETs
+        log.debug("Opening ranged reader to " + qualifiedPath);
+        localPath = null;
+        reader = new RangedMapFileReader(qualifiedPath, conf);
+      }
+      else if ("s3".equals(scheme) || "s3a".equals(scheme) || "s3n".equals(scheme)) {
         S3Cache localS3Cache = S3Utils.getS3Cache();
         File cacheDir = S3Utils.getCacheDir();
         log.debug("cacheDir = " + cacheDir.getAbsolutePath());
@@ -964,6 +973,14 @@ public static class MapFileReaderWrapper
       }
     }
   }
+
+  // "range" (the default) reads tiles from S3 with ranged GETs, "cache" copies the whole
+  // MapFile into the local S3 cache first
+  private static boolean useRangedReads()
+  {
+    String mode = MrGeoProperties.getInstance().getProperty(MrGeoConstants.MRGEO_S3_READ_MODE, "range");
+    return !"cache".equalsIgnoreCase(mode.trim());
+  }
 }
 
 /**
@@ -975,7 +992,7 @@ public static class MapFileReaderWrapper
  * @param scheme
  * @return
  */
-private static AmazonS3Client getS3Client(Configuration conf, String scheme)
+static AmazonS3Client getS3Client(Configuration conf, String scheme)
 {
   AmazonS3Client s3Client = new AmazonS3Client(new DefaultAWSCredentialsProviderChain());
   String endpointKey = "fs." + scheme.toLowerCase() + ".endpoint";
@@ -991,6 +1008,10 @@ private static AmazonS3Client getS3Client(Configuration conf, String scheme)
       throw new IllegalArgumentException(msg, e);
     }
   }
+  // Local S3-compatible stores usually need path style access (http://host/bucket/key)
+  if (conf.getBoolean("fs." + scheme.toLowerCase() + ".path.style.access", false)) {
+    s3Client.setS3ClientOptions(new S3ClientOptions().withPathStyleAccess(true));
+  }
   return s3Client;
 }
 }
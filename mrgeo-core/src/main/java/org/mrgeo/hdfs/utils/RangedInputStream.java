@@ -0,0 +1,373 @@
+/*
+ * Copyright 2009-2017. DigitalGlobe, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.mrgeo.hdfs.utils;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
+import org.apache.hadoop.fs.FSInputStream;
+import org.mrgeo.core.MrGeoConstants;
+import org.mrgeo.core.MrGeoProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.EOFException;
+import java.io.IOException;
+
+/**
+ * A seekable stream over a (remote) object that is read in fixed size blocks using ranged reads,
+ * instead of copying the whole object locally first.  The blocks are kept in a process-wide LRU
+ * cache, bounded by bytes, so reading the same tile again, or a neighboring tile in the same
+ * block, doesn't go back to the remote store.
+ */
+public class RangedInputStream extends FSInputStream
+{
+private static final Logger log = LoggerFactory.getLogger(RangedInputStream.class);
+
+private static final int DEFAULT_BLOCK_SIZE = 256 * 1024; // bytes
+private static final long DEFAULT_CACHE_SIZE = 128; // MB
+
+private static Cache<String, byte[]> blockCache = null;
+
+private final Source source;
+private final long length;
+private final int blockSize;
+
+private long position = 0;
+private boolean closed = false;
+
+// the block the position was last in, so single byte reads don't hit the cache every time
+private long currentNum = -1;
+private byte[] current = null;
+
+/**
+ * Where the bytes actually come from
+ */
+public interface Source
+{
+  /**
+   * A name unique to this version of the object, used to key the block cache
+   */
+  String name();
+
+  long length() throws IOException;
+
+  /**
+   * Read exactly length bytes starting at position
+   */
+  void read(long position, byte[] buffer, int offset, int length) throws IOException;
+
+  void close() throws IOException;
+}
+
+public RangedInputStream(Source source) throws IOException
+{
+  this(source, getDefaultBlockSize());
+}
+
+public RangedInputStream(Source source, int blockSize) throws IOException
+{
+  if (blockSize <= 0)
+  {
+    throw new IllegalArgumentException("Block size must be positive: " + blockSize);
+  }
+
+  this.source = source;
+  this.length = source.length();
+  this.blockSize = blockSize;
+}
+
+public static CacheStats getStatistics()
+{
+  return getBlockCache().stats();
+}
+
+public static void clearCache()
+{
+  getBlockCache().invalidateAll();
+}
+
+public long length()
+{
+  return length;
+}
+
+@Override
+public synchronized void seek(long pos) throws IOException
+{
+  checkClosed();
+  if (pos < 0)
+  {
+    throw new EOFException("Cannot seek to a negative offset: " + pos);
+  }
+  if (pos > length)
+  {
+    throw new EOFException("Cannot seek past the end of " + source.name() + ": " + pos);
+  }
+  position = pos;
+}
+
+@Override
+public synchronized long getPos() throws IOException
+{
+  return position;
+}
+
+@Override
+public boolean seekToNewSource(long targetPos) throws IOException
+{
+  return false;
+}
+
+@Override
+public synchronized int available() throws IOException
+{
+  checkClosed();
+  return (int) Math.min(Integer.MAX_VALUE, length - position);
+}
+
+@Override
+public synchronized int read() throws IOException
+{
+  checkClosed();
+  if (position >= length)
+  {
+    return -1;
+  }
+
+  byte[] block = block(position / blockSize);
+  int b = block[(int) (position % blockSize)] & 0xff;
+  position++;
+
+  return b;
+}
+
+@Override
+public synchronized int read(byte[] buffer, int offset, int len) throws IOException
+{
+  checkClosed();
+  if (offset < 0 || len < 0 || len > buffer.length - offset)
+  {
+    throw new IndexOutOfBoundsException();
+  }
+  if (len == 0)
+  {
+    return 0;
+  }
+  if (position >= length)
+  {
+    return -1;
+  }
+
+  int total = (int) Math.min(len, length - position);
+
+  long first = position / blockSize;
+  long last = (position + total - 1) / blockSize;
+  if (first != last)
+  {
+    // fetch all the missing blocks with as few requests as possible
+    load(first, last);
+  }
+
+  int read = 0;
+  while (read < total)
+  {
+    byte[] block = block(position / blockSize);
+    int inBlock = (int) (position % blockSize);
+    int count = Math.min(total - read, block.length - inBlock);
+
+    System.arraycopy(block, inBlock, buffer, offset + read, count);
+
+    read += count;
+    position += count;
+  }
+
+  return read;
+}
+
+@Override
+public synchronized long skip(long n) throws IOException
+{
+  checkClosed();
+  if (n <= 0)
+  {
+    return 0;
+  }
+  long skipped = Math.min(n, length - position);
+  position += skipped;
+  return skipped;
+}
+
+@Override
+public synchronized void close() throws IOException
+{
+  if (!closed)
+  {
+    closed = true;
+    current = null;
+    source.close();
+  }
+}
+
+private static synchronized Cache<String, byte[]> getBlockCache()
+{
+  if (blockCache == null)
+  {
+    long size = DEFAULT_CACHE_SIZE;
+    String str = MrGeoProperties.getInstance().getProperty(MrGeoConstants.MRGEO_S3_BLOCK_CACHE_SIZE);
+    if (str != null)
+    {
+      try
+      {
+        size = Long.parseLong(str);
+      }
+      catch (NumberFormatException e)
+      {
+        log.warn("Bad value for " + MrGeoConstants.MRGEO_S3_BLOCK_CACHE_SIZE + " (" + str +
+            "), using the default of " + DEFAULT_CACHE_SIZE + "MB");
+      }
+    }
+
+    log.info("Creating a " + size + "MB block cache for ranged reads");
+    blockCache = CacheBuilder.newBuilder()
+        .maximumWeight(size * 1024 * 1024)
+        .weigher(new Weigher<String, byte[]>()
+        {
+          @Override
+          public int weigh(String key, byte[] value)
+          {
+            return value.length;
+          }
+        })
+        .recordStats()
+        .build();
+  }
+
+  return blockCache;
+}
+
+private static int getDefaultBlockSize()
+{
+  String str = MrGeoProperties.getInstance().getProperty(MrGeoConstants.MRGEO_S3_BLOCK_SIZE);
+  if (str != null)
+  {
+    try
+    {
+      int size = Integer.parseInt(str);
+      if (size > 0)
+      {
+        return size;
+      }
+    }
+    catch (NumberFormatException ignored)
+    {
+    }
+    log.warn("Bad value for " + MrGeoConstants.MRGEO_S3_BLOCK_SIZE + " (" + str +
+        "), using the default of " + DEFAULT_BLOCK_SIZE);
+  }
+  return DEFAULT_BLOCK_SIZE;
+}
+
+private void checkClosed() throws IOException
+{
+  if (closed)
+  {
+    throw new IOException("Stream is closed: " + source.name());
+  }
+}
+
+private String key(long num)
+{
+  return source.name() + "#" + blockSize + "#" + num;
+}
+
+private byte[] block(long num) throws IOException
+{
+  if (num != currentNum)
+  {
+    byte[] block = getBlockCache().getIfPresent(key(num));
+    if (block == null)
+    {
+      // keep our own copy, the cache may evict the block before we use it
+      block = fetch(num, num)[0];
+    }
+    current = block;
+    currentNum = num;
+  }
+
+  return current;
+}
+
+private void load(long first, long last) throws IOException
+{
+  Cache<String, byte[]> cache = getBlockCache();
+
+  long num = first;
+  while (num <= last)
+  {
+    if (cache.getIfPresent(key(num)) != null)
+    {
+      num++;
+      continue;
+    }
+
+    long end = num;
+    while (end < last && cache.getIfPresent(key(end + 1)) == null)
+    {
+      end++;
+    }
+
+    fetch(num, end);
+    num = end + 1;
+  }
+}
+
+// read blocks first to last (inclusive) in a single request, and cache them
+private byte[][] fetch(long first, long last) throws IOException
+{
+  long start = first * blockSize;
+  long end = Math.min((last + 1) * blockSize, length);
+
+  byte[] bytes = new byte[(int) (end - start)];
+  if (log.isDebugEnabled())
+  {
+    log.debug("Reading " + source.name() + " bytes " + start + " - " + (end - 1));
+  }
+  source.read(start, bytes, 0, bytes.length);
+
+  Cache<String, byte[]> cache = getBlockCache();
+
+  byte[][] blocks = new byte[(int) (last - first + 1)][];
+  for (int i = 0; i < blocks.length; i++)
+  {
+    if (blocks.length == 1)
+    {
+      blocks[i] = bytes;
+    }
+    else
+    {
+      int offset = i * blockSize;
+      int len = Math.min(blockSize, bytes.length - offset);
+      blocks[i] = new byte[len];
+      System.arraycopy(bytes, offset, blocks[i], 0, len);
+    }
+    cache.put(key(first + i), blocks[i]);
+  }
+
+  return blocks;
+}
+}
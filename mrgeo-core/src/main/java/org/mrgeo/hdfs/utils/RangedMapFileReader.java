@@ -0,0 +1,204 @@
+/*
+ * Copyright 2009-2017. DigitalGlobe, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.mrgeo.hdfs.utils;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.MapFile;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.util.Options;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+
+/**
+ * A MapFile.Reader that reads the (small) index as usual, but reads the data file in blocks, on
+ * demand, through a {@link RangedInputStream}.  Looking up a tile in a MapFile on S3 only fetches
+ * the index and the block(s) the tile is in, rather than the whole data file.
+ * <p>
+ * S3 (s3, s3a, s3n) data files are read with ranged GETs, anything else through its FileSystem.
+ */
+public class RangedMapFileReader extends MapFile.Reader
+{
+public RangedMapFileReader(Path dir, Configuration conf) throws IOException
+{
+  super(dir, conf);
+}
+
+static boolean isS3(String scheme)
+{
+  return "s3".equalsIgnoreCase(scheme) || "s3a".equalsIgnoreCase(scheme) || "s3n".equalsIgnoreCase(scheme);
+}
+
+static RangedInputStream.Source createSource(Path path, Configuration conf) throws IOException
+{
+  FileSystem fs = path.getFileSystem(conf);
+  Path qualified = path.makeQualified(fs);
+  URI uri = qualified.toUri();
+
+  if (isS3(uri.getScheme()))
+  {
+    return new S3Source(HadoopFileUtils.getS3Client(conf, uri.getScheme()), uri);
+  }
+  return new FileSystemSource(fs, qualified);
+}
+
+// This is called from the MapFile.Reader constructor, so it can't use any instance fields
+@Override
+protected SequenceFile.Reader createDataFileReader(Path dataFile, Configuration conf,
+    SequenceFile.Reader.Option... options) throws IOException
+{
+  RangedInputStream stream = new RangedInputStream(createSource(dataFile, conf));
+
+  SequenceFile.Reader.Option[] newOptions = Options.prependOptions(options,
+      SequenceFile.Reader.stream(new FSDataInputStream(stream)),
+      SequenceFile.Reader.length(stream.length()));
+
+  return new SequenceFile.Reader(conf, newOptions);
+}
+
+private static class S3Source implements RangedInputStream.Source
+{
+  private final AmazonS3 s3Client;
+  private final URI uri;
+  private final String bucket;
+  private final String key;
+  private final String name;
+  private final long length;
+
+  S3Source(AmazonS3 s3Client, URI uri) throws IOException
+  {
+    this.s3Client = s3Client;
+    this.uri = uri;
+
+    bucket = uri.getHost();
+    // The AWS key is relative, so we eliminate the leading slash
+    key = uri.getPath().substring(1);
+
+    try
+    {
+      ObjectMetadata metadata = s3Client.getObjectMetadata(bucket, key);
+      length = metadata.getContentLength();
+
+      // include the etag, so a rewritten object doesn't use stale blocks
+      name = uri + "@" + metadata.getETag();
+    }
+    catch (AmazonClientException e)
+    {
+      throw new IOException("Error getting the metadata for " + uri + ": " + e.getMessage(), e);
+    }
+  }
+
+  @Override
+  public String name()
+  {
+    return name;
+  }
+
+  @Override
+  public long length()
+  {
+    return length;
+  }
+
+  @Override
+  public void read(long position, byte[] buffer, int offset, int len) throws IOException
+  {
+    S3Object object;
+    try
+    {
+      object = s3Client.getObject(new GetObjectRequest(bucket, key).withRange(position, position + len - 1));
+    }
+    catch (AmazonClientException e)
+    {
+      throw new IOException("Error reading bytes " + position + " - " + (position + len - 1) +
+          " from " + uri + ": " + e.getMessage(), e);
+    }
+
+    try (InputStream stream = object.getObjectContent())
+    {
+      IOUtils.readFully(stream, buffer, offset, len);
+    }
+  }
+
+  @Override
+  public void close()
+  {
+  }
+}
+
+private static class FileSystemSource implements RangedInputStream.Source
+{
+  private final FileSystem fs;
+  private final Path path;
+  private final String name;
+  private final long length;
+
+  private FSDataInputStream stream = null;
+
+  FileSystemSource(FileSystem fs, Path path) throws IOException
+  {
+    this.fs = fs;
+    this.path = path;
+
+    FileStatus status = fs.getFileStatus(path);
+    length = status.getLen();
+    name = path + "@" + status.getModificationTime();
+  }
+
+  @Override
+  public String name()
+  {
+    return name;
+  }
+
+  @Override
+  public long length()
+  {
+    return length;
+  }
+
+  @Override
+  public void read(long position, byte[] buffer, int offset, int len) throws IOException
+  {
+    if (stream == null)
+    {
+      stream = fs.open(path);
+    }
+    stream.readFully(position, buffer, offset, len);
+  }
+
+  @Override
+  public void close() throws IOException
+  {
+    if (stream != null)
+    {
+      stream.close();
+      stream = null;
+    }
+  }
+}
+}
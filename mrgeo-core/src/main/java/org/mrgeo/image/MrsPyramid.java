@@ -138,9 +138,15 @@ public static void calculateMetadata(int zoom,
     ImageStats[] levelStats,
     MrsPyramidMetadata metadata) throws IOException
 {
+  calculateMetadata(zoom, raster.width(), raster.bands(), raster.datatype(), provider, levelStats, metadata);
+}
 
-  int tilesize = raster.width();
-
+public static void calculateMetadata(int zoom,
+    int tilesize, int bands, int tiletype,
+    MrsImageDataProvider provider,
+    ImageStats[] levelStats,
+    MrsPyramidMetadata metadata) throws IOException
+{
   Bounds bounds = metadata.getBounds();
 
   TileBounds tb = TMSUtils.boundsToTile(bounds, zoom, tilesize);
@@ -152,9 +158,9 @@ public static void calculateMetadata(int zoom,
       tilesize);
   metadata.setPixelBounds(zoom, new LongRectangle(0, 0, pur.px - pll.px, pur.py - pll.py));
 
-  metadata.setBands(raster.bands());
+  metadata.setBands(bands);
   metadata.setTilesize(tilesize);
-  metadata.setTileType(raster.datatype());
+  metadata.setTileType(tiletype);
 
   metadata.setName(zoom, Integer.toString(zoom));
   // update the pyramid level stats
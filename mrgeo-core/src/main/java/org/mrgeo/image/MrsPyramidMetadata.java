@@ -19,11 +19,13 @@ import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import org.apache.commons.lang3.ArrayUtils;
+import org.mrgeo.data.raster.TileCodec;
 import org.mrgeo.utils.LongRectangle;
 import org.mrgeo.utils.tms.Bounds;
 import org.mrgeo.utils.tms.Pixel;
 import org.mrgeo.utils.tms.TMSUtils;
 import org.mrgeo.utils.tms.TileBounds;
+import org.mrgeo.utils.tms.TileOrder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -86,6 +88,8 @@ private ImageStats[] stats; // min, max, mean, std dev of pixel values by band f
 private String[][] categories; // categories for each band in the image
 private Classification classification = Classification.Continuous;
 private String resamplingMethod;
+private TileOrder tileOrder; // order the tiles are stored in, null (for older pyramids) is row-major
+private TileCodec tileCodec; // how the tiles are encoded when stored, null (for older pyramids) is none
 
 public MrsPyramidMetadata()
 {
@@ -135,6 +139,8 @@ public MrsPyramidMetadata(MrsPyramidMetadata copy)
 
   classification = copy.classification;
   resamplingMethod = copy.resamplingMethod;
+  tileOrder = copy.tileOrder;
+  tileCodec = copy.tileCodec;
 
   imageData = new ImageMetadata[copy.imageData.length];
   for (int i = 0; i < copy.imageData.length; i++)
@@ -911,6 +917,46 @@ public void setResamplingMethod(String resamplingMethod)
   this.resamplingMethod = resamplingMethod;
 }
 
+public TileOrder getTileOrder()
+{
+  return tileOrder == null ? TileOrder.ROW_MAJOR : tileOrder;
+}
+
+public void setTileOrder(TileOrder tileOrder)
+{
+  this.tileOrder = tileOrder;
+}
+
+/**
+ * Whether the tile order has been set (or was saved), pyramids from before tile orders existed
+ * don't have one, and are row-major.
+ */
+@JsonIgnore
+public boolean hasTileOrder()
+{
+  return tileOrder != null;
+}
+
+public TileCodec getTileCodec()
+{
+  return tileCodec == null ? TileCodec.NONE : tileCodec;
+}
+
+public void setTileCodec(TileCodec tileCodec)
+{
+  this.tileCodec = tileCodec;
+}
+
+/**
+ * Whether the tile codec has been set (or was saved), pyramids from before tile codecs existed
+ * don't have one, and are stored raw.
+ */
+@JsonIgnore
+public boolean hasTileCodec()
+{
+  return tileCodec != null;
+}
+
 @SuppressWarnings("squid:S1166") // Exception caught and handled
 public void save(OutputStream stream) throws IOException
 {
@@ -0,0 +1,774 @@
+/*
+ * Copyright 2009-2017. DigitalGlobe, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.mrgeo.mapalgebra.vector.paint;
+
+import org.mrgeo.data.raster.MrGeoRaster;
+import org.mrgeo.data.raster.RasterUtils;
+import org.mrgeo.data.raster.RasterWritable;
+import org.mrgeo.geometry.*;
+import org.mrgeo.mapalgebra.vector.paint.VectorPainter.AggregationType;
+import org.mrgeo.utils.Gaussian;
+import org.mrgeo.utils.tms.Bounds;
+import org.mrgeo.utils.tms.TMSUtils;
+import org.mrgeo.utils.tms.Tile;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.awt.image.DataBuffer;
+import java.util.Arrays;
+
+/**
+ * Paints features into a tile like VectorPainter, without Java2D.  The aggregation is written
+ * directly into the tile's MrGeoRaster.
+ * <p>
+ * A polygon covers the pixels inside its exterior ring (non-zero winding) and outside its holes,
+ * found with a scanline over the edges of the rings.  A line one pixel wide (or less) covers one
+ * pixel per column (or row) along its major axis.  A wider line covers the rectangles around its
+ * segments, with square ends.  A point covers the pixel it falls in.  Each pixel is aggregated
+ * once per feature, no matter how many parts of the feature cover it.
+ * <p>
+ * The coverage follows Java2D's normalized (STROKE_NORMALIZE) rendering, which VectorPainter
+ * uses: polygons cover the pixels whose upper left corner is inside, thin lines run between the
+ * centers of the pixels their ends are in, and wide lines are outlined from ends snapped to a
+ * quarter pixel.
+ * <p>
+ * MASK and MASK2 paint the holes of polygons as unmasked, as VectorPainter does.
+ * <p>
+ * A tile can also be painted in pieces, e.g. the fragments of features clipped to the tile, in
+ * different tasks.  Each piece is painted into a partial raster (see partial()), the partials are
+ * combined with merge(), and finish() makes the tile.  A partial is the size of the tile no matter
+ * how many features are painted into it (AVERAGE keeps a second band with the counts).
+ * <p>
+ * This class is not thread safe, use one per task.
+ */
+public class ScanlineRasterizer
+{
+private static final Logger log = LoggerFactory.getLogger(ScanlineRasterizer.class);
+
+private final AggregationType aggregationType;
+private final String valueColumn;
+private final int tileSize;
+private final int zoom;
+private final float pixelwidth;
+
+private MrGeoRaster raster;
+
+// the last feature to cover each pixel, so each pixel is aggregated once per feature
+private int[] stamps;
+private int feature;
+private double weight = 1.0;
+
+// world to pixel
+private double west;
+private double north;
+private double scaleX;
+private double scaleY;
+
+// the edges (x0, y0, x1, y1) of the polygon being painted, and whether each is part of a hole
+private double[] edges = new double[256];
+private boolean[] holes = new boolean[64];
+private int edgeCount;
+
+// scanline state
+private int[] rowStart;
+private int[] next = new int[64];
+private int[] active = new int[64];
+private double[] crossings = new double[64];
+
+public ScanlineRasterizer(int zoom, AggregationType aggregationType, String valueColumn,
+    int tileSize, float pixelwidth)
+{
+  this.zoom = zoom;
+  this.aggregationType = aggregationType;
+  this.valueColumn = valueColumn;
+  this.tileSize = tileSize;
+  this.pixelwidth = pixelwidth;
+
+  stamps = new int[tileSize * tileSize];
+  rowStart = new int[tileSize];
+}
+
+/**
+ * Combine two partial rasters of the same tile, painted with the aggregation type.  The first is
+ * updated and returned.
+ */
+public static MrGeoRaster merge(AggregationType aggregationType, MrGeoRaster partial, MrGeoRaster other)
+{
+  if (partial == null)
+  {
+    return other;
+  }
+  if (other == null)
+  {
+    return partial;
+  }
+
+  int width = partial.width();
+  int height = partial.height();
+  for (int y = 0; y < height; y++)
+  {
+    for (int x = 0; x < width; x++)
+    {
+      switch (aggregationType)
+      {
+      case MASK:
+        // masked in either
+        if (other.getPixelByte(x, y, 0) == 0)
+        {
+          partial.setPixel(x, y, 0, (byte) 0);
+        }
+        break;
+      case MASK2:
+        if (other.getPixelByte(x, y, 0) != 0)
+        {
+          partial.setPixel(x, y, 0, (byte) 1);
+        }
+        break;
+      default:
+      {
+        float v = other.getPixelFloat(x, y, 0);
+        if (!Float.isNaN(v))
+        {
+          float p = partial.getPixelFloat(x, y, 0);
+          // GAUSSIAN overwrites, so the last one painted wins
+          if (Float.isNaN(p) || aggregationType == AggregationType.GAUSSIAN)
+          {
+            partial.setPixel(x, y, 0, v);
+          }
+          else if (aggregationType == AggregationType.MIN)
+          {
+            partial.setPixel(x, y, 0, Math.min(p, v));
+          }
+          else if (aggregationType == AggregationType.MAX)
+          {
+            partial.setPixel(x, y, 0, Math.max(p, v));
+          }
+          else
+          {
+            partial.setPixel(x, y, 0, p + v);
+          }
+        }
+
+        if (aggregationType == AggregationType.AVERAGE)
+        {
+          partial.setPixel(x, y, 1, partial.getPixelFloat(x, y, 1) + other.getPixelFloat(x, y, 1));
+        }
+        break;
+      }
+      }
+    }
+  }
+
+  return partial;
+}
+
+/**
+ * The finished tile from a partial raster painted with the aggregation type
+ */
+public static RasterWritable finish(AggregationType aggregationType, MrGeoRaster partial)
+    throws java.io.IOException
+{
+  if (aggregationType != AggregationType.AVERAGE)
+  {
+    return RasterWritable.toWritable(partial);
+  }
+
+  // the sums divided by the counts
+  MrGeoRaster average = partial.clip(0, 0, partial.width(), partial.height(), 0);
+  for (int y = 0; y < average.height(); y++)
+  {
+    for (int x = 0; x < average.width(); x++)
+    {
+      float c = partial.getPixelFloat(x, y, 1);
+      if (c > 0)
+      {
+        average.setPixel(x, y, 0, average.getPixelFloat(x, y, 0) / c);
+      }
+    }
+  }
+
+  return RasterWritable.toWritable(average);
+}
+
+public void beforePaintingTile(long tileId) throws MrGeoRaster.MrGeoRasterException
+{
+  beforePaintingTile(tileId, null);
+}
+
+/**
+ * Start painting a tile, continuing with a partial raster of it, or a new one if it is null
+ */
+public void beforePaintingTile(long tileId, MrGeoRaster partial) throws MrGeoRaster.MrGeoRasterException
+{
+  if (partial != null)
+  {
+    raster = partial;
+  }
+  else if (aggregationType == AggregationType.MASK)
+  {
+    raster = MrGeoRaster.createEmptyRaster(tileSize, tileSize, 1, DataBuffer.TYPE_BYTE,
+        RasterUtils.getDefaultNoDataForType(DataBuffer.TYPE_BYTE));
+  }
+  else if (aggregationType == AggregationType.MASK2)
+  {
+    raster = MrGeoRaster.createEmptyRaster(tileSize, tileSize, 1, DataBuffer.TYPE_BYTE, 0);
+  }
+  else if (aggregationType == AggregationType.AVERAGE)
+  {
+    // the sums and the counts
+    raster = MrGeoRaster.createEmptyRaster(tileSize, tileSize, 2, DataBuffer.TYPE_FLOAT,
+        new double[]{Float.NaN, 0});
+  }
+  else
+  {
+    raster = MrGeoRaster.createEmptyRaster(tileSize, tileSize, 1, DataBuffer.TYPE_FLOAT, Float.NaN);
+  }
+
+  Tile tile = TMSUtils.tileid(tileId, zoom);
+  Bounds b = TMSUtils.tileBounds(tile.tx, tile.ty, zoom, tileSize);
+
+  west = b.w;
+  north = b.n;
+  scaleX = tileSize / b.width();
+  scaleY = tileSize / b.height();
+}
+
+public void paintGeometry(Geometry g)
+{
+  if (valueColumn == null || aggregationType == AggregationType.MASK || aggregationType == AggregationType.MASK2)
+  {
+    weight = 1.0;
+    paint(g);
+  }
+  else
+  {
+    String sv = g.getAttribute(valueColumn);
+    if (sv != null)
+    {
+      weight = Double.parseDouble(sv);
+      paint(g);
+    }
+    else
+    {
+      log.info("Ignoring feature because there is no column: " + valueColumn);
+    }
+  }
+}
+
+public void paintEllipse(Point center, double majorWidth, double minorWidth, double orientation, double weight)
+{
+  this.weight = weight;
+  nextFeature();
+
+  double cx = toPixelX(center.getX());
+  double cy = toPixelY(center.getY());
+
+  double a = majorWidth * scaleX / 2.0;
+  double b = minorWidth * scaleY / 2.0;
+  double cos = Math.cos(orientation);
+  double sin = Math.sin(orientation);
+
+  // the gaussian is spread over the area of the ellipse
+  double multiplier = weight / (Math.PI * (majorWidth / 2.0) * (minorWidth / 2.0));
+
+  double r = Math.max(a, b);
+  int x0 = Math.max(0, (int) Math.floor(cx - r));
+  int x1 = Math.min(tileSize - 1, (int) Math.ceil(cx + r));
+  int y0 = Math.max(0, (int) Math.floor(cy - r));
+  int y1 = Math.min(tileSize - 1, (int) Math.ceil(cy + r));
+
+  for (int y = y0; y <= y1; y++)
+  {
+    for (int x = x0; x <= x1; x++)
+    {
+      // the pixel's corner (like polygons) in the ellipse's (rotated) frame
+      double dx = x - cx;
+      double dy = y - cy;
+      double ex = dx * cos - dy * sin;
+      double ey = dx * sin + dy * cos;
+
+      if ((ex * ex) / (a * a) + (ey * ey) / (b * b) <= 1.0)
+      {
+        if (aggregationType == AggregationType.GAUSSIAN)
+        {
+          // the delta in world units, rotated to the ellipse's orientation
+          double wx = dx / scaleX;
+          double wy = -dy / scaleY;
+          double gx = wx * cos + wy * sin;
+          double gy = -wx * sin + wy * cos;
+
+          raster.setPixel(x, y, 0, (float) (Gaussian.phi(gx, majorWidth) * Gaussian.phi(gy, minorWidth) * multiplier));
+        }
+        else
+        {
+          cover(x, y);
+        }
+      }
+    }
+  }
+}
+
+/**
+ * The tile painted so far, unfinished (see finish())
+ */
+public MrGeoRaster partial()
+{
+  return raster;
+}
+
+public RasterWritable afterPaintingTile() throws java.io.IOException
+{
+  return finish(aggregationType, raster);
+}
+
+private void paint(Geometry g)
+{
+  if (g instanceof Polygon)
+  {
+    paint((Polygon) g);
+  }
+  else if (g instanceof Point)
+  {
+    paint((Point) g);
+  }
+  else if (g instanceof LineString)
+  {
+    paint((LineString) g);
+  }
+  else if (g instanceof GeometryCollection)
+  {
+    GeometryCollection gc = (GeometryCollection) g;
+    for (int i = 0; i < gc.getNumGeometries(); i++)
+    {
+      paint(gc.getGeometry(i));
+    }
+  }
+  else
+  {
+    throw new IllegalArgumentException("Geometry type not implemented " + g.getClass());
+  }
+}
+
+private void paint(Polygon polygon)
+{
+  nextFeature();
+  edgeCount = 0;
+
+  addRing(polygon.getExteriorRing(), false);
+  for (int r = 0; r < polygon.getNumInteriorRings(); r++)
+  {
+    addRing(polygon.getInteriorRing(r), true);
+  }
+
+  fill();
+}
+
+private void paint(LineString line)
+{
+  nextFeature();
+
+  int n = line.getNumPoints();
+  if (n == 0)
+  {
+    return;
+  }
+
+  Point p = line.getPoint(0);
+  double px = normalize(toPixelX(p.getX()));
+  double py = normalize(toPixelY(p.getY()));
+  if (n == 1)
+  {
+    segment(px, py, px, py);
+  }
+
+  for (int i = 1; i < n; i++)
+  {
+    p = line.getPoint(i);
+    double x = normalize(toPixelX(p.getX()));
+    double y = normalize(toPixelY(p.getY()));
+
+    segment(px, py, x, y);
+
+    px = x;
+    py = y;
+  }
+}
+
+private void paint(Point point)
+{
+  nextFeature();
+
+  int x = (int) Math.floor(toPixelX(point.getX()));
+  int y = (int) Math.floor(toPixelY(point.getY()));
+
+  if (pixelwidth <= 1.0f)
+  {
+    if (x >= 0 && x < tileSize && y >= 0 && y < tileSize)
+    {
+      cover(x, y);
+    }
+  }
+  else
+  {
+    // a square, pixelwidth on a side
+    segment(normalize(x), normalize(y), normalize(x), normalize(y));
+  }
+}
+
+private void segment(double x0, double y0, double x1, double y1)
+{
+  if (pixelwidth <= 1.0f)
+  {
+    thinSegment(x0, y0, x1, y1);
+  }
+  else
+  {
+    double half = pixelwidth / 2.0;
+
+    double dx = x1 - x0;
+    double dy = y1 - y0;
+    double len = Math.sqrt(dx * dx + dy * dy);
+
+    // along and across the segment, half the line width long
+    double ux;
+    double uy;
+    if (len > 0)
+    {
+      ux = dx / len * half;
+      uy = dy / len * half;
+    }
+    else
+    {
+      ux = half;
+      uy = 0;
+    }
+
+    edgeCount = 0;
+    addEdge(x0 - ux - uy, y0 - uy + ux, x1 + ux - uy, y1 + uy + ux, false);
+    addEdge(x1 + ux - uy, y1 + uy + ux, x1 + ux + uy, y1 + uy - ux, false);
+    addEdge(x1 + ux + uy, y1 + uy - ux, x0 - ux + uy, y0 - uy - ux, false);
+    addEdge(x0 - ux + uy, y0 - uy - ux, x0 - ux - uy, y0 - uy + ux, false);
+
+    fill();
+  }
+}
+
+// One pixel in each column (or row) the segment crosses, the one it passes through at the pixel
+// center, or at the end of the segment for the end pixels
+private void thinSegment(double x0, double y0, double x1, double y1)
+{
+  double dx = x1 - x0;
+  double dy = y1 - y0;
+
+  if (Math.abs(dx) >= Math.abs(dy))
+  {
+    if (x0 > x1)
+    {
+      thinSegment(x1, y1, x0, y0);
+      return;
+    }
+
+    int c0 = Math.max(0, (int) Math.floor(x0));
+    int c1 = Math.min(tileSize - 1, (int) Math.floor(x1));
+    for (int c = c0; c <= c1; c++)
+    {
+      double xc = Math.min(Math.max(c + 0.5, x0), x1);
+      double y = (dx == 0) ? y0 : y0 + (xc - x0) * dy / dx;
+      int r = (int) Math.floor(y);
+      if (r >= 0 && r < tileSize)
+      {
+        cover(c, r);
+      }
+    }
+  }
+  else
+  {
+    if (y0 > y1)
+    {
+      thinSegment(x1, y1, x0, y0);
+      return;
+    }
+
+    int r0 = Math.max(0, (int) Math.floor(y0));
+    int r1 = Math.min(tileSize - 1, (int) Math.floor(y1));
+    for (int r = r0; r <= r1; r++)
+    {
+      double yc = Math.min(Math.max(r + 0.5, y0), y1);
+      double x = x0 + (yc - y0) * dx / dy;
+      int c = (int) Math.floor(x);
+      if (c >= 0 && c < tileSize)
+      {
+        cover(c, r);
+      }
+    }
+  }
+}
+
+private void addRing(LineString ring, boolean hole)
+{
+  int n = ring.getNumPoints();
+  if (n < 2)
+  {
+    return;
+  }
+
+  // filling the pixel centers half a pixel over, i.e. covering the pixels with their corner inside
+  Point p = ring.getPoint(n - 1);
+  double px = toPixelX(p.getX()) + 0.5;
+  double py = toPixelY(p.getY()) + 0.5;
+
+  // starting with the closing edge (which has no length if the ring is closed)
+  for (int i = 0; i < n; i++)
+  {
+    p = ring.getPoint(i);
+    double x = toPixelX(p.getX()) + 0.5;
+    double y = toPixelY(p.getY()) + 0.5;
+
+    addEdge(px, py, x, y, hole);
+
+    px = x;
+    py = y;
+  }
+}
+
+private void addEdge(double x0, double y0, double x1, double y1, boolean hole)
+{
+  // horizontal edges never cross a scanline
+  if (y0 == y1)
+  {
+    return;
+  }
+
+  if ((edgeCount + 1) * 4 > edges.length)
+  {
+    edges = Arrays.copyOf(edges, edges.length * 2);
+    holes = Arrays.copyOf(holes, holes.length * 2);
+  }
+
+  int ndx = edgeCount * 4;
+  edges[ndx] = x0;
+  edges[ndx + 1] = y0;
+  edges[ndx + 2] = x1;
+  edges[ndx + 3] = y1;
+  holes[edgeCount] = hole;
+
+  edgeCount++;
+}
+
+// Scan the edges, a row at a time at the pixel centers.  The edges are bucketed by their first row,
+// then kept in an active list, sorted by where they cross the row.
+private void fill()
+{
+  if (edgeCount == 0)
+  {
+    return;
+  }
+
+  if (next.length < edgeCount)
+  {
+    next = new int[edgeCount];
+    active = new int[edgeCount];
+    crossings = new double[edgeCount];
+  }
+
+  Arrays.fill(rowStart, -1);
+
+  int firstRow = tileSize;
+  int lastRow = -1;
+  for (int e = 0; e < edgeCount; e++)
+  {
+    double top = Math.min(edges[e * 4 + 1], edges[e * 4 + 3]);
+    double bottom = Math.max(edges[e * 4 + 1], edges[e * 4 + 3]);
+
+    // the rows whose centers are in [top, bottom)
+    int r0 = Math.max(0, (int) Math.ceil(top - 0.5));
+    int r1 = Math.min(tileSize - 1, (int) Math.ceil(bottom - 0.5) - 1);
+    if (r0 <= r1)
+    {
+      next[e] = rowStart[r0];
+      rowStart[r0] = e;
+
+      firstRow = Math.min(firstRow, r0);
+      lastRow = Math.max(lastRow, r1);
+    }
+  }
+
+  int activeCount = 0;
+  for (int row = firstRow; row <= lastRow; row++)
+  {
+    double yc = row + 0.5;
+
+    for (int e = rowStart[row]; e >= 0; e = next[e])
+    {
+      active[activeCount++] = e;
+    }
+
+    // drop the edges that ended, and find where the rest cross the row
+    int count = 0;
+    for (int i = 0; i < activeCount; i++)
+    {
+      int e = active[i];
+      double y0 = edges[e * 4 + 1];
+      double y1 = edges[e * 4 + 3];
+      if (Math.max(y0, y1) > yc)
+      {
+        double x0 = edges[e * 4];
+        double x1 = edges[e * 4 + 2];
+        double x = x0 + (yc - y0) * (x1 - x0) / (y1 - y0);
+
+        // insertion sort, the order barely changes from row to row
+        int j = count;
+        while (j > 0 && crossings[j - 1] > x)
+        {
+          crossings[j] = crossings[j - 1];
+          active[j] = active[j - 1];
+          j--;
+        }
+        crossings[j] = x;
+        active[j] = e;
+        count++;
+      }
+    }
+    activeCount = count;
+
+    int winding = 0;
+    int holeWinding = 0;
+    for (int i = 0; i < activeCount - 1; i++)
+    {
+      int e = active[i];
+      int dir = (edges[e * 4 + 3] > edges[e * 4 + 1]) ? 1 : -1;
+      if (holes[e])
+      {
+        holeWinding += dir;
+      }
+      else
+      {
+        winding += dir;
+      }
+
+      if (winding != 0 || holeWinding != 0)
+      {
+        // the columns whose centers are in [crossing i, crossing i + 1)
+        int c0 = (int) Math.max(0, Math.ceil(crossings[i] - 0.5));
+        int c1 = (int) Math.min(tileSize - 1, Math.ceil(crossings[i + 1] - 0.5) - 1);
+
+        for (int c = c0; c <= c1; c++)
+        {
+          if (holeWinding == 0)
+          {
+            cover(c, row);
+          }
+          else
+          {
+            uncover(c, row);
+          }
+        }
+      }
+    }
+  }
+}
+
+// The stamps aren't cleared between tiles, the feature numbers keep going up until they wrap
+private void nextFeature()
+{
+  if (feature == Integer.MAX_VALUE)
+  {
+    Arrays.fill(stamps, 0);
+    feature = 0;
+  }
+  feature++;
+}
+
+private void cover(int x, int y)
+{
+  int ndx = y * tileSize + x;
+  if (stamps[ndx] == feature)
+  {
+    return;
+  }
+  stamps[ndx] = feature;
+
+  switch (aggregationType)
+  {
+  case MASK:
+    raster.setPixel(x, y, 0, (byte) 0);
+    break;
+  case MASK2:
+    raster.setPixel(x, y, 0, (byte) 1);
+    break;
+  case MIN:
+  {
+    float v = raster.getPixelFloat(x, y, 0);
+    if (Float.isNaN(v) || weight < v)
+    {
+      raster.setPixel(x, y, 0, (float) weight);
+    }
+    break;
+  }
+  case MAX:
+  {
+    float v = raster.getPixelFloat(x, y, 0);
+    if (Float.isNaN(v) || weight > v)
+    {
+      raster.setPixel(x, y, 0, (float) weight);
+    }
+    break;
+  }
+  case AVERAGE:
+    raster.setPixel(x, y, 1, raster.getPixelFloat(x, y, 1) + 1);
+    // fall through, the sum is divided by the count when the tile is done
+  default:
+  {
+    float v = raster.getPixelFloat(x, y, 0);
+    raster.setPixel(x, y, 0, (float) ((Float.isNaN(v) ? 0 : v) + weight));
+    break;
+  }
+  }
+}
+
+// A pixel in a polygon's hole, only the masks paint these (as unmasked)
+private void uncover(int x, int y)
+{
+  if (aggregationType == AggregationType.MASK)
+  {
+    raster.setPixel(x, y, 0, (byte) RasterUtils.getDefaultNoDataForType(DataBuffer.TYPE_BYTE));
+  }
+  else if (aggregationType == AggregationType.MASK2)
+  {
+    raster.setPixel(x, y, 0, (byte) 0);
+  }
+}
+
+private double toPixelX(double x)
+{
+  return (x - west) * scaleX;
+}
+
+// Lines snap to the center of their pixel when they're thin, to a quarter pixel when they're wide
+private double normalize(double p)
+{
+  if (pixelwidth <= 1.0f)
+  {
+    return Math.floor(p) + 0.5;
+  }
+  return Math.floor(p + 0.25) + 0.25;
+}
+
+private double toPixelY(double y)
+{
+  return (north - y) * scaleY;
+}
+}
@@ -0,0 +1,331 @@
+/*
+ * Copyright 2009-2017. DigitalGlobe, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.mrgeo.utils.tms;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The order tiles are stored in, i.e. how a tile's tx, ty is turned into the key it is sorted and
+ * partitioned by.
+ * <p>
+ * ROW_MAJOR is the TMSUtils.tileid() order (ty * numXTiles + tx), and is what every tile id outside
+ * of storage uses.  MORTON (Z-order) and HILBERT are space-filling curves over the 2^zoom x 2^zoom
+ * grid, so a compact area of tiles is a few contiguous ranges of keys instead of one range per row.
+ * With either curve, every aligned 2^k x 2^k block of tiles is a single contiguous range.
+ */
+public enum TileOrder
+{
+ROW_MAJOR
+    {
+      @Override
+      public long toKey(long tx, long ty, int zoom)
+      {
+        return TMSUtils.tileid(tx, ty, zoom);
+      }
+
+      @Override
+      public Tile toTile(long key, int zoom)
+      {
+        return TMSUtils.tileid(key, zoom);
+      }
+
+      @Override
+      public List<long[]> ranges(TileBounds bounds, int zoom)
+      {
+        List<long[]> ranges = new ArrayList<>();
+        for (long ty = bounds.s; ty <= bounds.n; ty++)
+        {
+          ranges.add(new long[]{TMSUtils.tileid(bounds.w, ty, zoom), TMSUtils.tileid(bounds.e, ty, zoom)});
+        }
+        return merge(ranges);
+      }
+    },
+MORTON
+    {
+      @Override
+      public long toKey(long tx, long ty, int zoom)
+      {
+        return spread(tx) | (spread(ty) << 1);
+      }
+
+      @Override
+      public Tile toTile(long key, int zoom)
+      {
+        return new Tile(compact(key), compact(key >>> 1));
+      }
+    },
+HILBERT
+    {
+      @Override
+      public long toKey(long tx, long ty, int zoom)
+      {
+        long x = tx;
+        long y = ty;
+        long key = 0;
+        for (long s = (1L << zoom) >>> 1; s > 0; s >>>= 1)
+        {
+          long rx = (x & s) > 0 ? 1 : 0;
+          long ry = (y & s) > 0 ? 1 : 0;
+          key += s * s * ((3 * rx) ^ ry);
+
+          // rotate the quadrant
+          if (ry == 0)
+          {
+            if (rx == 1)
+            {
+              x = s - 1 - (x & (s - 1));
+              y = s - 1 - (y & (s - 1));
+            }
+            long t = x;
+            x = y;
+            y = t;
+          }
+        }
+        return key;
+      }
+
+      @Override
+      public Tile toTile(long key, int zoom)
+      {
+        long n = 1L << zoom;
+        long x = 0;
+        long y = 0;
+        long t = key;
+        for (long s = 1; s < n; s <<= 1)
+        {
+          long rx = 1 & (t >>> 1);
+          long ry = 1 & (t ^ rx);
+
+          // rotate the quadrant
+          if (ry == 0)
+          {
+            if (rx == 1)
+            {
+              x = s - 1 - x;
+              y = s - 1 - y;
+            }
+            long tmp = x;
+            x = y;
+            y = tmp;
+          }
+
+          x += s * rx;
+          y += s * ry;
+          t >>>= 2;
+        }
+        return new Tile(x, y);
+      }
+    };
+
+/**
+ * The key a tile is stored under
+ */
+public abstract long toKey(long tx, long ty, int zoom);
+
+/**
+ * The tile stored under a key
+ */
+public abstract Tile toTile(long key, int zoom);
+
+/**
+ * The key a tile, given by its (row-major) tile id, is stored under
+ */
+public long toKey(long tileid, int zoom)
+{
+  Tile t = TMSUtils.tileid(tileid, zoom);
+  return toKey(t.tx, t.ty, zoom);
+}
+
+/**
+ * The (row-major) tile id of the tile stored under a key
+ */
+public long toTileId(long key, int zoom)
+{
+  Tile t = toTile(key, zoom);
+  return TMSUtils.tileid(t.tx, t.ty, zoom);
+}
+
+/**
+ * The sorted, non-overlapping, inclusive ranges of keys [start, end] that exactly cover the tile
+ * bounds.
+ */
+public List<long[]> ranges(TileBounds bounds, int zoom)
+{
+  List<long[]> ranges = new ArrayList<>();
+  decompose(bounds, 0, 0, 1L << zoom, zoom, ranges);
+  return merge(ranges);
+}
+
+/**
+ * The sorted, non-overlapping, inclusive ranges of keys [start, end] that exactly cover the tiles
+ * with row-major tile ids from startId to endId (inclusive)
+ */
+public List<long[]> ranges(long startId, long endId, int zoom)
+{
+  long maxX = TMSUtils.numXTiles(zoom) - 1;
+  Tile start = TMSUtils.tileid(Math.max(0, startId), zoom);
+  Tile end = TMSUtils.tileid(Math.min(TMSUtils.maxTileId(zoom), endId), zoom);
+
+  List<long[]> ranges = new ArrayList<>();
+  if (start.ty == end.ty)
+  {
+    if (start.tx <= end.tx)
+    {
+      ranges.addAll(ranges(new TileBounds(start.tx, start.ty, end.tx, end.ty), zoom));
+    }
+  }
+  else if (start.ty < end.ty)
+  {
+    // the rest of the first row, any full rows, and the start of the last row
+    ranges.addAll(ranges(new TileBounds(start.tx, start.ty, maxX, start.ty), zoom));
+    if (end.ty - start.ty > 1)
+    {
+      ranges.addAll(ranges(new TileBounds(0, start.ty + 1, maxX, end.ty - 1), zoom));
+    }
+    ranges.addAll(ranges(new TileBounds(0, end.ty, end.tx, end.ty), zoom));
+  }
+  return merge(ranges);
+}
+
+/**
+ * Whether any of the sorted, non-overlapping key ranges overlap the keys from start to end (inclusive)
+ */
+public static boolean intersects(List<long[]> ranges, long start, long end)
+{
+  if (ranges.isEmpty())
+  {
+    return false;
+  }
+
+  // find the first range ending at or after start
+  int lo = 0;
+  int hi = ranges.size() - 1;
+  while (lo < hi)
+  {
+    int mid = (lo + hi) >>> 1;
+    if (ranges.get(mid)[1] < start)
+    {
+      lo = mid + 1;
+    }
+    else
+    {
+      hi = mid;
+    }
+  }
+  return ranges.get(lo)[1] >= start && ranges.get(lo)[0] <= end;
+}
+
+/**
+ * Parse a tile order (case insensitive), "row", "z" and "zorder" are also accepted
+ */
+public static TileOrder fromString(String order)
+{
+  String o = order.trim().toUpperCase();
+  switch (o)
+  {
+  case "ROW":
+    return ROW_MAJOR;
+  case "Z":
+  case "ZORDER":
+  case "Z-ORDER":
+    return MORTON;
+  default:
+    return valueOf(o);
+  }
+}
+
+// Split the (aligned) square block of tiles into quadrants until each piece is either entirely inside
+// or outside of the bounds.  An aligned block is one contiguous range of keys, starting at a multiple
+// of its area.
+private void decompose(TileBounds bounds, long x, long y, long size, int zoom, List<long[]> ranges)
+{
+  long e = x + size - 1;
+  long n = y + size - 1;
+  if (x > bounds.e || e < bounds.w || y > bounds.n || n < bounds.s)
+  {
+    return;
+  }
+
+  if (x >= bounds.w && e <= bounds.e && y >= bounds.s && n <= bounds.n)
+  {
+    long area = size * size;
+    long key = toKey(x, y, zoom);
+    long start = key - (key % area);
+    ranges.add(new long[]{start, start + area - 1});
+    return;
+  }
+
+  long half = size >>> 1;
+  decompose(bounds, x, y, half, zoom, ranges);
+  decompose(bounds, x + half, y, half, zoom, ranges);
+  decompose(bounds, x, y + half, half, zoom, ranges);
+  decompose(bounds, x + half, y + half, half, zoom, ranges);
+}
+
+private static List<long[]> merge(List<long[]> ranges)
+{
+  Collections.sort(ranges, new Comparator<long[]>()
+  {
+    @Override
+    public int compare(long[] r1, long[] r2)
+    {
+      return Long.compare(r1[0], r2[0]);
+    }
+  });
+
+  List<long[]> merged = new ArrayList<>(ranges.size());
+  for (long[] range : ranges)
+  {
+    if (!merged.isEmpty() && merged.get(merged.size() - 1)[1] + 1 >= range[0])
+    {
+      long[] last = merged.get(merged.size() - 1);
+      last[1] = Math.max(last[1], range[1]);
+    }
+    else
+    {
+      merged.add(range);
+    }
+  }
+  return merged;
+}
+
+// spread the low 32 bits of v out to the even bits
+private static long spread(long v)
+{
+  long x = v & 0xffffffffL;
+  x = (x | (x << 16)) & 0x0000ffff0000ffffL;
+  x = (x | (x << 8)) & 0x00ff00ff00ff00ffL;
+  x = (x | (x << 4)) & 0x0f0f0f0f0f0f0f0fL;
+  x = (x | (x << 2)) & 0x3333333333333333L;
+  x = (x | (x << 1)) & 0x5555555555555555L;
+  return x;
+}
+
+// gather the even bits of v back into the low 32 bits
+private static long compact(long v)
+{
+  long x = v & 0x5555555555555555L;
+  x = (x | (x >>> 1)) & 0x3333333333333333L;
+  x = (x | (x >>> 2)) & 0x0f0f0f0f0f0f0f0fL;
+  x = (x | (x >>> 4)) & 0x00ff00ff00ff00ffL;
+  x = (x | (x >>> 8)) & 0x0000ffff0000ffffL;
+  x = (x | (x >>> 16)) & 0x00000000ffffffffL;
+  return x;
+}
+}
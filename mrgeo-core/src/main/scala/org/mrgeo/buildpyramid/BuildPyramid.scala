@@ -22,13 +22,14 @@ import edu.umd.cs.findbugs.annotations.SuppressFBWarnings
 import org.apache.commons.lang3.NotImplementedException
 import org.apache.hadoop.conf.Configuration
 import org.apache.spark.rdd.{PairRDDFunctions, RDD}
-import org.apache.spark.{SparkConf, SparkContext}
+import org.apache.spark.{Partitioner, SparkConf, SparkContext}
 import org.mrgeo.aggregators.{Aggregator, AggregatorRegistry, MeanAggregator}
+import org.mrgeo.core.{MrGeoConstants, MrGeoProperties}
 import org.mrgeo.data
 import org.mrgeo.data.DataProviderFactory.AccessMode
 import org.mrgeo.data.image.{ImageOutputFormatContext, MrsImageDataProvider, MrsImageWriter}
-import org.mrgeo.data.raster.{MrGeoRaster, RasterWritable}
-import org.mrgeo.data.rdd.RasterRDD
+import org.mrgeo.data.raster.{MrGeoRaster, RasterWritable, TileCodec}
+import org.mrgeo.data.rdd.{AutoPersister, RasterRDD}
 import org.mrgeo.data.tile.TileIdWritable
 import org.mrgeo.data.{DataProviderFactory, ProviderProperties}
 import org.mrgeo.image.{ImageStats, MrsPyramidMetadata}
@@ -146,87 +147,85 @@ class BuildPyramid extends MrGeoJob with Externalizable {
 
     var pyramid = SparkUtils.loadMrsPyramid(provider, maxLevel, context)
 
-    var builtlocally = false
-    // build the levels
-    for (level <- maxLevel until 1 by -1) {
-      val fromlevel = level
-      val tolevel = fromlevel - 1
-
-      if (!builtlocally) {
-        logInfo("Building pyramid for: " + pyramidName + " from: " + fromlevel + " to: " + tolevel)
-        val tb = metadata.getTileBounds(fromlevel)
-
-        // if we have less than 1000 tiles total, we'll use the local buildpyramid
-        if (tb.getWidth * tb.getHeight > BuildPyramid.MIN_TILES_FOR_SPARK) {
-
-          val decimated:RDD[(TileIdWritable, RasterWritable)] = pyramid.map(tile => {
-            val fromkey = tile._1
-            val fromtile:Tile = TMSUtils.tileid(fromkey.get, fromlevel)
-            val frombounds:Bounds = TMSUtils.tileBounds(fromtile.tx, fromtile.ty, fromlevel, tilesize)
-
-            val fromraster = RasterWritable.toMrGeoRaster(tile._2)
-
-            // calculate the starting pixel for the from-tile (make sure to use the NW coordinate)
-            val fromcorner:Pixel = TMSUtils.latLonToPixelsUL(frombounds.n, frombounds.w, fromlevel, tilesize)
-
-            val totile:Tile = TMSUtils.latLonToTile(frombounds.s, frombounds.w, tolevel, tilesize)
-            val tobounds:Bounds = TMSUtils.tileBounds(totile.tx, totile.ty, tolevel, tilesize)
-
-            // calculate the starting pixel for the to-tile (make sure to use the NW coordinate) in the from-tile's pixel space
-            val tocorner:Pixel = TMSUtils.latLonToPixelsUL(tobounds.n, tobounds.w, fromlevel, tilesize)
+    val levelsPerShuffle = MrGeoProperties.getInstance()
+        .getProperty(MrGeoConstants.MRGEO_BUILDPYRAMID_LEVELS_PER_SHUFFLE, "4").toInt
 
-            val tokey = new TileIdWritable(TMSUtils.tileid(totile.tx, totile.ty, tolevel))
+    val skipEmpty = MrGeoProperties.getInstance()
+        .getProperty(MrGeoConstants.MRGEO_SKIP_EMPTY_TILES, "true").toBoolean
 
-            val reduced = fromraster.reduce(2, 2, aggregator, nodatas)
+    // the multi-level rdd that the current input pyramid is part of
+    var persisted:RDD[_] = null
 
-            // create a compatible writable raster
-            logDebug("from  tx: " + fromtile.tx + " ty: " + fromtile.ty + " (" + fromlevel + ") to tx: " + totile.tx +
-                     " ty: " + totile.ty + " (" + tolevel + ") x: "
-                     + ((fromcorner.px - tocorner.px) / 2) + " y: " + ((fromcorner.py - tocorner.py) / 2) +
-                     " w: " + reduced.width() + " h: " + reduced.height())
+    var builtlocally = false
+    var fromlevel = maxLevel
+    // build the levels
+    while (fromlevel > 1 && !builtlocally) {
+      val tb = metadata.getTileBounds(fromlevel)
 
-            val toraster = fromraster.createCompatibleRaster(tilesize, tilesize)
-            toraster.fill(nodatas)
+      // if we have less than 1000 tiles total, we'll use the local buildpyramid
+      if (tb.getWidth * tb.getHeight > BuildPyramid.MIN_TILES_FOR_SPARK) {
+        val tolevel = Math.max(fromlevel - Math.max(levelsPerShuffle, 1), 1)
 
-            toraster.copyFrom(0, 0, reduced.width(), reduced.height(), reduced,
-              (fromcorner.px - tocorner.px).toInt / 2, (fromcorner.py - tocorner.py).toInt / 2)
+        logInfo("Building pyramid for: " + pyramidName + " from: " + fromlevel + " to: " + tolevel)
 
-            (tokey, RasterWritable.toWritable(toraster))
-          })
+        val source = if (skipEmpty) dropEmpty(pyramid, nodatas) else pyramid
 
-          val mergedTiles = new PairRDDFunctions(decimated).reduceByKey((r1, r2) => {
-            val src = RasterWritable.toMrGeoRaster(r1)
-            val dst = RasterWritable.toMrGeoRaster(r2)
+        val levels = if (tolevel == fromlevel - 1) {
+          buildlevel(source, fromlevel, tilesize, nodatas).map(tile => (tolevel, tile))
+        }
+        else {
+          buildlevels(source, fromlevel, tolevel, tilesize, nodatas)
+        }
 
-            dst.mosaic(src, nodatas)
+        // every level is saved from the same rdd, so keep it around instead of recomputing the shuffle
+        AutoPersister.persist(levels)
 
-            RasterWritable.toWritable(dst)
-          })
+        var level = fromlevel - 1
+        while (level >= tolevel) {
+          val savelevel = level
 
           // while we were running, there is chance the pyramid was removed from the cache and
           // reopened by another process. Re-loading it here will avoid some potential conflicts.
           metadata = provider.getMetadataReader.reload()
 
           // make sure the level is deleted
-          deletelevel(tolevel, metadata, provider)
+          deletelevel(savelevel, metadata, provider)
 
-          pyramid = RasterRDD(mergedTiles)
+          val tiles = RasterRDD(levels.filter(_._1 == savelevel).map(_._2))
 
-          SparkUtils.saveMrsPyramid(pyramid, provider, tolevel,
+          SparkUtils.saveMrsPyramid(tiles, provider, savelevel,
             context.hadoopConfiguration, providerproperties = this.providerproperties)
 
-          //TODO: Fix this in S3
-          // in S3, sometimes the just-written data isn't available to read yet.  This sleep just gives
-          // S3 a chance to catch up...
-          //Thread.sleep(5000)
+          if (savelevel == tolevel) {
+            pyramid = tiles
+          }
+
+          level -= 1
         }
-        else {
-          buildlevellocal(provider, pyramid, fromlevel, 1)
-          builtlocally = true
+
+        if (persisted != null) {
+          AutoPersister.unpersist(persisted)
         }
+        persisted = levels
+
+        //TODO: Fix this in S3
+        // in S3, sometimes the just-written data isn't available to read yet.  This sleep just gives
+        // S3 a chance to catch up...
+        //Thread.sleep(5000)
+
+        fromlevel = tolevel
+      }
+      else {
+        logInfo("Building pyramid locally for: " + pyramidName + " from: " + fromlevel + " to: 1")
+        buildlevellocal(provider, pyramid, fromlevel, 1)
+        builtlocally = true
       }
     }
 
+    if (persisted != null) {
+      AutoPersister.unpersist(persisted)
+    }
+
     true
   }
 
@@ -254,6 +253,151 @@ class BuildPyramid extends MrGeoJob with Externalizable {
     this.providerproperties = providerproperties
   }
 
+  // build the next lower level from the tiles in fromlevel
+  private[buildpyramid] def buildlevel(pyramid:RasterRDD, fromlevel:Int, tilesize:Int,
+                                       nodatas:Array[Double]):RDD[(TileIdWritable, RasterWritable)] = {
+    val decimated:RDD[(TileIdWritable, RasterWritable)] = pyramid.map(tile => {
+      val fromraster = RasterWritable.toMrGeoRaster(tile._2)
+      val (tokey, reduced, x, y) = decimate(tile._1, fromraster, fromlevel, tilesize, nodatas)
+
+      // create a compatible writable raster
+      val toraster = fromraster.createCompatibleRaster(tilesize, tilesize)
+      toraster.fill(nodatas)
+
+      toraster.copyFrom(0, 0, reduced.width(), reduced.height(), reduced, x, y)
+
+      (tokey, RasterWritable.toWritable(toraster))
+    })
+
+    new PairRDDFunctions(decimated).reduceByKey((r1, r2) => {
+      val src = RasterWritable.toMrGeoRaster(r1)
+      val dst = RasterWritable.toMrGeoRaster(r2)
+
+      dst.mosaic(src, nodatas)
+
+      RasterWritable.toWritable(dst)
+    })
+  }
+
+  // Build every level from fromlevel - 1 down to tolevel with a single shuffle.  The first level is
+  // decimated before the shuffle, so only a quarter of the data moves, and the decimated tiles are
+  // grouped by their ancestor in tolevel.  Each group is a complete quadtree, so the remaining
+  // levels can be built in memory.  The quarters are pasted into their tiles as they arrive, so only
+  // the (at most 4 ^ levels) tiles of the first level are held per ancestor, not every quarter.  The
+  // result is keyed by level.
+  private[buildpyramid] def buildlevels(pyramid:RasterRDD, fromlevel:Int, tolevel:Int, tilesize:Int,
+                                        nodatas:Array[Double]):RDD[(Int, (TileIdWritable, RasterWritable))] = {
+    // the number of levels between fromlevel - 1 and the ancestor's level
+    val shift = fromlevel - 1 - tolevel
+
+    val decimated = pyramid.map(tile => {
+      val (tokey, reduced, x, y) = decimate(tile._1, RasterWritable.toMrGeoRaster(tile._2), fromlevel, tilesize,
+        nodatas)
+
+      val totile = TMSUtils.tileid(tokey.get, fromlevel - 1)
+      val ancestor = new TileIdWritable(TMSUtils.tileid(totile.tx >> shift, totile.ty >> shift, tolevel))
+
+      (ancestor, (tokey.get, x, y, RasterWritable.toWritable(reduced)))
+    })
+
+    // paste a decimated quarter into its tile in the first level
+    def paste(tiles:mutable.HashMap[Long, MrGeoRaster],
+              quarter:(Long, Int, Int, RasterWritable)):mutable.HashMap[Long, MrGeoRaster] = {
+      val reduced = RasterWritable.toMrGeoRaster(quarter._4)
+      val toraster = tiles.getOrElseUpdate(quarter._1, {
+        val raster = reduced.createCompatibleRaster(tilesize, tilesize)
+        raster.fill(nodatas)
+        raster
+      })
+
+      toraster.copyFrom(0, 0, reduced.width(), reduced.height(), reduced, quarter._2, quarter._3)
+      tiles
+    }
+
+    // the quarters in each set of tiles don't overlap
+    def merge(tiles:mutable.HashMap[Long, MrGeoRaster],
+              other:mutable.HashMap[Long, MrGeoRaster]):mutable.HashMap[Long, MrGeoRaster] = {
+      other.foreach(tile => {
+        tiles.get(tile._1) match {
+          case Some(raster) => raster.mosaic(tile._2, nodatas)
+          case None => tiles.put(tile._1, tile._2)
+        }
+      })
+      tiles
+    }
+
+    // no map side combine, it would ship whole tiles for the quarters instead of just the quarters
+    new PairRDDFunctions(decimated).combineByKey(
+      (quarter:(Long, Int, Int, RasterWritable)) => paste(mutable.HashMap.empty[Long, MrGeoRaster], quarter),
+      paste, merge, Partitioner.defaultPartitioner(decimated), mapSideCombine = false).flatMap(group => {
+      val result = mutable.ArrayBuffer.empty[(Int, (TileIdWritable, RasterWritable))]
+
+      var tiles = group._2
+      var level = fromlevel - 1
+      tiles.foreach(tile => result.append((level, (new TileIdWritable(tile._1), RasterWritable.toWritable(tile._2)))))
+
+      // now the rest of the levels
+      while (level > tolevel) {
+        val outputTiles = mutable.HashMap.empty[Long, MrGeoRaster]
+
+        tiles.foreach(tile => {
+          val (tokey, reduced, x, y) = decimate(new TileIdWritable(tile._1), tile._2, level, tilesize, nodatas)
+
+          val toraster = outputTiles.getOrElseUpdate(tokey.get, {
+            val raster = tile._2.createCompatibleRaster(tilesize, tilesize)
+            raster.fill(nodatas)
+            raster
+          })
+
+          toraster.copyFrom(0, 0, reduced.width(), reduced.height(), reduced, x, y)
+        })
+
+        level -= 1
+        outputTiles.foreach(tile =>
+          result.append((level, (new TileIdWritable(tile._1), RasterWritable.toWritable(tile._2)))))
+
+        tiles = outputTiles
+      }
+
+      result.iterator
+    })
+  }
+
+  // all nodata tiles add nothing to the levels above them, so they don't need to be shuffled
+  private[buildpyramid] def dropEmpty(pyramid:RasterRDD, nodatas:Array[Double]):RasterRDD = {
+    RasterRDD(pyramid.filter(tile => !TileCodec.isAllNodata(tile._2, nodatas)))
+  }
+
+  // reduce a tile by 2x, returning the id of the tile in the next lower level it belongs to, the reduced
+  // raster, and the pixel location of the reduced raster within that tile
+  private def decimate(fromkey:TileIdWritable, fromraster:MrGeoRaster, fromlevel:Int, tilesize:Int,
+                       nodatas:Array[Double]):(TileIdWritable, MrGeoRaster, Int, Int) = {
+    val tolevel = fromlevel - 1
+
+    val fromtile:Tile = TMSUtils.tileid(fromkey.get, fromlevel)
+    val frombounds:Bounds = TMSUtils.tileBounds(fromtile.tx, fromtile.ty, fromlevel, tilesize)
+
+    // calculate the starting pixel for the from-tile (make sure to use the NW coordinate)
+    val fromcorner:Pixel = TMSUtils.latLonToPixelsUL(frombounds.n, frombounds.w, fromlevel, tilesize)
+
+    val totile:Tile = TMSUtils.latLonToTile(frombounds.s, frombounds.w, tolevel, tilesize)
+    val tobounds:Bounds = TMSUtils.tileBounds(totile.tx, totile.ty, tolevel, tilesize)
+
+    // calculate the starting pixel for the to-tile (make sure to use the NW coordinate) in the from-tile's pixel space
+    val tocorner:Pixel = TMSUtils.latLonToPixelsUL(tobounds.n, tobounds.w, fromlevel, tilesize)
+
+    val tokey = new TileIdWritable(TMSUtils.tileid(totile.tx, totile.ty, tolevel))
+
+    val reduced = fromraster.reduce(2, 2, aggregator, nodatas)
+
+    logDebug("from  tx: " + fromtile.tx + " ty: " + fromtile.ty + " (" + fromlevel + ") to tx: " + totile.tx +
+             " ty: " + totile.ty + " (" + tolevel + ") x: "
+             + ((fromcorner.px - tocorner.px) / 2) + " y: " + ((fromcorner.py - tocorner.py) / 2) +
+             " w: " + reduced.width() + " h: " + reduced.height())
+
+    (tokey, reduced, (fromcorner.px - tocorner.px).toInt / 2, (fromcorner.py - tocorner.py).toInt / 2)
+  }
+
   private def makeAggregator(classname:String) = {
     val cl = getClass.getClassLoader
     val clazz = cl.loadClass(classname)
@@ -280,13 +424,19 @@ class BuildPyramid extends MrGeoJob with Externalizable {
                               minlevel:Int):Boolean = {
     var inputTiles = mutable.HashMap.empty[TileIdWritable, MrGeoRaster]
 
-    pyramid.collect.foreach(tile => {
-      inputTiles.put(tile._1, RasterWritable.toMrGeoRaster(tile._2))
-    })
-
     var metadata:MrsPyramidMetadata = provider.getMetadataReader.read
     val nodatas = metadata.getDefaultValuesDouble
 
+    val skipEmpty = MrGeoProperties.getInstance()
+        .getProperty(MrGeoConstants.MRGEO_SKIP_EMPTY_TILES, "true").toBoolean
+
+    pyramid.collect.foreach(tile => {
+      val raster = RasterWritable.toMrGeoRaster(tile._2)
+      if (!skipEmpty || !raster.isAllNodata(nodatas)) {
+        inputTiles.put(tile._1, raster)
+      }
+    })
+
     val bounds:Bounds = metadata.getBounds
     val tilesize:Int = metadata.getTilesize
 
@@ -299,34 +449,10 @@ class BuildPyramid extends MrGeoJob with Externalizable {
       val outputTiles = mutable.HashMap.empty[TileIdWritable, MrGeoRaster]
 
       inputTiles.foreach(tile => {
-        val fromkey = tile._1
-        val fromtile:Tile = TMSUtils.tileid(fromkey.get, fromlevel)
-        val frombounds:Bounds = TMSUtils.tileBounds(fromtile.tx, fromtile.ty, fromlevel, tilesize)
-
-        val fromraster = tile._2
-
-        // calculate the starting pixel for the from-tile (make sure to use the NW coordinate)
-        val fromcorner:Pixel = TMSUtils.latLonToPixelsUL(frombounds.n, frombounds.w, fromlevel, tilesize)
-
-        val totile:Tile = TMSUtils.latLonToTile(frombounds.s, frombounds.w, tolevel, tilesize)
-        val tobounds:Bounds = TMSUtils.tileBounds(totile.tx, totile.ty, tolevel, tilesize)
-
-        // calculate the starting pixel for the to-tile (make sure to use the NW coordinate)
-        // in the from-tile's pixel space
-        val tocorner:Pixel = TMSUtils.latLonToPixelsUL(tobounds.n, tobounds.w, fromlevel, tilesize)
-
-        val tokey = new TileIdWritable(TMSUtils.tileid(totile.tx, totile.ty, tolevel))
-
-        val reduced = fromraster.reduce(2, 2, aggregator, nodatas)
-
-        // create a compatible writable raster
-        logDebug("from  tx: " + fromtile.tx + " ty: " + fromtile.ty + " (" + fromlevel + ") to tx: " + totile.tx +
-                 " ty: " + totile.ty + " (" + tolevel + ") x: "
-                 + ((fromcorner.px - tocorner.px) / 2) + " y: " + ((fromcorner.py - tocorner.py) / 2) +
-                 " w: " + reduced.width() + " h: " + reduced.height())
+        val (tokey, reduced, x, y) = decimate(tile._1, tile._2, fromlevel, tilesize, nodatas)
 
         val toraster = if (!outputTiles.contains(tokey)) {
-          val raster = fromraster.createCompatibleRaster(tilesize, tilesize)
+          val raster = tile._2.createCompatibleRaster(tilesize, tilesize)
           raster.fill(nodatas)
 
           outputTiles.put(tokey, raster)
@@ -336,8 +462,7 @@ class BuildPyramid extends MrGeoJob with Externalizable {
           outputTiles(tokey)
         }
 
-        toraster.copyFrom(0, 0, reduced.width(), reduced.height(), reduced,
-          (fromcorner.px - tocorner.px).toInt / 2, (fromcorner.py - tocorner.py).toInt / 2)
+        toraster.copyFrom(0, 0, reduced.width(), reduced.height(), reduced, x, y)
       })
 
       val stats:Array[ImageStats] = ImageStats.initializeStatsArray(metadata.getBands)
@@ -346,7 +471,9 @@ class BuildPyramid extends MrGeoJob with Externalizable {
 
       val writer:MrsImageWriter = provider.getMrsTileWriter(tolevel, metadata.getProtectionLevel)
 
-      outputTiles.toSeq.sortBy(_._1.get()).foreach(tile => {
+      // the writer needs the tiles in the order they are stored
+      val order = metadata.getTileOrder
+      outputTiles.toSeq.sortBy(tile => order.toKey(tile._1.get(), tolevel)).foreach(tile => {
         logDebug("  writing tile: " + tile._1.get)
         writer.append(tile._1, tile._2)
         ImageStats.computeAndUpdateStats(stats, tile._2, nodatas)
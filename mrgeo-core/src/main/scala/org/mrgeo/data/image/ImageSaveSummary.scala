@@ -0,0 +1,188 @@
+/*
+ * Copyright 2009-2017. DigitalGlobe, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.mrgeo.data.image
+
+import org.apache.spark.AccumulatorParam
+import org.mrgeo.data.raster.MrGeoRaster
+import org.mrgeo.image.ImageStats
+import org.mrgeo.utils.FloatUtils
+import org.mrgeo.utils.tms.{Bounds, TMSUtils}
+
+import scala.collection.mutable
+
+/**
+  * The tile id range, tile bounds and statistics of the tiles written by a single partition
+  * of a save.
+  */
+@SerialVersionUID(1L)
+class PartitionSaveSummary(val partition:Int) extends Serializable {
+  var startId:Long = Long.MaxValue
+  var endId:Long = Long.MinValue
+  var tiles:Long = 0
+
+  var minTx:Long = Long.MaxValue
+  var minTy:Long = Long.MaxValue
+  var maxTx:Long = Long.MinValue
+  var maxTy:Long = Long.MinValue
+
+  var tilesize:Int = -1
+  var bands:Int = -1
+  var datatype:Int = -1
+
+  var stats:Array[ImageStats] = _
+
+  def add(tileid:Long, zoom:Int, raster:MrGeoRaster, nodatas:Array[Double]):Unit = {
+    add(tileid, tileid, zoom, raster, nodatas)
+  }
+
+  // key is what the tile is stored (and split) by, tileid is its (row-major) tile id
+  def add(key:Long, tileid:Long, zoom:Int, raster:MrGeoRaster, nodatas:Array[Double]):Unit = {
+    startId = Math.min(startId, key)
+    endId = Math.max(endId, key)
+    tiles += 1
+
+    val tile = TMSUtils.tileid(tileid, zoom)
+    minTx = Math.min(minTx, tile.tx)
+    minTy = Math.min(minTy, tile.ty)
+    maxTx = Math.max(maxTx, tile.tx)
+    maxTy = Math.max(maxTy, tile.ty)
+
+    if (stats == null) {
+      tilesize = raster.width()
+      bands = raster.bands()
+      datatype = raster.datatype()
+
+      stats = Array.fill[ImageStats](bands)(new ImageStats(Double.MaxValue, Double.MinValue, 0, 0))
+    }
+
+    var b:Int = 0
+    while (b < raster.bands()) {
+      val nodata = nodatas(b)
+      val s = stats(b)
+      var y:Int = 0
+      while (y < raster.height()) {
+        var x:Int = 0
+        while (x < raster.width()) {
+          val p = raster.getPixelDouble(x, y, b)
+          if (FloatUtils.isNotNodata(p, nodata)) {
+            s.count += 1
+            s.sum += p
+            s.max = Math.max(s.max, p)
+            s.min = Math.min(s.min, p)
+          }
+          x += 1
+        }
+        y += 1
+      }
+      b += 1
+    }
+  }
+
+  def isEmpty:Boolean = tiles == 0
+}
+
+/**
+  * Everything needed to finalize the metadata of a saved image, gathered while the tiles are being
+  * written instead of with separate passes over the data.  Summaries are kept by partition, so a
+  * partition that is recomputed (a retried or speculative task) replaces its earlier result instead
+  * of being counted twice.
+  */
+@SerialVersionUID(1L)
+class ImageSaveSummary extends Serializable {
+  private val summaries = mutable.HashMap.empty[Int, PartitionSaveSummary]
+
+  def add(summary:PartitionSaveSummary):ImageSaveSummary = {
+    summaries.put(summary.partition, summary)
+    this
+  }
+
+  def merge(other:ImageSaveSummary):ImageSaveSummary = {
+    other.summaries.values.foreach(add)
+    this
+  }
+
+  // the per-partition summaries, in partition order
+  def partitions():Array[PartitionSaveSummary] = {
+    summaries.values.toArray.sortBy(_.partition)
+  }
+
+  def isEmpty:Boolean = summaries.values.forall(_.isEmpty)
+
+  private def first:PartitionSaveSummary = {
+    summaries.values.find(!_.isEmpty).orNull
+  }
+
+  def tilesize:Int = Option(first).map(_.tilesize).getOrElse(-1)
+
+  def bands:Int = Option(first).map(_.bands).getOrElse(-1)
+
+  def datatype:Int = Option(first).map(_.datatype).getOrElse(-1)
+
+  def bounds(zoom:Int):Bounds = {
+    var bounds:Bounds = null
+    summaries.values.filter(!_.isEmpty).foreach(summary => {
+      val ll = TMSUtils.tileBounds(summary.minTx, summary.minTy, zoom, summary.tilesize)
+      val ur = TMSUtils.tileBounds(summary.maxTx, summary.maxTy, zoom, summary.tilesize)
+
+      val tb = ll.expand(ur)
+      bounds = if (bounds == null) {
+        tb
+      }
+      else {
+        tb.expand(bounds)
+      }
+    })
+
+    bounds
+  }
+
+  def stats():Array[ImageStats] = {
+    val total = Array.fill[ImageStats](Math.max(bands, 0))(new ImageStats(Double.MaxValue, Double.MinValue, 0, 0))
+
+    summaries.values.filter(!_.isEmpty).foreach(summary => {
+      for (b <- total.indices) {
+        total(b).count += summary.stats(b).count
+        total(b).sum += summary.stats(b).sum
+        total(b).max = Math.max(total(b).max, summary.stats(b).max)
+        total(b).min = Math.min(total(b).min, summary.stats(b).min)
+      }
+    })
+
+    for (b <- total.indices) {
+      if (total(b).count > 0) {
+        total(b).mean = total(b).sum / total(b).count
+      }
+    }
+
+    total
+  }
+}
+
+object ImageSaveSummaryAccumulator extends AccumulatorParam[ImageSaveSummary] {
+  override def addInPlace(r1:ImageSaveSummary, r2:ImageSaveSummary):ImageSaveSummary = {
+    if (r1 == null) {
+      r2
+    }
+    else if (r2 == null) {
+      r1
+    }
+    else {
+      r1.merge(r2)
+    }
+  }
+
+  override def zero(initialValue:ImageSaveSummary):ImageSaveSummary = new ImageSaveSummary
+}
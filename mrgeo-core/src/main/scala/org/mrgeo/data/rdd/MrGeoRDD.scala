@@ -18,13 +18,17 @@ package org.mrgeo.data.rdd
 import org.apache.spark.annotation.DeveloperApi
 import org.apache.spark.rdd.RDD
 import org.apache.spark.storage.StorageLevel
-import org.apache.spark.{Partition, TaskContext}
+import org.apache.spark.{Partition, Partitioner, TaskContext}
 import org.mrgeo.core.{MrGeoConstants, MrGeoProperties}
 
 import scala.reflect.ClassTag
 
 @SerialVersionUID(1L)
 class MrGeoRDD[K:ClassTag, V:ClassTag](parent:RDD[(K, V)]) extends RDD[(K, V)](parent) {
+  // we just pass the parent's tiles through, so keep its partitioning (this lets co-partitioned
+  // inputs be cogrouped without a shuffle)
+  @transient override val partitioner:Option[Partitioner] = parent.partitioner
+
   if (MrGeoProperties.getInstance().getProperty(MrGeoConstants.MRGEO_AUTOPERSISTANCE, "true") == "true") {
     AutoPersister.incrementRef(this)
     walkTree(this)
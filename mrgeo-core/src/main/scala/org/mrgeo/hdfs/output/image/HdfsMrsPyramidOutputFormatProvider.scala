@@ -26,18 +26,22 @@ import org.apache.hadoop.mapreduce.{Job, OutputFormat}
 import org.apache.spark.rdd.PairRDDFunctions
 import org.mrgeo.core.MrGeoConstants
 import org.mrgeo.data.DataProviderException
-import org.mrgeo.data.image.{ImageOutputFormatContext, MrsImageOutputFormatProvider}
+import org.mrgeo.data.image._
+import org.mrgeo.data.raster.{RasterWritable, TileCodec}
 import org.mrgeo.data.rdd.RasterRDD
 import org.mrgeo.data.tile.TileIdWritable
 import org.mrgeo.hdfs.image.HdfsMrsImageDataProvider
 import org.mrgeo.hdfs.partitioners.{BlockSizePartitioner, FileSplitPartitioner, RowPartitioner}
 import org.mrgeo.hdfs.tile.FileSplit
+import org.mrgeo.hdfs.tile.FileSplit.FileSplitInfo
 import org.mrgeo.hdfs.utils.HadoopFileUtils
+import org.mrgeo.utils.Logging
+import org.mrgeo.utils.tms.TileOrder
 
 
 @SuppressFBWarnings(value = Array("NM_FIELD_NAMING_CONVENTION"), justification = "PartitionType is Enumeration")
 class HdfsMrsPyramidOutputFormatProvider(context:ImageOutputFormatContext) extends MrsImageOutputFormatProvider(
-  context) {
+  context) with Logging {
 
   private[image] var provider:HdfsMrsImageDataProvider = null
   private[image] var partitioner:PartitionType.Value = null
@@ -68,15 +72,113 @@ class HdfsMrsPyramidOutputFormatProvider(context:ImageOutputFormatContext) exten
   }
 
   override def save(raster:RasterRDD, conf:Configuration):Unit = {
+    val jobconf = setupJob(conf)
 
-    implicit val tileIdOrdering = new Ordering[TileIdWritable] {
-      override def compare(x:TileIdWritable, y:TileIdWritable):Int = x.compareTo(y)
+    val sparkPartitioner = getSparkPartitioner
+    val sorted = sort(raster, sparkPartitioner)
+
+    val codec = context.getTileCodec
+    val encoded = if (codec == TileCodec.NONE) {
+      sorted
+    }
+    else {
+      sorted.mapValues(tile => codec.encode(tile))
+    }
+
+    val wrappedForSave = new PairRDDFunctions(encoded)
+    wrappedForSave.saveAsNewAPIHadoopDataset(jobconf)
+
+    sparkPartitioner.writeSplits(sorted, context.getOutput, context.getZoomLevel, jobconf)
+  }
+
+  override def saveAndSummarize(raster:RasterRDD, nodatas:Array[Double], conf:Configuration):ImageSaveSummary = {
+    // the row partitioner needs to know the bounds before anything is written
+    if (partitioner == PartitionType.ROW && context.getBounds == null) {
+      return null
+    }
+
+    val jobconf = setupJob(conf)
+
+    val sparkPartitioner = getSparkPartitioner
+    val sorted = sort(raster, sparkPartitioner)
+
+    val accumulator = sorted.context.accumulator(new ImageSaveSummary)(ImageSaveSummaryAccumulator)
+
+    // copy these here to avoid serializing the whole provider
+    val zoom = context.getZoomLevel
+    val order = context.getTileOrder
+    val codec = context.getTileCodec
+
+    // summarize each partition as the output format pulls its tiles, the summary is added once the
+    // partition has been completely written
+    val summarized = sorted.mapPartitionsWithIndex((partition, tiles) => {
+      val summary = new PartitionSaveSummary(partition)
+      var added = false
+
+      new Iterator[(TileIdWritable, RasterWritable)] {
+        override def hasNext:Boolean = {
+          val more = tiles.hasNext
+          if (!more && !added) {
+            accumulator += new ImageSaveSummary().add(summary)
+            added = true
+          }
+          more
+        }
+
+        override def next():(TileIdWritable, RasterWritable) = {
+          val tile = tiles.next()
+          val raster = RasterWritable.toMrGeoRaster(tile._2)
+          summary.add(tile._1.get(), order.toTileId(tile._1.get(), zoom), zoom, raster, nodatas)
+          if (codec == TileCodec.NONE) tile else (tile._1, codec.encode(raster))
+        }
+      }
+    }, preservesPartitioning = true)
+
+    val wrappedForSave = new PairRDDFunctions(summarized)
+    wrappedForSave.saveAsNewAPIHadoopDataset(jobconf)
+
+    val summary = accumulator.value
+    val partitions = summary.partitions()
+    if (partitions.length == sorted.partitions.length) {
+      // not sure if the name is always part-r-xxxxx, but we'll use it for now (same as calculateSplitData).
+      val splits = partitions.map(p =>
+        new FileSplitInfo(p.startId, p.endId, f"part-r-${p.partition}%05d", p.partition))
+      sparkPartitioner.writeSplits(splits, context.getOutput, zoom, jobconf)
+    }
+    else {
+      // we didn't hear from every partition, so fall back to calculating the splits from the data
+      logWarning("Only " + partitions.length + " of " + sorted.partitions.length +
+                 " partitions were summarized, calculating splits from the saved data")
+      sparkPartitioner.writeSplits(sorted, context.getOutput, zoom, jobconf)
+    }
+
+    summary
+  }
+
+  override def finalizeExternalSave(conf:Configuration):Unit = {
+    try {
+      val imagePath:String = provider.getResolvedResourceName(true)
+      val outputWithZoom:Path = new Path(imagePath + "/" + context.getZoomLevel)
+      val split:FileSplit = new FileSplit
+      split.generateSplits(outputWithZoom, conf)
+      split.writeSplits(outputWithZoom)
+    }
+    catch {
+      case e:IOException => {
+        throw new DataProviderException("Error in finalizeExternalSave", e)
+      }
     }
+  }
 
+  override def validateProtectionLevel(protectionLevel:String):Boolean = true
+
+  override protected def getOutputFormat:OutputFormat[WritableComparable[_], Writable] = new HdfsMrsPyramidOutputFormat
+
+  private def setupJob(conf:Configuration):Configuration = {
     val outputWithZoom:String = provider.getResolvedResourceName(false) + "/" + context.getZoomLevel
     val outputPath:Path = new Path(outputWithZoom)
 
-    val jobconf = try {
+    try {
       val fs:FileSystem = HadoopFileUtils.getFileSystem(conf, outputPath)
 
       if (fs.exists(outputPath)) {
@@ -87,10 +189,10 @@ class HdfsMrsPyramidOutputFormatProvider(context:ImageOutputFormatContext) exten
       conf.set("mapred.output.dir", outputPath.toString)
       conf.set("mapreduce.output.fileoutputformat.outputdir", outputPath.toString)
 
-      // compress
+      // compress, unless the tile codec already has
       // The constant seems to be missing from at least CDH 5.6.0 (non-yarn), so we'll use the hard-coded string...
       //conf.setBoolean(FileOutputFormat.COMPRESS, true)
-      conf.setBoolean("mapreduce.output.fileoutputformat.compress", true)
+      conf.setBoolean("mapreduce.output.fileoutputformat.compress", context.getTileCodec == TileCodec.NONE)
 
       // add every tile to the index
       conf.set("io.map.index.interval", "1")
@@ -103,50 +205,41 @@ class HdfsMrsPyramidOutputFormatProvider(context:ImageOutputFormatContext) exten
       case e:IOException =>
         throw new DataProviderException("Error running spark job setup", e)
     }
+  }
 
+  // Repartition the output if the output data provider requires it.  The tiles are keyed (and sorted,
+  // and split) by the key they are stored under, which is only the tile id for row-major pyramids.
+  private def sort(raster:RasterRDD, sparkPartitioner:FileSplitPartitioner):RasterRDD = {
+    implicit val tileIdOrdering = new Ordering[TileIdWritable] {
+      override def compare(x:TileIdWritable, y:TileIdWritable):Int = x.compareTo(y)
+    }
 
-    val sparkPartitioner = getSparkPartitioner
+    val outputWithZoom:String = provider.getResolvedResourceName(false) + "/" + context.getZoomLevel
+
+    val zoom = context.getZoomLevel
+    val order = context.getTileOrder
+    val keyed = if (order == TileOrder.ROW_MAJOR) {
+      raster
+    }
+    else {
+      RasterRDD(raster.map(tile => (new TileIdWritable(order.toKey(tile._1.get(), zoom)), tile._2)))
+    }
 
-    // Repartition the output if the output data provider requires it
-    val sorted = RasterRDD(
+    RasterRDD(
       if (sparkPartitioner.hasFixedPartitions) {
-        raster.sortByKey(numPartitions = sparkPartitioner.calculateNumPartitions(raster, outputWithZoom))
+        keyed.sortByKey(numPartitions = sparkPartitioner.calculateNumPartitions(keyed, outputWithZoom))
       }
       else {
-        raster.repartitionAndSortWithinPartitions(sparkPartitioner)
+        keyed.repartitionAndSortWithinPartitions(sparkPartitioner)
       })
-
-
-    val wrappedForSave = new PairRDDFunctions(sorted)
-    wrappedForSave.saveAsNewAPIHadoopDataset(jobconf)
-
-    sparkPartitioner.writeSplits(sorted, context.getOutput, context.getZoomLevel, jobconf)
   }
 
-  override def finalizeExternalSave(conf:Configuration):Unit = {
-    try {
-      val imagePath:String = provider.getResolvedResourceName(true)
-      val outputWithZoom:Path = new Path(imagePath + "/" + context.getZoomLevel)
-      val split:FileSplit = new FileSplit
-      split.generateSplits(outputWithZoom, conf)
-      split.writeSplits(outputWithZoom)
-    }
-    catch {
-      case e:IOException => {
-        throw new DataProviderException("Error in finalizeExternalSave", e)
-      }
-    }
-  }
-
-  override def validateProtectionLevel(protectionLevel:String):Boolean = true
-
-  override protected def getOutputFormat:OutputFormat[WritableComparable[_], Writable] = new HdfsMrsPyramidOutputFormat
-
   @SuppressFBWarnings(value = Array("DB_DUPLICATE_BRANCHES"),
     justification = "For now, BlockSizePartitioner is default")
   private def getSparkPartitioner:FileSplitPartitioner = {
     partitioner match {
-      case PartitionType.ROW =>
+      // row partitions are only contiguous when the tiles are stored row-major
+      case PartitionType.ROW if context.getTileOrder == TileOrder.ROW_MAJOR =>
         new RowPartitioner(context.getBounds, context.getZoomLevel, context.getTileSize)
       case PartitionType.BLOCKSIZE =>
         new BlockSizePartitioner()
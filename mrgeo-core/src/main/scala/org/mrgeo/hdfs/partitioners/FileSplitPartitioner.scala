@@ -23,6 +23,7 @@ import org.apache.spark.Partitioner
 import org.mrgeo.data.rdd.RasterRDD
 import org.mrgeo.hdfs.image.HdfsMrsImageDataProvider
 import org.mrgeo.hdfs.tile.FileSplit
+import org.mrgeo.hdfs.tile.FileSplit.FileSplitInfo
 import org.mrgeo.utils.SparkUtils
 
 abstract class FileSplitPartitioner() extends Partitioner with Externalizable {
@@ -30,10 +31,13 @@ abstract class FileSplitPartitioner() extends Partitioner with Externalizable {
 
   def calculateNumPartitions(raster:RasterRDD, output:String):Int = 1
 
-  def writeSplits(rdd:RasterRDD, pyramid:String, zoom:Int, conf:Configuration) = {
-    val fileSplits = new FileSplit
+  def writeSplits(rdd:RasterRDD, pyramid:String, zoom:Int, conf:Configuration):Unit = {
+    writeSplits(SparkUtils.calculateSplitData(rdd), pyramid, zoom, conf)
+  }
 
-    val splitinfo = SparkUtils.calculateSplitData(rdd)
+  // write splits that were already gathered (e.g. while the tiles were being saved)
+  def writeSplits(splitinfo:Array[FileSplitInfo], pyramid:String, zoom:Int, conf:Configuration):Unit = {
+    val fileSplits = new FileSplit
     fileSplits.generateSplits(splitinfo)
 
     val dp:HdfsMrsImageDataProvider = new HdfsMrsImageDataProvider(conf, pyramid, null)
@@ -24,13 +24,14 @@ import org.apache.hadoop.mapreduce.Job
 import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat
 import org.apache.spark.rdd.PairRDDFunctions
 import org.apache.spark.storage.StorageLevel
-import org.apache.spark.{AccumulatorParam, SparkConf, SparkContext}
+import org.apache.spark.{AccumulatorParam, SparkConf, SparkContext, TaskContext}
 import org.gdal.gdal.{Dataset, gdal}
 import org.gdal.gdalconst.gdalconstConstants
+import org.mrgeo.core.{MrGeoConstants, MrGeoProperties}
 import org.mrgeo.data
 import org.mrgeo.data.DataProviderFactory.AccessMode
 import org.mrgeo.data.image.MrsImageDataProvider
-import org.mrgeo.data.raster.{MrGeoRaster, RasterWritable}
+import org.mrgeo.data.raster.{MrGeoRaster, RasterWritable, TileCodec}
 import org.mrgeo.data.rdd.RasterRDD
 import org.mrgeo.data.tile.TileIdWritable
 import org.mrgeo.data.{DataProviderFactory, ProtectionLevelUtils, ProviderProperties}
@@ -39,11 +40,10 @@ import org.mrgeo.image.MrsPyramidMetadata
 import org.mrgeo.job.{JobArguments, MrGeoDriver, MrGeoJob}
 import org.mrgeo.mapalgebra.MapAlgebra
 import org.mrgeo.utils._
-import org.mrgeo.utils.tms.{Bounds, TMSUtils}
+import org.mrgeo.utils.tms.{Bounds, TMSUtils, TileBounds}
 
 import scala.collection.JavaConversions._
 import scala.collection.mutable
-import scala.collection.mutable.ListBuffer
 
 class NodataArray extends Externalizable with Logging {
   var nodata:Array[Double] = _
@@ -107,6 +107,9 @@ object NodataAccumulator extends AccumulatorParam[NodataArray] with Logging {
   }
 }
 
+// A tile-aligned part of an image to ingest, see IngestImage.makeWindows()
+case class IngestWindow(image:String, tiles:TileBounds)
+
 object IngestImage extends MrGeoDriver with Externalizable {
 
   private val Inputs = "inputs"
@@ -151,12 +154,13 @@ object IngestImage extends MrGeoDriver with Externalizable {
       firstCategories = checkResult._2
     }
 
-    // force 1 partition per file, this will keep the size of each ingest task as small as possible, so we
-    // won't eat up too much memory
-    val in = context.parallelize(inputs, inputs.length)
+    // 1 partition per window, this will keep the size of each ingest task as small as possible, so we
+    // won't eat up too much memory, and spreads a large image over the cluster
+    val windows = makeWindows(context, inputs, zoom, tilesize)
+    val in = context.parallelize(windows, Math.max(1, windows.length))
     val nodataAccum = context.accumulator(null.asInstanceOf[NodataArray])(NodataAccumulator)
-    val rawtiles = in.flatMap(input => {
-      val (tile, actualnodata) = IngestImage.makeTiles(input, zoom, tilesize, categorical, nodata)
+    val rawtiles = in.flatMap(window => {
+      val (tile, actualnodata) = IngestImage.makeTiles(window, zoom, tilesize, categorical, nodata)
       if (tile.nonEmpty) {
         nodataAccum.add(new NodataArray(actualnodata))
       }
@@ -238,8 +242,8 @@ object IngestImage extends MrGeoDriver with Externalizable {
     )
 
     val nodataAccum = context.accumulator(null.asInstanceOf[NodataArray])(NodataAccumulator)
-    inputs.foreach(input => {
-      val (tile, actualnodata) = IngestImage.makeTiles(input, zoom, tilesize, categorical, nodata)
+    makeWindows(context, inputs, zoom, tilesize).foreach(window => {
+      val (tile, actualnodata) = IngestImage.makeTiles(window, zoom, tilesize, categorical, nodata)
 
       if (tile.nonEmpty) {
         nodataAccum.add(new NodataArray(actualnodata))
@@ -497,21 +501,59 @@ object IngestImage extends MrGeoDriver with Externalizable {
     args
   }
 
-  private def makeTiles(image:String, zoom:Int, tilesize:Int, categorical:Boolean,
-                        nodata:Array[Double]):(TraversableOnce[(TileIdWritable, RasterWritable)], Array[Double]) = {
+  /**
+    * Split each image into tile-aligned windows of (at most) ingest.window.tiles tiles on a side.
+    * Only the image bounds are read here, in a task per image so the driver never has to read
+    * them, each window is then warped and tiled in its own task.
+    */
+  private def makeWindows(context:SparkContext, inputs:Array[String], zoom:Int,
+                          tilesize:Int):Array[IngestWindow] = {
+    val windowTiles = Math.max(1, MrGeoProperties.getInstance()
+        .getProperty(MrGeoConstants.MRGEO_INGEST_WINDOW_TILES, "8").toInt)
+
+    context.parallelize(inputs, Math.max(1, inputs.length)).flatMap(image => {
+      try {
+        val src = GDALUtils.openLocal(image)
+        if (src != null) {
+          val tiles = try {
+            TMSUtils.boundsToTile(GDALUtils.getBounds(src), zoom, tilesize)
+          }
+          finally {
+            GDALUtils.close(src)
+          }
 
-    val result = ListBuffer[(TileIdWritable, RasterWritable)]()
-    var actualNoData:Array[Double] = null
+          for (s <- tiles.s to tiles.n by windowTiles; w <- tiles.w to tiles.e by windowTiles) yield {
+            IngestWindow(image, new TileBounds(w, s, Math.min(w + windowTiles - 1, tiles.e),
+              Math.min(s + windowTiles - 1, tiles.n)))
+          }
+        }
+        else {
+          logError("Could not open " + image)
+          Seq.empty[IngestWindow]
+        }
+      }
+      catch {
+        case ioe:IOException =>
+          // this can happen in "skip preprocessing" mode, the image is skipped
+          logWarning("Could not read " + image, ioe)
+          Seq.empty[IngestWindow]
+      }
+    }).collect()
+  }
+
+  private[ingest] def makeTiles(window:IngestWindow, zoom:Int, tilesize:Int, categorical:Boolean,
+                                nodata:Array[Double]):(Iterator[(TileIdWritable, RasterWritable)], Array[Double]) = {
 
-    //val start = System.currentTimeMillis()
+    val image = window.image
+    val tiles = window.tiles
+    var actualNoData:Array[Double] = null
 
-    // open the image
+    // open the image, copying it locally (once per executor) if it isn't already
     try {
-      var src = GDALUtils.open(image)
+      var src = GDALUtils.openLocal(image)
 
       if (src != null) {
         val datatype = src.GetRasterBand(1).getDataType
-        val datasize = gdal.GetDataTypeSize(datatype) / 8
 
         val bands = src.GetRasterCount()
         actualNoData = Array.ofDim[Double](bands)
@@ -540,9 +582,7 @@ object IngestImage extends MrGeoDriver with Externalizable {
           band.SetNoDataValue(actualNoData(i - 1))
         }
 
-        val imageBounds = GDALUtils.getBounds(src)
-        val tiles = TMSUtils.boundsToTile(imageBounds, zoom, tilesize)
-        val tileBounds = TMSUtils.tileBounds(imageBounds, zoom, tilesize)
+        val tileBounds = TMSUtils.tileToBounds(tiles, zoom, tilesize)
 
         val w = tiles.width() * tilesize
         val h = tiles.height() * tilesize
@@ -555,17 +595,20 @@ object IngestImage extends MrGeoDriver with Externalizable {
           logDebug("  data type:  " + datatype)
           logDebug("  width:  " + src.getRasterXSize)
           logDebug("  height:  " + src.getRasterYSize)
-          logDebug("  bounds:  " + imageBounds)
-          logDebug("  tiles:  " + tiles)
-          logDebug("  tile width:  " + w)
-          logDebug("  tile height:  " + h)
+          logDebug("  window tiles:  " + tiles)
+          logDebug("  window width:  " + w)
+          logDebug("  window height:  " + h)
         }
 
-        val scaled = GDALUtils.createEmptyDiskBasedRaster(src, w.toInt, h.toInt)
+        // the window is small enough to warp in memory, fall back to disk if it isn't
+        var scaled = GDALUtils.createEmptyMemoryRaster(src, w.toInt, h.toInt)
+        if (scaled == null) {
+          scaled = GDALUtils.createEmptyDiskBasedRaster(src, w.toInt, h.toInt)
+        }
 
         if (scaled == null) {
           throw new java.lang.OutOfMemoryError(
-            s"Not enough system memory available to create a memory-based image of size $w x $h with $bands bands for reprojecting $image to WGS84 at zoom $zoom")
+            s"Not enough system memory available to create an image of size $w x $h with $bands bands for reprojecting $image to WGS84 at zoom $zoom")
         }
 
         try {
@@ -606,63 +649,97 @@ object IngestImage extends MrGeoDriver with Externalizable {
             GDALUtils.close(src)
             src = null
           }
+        }
+        catch {
+          case e:Throwable =>
+            GDALUtils.delete(scaled)
+            throw e
+        }
 
-          //    val time = System.currentTimeMillis() - start
-          //    println("scale: " + time)
-
-          //    val band = scaled.GetRasterBand(1)
-          //    val minmax = Array.ofDim[Double](2)
-          //    band.ComputeRasterMinMax(minmax, 0)
-
-          //GDALUtils.saveRaster(scaled, "/data/export/scaled.tif")
-
-          var dty:Int = 0
-          while (dty < tiles.height.toInt) {
-            var dtx:Int = 0
-            while (dtx < tiles.width.toInt) {
+        val skipEmpty = MrGeoProperties.getInstance()
+            .getProperty(MrGeoConstants.MRGEO_SKIP_EMPTY_TILES, "true").toBoolean
 
-              val tx:Long = dtx + tiles.w
-              val ty:Long = tiles.n - dty
+        val result = new WindowTiles(scaled, tiles, zoom, tilesize, actualNoData, skipEmpty)
 
-              val x:Int = dtx * tilesize
-              val y:Int = dty * tilesize
+        // in case the task fails before all the tiles are read
+        val context = TaskContext.get()
+        if (context != null) {
+          context.addTaskCompletionListener((_:TaskContext) => result.close())
+        }
 
-              //val start = System.currentTimeMillis()
-              val raster = MrGeoRaster.fromDataset(scaled, x, y, tilesize, tilesize)
+        return (result, actualNoData)
+      }
+      else {
+        logError("Could not open " + image)
+      }
+    }
+    catch {
+      case ioe:IOException =>
+        // this can happen in "skip preprocessing" mode, the image is skipped
+        logWarning("Could not read " + image, ioe)
+    }
 
-              val writable = RasterWritable.toWritable(raster)
+    (Iterator.empty, actualNoData)
+  }
 
-              // save the tile...
-              //        GDALUtils.saveRaster(RasterWritable.toRaster(writable),
-              //          "/data/export/tiles/tile-" + ty + "-" + tx, tx, ty, zoom, tilesize, GDALUtils.getnodata(scaled))
+  /**
+    * The tiles of a warped window, cut from it as they're read.  The window is deleted after
+    * the last tile.
+    */
+  private class WindowTiles(scaled:Dataset, tiles:TileBounds, zoom:Int, tilesize:Int,
+                            nodatas:Array[Double], skipEmpty:Boolean)
+      extends Iterator[(TileIdWritable, RasterWritable)] {
+    private var dataset = scaled
+    private var dtx:Int = 0
+    private var dty:Int = 0
+    private var count:Int = 0
+    private var nextTile:(TileIdWritable, RasterWritable) = _
+
+    override def hasNext:Boolean = {
+      while (nextTile == null && dataset != null) {
+        if (dty >= tiles.height()) {
+          if (log.isDebugEnabled) {
+            logDebug("Ingested " + count + " tiles from " + tiles)
+          }
+          close()
+        }
+        else {
+          val tx:Long = dtx + tiles.w
+          val ty:Long = tiles.n - dty
 
-              result.append((new TileIdWritable(TMSUtils.tileid(tx, ty, zoom)), writable))
+          val raster = MrGeoRaster.fromDataset(dataset, dtx * tilesize, dty * tilesize, tilesize, tilesize)
 
+          // tiles outside a rotated or irregular scene are all nodata, there's no need to keep them
+          if (!skipEmpty || !raster.isAllNodata(nodatas)) {
+            nextTile = (new TileIdWritable(TMSUtils.tileid(tx, ty, zoom)), TileCodec.compact(raster))
+            count += 1
+          }
 
-              //val time = System.currentTimeMillis() - start
-              //println(tx + ", " + ty + ", " + time)
-              dtx += 1
-            }
+          dtx += 1
+          if (dtx >= tiles.width()) {
+            dtx = 0
             dty += 1
           }
         }
-        finally {
-          GDALUtils.delete(scaled)
-        }
-      }
-      else {
-        logError("Could not open " + image)
       }
+      nextTile != null
     }
-    catch {
-      case ioe:IOException =>
-        ioe.printStackTrace() // no op, this can happen in "skip preprocessing" mode
+
+    override def next():(TileIdWritable, RasterWritable) = {
+      if (!hasNext) {
+        throw new NoSuchElementException
+      }
+      val tile = nextTile
+      nextTile = null
+      tile
     }
 
-    if (log.isDebugEnabled) {
-      logDebug("Ingested " + result.length + " tiles from " + image)
+    def close():Unit = {
+      if (dataset != null) {
+        GDALUtils.delete(dataset)
+        dataset = null
+      }
     }
-    (result.iterator, actualNoData)
   }
 }
 
@@ -689,6 +766,9 @@ class IngestImage extends MrGeoJob with Externalizable {
     classes += classOf[RasterWritable]
 
     classes += classOf[Array[String]]
+    classes += classOf[IngestWindow]
+    classes += classOf[Array[IngestWindow]]
+    classes += classOf[TileBounds]
 
     classes.result()
   }
@@ -17,15 +17,36 @@ package org.mrgeo.job
 
 import com.esotericsoftware.kryo.Kryo
 import org.apache.spark.serializer.KryoRegistrator
+import org.mrgeo.data.raster.{MrGeoRaster, RasterWritable}
 import org.mrgeo.data.tile.TileIdWritable
-import org.mrgeo.job.serializers.{BoundsSerializer, PixelSerializer}
+import org.mrgeo.data.vector.FeatureIdWritable
+import org.mrgeo.geometry.{Geometry, GeometryCollectionImpl, LineStringImpl, LinearRingImpl, PointImpl, PolygonImpl}
+import org.mrgeo.job.serializers._
 import org.mrgeo.utils.tms.{Bounds, Pixel}
 
 class KryoRegistrar extends KryoRegistrator {
   override def registerClasses(kryo:Kryo) {
     //    kryo.setReferences(false)
 
-    kryo.register(classOf[TileIdWritable])
+    kryo.register(classOf[TileIdWritable], new TileIdWritableSerializer)
+    kryo.register(classOf[FeatureIdWritable], new FeatureIdWritableSerializer)
+    kryo.register(classOf[RasterWritable], new RasterWritableSerializer)
+
+    // the raster implementations (one per datatype) aren't public
+    val rasterSerializer = new MrGeoRasterSerializer
+    kryo.addDefaultSerializer(classOf[MrGeoRaster], rasterSerializer)
+    Array("Byte", "Short", "UShort", "Int", "Float", "Double").foreach(t => {
+      kryo.register(Class.forName("org.mrgeo.data.raster.MrGeo" + t + "Raster"), rasterSerializer)
+    })
+
+    val geometrySerializer = new GeometrySerializer
+    kryo.addDefaultSerializer(classOf[Geometry], geometrySerializer)
+    // only the geometries themselves, GeometryFactory.getClasses also has the collections they use
+    Array[Class[_]](classOf[PointImpl], classOf[LineStringImpl], classOf[LinearRingImpl], classOf[PolygonImpl],
+      classOf[GeometryCollectionImpl]).foreach(c => kryo.register(c, geometrySerializer))
+    kryo.register(classOf[Array[Geometry]])
+    kryo.register(classOf[java.util.HashMap[_, _]])
+    kryo.register(classOf[java.util.ArrayList[_]])
 
     kryo.register(classOf[Bounds], new BoundsSerializer)
     kryo.register(classOf[Pixel], new PixelSerializer)
@@ -69,7 +69,15 @@ object MrGeoJob extends Logging {
   }
 
   def registerClasses(classes:Array[Class[_]], conf:SparkConf) = {
-    if (MrGeoProperties.getInstance().getProperty(MrGeoConstants.MRGEO_USE_KRYO, "false").equals("true")) {
+    val props = MrGeoProperties.getInstance()
+
+    // serialized (persisted) RDDs are compressed with spark.io.compression.codec (lz4 by default), like
+    // the shuffle already is
+    if (props.getProperty(MrGeoConstants.MRGEO_RDD_COMPRESS, "false").equals("true")) {
+      conf.set("spark.rdd.compress", "true")
+    }
+
+    if (props.getProperty(MrGeoConstants.MRGEO_USE_KRYO, "true").equals("true")) {
       try {
         val all = mutable.HashSet.empty[String]
         all ++= conf.get("spark.kryo.classesToRegister", "").split(",").filter(!_.isEmpty)
@@ -15,8 +15,15 @@
 
 package org.mrgeo.job.serializers
 
+import java.io.{DataInputStream, DataOutputStream}
+
 import com.esotericsoftware.kryo.io.{Input, Output}
 import com.esotericsoftware.kryo.{Kryo, Serializer}
+import org.mrgeo.data.raster.{MrGeoRaster, RasterWritable}
+import org.mrgeo.data.tile.TileIdWritable
+import org.mrgeo.data.vector.FeatureIdWritable
+import org.mrgeo.geometry.Geometry
+import org.mrgeo.mapreduce.GeometryWritable
 import org.mrgeo.utils.tms.{Bounds, Pixel}
 
 class Serializers {}
@@ -44,3 +51,80 @@ class PixelSerializer extends Serializer[Pixel] {
     new Pixel(input.readLong(), input.readLong())
   }
 }
+
+// ids are never negative, so they are written as variable length longs
+class TileIdWritableSerializer extends Serializer[TileIdWritable] {
+  override def write(kryo:Kryo, output:Output, id:TileIdWritable):Unit = {
+    output.writeLong(id.get(), true)
+  }
+
+  override def read(kryo:Kryo, input:Input, `type`:Class[TileIdWritable]):TileIdWritable = {
+    new TileIdWritable(input.readLong(true))
+  }
+}
+
+class FeatureIdWritableSerializer extends Serializer[FeatureIdWritable] {
+  override def write(kryo:Kryo, output:Output, id:FeatureIdWritable):Unit = {
+    output.writeLong(id.get(), true)
+  }
+
+  override def read(kryo:Kryo, input:Input, `type`:Class[FeatureIdWritable]):FeatureIdWritable = {
+    new FeatureIdWritable(input.readLong(true))
+  }
+}
+
+// The raster bytes are written straight from (and read straight into) the RasterWritable's own
+// array, without any intermediate copies.  A length of 0 is an empty writable.
+class RasterWritableSerializer extends Serializer[RasterWritable] {
+  override def write(kryo:Kryo, output:Output, raster:RasterWritable):Unit = {
+    RasterWritableSerializer.writeBytes(output, raster.getBytes)
+  }
+
+  override def read(kryo:Kryo, input:Input, `type`:Class[RasterWritable]):RasterWritable = {
+    val bytes = RasterWritableSerializer.readBytes(input)
+    if (bytes == null) new RasterWritable() else RasterWritable.fromBytes(bytes)
+  }
+}
+
+object RasterWritableSerializer {
+  private[serializers] def writeBytes(output:Output, bytes:Array[Byte]):Unit = {
+    if (bytes == null) {
+      output.writeInt(0, true)
+    }
+    else {
+      output.writeInt(bytes.length, true)
+      output.writeBytes(bytes)
+    }
+  }
+
+  private[serializers] def readBytes(input:Input):Array[Byte] = {
+    val len = input.readInt(true)
+    if (len == 0) null else input.readBytes(len)
+  }
+}
+
+// A MrGeoRaster's data (header and pixels) is exactly what a RasterWritable holds, so it is written
+// the same way, and the raster is built around the bytes that are read.
+class MrGeoRasterSerializer extends Serializer[MrGeoRaster] {
+  override def write(kryo:Kryo, output:Output, raster:MrGeoRaster):Unit = {
+    RasterWritableSerializer.writeBytes(output, RasterWritable.toWritable(raster).getBytes)
+  }
+
+  override def read(kryo:Kryo, input:Input, `type`:Class[MrGeoRaster]):MrGeoRaster = {
+    RasterWritable.toMrGeoRaster(RasterWritable.fromBytes(RasterWritableSerializer.readBytes(input)))
+  }
+}
+
+// Geometries (and their attributes) are written the same way as a GeometryWritable
+class GeometrySerializer extends Serializer[Geometry] {
+  override def write(kryo:Kryo, output:Output, geometry:Geometry):Unit = {
+    // DataOutputStream doesn't buffer, everything goes straight to the output
+    new GeometryWritable(geometry).write(new DataOutputStream(output))
+  }
+
+  override def read(kryo:Kryo, input:Input, `type`:Class[Geometry]):Geometry = {
+    val writable = new GeometryWritable()
+    writable.readFields(new DataInputStream(input))
+    writable.getGeometry
+  }
+}
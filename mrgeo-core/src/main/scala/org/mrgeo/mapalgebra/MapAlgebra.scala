@@ -16,17 +16,19 @@
 package org.mrgeo.mapalgebra
 
 import java.io._
+import java.util
 import java.util.regex.Pattern
 
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings
 import org.apache.hadoop.conf.Configuration
 import org.apache.spark.{SparkConf, SparkContext}
+import org.mrgeo.core.{MrGeoConstants, MrGeoProperties}
 import org.mrgeo.data
 import org.mrgeo.data.DataProviderFactory.AccessMode
 import org.mrgeo.data.{DataProviderFactory, DataProviderNotFound, ProviderProperties}
 import org.mrgeo.job.{JobArguments, MrGeoDriver, MrGeoJob}
 import org.mrgeo.mapalgebra.parser._
-import org.mrgeo.mapalgebra.raster.{MrsPyramidMapOp, RasterMapOp}
+import org.mrgeo.mapalgebra.raster.{FusedRasterMapOp, MrsPyramidMapOp, PixelMapOp, RasterMapOp}
 import org.mrgeo.mapalgebra.vector.{VectorDataMapOp, VectorMapOp}
 import org.mrgeo.utils.StringUtils
 
@@ -103,6 +105,10 @@ class MapAlgebra() extends MrGeoJob with Externalizable {
   private val filePattern = Pattern.compile("\\s*\\[([^\\]]+)\\]\\s*")
   private val parser = ParserAdapterFactory.createParserAdapter
   private val variables = mutable.Map.empty[ParserVariableNode, Option[ParserNode]]
+  // mapops that are evaluated inside a FusedRasterMapOp, and don't need to be executed themselves
+  private val fusedMapOps = util.Collections.newSetFromMap(new util.IdentityHashMap[MapOp, java.lang.Boolean]())
+  private val fusion =
+    MrGeoProperties.getInstance().getProperty(MrGeoConstants.MRGEO_MAPALGEBRA_FUSION, "true") == "true"
 
   {
     val cn:ParserConstantNode = new ParserConstantNode
@@ -267,6 +273,10 @@ class MapAlgebra() extends MrGeoJob with Externalizable {
     lines.result().foreach(line => {
       val node = parser.parse(line)
       buildMapOps(node)
+      // fuse before the next line is built, so later references to variables pick up the fused mapops
+      if (fusion) {
+        fuse(node)
+      }
       // Verifying that the zoom levels match throughout the map op tree.
       getZoomLevel(node)
       nodes += node
@@ -416,6 +426,48 @@ class MapAlgebra() extends MrGeoJob with Externalizable {
     }
   }
 
+  // Replace each maximal tree of pixel operations with a single FusedRasterMapOp.  Only operations
+  // that are direct arguments of another pixel operation are pulled into the tree, anything
+  // referenced through a variable stays as is, since it may be used (or saved) elsewhere.
+  @SuppressFBWarnings(value = Array("RCN_REDUNDANT_NULLCHECK_OF_NONNULL_VALUE"), justification = "Scala generated code")
+  private def fuse(node:ParserNode):Unit = {
+    node match {
+      case function:ParserFunctionNode if function.getName != "=" =>
+        function.getMapOp match {
+          case pixel:PixelMapOp if pixel.fusable() && !fusedMapOps.contains(pixel) =>
+            val absorbable = util.Collections.newSetFromMap(new util.IdentityHashMap[MapOp, java.lang.Boolean]())
+            collectFusable(function, absorbable)
+
+            val fused = FusedRasterMapOp(pixel, op => absorbable.contains(op))
+            if (fused.fused().nonEmpty) {
+              logInfo("Fusing " + (fused.fused().length + 1) + " operations in " + function.getName +
+                      " into a single pass")
+              fused.fused().foreach(op => fusedMapOps.add(op))
+              function.setMapOp(fused)
+            }
+          case _ =>
+        }
+      case _ =>
+    }
+
+    node.getChildren.foreach(child => {
+      fuse(child)
+    })
+  }
+
+  private def collectFusable(function:ParserFunctionNode, absorbable:util.Set[MapOp]):Unit = {
+    function.getChildren.foreach {
+      case child:ParserFunctionNode =>
+        child.getMapOp match {
+          case pixel:PixelMapOp if pixel.fusable() =>
+            absorbable.add(pixel)
+            collectFusable(child, absorbable)
+          case _ =>
+        }
+      case _ =>
+    }
+  }
+
   private def loadResource(name:String):Option[MapOp] = {
     try {
       val imdp = DataProviderFactory.getMrsImageDataProvider(name, AccessMode.READ, providerproperties)
@@ -539,7 +591,7 @@ class MapAlgebra() extends MrGeoJob with Externalizable {
           case _ =>
             val mapop = function.getMapOp
 
-            if (mapop != null) {
+            if (mapop != null && !fusedMapOps.contains(mapop)) {
               mapop.execute(context)
             }
         }
@@ -0,0 +1,331 @@
+/*
+ * Copyright 2009-2017. DigitalGlobe, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.mrgeo.mapalgebra.raster
+
+import java.awt.image.DataBuffer
+import java.io.IOException
+
+import org.apache.spark.rdd.{CoGroupedRDD, RDD}
+import org.apache.spark.{SparkConf, SparkContext}
+import org.mrgeo.data.raster.{MrGeoRaster, RasterWritable}
+import org.mrgeo.data.rdd.RasterRDD
+import org.mrgeo.data.tile.TileIdWritable
+import org.mrgeo.image.MrsPyramidMetadata
+import org.mrgeo.job.JobArguments
+import org.mrgeo.mapalgebra.raster.PixelMapOp.{ConstantTerm, RasterTerm, TermInfo}
+import org.mrgeo.spark.TileRangePartitioner
+import org.mrgeo.utils.SparkUtils
+import org.mrgeo.utils.tms.Bounds
+
+import scala.collection.mutable
+
+object FusedRasterMapOp {
+
+  /**
+    * Build a fused operation rooted at root.  Any term of a fused operation that is itself a
+    * fusable PixelMapOp, and for which absorb(op) is true, is evaluated inline; all other rasters
+    * become inputs to the fused operation.
+    */
+  def apply(root:PixelMapOp, absorb:PixelMapOp => Boolean):FusedRasterMapOp = {
+    new FusedRasterMapOp(root, absorb)
+  }
+
+  // The driver side representation of the fused tree
+  sealed private abstract class PlanNode
+
+  private case class InputPlan(index:Int) extends PlanNode
+
+  private case class ConstantPlan(value:Double) extends PlanNode
+
+  private case class KernelPlan(op:PixelMapOp, children:Array[PlanNode]) extends PlanNode
+
+  // The executor side evaluators, one per plan node
+  private[raster] abstract class FusedNode extends Serializable {
+    def value(tiles:Array[MrGeoRaster], x:Int, y:Int, b:Int):Double
+
+    // would the unfused operation have produced this tile?
+    def present(tiles:Array[MrGeoRaster], tilesize:Int, bands:Int):Boolean
+  }
+
+  // a tile missing from an input is treated as all nodata
+  private[raster] class InputNode(index:Int, nodatas:Array[Double]) extends FusedNode {
+    override def value(tiles:Array[MrGeoRaster], x:Int, y:Int, b:Int):Double = {
+      val tile = tiles(index)
+      if (tile == null) {
+        nodatas(b)
+      }
+      else {
+        tile.getPixelDouble(x, y, b)
+      }
+    }
+
+    override def present(tiles:Array[MrGeoRaster], tilesize:Int, bands:Int):Boolean = tiles(index) != null
+  }
+
+  private[raster] class ConstantNode(constant:Double) extends FusedNode {
+    override def value(tiles:Array[MrGeoRaster], x:Int, y:Int, b:Int):Double = constant
+
+    override def present(tiles:Array[MrGeoRaster], tilesize:Int, bands:Int):Boolean = true
+  }
+
+  // Intermediate results are cast to the kernel's datatype, so parents see exactly the value the
+  // unfused operation would have written into its output tile
+  private[raster] class KernelNode(val kernel:PixelKernel, children:Array[FusedNode], store:Boolean)
+      extends FusedNode {
+    private val values = Array.ofDim[Double](children.length)
+    private val datatype = if (store) kernel.datatype else DataBuffer.TYPE_DOUBLE
+
+    // the values of the last tile hasData() evaluated, so the values of a tile that is tested for
+    // data aren't evaluated a second time
+    @transient private var evaluatedTiles:Array[MrGeoRaster] = _
+    @transient private var evaluated:Array[Double] = _
+    @transient private var evaluatedSize:Int = 0
+
+    override def value(tiles:Array[MrGeoRaster], x:Int, y:Int, b:Int):Double = {
+      if (tiles eq evaluatedTiles) {
+        evaluated((b * evaluatedSize + y) * evaluatedSize + x)
+      }
+      else {
+        evaluate(tiles, x, y, b)
+      }
+    }
+
+    // operations that skip empty tiles only produce tiles with data in them, the rest produce a
+    // tile when all their inputs have one
+    override def present(tiles:Array[MrGeoRaster], tilesize:Int, bands:Int):Boolean = {
+      if (kernel.skipEmptyTiles) {
+        hasData(tiles, tilesize, bands)
+      }
+      else {
+        var i:Int = 0
+        while (i < children.length) {
+          if (!children(i).present(tiles, tilesize, bands)) {
+            return false
+          }
+          i += 1
+        }
+        true
+      }
+    }
+
+    private def evaluate(tiles:Array[MrGeoRaster], x:Int, y:Int, b:Int):Double = {
+      var i:Int = 0
+      while (i < children.length) {
+        values(i) = children(i).value(tiles, x, y, b)
+        i += 1
+      }
+
+      PixelKernel.cast(kernel.evaluate(values, b), datatype)
+    }
+
+    // evaluates the whole tile, keeping the values for value()
+    private def hasData(tiles:Array[MrGeoRaster], tilesize:Int, bands:Int):Boolean = {
+      val size = tilesize * tilesize * bands
+      if (evaluated == null || evaluated.length != size) {
+        evaluated = Array.ofDim[Double](size)
+      }
+      evaluatedTiles = null
+
+      var found = false
+      var ndx:Int = 0
+      var b:Int = 0
+      while (b < bands) {
+        val nodata = kernel.nodatas(b)
+        var y:Int = 0
+        while (y < tilesize) {
+          var x:Int = 0
+          while (x < tilesize) {
+            val v = evaluate(tiles, x, y, b)
+            evaluated(ndx) = v
+            if (!found && RasterMapOp.isNotNodata(v, nodata)) {
+              found = true
+            }
+            ndx += 1
+            x += 1
+          }
+          y += 1
+        }
+        b += 1
+      }
+
+      evaluatedTiles = tiles
+      evaluatedSize = tilesize
+      found
+    }
+  }
+
+}
+
+/**
+  * Evaluates a tree of PixelMapOps in a single pass.  Each input tile is read once, the expression
+  * is evaluated pixel by pixel, and a single output tile is written, instead of each operation in
+  * the tree running its own map, allocating its own tiles and calculating its own metadata.
+  */
+class FusedRasterMapOp private[raster](root:PixelMapOp, absorb:PixelMapOp => Boolean) extends RasterMapOp {
+
+  import FusedRasterMapOp._
+
+  private val inputs = mutable.ArrayBuffer.empty[RasterMapOp]
+  private val absorbed = mutable.ArrayBuffer.empty[PixelMapOp]
+  private val plan = build(root)
+  private var rasterRDD:Option[RasterRDD] = None
+
+  // the operations evaluated inline by this mapop, not including the root
+  def fused():Seq[PixelMapOp] = absorbed
+
+  // the rasters read by this mapop
+  def fusedInputs():Seq[RasterMapOp] = inputs
+
+  override def rdd():Option[RasterRDD] = rasterRDD
+
+  override def getZoomLevel():Int = root.getZoomLevel()
+
+  override def setup(job:JobArguments, conf:SparkConf):Boolean = true
+
+  override def teardown(job:JobArguments, conf:SparkConf):Boolean = true
+
+  override def execute(context:SparkContext):Boolean = {
+    val rdds = inputs.map(input =>
+      input.rdd() getOrElse (throw new IOException("Can't load RDD! Ouch! " + input.getClass.getName))).toArray
+    val metas = inputs.map(input =>
+      input.metadata() getOrElse (throw new IOException("Can't load metadata! Ouch! " + input.getClass.getName)))
+        .toArray
+
+    val evaluator = compile(plan, metas, store = false) match {
+      case k:KernelNode => k
+      case _ => throw new IOException("Fused operation must have an operation at its root")
+    }
+
+    // copy these here to avoid serializing the whole mapop
+    val datatype = evaluator.kernel.datatype
+    val nodatas = evaluator.kernel.nodatas
+    val skipEmpty = evaluator.kernel.skipEmptyTiles
+    val tilesize = metas.head.getTilesize
+    val bands = metas.head.getBands
+
+    val grouped:RDD[(TileIdWritable, Array[MrGeoRaster])] = if (rdds.length == 1) {
+      rdds.head.map(tile => (tile._1, Array(RasterWritable.toMrGeoRaster(tile._2))))
+    }
+    else {
+      // cogroup needs a partitioner, use the inputs' own if they have one (no shuffle)
+      new CoGroupedRDD[TileIdWritable](rdds, TileRangePartitioner.cogroupPartitioner(rdds)).map(tile => {
+        (tile._1, tile._2.map(group => {
+          if (group.nonEmpty) {
+            RasterWritable.toMrGeoRaster(group.head.asInstanceOf[RasterWritable])
+          }
+          else {
+            null
+          }
+        }))
+      })
+    }
+
+    rasterRDD = Some(RasterRDD(grouped.flatMap(tile => {
+      val tiles = tile._2
+
+      // the same tiles the unfused operations would have produced, don't bother calculating the
+      // ones they wouldn't have
+      if (!skipEmpty && !evaluator.present(tiles, tilesize, bands)) {
+        Array.empty[(TileIdWritable, RasterWritable)].iterator
+      }
+      else {
+        val output = MrGeoRaster.createEmptyRaster(tilesize, tilesize, bands, datatype)
+
+        var hasdata = false
+        var b:Int = 0
+        while (b < bands) {
+          var y:Int = 0
+          while (y < tilesize) {
+            var x:Int = 0
+            while (x < tilesize) {
+              val v = evaluator.value(tiles, x, y, b)
+              output.setPixel(x, y, b, v)
+              if (!hasdata && RasterMapOp.isNotNodata(v, nodatas(b))) {
+                hasdata = true
+              }
+              x += 1
+            }
+            y += 1
+          }
+          b += 1
+        }
+
+        if (hasdata || !skipEmpty) {
+          Array((tile._1, RasterWritable.toWritable(output))).iterator
+        }
+        else {
+          Array.empty[(TileIdWritable, RasterWritable)].iterator
+        }
+      }
+    })))
+
+    metadata(SparkUtils.calculateMetadata(rasterRDD.get, metas.head.getMaxZoomLevel, nodatas,
+      bounds = Bounds.combine(metas.map(_.getBounds):_*), calcStats = false))
+
+    true
+  }
+
+  private def build(op:PixelMapOp):PlanNode = {
+    KernelPlan(op, op.pixelTerms().map {
+      case RasterTerm(pixel:PixelMapOp) if pixel.fusable() && absorb(pixel) =>
+        absorbed += pixel
+        build(pixel)
+      case RasterTerm(raster) =>
+        InputPlan(inputIndex(raster))
+      case ConstantTerm(value) =>
+        ConstantPlan(value)
+    })
+  }
+
+  // the same raster used more than once is only read once
+  private def inputIndex(raster:RasterMapOp):Int = {
+    val ndx = inputs.indexWhere(_ eq raster)
+    if (ndx >= 0) {
+      ndx
+    }
+    else {
+      inputs += raster
+      inputs.length - 1
+    }
+  }
+
+  private def compile(node:PlanNode, metas:Array[MrsPyramidMetadata], store:Boolean):FusedNode = {
+    node match {
+      case InputPlan(index) =>
+        new InputNode(index, metas(index).getDefaultValues)
+      case ConstantPlan(value) =>
+        new ConstantNode(value)
+      case KernelPlan(op, children) =>
+        val nodes = children.map(child => compile(child, metas, store = true))
+        val infos = children.indices.map(i => termInfo(children(i), nodes(i), metas)).toArray
+        new KernelNode(op.pixelKernel(infos), nodes, store)
+    }
+  }
+
+  private def termInfo(node:PlanNode, compiled:FusedNode, metas:Array[MrsPyramidMetadata]):TermInfo = {
+    node match {
+      case InputPlan(index) =>
+        TermInfo(metas(index).getTileType, metas(index).getDefaultValues)
+      case ConstantPlan(_) =>
+        TermInfo.constant(metas.head.getBands)
+      case KernelPlan(_, _) =>
+        compiled match {
+          case k:KernelNode => TermInfo(k.kernel.datatype, k.kernel.nodatas)
+          case _ => throw new IOException("Fused operation was not compiled correctly")
+        }
+    }
+  }
+}
@@ -19,6 +19,7 @@ import java.io.IOException
 
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings
 import org.apache.spark.{SparkConf, SparkContext}
+import org.mrgeo.core.{MrGeoConstants, MrGeoProperties}
 import org.mrgeo.data.image.MrsImageDataProvider
 import org.mrgeo.data.rdd.RasterRDD
 import org.mrgeo.image.MrsPyramidMetadata
@@ -124,6 +125,13 @@ class MrsPyramidMapOp private[raster](dataprovider:MrsImageDataProvider)
     }
   }
 
+  // load with the pyramid's split plan as the partitioner, so inputs saved with the same splits can
+  // be combined without a shuffle
+  private def loadRDD(zoom:Int):RasterRDD = {
+    val copartition = MrGeoProperties.getInstance().getProperty(MrGeoConstants.MRGEO_COPARTITION, "true")
+    SparkUtils.loadMrsPyramid(dataprovider, zoom, getBounds.orNull, context(), copartition.toBoolean)
+  }
+
   private def load(zoom:Int = -1): Unit = {
 
     if (context == null) {
@@ -135,16 +143,10 @@ class MrsPyramidMapOp private[raster](dataprovider:MrsImageDataProvider)
     // If we haven't loaded anything yet
     if (rasterRDD.isEmpty || zoomForRDD.isEmpty || maxZoomForRDD.isEmpty) {
       val rdd = if (zoom <= 0) {
-        getBounds match {
-          case Some(b) => SparkUtils.loadMrsPyramid(dataprovider, meta.getMaxZoomLevel, b, context())
-          case None => SparkUtils.loadMrsPyramid(dataprovider, meta.getMaxZoomLevel, context())
-        }
+        loadRDD(meta.getMaxZoomLevel)
       }
       else {
-        getBounds match {
-          case Some(b) => SparkUtils.loadMrsPyramid(dataprovider, zoom, b, context())
-          case None => SparkUtils.loadMrsPyramid(dataprovider, zoom, context())
-        }
+        loadRDD(zoom)
       }
 
       rasterRDD = Some(rdd)
@@ -158,21 +160,12 @@ class MrsPyramidMapOp private[raster](dataprovider:MrsImageDataProvider)
     }
     // if we sent in a zoom and it is different than the current loaded one
     else if (zoom > 0 && zoom != zoomForRDD.get) {
-      rasterRDD = Some(
-        getBounds match {
-          case Some(b) => SparkUtils.loadMrsPyramid(dataprovider, zoom, b, context())
-          case None => SparkUtils.loadMrsPyramid(dataprovider, zoom, context())
-        }
-      )
+      rasterRDD = Some(loadRDD(zoom))
       zoomForRDD = Some(zoom)
     }
     // if we didn't pass a zoom and it is not max zoom
     else if (zoomForRDD.get != maxZoomForRDD.get) {
-      rasterRDD = Some(
-        getBounds match {
-          case Some(b) => SparkUtils.loadMrsPyramid(dataprovider, maxZoomForRDD.get, b, context())
-          case None => SparkUtils.loadMrsPyramid(dataprovider, maxZoomForRDD.get, context())
-        })
+      rasterRDD = Some(loadRDD(maxZoomForRDD.get))
       zoomForRDD = Some(maxZoomForRDD.get)
     }
   }
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2009-2017. DigitalGlobe, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.mrgeo.mapalgebra.raster
+
+import java.awt.image.DataBuffer
+
+object PixelMapOp {
+
+  // A single argument to a pixel operation, either a raster or a constant
+  sealed abstract class Term
+
+  case class RasterTerm(raster:RasterMapOp) extends Term
+
+  case class ConstantTerm(value:Double) extends Term
+
+  // The resolved output type and nodata values of a term.  Constants have an undefined datatype
+  case class TermInfo(datatype:Int, nodatas:Array[Double]) {
+    def isConstant:Boolean = datatype == DataBuffer.TYPE_UNDEFINED
+  }
+
+  object TermInfo {
+    def constant(bands:Int):TermInfo = {
+      TermInfo(DataBuffer.TYPE_UNDEFINED, Array.fill[Double](bands)(Double.NaN))
+    }
+  }
+
+}
+
+/**
+  * A RasterMapOp where each output pixel (x, y, band) only depends on the same pixel of its inputs.
+  *
+  * MapAlgebra looks for trees of these operations and replaces them with a single FusedRasterMapOp,
+  * which reads each input tile once and evaluates the whole expression in one pass.  To take part,
+  * an operation describes its arguments (pixelTerms) and provides a kernel that computes a single
+  * output pixel from the values of those arguments.
+  */
+trait PixelMapOp extends RasterMapOp {
+
+  // the arguments of the operation, in the order the kernel expects their values
+  def pixelTerms():Array[PixelMapOp.Term]
+
+  // build the per-pixel kernel, once the datatypes and nodata values of the terms are known
+  def pixelKernel(terms:Array[PixelMapOp.TermInfo]):PixelKernel
+
+  // operations that need more than the pixel itself (e.g. tiles missing from the input) can opt out
+  def fusable():Boolean = true
+}
+
+object PixelKernel {
+
+  /**
+    * The value as it would be read back after writing it into a raster of the datatype
+    */
+  def cast(value:Double, datatype:Int):Double = {
+    datatype match {
+      case DataBuffer.TYPE_BYTE => (value.toByte & 0xff).toDouble
+      case DataBuffer.TYPE_SHORT => value.toShort.toDouble
+      case DataBuffer.TYPE_USHORT => (value.toShort & 0xffff).toDouble
+      case DataBuffer.TYPE_INT => value.toInt.toDouble
+      case DataBuffer.TYPE_FLOAT => value.toFloat.toDouble
+      case _ => value
+    }
+  }
+}
+
+/**
+  * Computes a single output pixel of a PixelMapOp.  The kernel is serialized with the fused
+  * evaluator, so it should only hold what it needs to calculate the pixel.
+  *
+  * @param datatype the output datatype
+  * @param nodatas the output nodata value for each band
+  * @param skipEmptyTiles true if tiles that are entirely nodata should not be emitted
+  */
+abstract class PixelKernel(val datatype:Int, val nodatas:Array[Double], val skipEmptyTiles:Boolean = false)
+    extends Serializable {
+
+  // values holds the value of each term for this pixel and band, in pixelTerms() order
+  def evaluate(values:Array[Double], band:Int):Double
+}
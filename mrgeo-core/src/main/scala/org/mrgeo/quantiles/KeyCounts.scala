@@ -0,0 +1,107 @@
+/*
+ * Copyright 2009-2017. DigitalGlobe, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+
+package org.mrgeo.quantiles
+
+import java.util
+
+/**
+  * Counts of (non-negative) long keys, in an open addressing hash table of primitive arrays.  The
+  * histograms of the exact quantile passes are sparse, most of the buckets after the first pass are
+  * empty, so they only take space for the keys that were actually seen.
+  */
+class KeyCounts(initialCapacity:Int = 64) extends Serializable {
+  // the table is a power of 2, and kept at most half full.  A count of 0 is an empty slot.
+  private var keys = new Array[Long](Integer.highestOneBit(Math.max(initialCapacity, 2) * 2 - 1))
+  private var counts = new Array[Long](keys.length)
+  private var used = 0
+
+  def size:Int = used
+
+  def add(key:Long, count:Long = 1):Unit = {
+    if ((used + 1) * 2 > keys.length) {
+      grow()
+    }
+
+    val slot = find(key)
+    if (counts(slot) == 0) {
+      keys(slot) = key
+      used += 1
+    }
+    counts(slot) += count
+  }
+
+  def get(key:Long):Long = counts(find(key))
+
+  def merge(other:KeyCounts):KeyCounts = {
+    var i = 0
+    while (i < other.keys.length) {
+      if (other.counts(i) != 0) {
+        add(other.keys(i), other.counts(i))
+      }
+      i += 1
+    }
+    this
+  }
+
+  /**
+    * The keys in order, and their counts
+    */
+  def sorted():(Array[Long], Array[Long]) = {
+    val sortedKeys = new Array[Long](used)
+    var n = 0
+    var i = 0
+    while (i < keys.length) {
+      if (counts(i) != 0) {
+        sortedKeys(n) = keys(i)
+        n += 1
+      }
+      i += 1
+    }
+    util.Arrays.sort(sortedKeys)
+
+    (sortedKeys, sortedKeys.map(get))
+  }
+
+  // the slot holding the key, or the empty slot it would go in
+  private def find(key:Long):Int = {
+    val mask = keys.length - 1
+    val h = key * 0x9E3779B97F4A7C15L
+    var slot = (h ^ (h >>> 32)).toInt & mask
+    while (counts(slot) != 0 && keys(slot) != key) {
+      slot = (slot + 1) & mask
+    }
+    slot
+  }
+
+  private def grow():Unit = {
+    val oldKeys = keys
+    val oldCounts = counts
+
+    keys = new Array[Long](oldKeys.length * 2)
+    counts = new Array[Long](oldCounts.length * 2)
+
+    var i = 0
+    while (i < oldKeys.length) {
+      if (oldCounts(i) != 0) {
+        val slot = find(oldKeys(i))
+        keys(slot) = oldKeys(i)
+        counts(slot) = oldCounts(i)
+      }
+      i += 1
+    }
+  }
+}
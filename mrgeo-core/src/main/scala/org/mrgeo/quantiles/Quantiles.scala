@@ -17,24 +17,23 @@ package org.mrgeo.quantiles
 
 import java.awt.image.DataBuffer
 import java.io.{Externalizable, ObjectInput, ObjectOutput}
+import java.util
 import java.util.Random
 
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings
 import org.apache.hadoop.conf.Configuration
-import org.apache.spark.rdd.RDD
-import org.apache.spark.storage.StorageLevel
 import org.apache.spark.{SparkConf, SparkContext}
 import org.mrgeo.data
 import org.mrgeo.data.ProviderProperties
 import org.mrgeo.data.raster.{MrGeoRaster, RasterWritable}
 import org.mrgeo.data.rdd.RasterRDD
+import org.mrgeo.data.tile.TileIdWritable
 import org.mrgeo.image.MrsPyramidMetadata
 import org.mrgeo.job.{JobArguments, MrGeoDriver, MrGeoJob}
 import org.mrgeo.mapalgebra.raster.RasterMapOp
 import org.mrgeo.utils.SparkUtils
 
 import scala.collection.mutable
-import scala.collection.mutable.{ArrayBuffer, ListBuffer}
 
 @SuppressFBWarnings(value = Array("SE_NO_SUITABLE_CONSTRUCTOR_FOR_EXTERNALIZATION"),
   justification = "object has no constructor, empty Externalizable prevents object serialization")
@@ -45,6 +44,7 @@ object Quantiles extends MrGeoDriver with Externalizable {
   final private val Input = "input"
   final private val NumQuantiles = "num.quantiles"
   final private val Fraction = "fraction"
+  final private val Approximate = "approximate"
   final private val ProviderProperties = "provider.properties"
 
   def compute(input:String, numQuantiles:Int,
@@ -69,330 +69,253 @@ object Quantiles extends MrGeoDriver with Externalizable {
     true
   }
 
-  def getDoublePixelValues(raster: MrGeoRaster, band: Int, nodata: Double,
-                           fraction: Option[Float]): ArrayBuffer[Double] = {
-    var x = 0
-    var y = 0
-
-    val width = raster.width()
-    val height = raster.height()
+  def compute(input:String, numQuantiles:Int, fraction:Float, approximate:Boolean,
+              conf:Configuration, providerProperties:ProviderProperties):Boolean = {
+    val name = "Quantiles"
 
-    val data = new ArrayBuffer[Double](width * height)
+    val args = setupArguments(input, numQuantiles, Some(fraction), providerProperties)
+    args += Approximate -> approximate.toString
 
-    var cnt = 0
-    while (y < height) {
-      x = 0
-      while (x < width) {
-        val pixelValue = raster.getPixelDouble(x, y, band)
-        if (!RasterMapOp.isNodata(pixelValue, nodata)) {
-          data += pixelValue
-          cnt += 1
-        }
+    run(name, classOf[Quantiles].getName, args.toMap, conf)
 
-        x += 1
-      }
-      y += 1
-    }
-    // If a fraction is specified, then randomly sample the data without replacement
-    if (fraction.isDefined && fraction.get < 1.0f) {
-      val n = data.length
-      val m = math.floor(fraction.get * n).toInt
-      if (m < cnt) {
-        var j: Int = 0
-        val r = new Random()
-        while (j < m) {
-          val k = r.nextInt(n - j) + j
-          val keep = data(j)
-          data(j) = data(k)
-          data(k) = keep
-          j += 1
-        }
-        data.reduceToSize(m)
-      }
-      else {
-        // There aren't enough non-nodata pixels for the requested sample, so take what we get.
-        data.reduceToSize(cnt)
-      }
-    }
-    else {
-      // Use all of the non-nodata pixel values
-      data.reduceToSize(cnt)
-    }
-    data
+    true
   }
 
-  def getFloatPixelValues(raster: MrGeoRaster, band: Int, nodata: Double, fraction: Option[Float]): ArrayBuffer[Float] = {
-    var x = 0
-    var y = 0
-
-    val width = raster.width()
-    val height = raster.height()
-
-    val data = new ArrayBuffer[Float](width * height)
+  /**
+    * The quantiles of each band, null for a band without enough values.  Neither mode sorts
+    * the pixels, each partition aggregates into primitive arrays that are then merged.
+    *
+    * The exact quantiles are found with histograms.  Each value is mapped to an unsigned key with
+    * the same order (the value itself for integers, the flipped bits for floating point), the first
+    * pass counts the keys in buckets of their high 16 bits, and each pass after that only looks at the
+    * few buckets holding a quantile's rank, counting the next 16 bits.  Bytes and shorts take one
+    * pass, ints and floats two, doubles four.  The counts are sparse, only the buckets that have keys
+    * take any space, so refining many quantiles at once doesn't need 2^16 counts for each of them.
+    *
+    * The approximate quantiles take one pass, merging a QuantileSketch of each partition.
+    */
+  def compute(rdd:RasterRDD, numberOfQuantiles:Int, fraction:Option[Float], meta:MrsPyramidMetadata,
+              approximate:Boolean = false):List[Array[Double]] = {
+    val bands = meta.getBands
+    val datatype = meta.getTileType
+    val nodatas = meta.getDefaultValues
+
+    // The rank (in the sorted values) of each quantile
+    def ranks(count:Long) = {
+      Array.tabulate[Long](numberOfQuantiles - 1)(i => {
+        val qFraction = 1.0f / numberOfQuantiles.toFloat * (i + 1).toFloat
+        Math.min((qFraction * count).ceil.toLong, count - 1)
+      })
+    }
 
-    var cnt = 0
-    while (y < height) {
-      x = 0
-      while (x < width) {
-        val pixelValue = raster.getPixelFloat(x, y, band)
-        if (!RasterMapOp.isNodata(pixelValue, nodata)) {
-          data += pixelValue
-          cnt += 1
+    val quantiles = if (approximate) {
+      val sketches = rdd.treeAggregate(Array.fill(bands)(new QuantileSketch()))((sketches, tile) => {
+        foreachKey(tile, datatype, nodatas, fraction)((b, key) => sketches(b).update(value(key, datatype)))
+        sketches
+      }, (s1, s2) => {
+        var b = 0
+        while (b < bands) {
+          s1(b).merge(s2(b))
+          b += 1
         }
+        s1
+      })
 
-        x += 1
-      }
-      y += 1
-    }
-    // If a fraction is specified, then randomly sample the data without replacement
-    if (fraction.isDefined && fraction.get < 1.0f) {
-      val n = data.length
-      val m = math.floor(fraction.get * n).toInt
-      if (m < cnt) {
-        var j: Int = 0
-        val r = new Random()
-        while (j < m) {
-          val k = r.nextInt(n - j) + j
-          val keep = data(j)
-          data(j) = data(k)
-          data(k) = keep
-          j += 1
+      sketches.map(sketch => {
+        if (sketch.count > 0 && sketch.count >= numberOfQuantiles - 1) {
+          ranks(sketch.count).map(rank => sketch.quantile(rank))
         }
-        data.reduceToSize(m)
-      }
-      else {
-        // There aren't enough non-nodata pixels for the requested sample, so take what we get.
-        data.reduceToSize(cnt)
-      }
+        else {
+          null
+        }
+      })
     }
     else {
-      // Use all of the non-nodata pixel values
-      data.reduceToSize(cnt)
-    }
-    data
-  }
-
-  def getIntPixelValues(raster: MrGeoRaster, band: Int, nodata: Double,
-                        fraction: Option[Float]): ArrayBuffer[Int] = {
-    var x = 0
-    var y = 0
-
-    val width = raster.width()
-    val height = raster.height()
-
-    val data = new ArrayBuffer[Int](width * height)
-
-    var cnt = 0
-    while (y < height) {
-      x = 0
-      while (x < width) {
-        val pixelValue = raster.getPixelInt(x, y, band)
-        if (!RasterMapOp.isNodata(pixelValue, nodata)) {
-          data += pixelValue
-          cnt += 1
+      val bits = keyBits(datatype)
+      val digit = Math.min(16, bits)
+      val buckets = 1 << digit
+
+      // The high bits (found so far) of each quantile's key, and its rank among the keys with those bits
+      val prefixes = Array.fill[Array[Long]](bands)(new Array[Long](numberOfQuantiles - 1))
+      val remaining = new Array[Array[Long]](bands)
+      val counts = new Array[Long](bands)
+
+      var shift = bits - digit
+      while (shift >= 0) {
+        val distinct = prefixes.map(_.distinct.sorted)
+        val histograms = histogram(rdd, datatype, nodatas, fraction, distinct, shift, digit)
+
+        var b = 0
+        while (b < bands) {
+          val (keys, keyCounts) = histograms(b).sorted()
+          if (remaining(b) == null) {
+            counts(b) = keyCounts.sum
+            remaining(b) = ranks(counts(b))
+          }
+
+          var q = 0
+          while (q < prefixes(b).length && counts(b) > 0) {
+            val base = util.Arrays.binarySearch(distinct(b), prefixes(b)(q)).toLong * buckets
+
+            // walk the (non-empty) buckets of the prefix, starting at the first one
+            var ndx = util.Arrays.binarySearch(keys, base)
+            if (ndx < 0) {
+              ndx = -ndx - 1
+            }
+            var rank = remaining(b)(q)
+            while (rank >= keyCounts(ndx)) {
+              rank -= keyCounts(ndx)
+              ndx += 1
+            }
+            prefixes(b)(q) = (prefixes(b)(q) << digit) | (keys(ndx) - base)
+            remaining(b)(q) = rank
+            q += 1
+          }
+          b += 1
         }
-
-        x += 1
+        shift -= digit
       }
-      y += 1
-    }
-    // If a fraction is specified, then randomly sample the data without replacement
-    if (fraction.isDefined && fraction.get < 1.0f) {
-      val n = data.length
-      val m = math.floor(fraction.get * n).toInt
-      if (m < cnt) {
-        var j: Int = 0
-        val r = new Random()
-        while (j < m) {
-          val k = r.nextInt(n - j) + j
-          val keep = data(j)
-          data(j) = data(k)
-          data(k) = keep
-          j += 1
+
+      Array.tabulate[Array[Double]](bands)(b => {
+        if (counts(b) > 0 && counts(b) >= numberOfQuantiles - 1) {
+          prefixes(b).map(key => value(key, datatype))
         }
-        data.reduceToSize(m)
+        else {
+          null
+        }
+      })
+    }
+
+    // floats were reported as their (shortest) decimal string
+    quantiles.map(q => {
+      if (q != null && datatype == DataBuffer.TYPE_FLOAT) {
+        q.map(_.toFloat.toString.toDouble)
       }
       else {
-        // There aren't enough non-nodata pixels for the requested sample, so take what we get.
-        data.reduceToSize(cnt)
+        q
       }
-    }
-    else {
-      // Use all of the non-nodata pixel values
-      data.reduceToSize(cnt)
-    }
-    data
+    }).toList
   }
 
-  def getShortPixelValues(raster: MrGeoRaster, band: Int, nodata: Double,
-                          fraction: Option[Float]): ArrayBuffer[Short] = {
-    var x = 0
-    var y = 0
-
-    val width = raster.width()
-    val height = raster.height()
-
-    val data = new ArrayBuffer[Short](width * height)
+  // The number of bits in the key of each type
+  private[quantiles] def keyBits(datatype:Int):Int = {
+    datatype match {
+      case DataBuffer.TYPE_BYTE => 8
+      case DataBuffer.TYPE_SHORT | DataBuffer.TYPE_USHORT => 16
+      case DataBuffer.TYPE_INT | DataBuffer.TYPE_FLOAT => 32
+      case _ => 64
+    }
+  }
 
-    var cnt = 0
-    while (y < height) {
-      x = 0
-      while (x < width) {
-        val pixelValue = raster.getPixelShort(x, y, band)
-        if (!RasterMapOp.isNodata(pixelValue, nodata)) {
-          data += pixelValue
-          cnt += 1
+  // An unsigned key with the same order as the pixel value, or -1 for nodata (and NaN)
+  private[quantiles] def key(raster:MrGeoRaster, x:Int, y:Int, band:Int, datatype:Int, nodata:Double):Long = {
+    datatype match {
+      case DataBuffer.TYPE_BYTE | DataBuffer.TYPE_SHORT | DataBuffer.TYPE_USHORT | DataBuffer.TYPE_INT =>
+        val v = if (datatype == DataBuffer.TYPE_USHORT) {
+          raster.getPixelInt(x, y, band) & 0xffff
         }
-
-        x += 1
-      }
-      y += 1
-    }
-    // If a fraction is specified, then randomly sample the data without replacement
-    if (fraction.isDefined && fraction.get < 1.0f) {
-      val n = data.length
-      val m = math.floor(fraction.get * n).toInt
-      if (m < cnt) {
-        var j: Int = 0
-        val r = new Random()
-        while (j < m) {
-          val k = r.nextInt(n - j) + j
-          val keep = data(j)
-          data(j) = data(k)
-          data(k) = keep
-          j += 1
+        else {
+          raster.getPixelInt(x, y, band)
+        }
+        if (RasterMapOp.isNodata(v, nodata)) {
+          -1
+        }
+        else if (datatype == DataBuffer.TYPE_SHORT) {
+          v + 0x8000L
+        }
+        else if (datatype == DataBuffer.TYPE_INT) {
+          v + 0x80000000L
+        }
+        else {
+          v
+        }
+      case DataBuffer.TYPE_FLOAT =>
+        val v = raster.getPixelFloat(x, y, band)
+        if (v.isNaN || RasterMapOp.isNodata(v, nodata)) {
+          -1
+        }
+        else {
+          val bits = java.lang.Float.floatToIntBits(v)
+          (if (bits < 0) ~bits else bits | 0x80000000) & 0xffffffffL
+        }
+      case _ =>
+        val v = raster.getPixelDouble(x, y, band)
+        if (v.isNaN || RasterMapOp.isNodata(v, nodata)) {
+          -1
+        }
+        else {
+          val bits = java.lang.Double.doubleToLongBits(v)
+          if (bits < 0) ~bits else bits ^ Long.MinValue
         }
-        data.reduceToSize(m)
-      }
-      else {
-        // There aren't enough non-nodata pixels for the requested sample, so take what we get.
-        data.reduceToSize(cnt)
-      }
-    }
-    else {
-      // Use all of the non-nodata pixel values
-      data.reduceToSize(cnt)
     }
-    data
   }
 
-  def getBytePixelValues(raster: MrGeoRaster, band: Int, nodata: Double,
-                         fraction: Option[Float]): ArrayBuffer[Byte] = {
-    var x = 0
-    var y = 0
-
-    val width = raster.width()
-    val height = raster.height()
-
-    val data = new ArrayBuffer[Byte](width * height)
-
-    var cnt = 0
-    while (y < height) {
-      x = 0
-      while (x < width) {
-        val pixelValue = raster.getPixelByte(x, y, band)
-        if (!RasterMapOp.isNodata(pixelValue, nodata)) {
-          data += pixelValue
-          cnt += 1
-        }
-
-        x += 1
-      }
-      y += 1
+  // The pixel value of a key
+  private[quantiles] def value(key:Long, datatype:Int):Double = {
+    datatype match {
+      case DataBuffer.TYPE_BYTE | DataBuffer.TYPE_USHORT => key
+      case DataBuffer.TYPE_SHORT => key - 0x8000L
+      case DataBuffer.TYPE_INT => key - 0x80000000L
+      case DataBuffer.TYPE_FLOAT =>
+        val bits = key.toInt
+        java.lang.Float.intBitsToFloat(if (bits < 0) bits & 0x7fffffff else ~bits)
+      case _ =>
+        java.lang.Double.longBitsToDouble(if (key < 0) key ^ Long.MinValue else ~key)
     }
-    // If a fraction is specified, then randomly sample the data without replacement
-    if (fraction.isDefined && fraction.get < 1.0f) {
-      val n = data.length
-      val m = math.floor(fraction.get * n).toInt
-      if (m < cnt) {
-        var j: Int = 0
-        val r = new Random()
-        while (j < m) {
-          val k = r.nextInt(n - j) + j
-          val keep = data(j)
-          data(j) = data(k)
-          data(k) = keep
-          j += 1
+  }
+
+  // Call f with the band and key of each (sampled) pixel of the tile that isn't nodata.  The sample
+  // is seeded by the tile id, so every pass over the tiles sees the same pixels.
+  private def foreachKey(tile:(TileIdWritable, RasterWritable), datatype:Int, nodatas:Array[Double],
+                         fraction:Option[Float])(f:(Int, Long) => Unit):Unit = {
+    val raster = RasterWritable.toMrGeoRaster(tile._2)
+    val sample = fraction.getOrElse(1.0f)
+    val random = if (sample < 1.0f) new Random(tile._1.get()) else null
+
+    var b = 0
+    while (b < raster.bands()) {
+      var y = 0
+      while (y < raster.height()) {
+        var x = 0
+        while (x < raster.width()) {
+          if (random == null || random.nextFloat() < sample) {
+            val k = key(raster, x, y, b, datatype, nodatas(b))
+            if (k != -1) {
+              f(b, k)
+            }
+          }
+          x += 1
         }
-        data.reduceToSize(m)
-      }
-      else {
-        // There aren't enough non-nodata pixels for the requested sample, so take what we get.
-        data.reduceToSize(cnt)
+        y += 1
       }
+      b += 1
     }
-    else {
-      // Use all of the non-nodata pixel values
-      data.reduceToSize(cnt)
-    }
-    data
   }
 
-  def compute(rdd:RasterRDD, numberOfQuantiles:Int, fraction:Option[Float], meta:MrsPyramidMetadata) = {
-    var b:Int = 0
-    //val dt = meta.getTileType
-    var result = new ListBuffer[Array[Double]]()
-    while (b < meta.getBands) {
-      val nodata = meta.getDefaultValue(b)
-      val sortedPixelValues: RDD[AnyVal] = meta.getTileType match {
-      case DataBuffer.TYPE_DOUBLE =>
-        var pixelValues = rdd.flatMap(U => {
-          getDoublePixelValues(RasterWritable.toMrGeoRaster(U._2), b, nodata, fraction)
-        })
-        pixelValues.persist(StorageLevel.MEMORY_AND_DISK).sortBy(x => x).asInstanceOf[RDD[AnyVal]]
-      case DataBuffer.TYPE_FLOAT =>
-        var pixelValues = rdd.flatMap(U => {
-          getFloatPixelValues(RasterWritable.toMrGeoRaster(U._2), b, nodata, fraction)
-        })
-        pixelValues.persist(StorageLevel.MEMORY_AND_DISK).sortBy(x => x).asInstanceOf[RDD[AnyVal]]
-      case (DataBuffer.TYPE_INT | DataBuffer.TYPE_USHORT) =>
-        var pixelValues = rdd.flatMap(U => {
-          getIntPixelValues(RasterWritable.toMrGeoRaster(U._2), b, nodata, fraction)
-        })
-        pixelValues.persist(StorageLevel.MEMORY_AND_DISK).sortBy(x => x).asInstanceOf[RDD[AnyVal]]
-      case DataBuffer.TYPE_SHORT =>
-        var pixelValues = rdd.flatMap(U => {
-          getShortPixelValues(RasterWritable.toMrGeoRaster(U._2), b, nodata, fraction)
-        })
-        pixelValues.persist(StorageLevel.MEMORY_AND_DISK).sortBy(x => x).asInstanceOf[RDD[AnyVal]]
-      case DataBuffer.TYPE_BYTE =>
-        var pixelValues = rdd.flatMap(U => {
-          getBytePixelValues(RasterWritable.toMrGeoRaster(U._2), b, nodata, fraction)
-        })
-        pixelValues.persist(StorageLevel.MEMORY_AND_DISK).sortBy(x => x).asInstanceOf[RDD[AnyVal]]
-      }
-      try {
-        val count = sortedPixelValues.count()
-        // Build an RDD containing an entry for each individual quantile to compute.
-        // The key is the index into the set of sorted pixel values corresponding to
-        // the quantile. The value is the number of the quantile itself.
-        val quantileIndices = new Array[Long](numberOfQuantiles - 1)
-        for (i <- quantileIndices.indices) {
-          val qFraction = 1.0f / numberOfQuantiles.toFloat * (i + 1).toFloat
-          quantileIndices(i) = (qFraction * count).ceil.toLong
-        }
-        if (count >= quantileIndices.length) {
-          //        log.info("value count is " + count)
-          // Add an index as the key to the sorted pixel values so we can join on that key.
-          val sortedWithIndexKey = sortedPixelValues.zipWithIndex().map(_.swap)
-          val count = sortedWithIndexKey.count
-          val quantileValues = sortedWithIndexKey.filter(U => {
-            quantileIndices.contains(U._1)
-          }) //.sortByKey()
-          result += quantileValues.collect().map(U => {
-            U._2.toString.toDouble
-          }).sorted
+  // For each band, the counts of the keys starting with each of the prefixes, by the digit bits after
+  // the shift (i.e. counts(prefix index * 2^digit + digit value)), only the ones that aren't 0
+  private def histogram(rdd:RasterRDD, datatype:Int, nodatas:Array[Double], fraction:Option[Float],
+                        prefixes:Array[Array[Long]], shift:Int, digit:Int):Array[KeyCounts] = {
+    val buckets = 1 << digit
+    val mask = buckets - 1
+    val high = shift + digit
+
+    rdd.treeAggregate(prefixes.map(_ => new KeyCounts()))((counts, tile) => {
+      foreachKey(tile, datatype, nodatas, fraction)((b, key) => {
+        val ndx = util.Arrays.binarySearch(prefixes(b), if (high >= 64) 0L else key >>> high)
+        if (ndx >= 0) {
+          counts(b).add(ndx.toLong * buckets + ((key >>> shift) & mask))
         }
+      })
+      counts
+    }, (c1, c2) => {
+      var b = 0
+      while (b < c1.length) {
+        c1(b).merge(c2(b))
+        b += 1
       }
-      finally {
-        sortedPixelValues.unpersist()
-      }
-      //      else {
-      //        log.warn("Unable to compute quantiles because there are only " + count + " values")
-      //      }
-      b += 1
-    }
-    result.toList
+      c1
+    })
   }
 
   override def setup(job:JobArguments):Boolean = {
@@ -433,12 +356,19 @@ class Quantiles extends MrGeoJob with Externalizable {
   private var input:String = _
   private var numQuantiles:Int = 0
   private var fraction:Option[Float] = None
+  private var approximate:Boolean = false
 
   override def registerClasses():Array[Class[_]] = {
     val classes = Array.newBuilder[Class[_]]
 
     classes += classOf[Array[Float]]
     classes += classOf[Array[Object]]
+    classes += classOf[Array[Long]]
+    classes += classOf[Array[Array[Long]]]
+    classes += classOf[KeyCounts]
+    classes += classOf[Array[KeyCounts]]
+    classes += classOf[QuantileSketch]
+    classes += classOf[Array[QuantileSketch]]
 
     classes.result()
   }
@@ -452,6 +382,7 @@ class Quantiles extends MrGeoJob with Externalizable {
     else {
       None
     }
+    approximate = job.hasSetting(Quantiles.Approximate) && job.getSetting(Quantiles.Approximate).toBoolean
     providerproperties = ProviderProperties.fromDelimitedString(
       job.getSetting(Quantiles.ProviderProperties))
 
@@ -461,7 +392,8 @@ class Quantiles extends MrGeoJob with Externalizable {
   override def execute(context:SparkContext):Boolean = {
     val imagePair = SparkUtils.loadMrsPyramidAndMetadata(input, context)
     if (numQuantiles > 0) {
-      val quantiles = org.mrgeo.quantiles.Quantiles.compute(imagePair._1, numQuantiles, fraction, imagePair._2)
+      val quantiles = org.mrgeo.quantiles.Quantiles.compute(imagePair._1, numQuantiles, fraction, imagePair._2,
+        approximate)
       // Save the quantiles to metadata
       imagePair._2.setQuantiles(quantiles.toArray)
       SparkUtils.saveMrsPyramidMetadata(input, context, imagePair._2, providerproperties)
@@ -480,6 +412,7 @@ class Quantiles extends MrGeoJob with Externalizable {
     if (hasFraction) {
       fraction = Some(in.readFloat())
     }
+    approximate = in.readBoolean()
     val hasProviderProperties = in.readBoolean()
     if (hasProviderProperties) {
       providerproperties = ProviderProperties.fromDelimitedString(in.readUTF())
@@ -493,6 +426,7 @@ class Quantiles extends MrGeoJob with Externalizable {
     if (fraction.isDefined) {
       out.writeFloat(fraction.get)
     }
+    out.writeBoolean(approximate)
     out.writeBoolean(providerproperties != null)
     if (providerproperties != null) {
       out.writeUTF(ProviderProperties.toDelimitedString(providerproperties))
@@ -15,17 +15,45 @@
 
 package org.mrgeo.spark
 
-import org.apache.spark.SparkContext
-import org.apache.spark.rdd.{PairRDDFunctions, RDD}
-import org.mrgeo.data.raster.RasterWritable
+import org.apache.spark.rdd.RDD
+import org.apache.spark.storage.StorageLevel
+import org.apache.spark.{HashPartitioner, SparkContext}
+import org.mrgeo.data.raster.{MrGeoRaster, RasterWritable}
 import org.mrgeo.data.tile.TileIdWritable
 import org.mrgeo.utils.Logging
-import org.mrgeo.utils.tms.{Bounds, TMSUtils, Tile}
+import org.mrgeo.utils.tms.{Bounds, TMSUtils, TileBounds}
 
-import scala.collection.mutable.ListBuffer
+import scala.collection.mutable.ArrayBuffer
 
+// A buffered tile being assembled.  The rects are the areas that have been filled in, so two
+// partially assembled tiles (e.g. after a spill) can be merged without copying nodata over real data
+private class FocalTile(val raster:MrGeoRaster) extends Serializable {
+  val rects = ArrayBuffer.empty[(Int, Int, Int, Int)]
+
+  def add(x:Int, y:Int, w:Int, h:Int, src:MrGeoRaster):FocalTile = {
+    raster.copyFrom(0, 0, w, h, src, x, y)
+    rects.append((x, y, w, h))
+    this
+  }
+
+  def merge(other:FocalTile):FocalTile = {
+    for ((x, y, w, h) <- other.rects) {
+      raster.copyFrom(x, y, w, h, other.raster, x, y)
+    }
+    rects.appendAll(other.rects)
+    this
+  }
+}
+
+// Builds the buffered (focal) tiles by halo exchange.  Each tile only ships the edge strips its neighbors
+// need (bufferX/bufferY pixels wide), keyed by the neighbor, and the buffered tile is assembled in place
+// as the strips arrive.  If the tiles are already partitioned (i.e. by a RowPartitioner), the tiles don't
+// move at all, and only the strips that cross a partition boundary are shuffled.
 object FocalBuilder extends Logging {
 
+  // (dstX, dstY, width, height, raster) of a piece of the buffered tile
+  type Piece = (Int, Int, Int, Int, RasterWritable)
+
   def create(tiles:RDD[(TileIdWritable, RasterWritable)],
              bufferX:Int, bufferY:Int, bounds:Bounds, zoom:Int, nodatas:Array[Double],
              context:SparkContext):RDD[(TileIdWritable, RasterWritable)] = {
@@ -34,105 +62,112 @@ object FocalBuilder extends Logging {
 
     val tilesize = sample.width()
 
-    val offsetX = (bufferX / tilesize) + 1
-    val offsetY = (bufferY / tilesize) + 1
-
     val dstW = sample.width() + bufferX * 2
     val dstH = sample.height() + bufferY * 2
 
     val tb = TMSUtils.boundsToTile(bounds, zoom, tilesize)
-    val minX = tb.w
-    val minY = tb.s
-    val maxX = tb.e
-    val maxY = tb.n
-
-    val partitions = Math.min(context.getConf.getInt("spark.executor.cores", Int.MaxValue) * 2, tiles.partitions.length)
-
-    logInfo("Using " + partitions + " partitions for grouping")
-
-    val pieces = new PairRDDFunctions[TileIdWritable, (Int, Int, Int, Int, RasterWritable)](tiles.flatMap(tile => {
-      val pieces = ListBuffer[(TileIdWritable, (Int, Int, Int, Int, RasterWritable))]()
-      val from = TMSUtils.tileid(tile._1.get(), zoom)
-
-      val src = RasterWritable.toMrGeoRaster(tile._2)
-      val srcW = src.width()
-      val srcH = src.height()
-
-      var y:Int = -offsetY
-      while (y <= offsetY) {
-        var x:Int = -offsetX
-        while (x <= offsetX) {
-          val to = new Tile(from.tx + x, from.ty + y)
-          if (to.ty >= minY && to.ty <= maxY && to.tx >= minX && to.tx <= maxX) {
-            var srcX = -1
-            var dstX = -1
-
-            var width = bufferX
-            if (x == offsetX) {
-              srcX = srcW - width
-              dstX = 0
-            }
-            else if (x == -offsetX) {
-              srcX = 0
-              dstX = dstW - width
-            }
-            else {
-              srcX = 0
-              dstX = bufferX + (x * srcW)
-              width = srcW
-            }
-
-            var srcY = -1
-            var dstY = -1
 
-            var height = bufferY
-            if (y == -offsetY) {
-              srcY = srcH - height
-              dstY = 0
-            }
-            else if (y == offsetY) {
-              srcY = 0
-              dstY = dstH - height
-            }
-            else {
-              srcY = 0
-              dstY = bufferY + (y * srcH)
-              height = srcH
-            }
+    val dnodatas = nodatas.map(_.doubleValue())
 
-            val piece = src.clip(srcX, srcY, width, height)
+    val createTile = (piece:Piece) => {
+      val src = RasterWritable.toMrGeoRaster(piece._5)
+      val tile = new FocalTile(src.createCompatibleEmptyRaster(dstW, dstH, dnodatas))
+      tile.add(piece._1, piece._2, piece._3, piece._4, src)
+    }
+    val addPiece = (tile:FocalTile, piece:Piece) => {
+      tile.add(piece._1, piece._2, piece._3, piece._4, RasterWritable.toMrGeoRaster(piece._5))
+    }
+    val mergeTiles = (t1:FocalTile, t2:FocalTile) => t1.merge(t2)
+
+    val focal = tiles.partitioner match {
+      case Some(partitioner) =>
+        logInfo("Tiles are partitioned (" + partitioner.numPartitions +
+                " partitions), only exchanging halos across partitions")
+
+        // tag each piece with whether it stays in its partition, in a single pass over the tiles.  The pieces
+        // are persisted, so the tiles aren't computed again for each side (the context cleaner drops them
+        // once the focal tiles are no longer referenced).  They're serialized as they're cached, because the
+        // tile's own piece shares its bytes with the input writable, which the reader may reuse.
+        val tagged = tiles.mapPartitionsWithIndex((partition, iter) => {
+          iter.flatMap(tile => {
+            pieces(tile._1.get, tile._2, zoom, tilesize, bufferX, bufferY, tb)
+                .map(piece => (partitioner.getPartition(piece._1) == partition, piece))
+          })
+        }, preservesPartitioning = true).persist(StorageLevel.MEMORY_AND_DISK_SER)
+
+        // the tile itself and the strips for neighbors in the same partition stay put...
+        val local = tagged.mapPartitions(iter => iter.filter(_._1).map(_._2), preservesPartitioning = true)
+
+        // ...the rest cross the partition boundary
+        val remote = tagged.filter(!_._1).map(_._2).partitionBy(partitioner)
+
+        // both sides have the same partitioner, so neither the union nor the combine causes a shuffle
+        local.union(remote).combineByKey(createTile, addPiece, mergeTiles, partitioner)
+
+      case None =>
+        val partitioner = new HashPartitioner(tiles.partitions.length)
+        logInfo("Using " + partitioner.numPartitions + " partitions for the halo exchange")
+
+        // no map-side combine, that would ship whole buffered tiles instead of the strips
+        tiles.flatMap(tile => pieces(tile._1.get, tile._2, zoom, tilesize, bufferX, bufferY, tb))
+            .combineByKey(createTile, addPiece, mergeTiles, partitioner, mapSideCombine = false)
+    }
+
+    focal.map(tile => {
+      (tile._1, RasterWritable.toWritable(tile._2.raster))
+    })
+  }
 
-            pieces.append(
-              (new TileIdWritable(TMSUtils.tileid(to.tx, to.ty, zoom)), (dstX, dstY, width, height, RasterWritable
-                  .toWritable(piece))))
+  // The pieces of a tile needed to build its own buffered tile and those of its neighbors (within the
+  // bounds).  The tile itself is passed through untouched, only the edge strips are clipped out.
+  private def pieces(tileid:Long, raster:RasterWritable, zoom:Int, tilesize:Int, bufferX:Int, bufferY:Int,
+                     tb:TileBounds):Iterator[(TileIdWritable, Piece)] = {
+    val pieces = ArrayBuffer.empty[(TileIdWritable, Piece)]
+    val from = TMSUtils.tileid(tileid, zoom)
+
+    val src = RasterWritable.toMrGeoRaster(raster)
+
+    // the number of neighbor tiles, in each direction, covered by the buffer
+    val offsetX = (bufferX + tilesize - 1) / tilesize
+    val offsetY = (bufferY + tilesize - 1) / tilesize
+
+    val dstW = tilesize + bufferX * 2
+    val dstH = tilesize + bufferY * 2
+
+    var y:Int = -offsetY
+    while (y <= offsetY) {
+      val ty = from.ty + y
+      var x:Int = -offsetX
+      while (x <= offsetX) {
+        val tx = from.tx + x
+        if (ty >= tb.s && ty <= tb.n && tx >= tb.w && tx <= tb.e) {
+          val to = new TileIdWritable(TMSUtils.tileid(tx, ty, zoom))
+          if (x == 0 && y == 0) {
+            // a new writable around the same bytes, the input writables may be reused by the reader
+            pieces.append((to, (bufferX, bufferY, tilesize, tilesize, RasterWritable.toWritable(src))))
+          }
+          else {
+            // where this tile lands in the neighbor's buffered tile (tile y goes up, pixel y goes down)
+            val offX = bufferX - x * tilesize
+            val offY = bufferY + y * tilesize
+
+            val dstX = Math.max(offX, 0)
+            val dstY = Math.max(offY, 0)
+            val width = Math.min(offX + tilesize, dstW) - dstX
+            val height = Math.min(offY + tilesize, dstH) - dstY
+
+            if (width > 0 && height > 0) {
+              val strip = src.clip(dstX - offX, dstY - offY, width, height)
+              pieces.append((to, (dstX, dstY, width, height, RasterWritable.toWritable(strip))))
+            }
           }
-          x += 1
         }
-        y += 1
+        x += 1
       }
-      pieces.iterator
-
-    })).groupByKey() // .groupByKey(partitions)
-
-    val dnodatas = nodatas.map(_.doubleValue())
-    val focal = pieces.map(tile => {
-      val first = RasterWritable.toMrGeoRaster(tile._2.head._5)
-      val dst = first.createCompatibleEmptyRaster(dstW, dstH, dnodatas)
-
-      for (piece <- tile._2) {
-        val x = piece._1
-        val y = piece._2
-        val w = piece._3
-        val h = piece._4
-        val src = RasterWritable.toMrGeoRaster(piece._5)
-
-        dst.copyFrom(0, 0, w, h, src, x, y)
-      }
-
-      (new TileIdWritable(tile._1), RasterWritable.toWritable(dst))
-    })
+      y += 1
+    }
 
-    focal
+    pieces.iterator
   }
 
 }
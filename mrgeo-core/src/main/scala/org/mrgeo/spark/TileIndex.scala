@@ -0,0 +1,89 @@
+/*
+ * Copyright 2009-2017. DigitalGlobe, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.mrgeo.spark
+
+import java.util
+
+import org.apache.spark.rdd.RDD
+import org.apache.spark.storage.StorageLevel
+import org.apache.spark.{Partitioner, TaskContext}
+import org.mrgeo.data.raster.RasterWritable
+import org.mrgeo.data.rdd.RasterRDD
+import org.mrgeo.data.tile.TileIdWritable
+import org.mrgeo.utils.tms.TileBounds
+
+object TileIndex {
+
+  /**
+    * Index the tiles of the RDD.  If it is already partitioned by tile range it is used as is,
+    * otherwise it is partitioned by a row plan over the tile bounds.
+    */
+  def apply(rdd:RasterRDD, tileBounds:TileBounds, zoom:Int):TileIndex = {
+    val partitioner = rdd.partitioner match {
+      case Some(p:TileRangePartitioner) => p
+      case _ => TileRangePartitioner(tileBounds, zoom, rdd.partitions.length)
+    }
+    new TileIndex(rdd, partitioner)
+  }
+}
+
+/**
+  * Random access to the tiles of a RasterRDD.  Each partition is held (persisted) as its tile ids,
+  * sorted, and the tiles, so getting a set of tiles only runs tasks on the partitions that own
+  * them, each finding its tiles with a binary search, instead of filtering the whole RDD.
+  *
+  * Call unpersist() when done.
+  */
+class TileIndex private(rdd:RDD[(TileIdWritable, RasterWritable)], val partitioner:Partitioner) {
+
+  private val index = rdd.partitionBy(partitioner).mapPartitions(tiles => {
+    val sorted = tiles.map(tile => (tile._1.get(), tile._2)).toArray.sortBy(_._1)
+    Iterator((sorted.map(_._1), sorted.map(_._2)))
+  }, preservesPartitioning = true).persist(StorageLevel.MEMORY_AND_DISK)
+
+  /**
+    * The tiles found, missing tiles are left out
+    */
+  def get(tileids:Seq[Long]):Map[Long, RasterWritable] = {
+    val byPartition = tileids.distinct.groupBy(partitioner.getPartition)
+    if (byPartition.isEmpty) {
+      Map.empty
+    }
+    else {
+      val found = index.sparkContext.runJob(index,
+        (context:TaskContext, partition:Iterator[(Array[Long], Array[RasterWritable])]) => {
+          val wanted = byPartition.getOrElse(context.partitionId(), Seq.empty)
+          partition.flatMap(sorted => {
+            wanted.flatMap(id => {
+              val ndx = util.Arrays.binarySearch(sorted._1, id)
+              if (ndx >= 0) {
+                Some((id, sorted._2(ndx)))
+              }
+              else {
+                None
+              }
+            })
+          }).toArray
+        }, byPartition.keys.toSeq)
+
+      found.flatten.toMap
+    }
+  }
+
+  def get(tileid:Long):Option[RasterWritable] = get(Seq(tileid)).get(tileid)
+
+  def unpersist():Unit = index.unpersist()
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2009-2017. DigitalGlobe, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.mrgeo.spark
+
+import java.util
+
+import org.apache.spark.rdd.RDD
+import org.apache.spark.{HashPartitioner, Partition, Partitioner, TaskContext}
+import org.mrgeo.data.tile.TileIdWritable
+import org.mrgeo.utils.tms.{TMSUtils, TileBounds}
+
+import scala.reflect.ClassTag
+
+object TileRangePartitioner {
+
+  /**
+    * A split plan covering the tile bounds with (up to) the number of partitions, each partition
+    * being a band of whole rows.  The same bounds, zoom and partitions always give the same plan.
+    */
+  def apply(tileBounds:TileBounds, zoom:Int, partitions:Int):TileRangePartitioner = {
+    val rows = tileBounds.height().toInt
+    val count = Math.max(1, Math.min(partitions, rows))
+
+    val ends = Array.tabulate[Long](count)(i => {
+      // the last row of this partition
+      val row = tileBounds.s + ((i + 1).toLong * rows) / count - 1
+      TMSUtils.tileid(tileBounds.e, row, zoom)
+    })
+
+    new TileRangePartitioner(ends)
+  }
+
+  /**
+    * A split plan from the (inclusive) end tile ids of a set of sorted input splits, so partition n
+    * is exactly split n.  None if the ends aren't strictly increasing.
+    */
+  def fromSplits(ends:Array[Long]):Option[TileRangePartitioner] = {
+    if (ends.isEmpty || ends.indices.tail.exists(i => ends(i) <= ends(i - 1))) {
+      None
+    }
+    else {
+      Some(new TileRangePartitioner(ends))
+    }
+  }
+
+  /**
+    * Wrap an RDD whose partitions are already laid out according to the partitioner, telling Spark
+    * about it without moving any data.  The caller is responsible for the layout actually matching!
+    */
+  def assume[K:ClassTag, V:ClassTag](rdd:RDD[(K, V)], partitioner:TileRangePartitioner):RDD[(K, V)] = {
+    if (rdd.partitions.length != partitioner.numPartitions) {
+      throw new IllegalArgumentException("The RDD has " + rdd.partitions.length + " partitions, the plan has " +
+                                         partitioner.numPartitions)
+    }
+    new PrePartitionedRDD[K, V](rdd, partitioner)
+  }
+
+  /**
+    * The partitioner to cogroup RDDs with.  If any of them is already partitioned by tile range, the
+    * one with the most partitions is used, so it (and any others with the same plan) are cogrouped
+    * without a shuffle, otherwise a HashPartitioner as big as the largest RDD.
+    */
+  def cogroupPartitioner(rdds:Seq[RDD[_]]):Partitioner = {
+    val ranged = rdds.flatMap(_.partitioner).collect({ case p:TileRangePartitioner => p })
+    if (ranged.nonEmpty) {
+      ranged.maxBy(_.numPartitions)
+    }
+    else {
+      new HashPartitioner(rdds.map(_.partitions.length).max)
+    }
+  }
+
+  private class PrePartitionedRDD[K:ClassTag, V:ClassTag](parent:RDD[(K, V)], part:Partitioner)
+      extends RDD[(K, V)](parent) {
+    @transient override val partitioner:Option[Partitioner] = Some(part)
+
+    override def compute(split:Partition, context:TaskContext):Iterator[(K, V)] = {
+      firstParent[(K, V)].iterator(split, context)
+    }
+
+    override protected def getPartitions:Array[Partition] = firstParent[(K, V)].partitions
+  }
+
+}
+
+/**
+  * Partitions tiles by ranges of tile id.  Partition n holds the ids after ends(n - 1), up to and
+  * including ends(n); ids past the last end go in the last partition.
+  *
+  * Two of these with the same ends are equal, so RDDs partitioned with the same plan can be
+  * cogrouped (joined, etc.) partition by partition, without a shuffle.
+  */
+@SerialVersionUID(1L)
+class TileRangePartitioner(val ends:Array[Long]) extends Partitioner {
+
+  override def numPartitions:Int = ends.length
+
+  override def getPartition(key:Any):Int = {
+    val id = key match {
+      case tile:TileIdWritable => tile.get()
+      case l:Long => l
+      case _ => throw new RuntimeException("Bad type sent into TileRangePartitioner.getPartition(): " +
+                                           key.getClass +
+                                           ". Expected org.mrgeo.data.tile.TileIdWritable or a Long.")
+    }
+
+    val ndx = util.Arrays.binarySearch(ends, id)
+    if (ndx >= 0) {
+      ndx
+    }
+    else {
+      Math.min(-ndx - 1, ends.length - 1)
+    }
+  }
+
+  override def equals(other:Any):Boolean = {
+    other match {
+      case p:TileRangePartitioner => util.Arrays.equals(ends, p.ends)
+      case _ => false
+    }
+  }
+
+  override def hashCode():Int = util.Arrays.hashCode(ends)
+
+  override def toString:String = "TileRangePartitioner (" + ends.length + " partitions)"
+}
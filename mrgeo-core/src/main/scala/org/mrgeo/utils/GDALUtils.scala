@@ -20,6 +20,7 @@ import java.io._
 import java.net.URI
 import java.nio._
 import java.nio.file.Files
+import java.util.concurrent.ConcurrentHashMap
 import java.util.zip.GZIPOutputStream
 import javax.xml.bind.DatatypeConverter
 
@@ -72,6 +73,11 @@ object GDALUtils extends Logging {
   private val VSI_PREFIX:String = "/vsimem/"
   private val GDAL_PAM_ENABLED:String = "GDAL_PAM_ENABLED"
 
+  // local copies of images from other file systems (see openLocal()), keyed by path, modification
+  // time and length, and a lock per key so each image is only copied once per jvm
+  private val localCopies = new ConcurrentHashMap[String, File]()
+  private val localCopyLocks = new ConcurrentHashMap[String, AnyRef]()
+
   initializeGDAL()
 
   // empty method to force static initializer
@@ -433,6 +439,76 @@ object GDALUtils extends Logging {
     null
   }
 
+  /**
+    * Open an image, copying it to a local temporary file first if it isn't on the local file system.
+    * Unlike open(), the image isn't read into memory, and the copy is shared by everything in this
+    * jvm that opens the same image, so it is only copied once.
+    */
+  @SuppressFBWarnings(value = Array("PATH_TRAVERSAL_IN"), justification = "GDAL only reads image files")
+  def openLocal(imagename:String):Dataset = {
+    try {
+      val uri:URI = new URI(imagename)
+      if (new File(uri.getPath).exists) {
+        return open(imagename)
+      }
+
+      val p = new Path(uri)
+      val fs = HadoopFileUtils.getFileSystem(p)
+      val status = fs.getFileStatus(p)
+      val key = p.toString + ":" + status.getModificationTime + ":" + status.getLen
+
+      val lock = new Object
+      val existing = localCopyLocks.putIfAbsent(key, lock)
+
+      val local = (if (existing != null) existing else lock).synchronized {
+        var copy = localCopies.get(key)
+        if (copy == null || !copy.exists()) {
+          // keep the name, GDAL uses the extension to pick a driver for some formats
+          copy = File.createTempFile("gdal-local-", "-" + p.getName)
+          copy.deleteOnExit()
+
+          logDebug("Copying " + imagename + " to " + copy.getCanonicalPath)
+          val is = fs.open(p)
+          try {
+            val os = new FileOutputStream(copy)
+            try {
+              IOUtils.copyLarge(is, os)
+            }
+            finally {
+              os.close()
+            }
+          }
+          catch {
+            case e:Exception =>
+              copy.delete()
+              throw e
+          }
+          finally {
+            is.close()
+          }
+
+          localCopies.put(key, copy)
+        }
+        copy
+      }
+
+      val image = gdal.Open(local.getCanonicalPath)
+      if (image != null) {
+        logDebug("  Image loaded successfully: " + imagename)
+        return image
+      }
+
+      logInfo(
+        "Image not loaded, but unfortunately no exceptions were thrown, look for a logged explanation somewhere above")
+    }
+    catch {
+      case e:GDALException => throw e
+      case e:Exception => throw new GDALException("Error opening image file: " + imagename, e)
+    }
+
+    null
+  }
+
   def close(image:Dataset) {
     val files = image.GetFileList
 
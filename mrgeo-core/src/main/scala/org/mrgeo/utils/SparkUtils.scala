@@ -23,15 +23,18 @@ import edu.umd.cs.findbugs.annotations.SuppressFBWarnings
 import org.apache.hadoop.conf.Configuration
 import org.apache.hadoop.mapreduce.Job
 import org.apache.spark._
-import org.apache.spark.rdd.RDD
+import org.apache.spark.rdd.{PairRDDFunctions, RDD}
+import org.mrgeo.core.{MrGeoConstants, MrGeoProperties}
 import org.mrgeo.data.image.{ImageInputFormatContext, ImageOutputFormatContext, MrsImageDataProvider}
-import org.mrgeo.data.raster.RasterWritable
+import org.mrgeo.data.raster.{MrGeoRaster, RasterWritable, TileCodec}
 import org.mrgeo.data.rdd.{AutoPersister, RasterRDD}
 import org.mrgeo.data.tile._
 import org.mrgeo.data.{DataProviderFactory, MrsPyramidInputFormat, ProviderProperties}
 import org.mrgeo.hdfs.tile.FileSplit.FileSplitInfo
 import org.mrgeo.image.{ImageStats, MrsPyramid, MrsPyramidMetadata}
-import org.mrgeo.utils.tms.{Bounds, Pixel, TMSUtils}
+import org.mrgeo.mapreduce.splitters.{MrsPyramidInputSplit, TiledInputSplit}
+import org.mrgeo.spark.TileRangePartitioner
+import org.mrgeo.utils.tms.{Bounds, Pixel, TMSUtils, TileOrder}
 
 import scala.collection.JavaConversions._
 import scala.collection.mutable.ListBuffer
@@ -39,6 +42,8 @@ import scala.collection.{Map, mutable}
 
 @SuppressFBWarnings(value = Array("NP_LOAD_OF_KNOWN_NULL_VALUE"), justification = "Scala generated code")
 object SparkUtils extends Logging {
+  // the size of the strips mergeTiles pastes tiles into on the executors
+  private val MergeStripBytes = 64L * 1024 * 1024
 
   @deprecated("Use RasterRDD method instead", "")
   def calculateSplitData(rdd:RDD[(TileIdWritable, RasterWritable)]):Array[FileSplitInfo] = {
@@ -319,6 +324,90 @@ object SparkUtils extends Logging {
     //          classOf[RasterWritable])
   }
 
+  /**
+    * Load a pyramid, and if it can be done without moving data, tell Spark how the tiles are
+    * partitioned.  Each input split is a contiguous, sorted range of tile ids, so the split plan
+    * (the end tile id of each split) becomes a TileRangePartitioner.  Pyramids saved with the same
+    * splits get equal partitioners, and cogrouping them (mosaic, band combine, raster math, ...)
+    * doesn't need a shuffle.
+    */
+  def loadMrsPyramid(provider:MrsImageDataProvider, zoom:Int, bounds:Bounds, context:SparkContext,
+                     copartition:Boolean):RasterRDD = {
+    val rdd = if (bounds == null) {
+      loadMrsPyramid(provider, zoom, context)
+    }
+    else {
+      loadMrsPyramid(provider, zoom, bounds, context)
+    }
+
+    if (copartition) {
+      splitPlan(provider, zoom, bounds, context) match {
+        case Some(plan) if plan.numPartitions == rdd.partitions.length =>
+          logInfo("Loaded " + provider.getResourceName + " with " + plan)
+          return RasterRDD(TileRangePartitioner.assume(rdd, plan))
+        case _ =>
+      }
+    }
+    rdd
+  }
+
+  /**
+    * Load a pyramid partitioned by a shared split plan.  If the pyramid's own splits already match
+    * the plan, nothing is moved, otherwise the tiles are shuffled into the plan (once) here.
+    */
+  def loadMrsPyramid(provider:MrsImageDataProvider, zoom:Int, bounds:Bounds, context:SparkContext,
+                     plan:TileRangePartitioner):RasterRDD = {
+    val rdd = loadMrsPyramid(provider, zoom, bounds, context, copartition = true)
+    if (rdd.partitioner == Some(plan)) {
+      rdd
+    }
+    else {
+      logInfo("Repartitioning " + provider.getResourceName + " to " + plan)
+      RasterRDD(rdd.partitionBy(plan))
+    }
+  }
+
+  /**
+    * The split plan a pyramid's zoom level is read with, or None if the splits aren't ordered
+    * ranges of tile ids
+    */
+  def splitPlan(provider:MrsImageDataProvider, zoom:Int, bounds:Bounds,
+                context:SparkContext):Option[TileRangePartitioner] = {
+    val metadata:MrsPyramidMetadata = provider.getMetadataReader.read()
+
+    // the splits are ranges of stored keys, which are only tile ids if the tiles are stored row-major
+    if (metadata.getTileOrder != TileOrder.ROW_MAJOR) {
+      return None
+    }
+
+    val conf1 = provider.setupSparkJob(context.hadoopConfiguration)
+    val tifc = if (bounds == null) {
+      new ImageInputFormatContext(zoom, metadata.getTilesize,
+        provider.getResourceName, provider.getProviderProperties)
+    }
+    else {
+      new ImageInputFormatContext(zoom, metadata.getTilesize,
+        provider.getResourceName, bounds, provider.getProviderProperties)
+    }
+    val ifp = provider.getImageInputFormatProvider(tifc)
+    val job = Job.getInstance(ifp.setupSparkJob(conf1, provider))
+
+    // these are the same splits the RDD is built from, in the same order
+    val splits = new MrsPyramidInputFormat().getSplits(job)
+    val ends = splits.map {
+      case split:MrsPyramidInputSplit => Some(split.getWrappedSplit.getEndTileId)
+      case split:TiledInputSplit => Some(split.getEndTileId)
+      case _ => None
+    }
+
+    if (ends.exists(_.isEmpty)) {
+      None
+    }
+    else {
+      TileRangePartitioner.fromSplits(ends.flatten.toArray)
+    }
+  }
+
   def saveMrsPyramidMetadata(imageName:String, context:SparkContext, metadata:MrsPyramidMetadata,
                              providerProps:ProviderProperties): Unit = {
     val dp:MrsImageDataProvider = DataProviderFactory.getMrsImageDataProvider(imageName,
@@ -407,6 +496,72 @@ object SparkUtils extends Logging {
     //      false
     //    }
 
+    // a new pyramid gets the configured tile order and codec, levels added to an existing one keep its own
+    val newPyramid = Option(metadata.getImageMetadata).forall(_.forall(level => level == null || level.name == null))
+    if (!metadata.hasTileOrder && newPyramid) {
+      metadata.setTileOrder(TileOrder.fromString(MrGeoProperties.getInstance()
+          .getProperty(MrGeoConstants.MRGEO_TILE_ORDER, TileOrder.ROW_MAJOR.name())))
+    }
+    if (!metadata.hasTileCodec && newPyramid) {
+      metadata.setTileCodec(TileCodec.fromString(MrGeoProperties.getInstance()
+          .getProperty(MrGeoConstants.MRGEO_TILE_CODEC, TileCodec.NONE.name())))
+    }
+
+    val singlePass = MrGeoProperties.getInstance()
+        .getProperty(MrGeoConstants.MRGEO_SINGLE_PASS_SAVE, "true").toBoolean
+
+    // constant tiles (i.e. all nodata) are written as a constant tile instead of every pixel.  The predictive
+    // codec does this itself when it encodes the tile, otherwise the raw bytes are checked.
+    val compacted = if (metadata.getTileCodec == TileCodec.NONE) {
+      RasterRDD(tiles.mapValues(tile => TileCodec.compact(tile)))
+    }
+    else {
+      tiles
+    }
+
+    if (!singlePass || !saveSinglePass(compacted, outputProvider, metadata, zoom, conf)) {
+      saveMultiPass(compacted, outputProvider, metadata, zoom, conf)
+    }
+
+    AutoPersister.decrementRef(tiles)
+  }
+
+  // Write the tiles, calculating the bounds, stats, and splits as they are written.  Returns false if
+  // the output provider can't do this, and nothing was written.
+  private def saveSinglePass(tiles:RasterRDD, outputProvider:MrsImageDataProvider, metadata:MrsPyramidMetadata,
+                             zoom:Int, conf:Configuration):Boolean = {
+    val tofc = new ImageOutputFormatContext(outputProvider.getResourceName, metadata.getBounds, zoom,
+      metadata.getTilesize, metadata.getProtectionLevel, metadata.getTileType, metadata.getBands)
+    tofc.setTileOrder(metadata.getTileOrder)
+    tofc.setTileCodec(metadata.getTileCodec)
+    val tofp = outputProvider.getTiledOutputFormatProvider(tofc)
+
+    val summary = tofp.saveAndSummarize(tiles, metadata.getDefaultValues, conf)
+    if (summary == null) {
+      false
+    }
+    else {
+      if (summary.isEmpty) {
+        throw new IOException("No tiles were saved for " + outputProvider.getResourceName)
+      }
+
+      if (metadata.getBounds == null) {
+        metadata.setBounds(summary.bounds(zoom))
+      }
+
+      metadata.setName(zoom, zoom.toString)
+
+      // calculate and save metadata
+      MrsPyramid.calculateMetadata(zoom, summary.tilesize, summary.bands, summary.datatype, outputProvider,
+        summary.stats(), metadata)
+
+      true
+    }
+  }
+
+  private def saveMultiPass(tiles:RasterRDD, outputProvider:MrsImageDataProvider, metadata:MrsPyramidMetadata,
+                            zoom:Int, conf:Configuration):Unit = {
+
     val output = outputProvider.getResourceName
 
     val tilesize = metadata.getTilesize
@@ -432,14 +587,14 @@ object SparkUtils extends Logging {
 
     val tofc = new ImageOutputFormatContext(output, bounds, zoom, tilesize,
       metadata.getProtectionLevel, metadata.getTileType, bands)
+    tofc.setTileOrder(metadata.getTileOrder)
+    tofc.setTileCodec(metadata.getTileCodec)
     val tofp = outputProvider.getTiledOutputFormatProvider(tofc)
 
     tofp.save(tiles, conf)
 
     // calculate and save metadata
     MrsPyramid.calculateMetadata(zoom, tile, outputProvider, stats, metadata)
-
-    AutoPersister.decrementRef(tiles)
   }
 
   @deprecated("Use RasterRDD method instead", "")
@@ -533,7 +688,13 @@ object SparkUtils extends Logging {
   @SuppressFBWarnings(value = Array("RCN_REDUNDANT_NULLCHECK_WOULD_HAVE_BEEN_A_NPE"),
     justification = "Scala generated code")
   @SuppressFBWarnings(value = Array("RCN_REDUNDANT_NULLCHECK_OF_NONNULL_VALUE"), justification = "Scala generated code")
-  def mergeTiles(rdd:RasterRDD, zoom:Int, tilesize:Int, nodatas:Array[Double], bounds:Bounds = null) = {
+  def mergeTiles(rdd:RasterRDD, zoom:Int, tilesize:Int, nodatas:Array[Double], bounds:Bounds = null):MrGeoRaster = {
+    mergeTiles(rdd, zoom, tilesize, nodatas, bounds, MergeStripBytes)
+  }
+
+  // merge the tiles, pasting them into strips of (about) stripbytes on the executors
+  private[utils] def mergeTiles(rdd:RasterRDD, zoom:Int, tilesize:Int, nodatas:Array[Double], bounds:Bounds,
+                                stripbytes:Long):MrGeoRaster = {
 
     val bnds = if (bounds != null) {
       bounds
@@ -555,34 +716,75 @@ object SparkUtils extends Logging {
     val sample = RasterWritable.toMrGeoRaster(rdd.first()._2)
     val merged = sample.createCompatibleEmptyRaster(width, height, nodatas)
 
-    // because the data is distributed. and could be large, we need to collect a single partition at a time...
-    rdd.partitions.foreach(partition => {
-      val idx = partition.index
-      val partrdd = rdd.mapPartitionsWithIndex((part, data) => {
-        if (part == idx) {
-          data
-        }
-        else {
-          Iterator()
-        }
-      }, preservesPartitioning = true)
-
-      val collected = partrdd.collect()
-      collected.foreach(tile => {
-        val id = TMSUtils.tileid(tile._1.get, zoom)
-        val tb = TMSUtils.tileBounds(id.tx, id.ty, zoom, tilesize)
+    val datasize = width.toLong * height.toLong * sample.bands() * merged.bytesPerPixel()
+    val maxmem = Runtime.getRuntime.maxMemory()
+    if (datasize > maxmem / 2) {
+      logWarning(s"Merged raster is $datasize bytes, the driver only has $maxmem bytes of heap")
+    }
 
-        // calculate the starting pixel for the source
-        // make sure we use the upper-left lat/lon
-        val start = TMSUtils.latLonToPixelsUL(tb.n, tb.w, zoom, tilesize)
+    // because the data is distributed, and could be large, the tiles are pasted into horizontal strips of the
+    // merged raster on the executors, one strip per partition, and the strips are streamed to the driver one at a
+    // time.  Only the merged raster and a single strip are ever held on the driver.
+    val rowbytes = width.toLong * tilesize * sample.bands() * merged.bytesPerPixel()
+    val striprows = Math.max(1L, stripbytes / rowbytes).toInt
+    val stripheight = striprows * tilesize
+    val strips = (height + stripheight - 1) / stripheight
+
+    val top = ul.py
+    val left = ul.px
+    val pieces = rdd.flatMap(tile => {
+      val id = TMSUtils.tileid(tile._1.get, zoom)
+      val tb = TMSUtils.tileBounds(id.tx, id.ty, zoom, tilesize)
+
+      // calculate the starting pixel for the source
+      // make sure we use the upper-left lat/lon
+      val start = TMSUtils.latLonToPixelsUL(tb.n, tb.w, zoom, tilesize)
+      val x = (start.px - left).toInt
+      val y = (start.py - top).toInt
+
+      // skip any tiles outside the bounds, the writables may be reused by the reader, so make a new writable
+      // around the bytes of the rest
+      if (x < 0 || y < 0 || x >= width || y >= height) {
+        None
+      }
+      else {
+        val copy = RasterWritable.toWritable(RasterWritable.toMrGeoRaster(tile._2))
+        Some((y / stripheight, (x, y % stripheight, copy)))
+      }
+    })
 
-        val source = RasterWritable.toMrGeoRaster(tile._2)
-        logDebug(s"Tile ${id.tx}, ${id.ty} with bounds ${tb.w}, ${tb.s}, ${tb.e}, ${tb.n}" +
-                 s" pasted onto px ${start.px - ul.px} py ${start.py - ul.py}")
+    def paste(strip:MrGeoRaster, piece:(Int, Int, RasterWritable)):MrGeoRaster = {
+      val source = RasterWritable.toMrGeoRaster(piece._3)
+      strip.copyFrom(0, 0, source.width(), source.height(), source, piece._1, piece._2)
+      strip
+    }
 
-        merged
-            .copyFrom(0, 0, source.width(), source.height(), source, (start.px - ul.px).toInt, (start.py - ul.py).toInt)
-      })
+    // no map side combine, it would ship whole strips instead of the tiles in them
+    val stripped = new PairRDDFunctions(pieces).combineByKey(
+      (piece:(Int, Int, RasterWritable)) => {
+        val source = RasterWritable.toMrGeoRaster(piece._3)
+        paste(source.createCompatibleEmptyRaster(width, stripheight, nodatas), piece)
+      },
+      paste, (s1:MrGeoRaster, s2:MrGeoRaster) => {
+        s1.mosaic(s2, nodatas)
+        s1
+      },
+      new HashPartitioner(strips), mapSideCombine = false)
+
+    var pasted = 0
+    var lastpct = -1
+    stripped.toLocalIterator.foreach(strip => {
+      val y = strip._1 * stripheight
+      logDebug(s"Strip ${strip._1} pasted onto py $y")
+
+      merged.copyFrom(0, 0, width, Math.min(stripheight, height - y), strip._2, 0, y)
+
+      pasted += 1
+      val pct = pasted * 100 / strips
+      if (pct / 10 != lastpct / 10) {
+        logInfo(s"Merged $pasted of $strips strips ($pct%)")
+        lastpct = pct
+      }
     })
 
     val finalul = TMSUtils.latLonToPixelsUL(bnds.n, bnds.w, zoom, tilesize)
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2009-2017. DigitalGlobe, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.mrgeo.data.image;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.mrgeo.data.raster.MrGeoRaster;
+import org.mrgeo.image.ImageStats;
+import org.mrgeo.junit.UnitTest;
+import org.mrgeo.test.TestUtils;
+import org.mrgeo.utils.tms.Bounds;
+import org.mrgeo.utils.tms.TMSUtils;
+
+import java.awt.image.DataBuffer;
+
+@SuppressWarnings("all") // test code, not included in production
+public class ImageSaveSummaryTest
+{
+private static final double epsilon = 0.0000001;
+private static final int zoom = 10;
+private static final int tilesize = 10;
+
+private static MrGeoRaster numbered;
+
+@BeforeClass
+public static void init() throws MrGeoRaster.MrGeoRasterException
+{
+  // pixel values 0 - 99
+  numbered = TestUtils.createNumberedRaster(tilesize, tilesize, DataBuffer.TYPE_FLOAT);
+}
+
+@Test
+@Category(UnitTest.class)
+public void partitionStats()
+{
+  PartitionSaveSummary partition = new PartitionSaveSummary(3);
+  partition.add(TMSUtils.tileid(5, 6, zoom), zoom, numbered, new double[]{0.0});
+
+  Assert.assertFalse(partition.isEmpty());
+  Assert.assertEquals(TMSUtils.tileid(5, 6, zoom), partition.startId());
+  Assert.assertEquals(TMSUtils.tileid(5, 6, zoom), partition.endId());
+  Assert.assertEquals(tilesize, partition.tilesize());
+  Assert.assertEquals(1, partition.bands());
+  Assert.assertEquals(DataBuffer.TYPE_FLOAT, partition.datatype());
+
+  // 0 is nodata
+  ImageStats stats = partition.stats()[0];
+  Assert.assertEquals(99, stats.count);
+  Assert.assertEquals(1.0, stats.min, epsilon);
+  Assert.assertEquals(99.0, stats.max, epsilon);
+  Assert.assertEquals(4950.0, stats.sum, epsilon);
+}
+
+@Test
+@Category(UnitTest.class)
+public void mergedStatsAndBounds()
+{
+  double[] nodatas = new double[]{Double.NaN};
+
+  PartitionSaveSummary p1 = new PartitionSaveSummary(0);
+  p1.add(TMSUtils.tileid(5, 6, zoom), zoom, numbered, nodatas);
+  p1.add(TMSUtils.tileid(6, 6, zoom), zoom, numbered, nodatas);
+
+  PartitionSaveSummary p2 = new PartitionSaveSummary(1);
+  p2.add(TMSUtils.tileid(7, 8, zoom), zoom, numbered, nodatas);
+
+  ImageSaveSummary summary = new ImageSaveSummary().add(p1).merge(new ImageSaveSummary().add(p2));
+
+  Assert.assertEquals(2, summary.partitions().length);
+  Assert.assertEquals(0, summary.partitions()[0].partition());
+  Assert.assertEquals(1, summary.partitions()[1].partition());
+
+  ImageStats stats = summary.stats()[0];
+  Assert.assertEquals(300, stats.count);
+  Assert.assertEquals(0.0, stats.min, epsilon);
+  Assert.assertEquals(99.0, stats.max, epsilon);
+  Assert.assertEquals(3 * 4950.0, stats.sum, epsilon);
+  Assert.assertEquals(49.5, stats.mean, epsilon);
+
+  Bounds expected = TMSUtils.tileBounds(5, 6, zoom, tilesize).expand(TMSUtils.tileBounds(7, 8, zoom, tilesize));
+  Assert.assertEquals(expected, summary.bounds(zoom));
+}
+
+@Test
+@Category(UnitTest.class)
+public void recomputedPartitionReplaces()
+{
+  double[] nodatas = new double[]{Double.NaN};
+
+  PartitionSaveSummary first = new PartitionSaveSummary(0);
+  first.add(TMSUtils.tileid(5, 6, zoom), zoom, numbered, nodatas);
+
+  PartitionSaveSummary retry = new PartitionSaveSummary(0);
+  retry.add(TMSUtils.tileid(5, 6, zoom), zoom, numbered, nodatas);
+
+  ImageSaveSummary summary = ImageSaveSummaryAccumulator.addInPlace(
+      new ImageSaveSummary().add(first), new ImageSaveSummary().add(retry));
+
+  Assert.assertEquals(1, summary.partitions().length);
+  Assert.assertEquals(100, summary.stats()[0].count);
+}
+
+@Test
+@Category(UnitTest.class)
+public void emptyPartitions()
+{
+  ImageSaveSummary summary = new ImageSaveSummary().add(new PartitionSaveSummary(0));
+
+  Assert.assertTrue(summary.isEmpty());
+  Assert.assertEquals(1, summary.partitions().length);
+  Assert.assertEquals(Long.MAX_VALUE, summary.partitions()[0].startId());
+  Assert.assertNull(summary.bounds(zoom));
+  Assert.assertEquals(-1, summary.bands());
+}
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2009-2017. DigitalGlobe, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.mrgeo.data.raster;
+
+import org.mrgeo.aggregators.*;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.awt.image.DataBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the generic MrGeoRaster.reduce() path with the 2x2 decimation kernels, for each
+ * datatype and aggregator.  The generic path is forced by using an anonymous subclass of the
+ * aggregator, which the kernels don't recognize.
+ * <p>
+ * Not a unit test, run it with main() from the test classpath.
+ */
+@SuppressWarnings("all") // test code, not included in production
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Thread)
+public class RasterDecimatorBenchmark
+{
+private static final int tilesize = 512;
+
+@Param({"byte", "short", "int", "float", "double"})
+public String type;
+
+@Param({"mean", "nearest", "min", "max", "mode"})
+public String aggregator;
+
+private MrGeoRaster raster;
+private double[] nodatas;
+private Aggregator kernel;
+private Aggregator generic;
+
+public static void main(String[] args) throws RunnerException
+{
+  Options opt = new OptionsBuilder()
+      .include(RasterDecimatorBenchmark.class.getSimpleName())
+      .build();
+
+  new Runner(opt).run();
+}
+
+@Setup
+public void setup() throws MrGeoRaster.MrGeoRasterException
+{
+  int datatype;
+  switch (type)
+  {
+  case "byte":
+    datatype = DataBuffer.TYPE_BYTE;
+    break;
+  case "short":
+    datatype = DataBuffer.TYPE_SHORT;
+    break;
+  case "int":
+    datatype = DataBuffer.TYPE_INT;
+    break;
+  case "float":
+    datatype = DataBuffer.TYPE_FLOAT;
+    break;
+  default:
+    datatype = DataBuffer.TYPE_DOUBLE;
+    break;
+  }
+
+  raster = MrGeoRaster.createEmptyRaster(tilesize, tilesize, 1, datatype);
+  nodatas = new double[]{(datatype == DataBuffer.TYPE_FLOAT || datatype == DataBuffer.TYPE_DOUBLE) ?
+      Double.NaN : 0};
+
+  // random values with a sprinkling of nodata
+  Random random = new Random(1234);
+  for (int y = 0; y < tilesize; y++)
+  {
+    for (int x = 0; x < tilesize; x++)
+    {
+      raster.setPixel(x, y, 0, random.nextInt(20) == 0 ? nodatas[0] : random.nextInt(100) + 1);
+    }
+  }
+
+  switch (aggregator)
+  {
+  case "mean":
+    kernel = new MeanAggregator();
+    generic = new MeanAggregator() {};
+    break;
+  case "nearest":
+    kernel = new NearestAggregator();
+    generic = new NearestAggregator() {};
+    break;
+  case "min":
+    kernel = new MinAggregator();
+    generic = new MinAggregator() {};
+    break;
+  case "max":
+    kernel = new MaxAggregator();
+    generic = new MaxAggregator() {};
+    break;
+  default:
+    kernel = new ModeAggregator();
+    generic = new ModeAggregator() {};
+    break;
+  }
+}
+
+@Benchmark
+public MrGeoRaster generic() throws MrGeoRaster.MrGeoRasterException
+{
+  return raster.reduce(2, 2, generic, nodatas);
+}
+
+@Benchmark
+public MrGeoRaster kernel() throws MrGeoRaster.MrGeoRasterException
+{
+  return raster.reduce(2, 2, kernel, nodatas);
+}
+}
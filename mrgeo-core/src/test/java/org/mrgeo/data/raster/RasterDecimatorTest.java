@@ -0,0 +1,206 @@
+/*
+ * Copyright 2009-2017. DigitalGlobe, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.mrgeo.data.raster;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.mrgeo.aggregators.*;
+import org.mrgeo.junit.UnitTest;
+
+import java.awt.image.DataBuffer;
+import java.util.Random;
+
+// The decimation kernels must produce exactly what the generic reduce() does.  An anonymous subclass
+// of an aggregator isn't recognized by the kernels, so it forces the generic path.
+@SuppressWarnings("all") // test code, not included in production
+public class RasterDecimatorTest
+{
+private static final int width = 16;
+private static final int height = 12;
+
+private static final int[] types = {DataBuffer.TYPE_BYTE, DataBuffer.TYPE_SHORT, DataBuffer.TYPE_USHORT,
+    DataBuffer.TYPE_INT, DataBuffer.TYPE_FLOAT, DataBuffer.TYPE_DOUBLE};
+
+private static double nodata(int type)
+{
+  return (type == DataBuffer.TYPE_FLOAT || type == DataBuffer.TYPE_DOUBLE) ? Double.NaN : 7;
+}
+
+// random values over (most of) the range of the type, with some nodata
+private static MrGeoRaster randomRaster(int type, int bands) throws MrGeoRaster.MrGeoRasterException
+{
+  MrGeoRaster raster = MrGeoRaster.createEmptyRaster(width, height, bands, type);
+  Random random = new Random(42 + type);
+
+  for (int b = 0; b < bands; b++)
+  {
+    for (int y = 0; y < height; y++)
+    {
+      for (int x = 0; x < width; x++)
+      {
+        double v;
+        if (random.nextInt(6) == 0)
+        {
+          v = nodata(type);
+        }
+        else
+        {
+          switch (type)
+          {
+          case DataBuffer.TYPE_BYTE:
+            v = random.nextInt(256);
+            break;
+          case DataBuffer.TYPE_SHORT:
+          case DataBuffer.TYPE_USHORT:
+            v = random.nextInt(65536) - 32768;
+            break;
+          case DataBuffer.TYPE_INT:
+            v = random.nextInt();
+            break;
+          default:
+            v = random.nextDouble() * 2000.0 - 1000.0;
+            break;
+          }
+        }
+        raster.setPixel(x, y, b, v);
+      }
+    }
+  }
+
+  return raster;
+}
+
+// every 2x2 block has a single most frequent value, so the mode doesn't depend on tie breaking
+private static MrGeoRaster modeRaster(int type) throws MrGeoRaster.MrGeoRasterException
+{
+  MrGeoRaster raster = MrGeoRaster.createEmptyRaster(width, height, 1, type);
+
+  for (int y = 0; y < height; y++)
+  {
+    for (int x = 0; x < width; x++)
+    {
+      int block = (x / 2) + (y / 2);
+      double v = (block % 5) + 1;
+      if (x % 2 == 1 && y % 2 == 1)
+      {
+        v = 50;
+      }
+      else if (x % 2 == 0 && y % 2 == 1 && block % 3 == 0)
+      {
+        v = nodata(type);
+      }
+      raster.setPixel(x, y, 0, v);
+    }
+  }
+
+  return raster;
+}
+
+private static void compare(MrGeoRaster raster, Aggregator kernel, Aggregator generic)
+    throws MrGeoRaster.MrGeoRasterException
+{
+  double[] nodatas = new double[raster.bands()];
+  for (int b = 0; b < nodatas.length; b++)
+  {
+    nodatas[b] = nodata(raster.datatype());
+  }
+
+  MrGeoRaster expected = raster.reduce(2, 2, generic, nodatas);
+  MrGeoRaster actual = raster.reduce(2, 2, kernel, nodatas);
+
+  Assert.assertEquals(expected.width(), actual.width());
+  Assert.assertEquals(expected.height(), actual.height());
+  Assert.assertArrayEquals("Mismatch for " + kernel.getClass().getSimpleName() + " type " + raster.datatype(),
+      expected.data(), actual.data());
+}
+
+@Test
+@Category(UnitTest.class)
+public void mean() throws Exception
+{
+  for (int type : types)
+  {
+    compare(randomRaster(type, 2), new MeanAggregator(), new MeanAggregator() {});
+  }
+}
+
+@Test
+@Category(UnitTest.class)
+public void nearest() throws Exception
+{
+  for (int type : types)
+  {
+    compare(randomRaster(type, 2), new NearestAggregator(), new NearestAggregator() {});
+  }
+}
+
+@Test
+@Category(UnitTest.class)
+public void min() throws Exception
+{
+  for (int type : types)
+  {
+    compare(randomRaster(type, 2), new MinAggregator(), new MinAggregator() {});
+  }
+}
+
+@Test
+@Category(UnitTest.class)
+public void max() throws Exception
+{
+  for (int type : types)
+  {
+    compare(randomRaster(type, 2), new MaxAggregator(), new MaxAggregator() {});
+  }
+}
+
+@Test
+@Category(UnitTest.class)
+public void mode() throws Exception
+{
+  for (int type : types)
+  {
+    compare(modeRaster(type), new ModeAggregator(), new ModeAggregator() {});
+  }
+}
+
+@Test
+@Category(UnitTest.class)
+public void modeTiesPickFirst() throws Exception
+{
+  MrGeoRaster raster = MrGeoRaster.createEmptyRaster(2, 2, 1, DataBuffer.TYPE_INT);
+  raster.setPixel(0, 0, 0, 3);
+  raster.setPixel(1, 0, 0, 9);
+  raster.setPixel(0, 1, 0, 9);
+  raster.setPixel(1, 1, 0, 3);
+
+  MrGeoRaster reduced = raster.reduce(2, 2, new ModeAggregator(), new double[]{-1});
+  Assert.assertEquals(3, reduced.getPixelInt(0, 0, 0));
+}
+
+@Test
+@Category(UnitTest.class)
+public void oddSizeUsesGenericPath() throws Exception
+{
+  MrGeoRaster raster = MrGeoRaster.createEmptyRaster(5, 4, 1, DataBuffer.TYPE_FLOAT);
+  MrGeoRaster child = raster.createCompatibleRaster(2, 2);
+
+  Assert.assertFalse(RasterDecimator.decimate(raster, child, new MeanAggregator(), new double[]{Double.NaN}));
+  Assert.assertFalse(RasterDecimator.decimate(randomRaster(DataBuffer.TYPE_FLOAT, 1),
+      child, new SumAggregator(), new double[]{Double.NaN}));
+}
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2009-2017. DigitalGlobe, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.mrgeo.data.raster;
+
+import org.mrgeo.utils.GDALJavaUtils;
+import org.mrgeo.utils.GDALUtils;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.awt.image.DataBuffer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares encoding a color scaled (RGBA) tile with GDAL (the old path) and with RasterImageEncoder,
+ * for a tile with few colors (palette), many colors (truecolor) and a transparent tile.
+ * <p>
+ * Not a unit test, run it with main() from the test classpath (GDAL needs to be installed).
+ */
+@SuppressWarnings("all") // test code, not included in production
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Thread)
+public class RasterImageEncoderBenchmark
+{
+private static final int tilesize = 512;
+
+@Param({"palette", "truecolor", "transparent"})
+public String tile;
+
+private MrGeoRaster raster;
+private double[] nodatas = {0, 0, 0, 0};
+
+public static void main(String[] args) throws RunnerException
+{
+  Options opt = new OptionsBuilder()
+      .include(RasterImageEncoderBenchmark.class.getSimpleName())
+      .build();
+
+  new Runner(opt).run();
+}
+
+@Setup
+public void setup() throws MrGeoRaster.MrGeoRasterException
+{
+  GDALUtils.register();
+
+  raster = MrGeoRaster.createEmptyRaster(tilesize, tilesize, 4, DataBuffer.TYPE_BYTE);
+  if (tile.equals("transparent"))
+  {
+    return;
+  }
+
+  // a smooth ramp (like a color scale) with some noise for the truecolor case
+  Random random = new Random(1234);
+  for (int y = 0; y < tilesize; y++)
+  {
+    for (int x = 0; x < tilesize; x++)
+    {
+      int v = (x + y) / 8;
+      if (tile.equals("truecolor"))
+      {
+        v += random.nextInt(16);
+      }
+      raster.setPixel(x, y, 0, (byte) v);
+      raster.setPixel(x, y, 1, (byte) (255 - v));
+      raster.setPixel(x, y, 2, (byte) (v / 2));
+      raster.setPixel(x, y, 3, (byte) 255);
+    }
+  }
+}
+
+@Benchmark
+public byte[] gdalPng() throws IOException
+{
+  ByteArrayOutputStream stream = new ByteArrayOutputStream();
+  GDALJavaUtils.saveRaster(raster.toDataset(null, nodatas), stream, "png");
+  return stream.toByteArray();
+}
+
+@Benchmark
+public byte[] javaPng() throws IOException
+{
+  ByteArrayOutputStream stream = new ByteArrayOutputStream();
+  RasterImageEncoder.writePng(raster, nodatas, stream, 6);
+  return stream.toByteArray();
+}
+
+@Benchmark
+public byte[] gdalJpeg() throws IOException
+{
+  ByteArrayOutputStream stream = new ByteArrayOutputStream();
+  GDALJavaUtils.saveRaster(raster.toDataset(null, nodatas), stream, "jpeg");
+  return stream.toByteArray();
+}
+
+@Benchmark
+public byte[] javaJpeg() throws IOException
+{
+  ByteArrayOutputStream stream = new ByteArrayOutputStream();
+  RasterImageEncoder.writeJpeg(raster, stream, 75);
+  return stream.toByteArray();
+}
+}
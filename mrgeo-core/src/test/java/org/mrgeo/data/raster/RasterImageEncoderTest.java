@@ -0,0 +1,193 @@
+/*
+ * Copyright 2009-2017. DigitalGlobe, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.mrgeo.data.raster;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.mrgeo.junit.UnitTest;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+// The encoded images are read back with ImageIO and compared with the raster
+@SuppressWarnings("all") // test code, not included in production
+public class RasterImageEncoderTest
+{
+private static final int width = 37;
+private static final int height = 23;
+
+private static MrGeoRaster rgba(int colors) throws MrGeoRaster.MrGeoRasterException
+{
+  MrGeoRaster raster = MrGeoRaster.createEmptyRaster(width, height, 4, DataBuffer.TYPE_BYTE);
+  Random random = new Random(4);
+  for (int y = 0; y < height; y++)
+  {
+    for (int x = 0; x < width; x++)
+    {
+      int c = random.nextInt(colors);
+      raster.setPixel(x, y, 0, (byte) (c * 7));
+      raster.setPixel(x, y, 1, (byte) (c * 13));
+      raster.setPixel(x, y, 2, (byte) (c * 3));
+      raster.setPixel(x, y, 3, (byte) (c % 5 == 0 ? 0 : 255));
+    }
+  }
+  return raster;
+}
+
+private static BufferedImage png(MrGeoRaster raster, double[] nodatas) throws Exception
+{
+  ByteArrayOutputStream stream = new ByteArrayOutputStream();
+  RasterImageEncoder.writePng(raster, nodatas, stream, 6);
+  return ImageIO.read(new ByteArrayInputStream(stream.toByteArray()));
+}
+
+private static void compare(MrGeoRaster raster, BufferedImage image, int[] nodata)
+{
+  Assert.assertEquals(raster.width(), image.getWidth());
+  Assert.assertEquals(raster.height(), image.getHeight());
+
+  for (int y = 0; y < height; y++)
+  {
+    for (int x = 0; x < width; x++)
+    {
+      int argb = image.getRGB(x, y);
+      int alpha = (argb >>> 24) & 0xff;
+
+      int r = raster.getPixelInt(x, y, 0);
+      int g = raster.getPixelInt(x, y, raster.bands() == 1 ? 0 : 1);
+      int b = raster.getPixelInt(x, y, raster.bands() == 1 ? 0 : 2);
+
+      int expectedAlpha;
+      if (raster.bands() == 4)
+      {
+        expectedAlpha = raster.getPixelInt(x, y, 3);
+      }
+      else
+      {
+        expectedAlpha = (nodata != null && r == nodata[0] && g == nodata[1] && b == nodata[2]) ? 0 : 255;
+      }
+
+      Assert.assertEquals("alpha at " + x + ", " + y, expectedAlpha, alpha);
+      if (alpha != 0)
+      {
+        Assert.assertEquals("red at " + x + ", " + y, r, (argb >>> 16) & 0xff);
+        Assert.assertEquals("green at " + x + ", " + y, g, (argb >>> 8) & 0xff);
+        Assert.assertEquals("blue at " + x + ", " + y, b, argb & 0xff);
+      }
+    }
+  }
+}
+
+@Test
+@Category(UnitTest.class)
+public void paletteRgba() throws Exception
+{
+  MrGeoRaster raster = rgba(20);
+  compare(raster, png(raster, null), null);
+}
+
+@Test
+@Category(UnitTest.class)
+public void truecolorRgba() throws Exception
+{
+  // more colors than fit in a palette
+  MrGeoRaster raster = rgba(400);
+  compare(raster, png(raster, null), null);
+}
+
+@Test
+@Category(UnitTest.class)
+public void rgbNodata() throws Exception
+{
+  MrGeoRaster rgb = MrGeoRaster.createEmptyRaster(width, height, 3, DataBuffer.TYPE_BYTE);
+  MrGeoRaster src = rgba(400);
+  for (int b = 0; b < 3; b++)
+  {
+    rgb.copyFrom(0, 0, b, width, height, src, 0, 0, b);
+  }
+  rgb.setPixel(3, 4, 0, (byte) 0);
+  rgb.setPixel(3, 4, 1, (byte) 0);
+  rgb.setPixel(3, 4, 2, (byte) 0);
+
+  compare(rgb, png(rgb, new double[]{0, 0, 0}), new int[]{0, 0, 0});
+}
+
+@Test
+@Category(UnitTest.class)
+public void gray() throws Exception
+{
+  MrGeoRaster raster = MrGeoRaster.createEmptyRaster(width, height, 1, DataBuffer.TYPE_BYTE);
+  for (int y = 0; y < height; y++)
+  {
+    for (int x = 0; x < width; x++)
+    {
+      raster.setPixel(x, y, 0, (byte) (x * y));
+    }
+  }
+  compare(raster, png(raster, null), null);
+}
+
+@Test
+@Category(UnitTest.class)
+public void transparent() throws Exception
+{
+  MrGeoRaster raster = MrGeoRaster.createEmptyRaster(width, height, 4, DataBuffer.TYPE_BYTE);
+
+  ByteArrayOutputStream first = new ByteArrayOutputStream();
+  RasterImageEncoder.writePng(raster, null, first, 6);
+  ByteArrayOutputStream second = new ByteArrayOutputStream();
+  RasterImageEncoder.writePng(raster, null, second, 6);
+
+  Assert.assertArrayEquals(first.toByteArray(), second.toByteArray());
+  compare(raster, ImageIO.read(new ByteArrayInputStream(first.toByteArray())), null);
+}
+
+@Test
+@Category(UnitTest.class)
+public void jpeg() throws Exception
+{
+  MrGeoRaster raster = MrGeoRaster.createEmptyRaster(width, height, 3, DataBuffer.TYPE_BYTE);
+  raster.fill(new double[]{200, 100, 50});
+
+  ByteArrayOutputStream stream = new ByteArrayOutputStream();
+  RasterImageEncoder.writeJpeg(raster, stream, 90);
+  BufferedImage image = ImageIO.read(new ByteArrayInputStream(stream.toByteArray()));
+
+  Assert.assertEquals(width, image.getWidth());
+  Assert.assertEquals(height, image.getHeight());
+
+  // lossy, but a flat color should come back close
+  int rgb = image.getRGB(10, 10);
+  Assert.assertEquals(200, (rgb >>> 16) & 0xff, 3);
+  Assert.assertEquals(100, (rgb >>> 8) & 0xff, 3);
+  Assert.assertEquals(50, rgb & 0xff, 3);
+}
+
+@Test
+@Category(UnitTest.class)
+public void unsupported() throws Exception
+{
+  Assert.assertFalse(RasterImageEncoder.canEncodePng(
+      MrGeoRaster.createEmptyRaster(width, height, 1, DataBuffer.TYPE_FLOAT)));
+  Assert.assertFalse(RasterImageEncoder.canEncodePng(
+      MrGeoRaster.createEmptyRaster(width, height, 2, DataBuffer.TYPE_BYTE)));
+}
+}
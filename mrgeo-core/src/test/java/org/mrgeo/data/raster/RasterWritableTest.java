@@ -20,6 +20,9 @@ import junit.framework.Assert;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.compress.CompressionOutputStream;
+import org.apache.hadoop.io.compress.Decompressor;
+import org.apache.hadoop.io.compress.DefaultCodec;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -30,6 +33,7 @@ import org.mrgeo.test.LocalRunnerTest;
 import org.mrgeo.test.TestUtils;
 
 import java.awt.image.DataBuffer;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 
 /* This test handles all four cases of RasterWritable:
@@ -80,6 +84,34 @@ public void testNoCompressNoPayloadRaster() throws IOException
   testRaster("testNoCompressNoPayloadRaster");
 }
 
+@Test
+@Category(UnitTest.class)
+public void decompressRaster() throws IOException
+{
+  DefaultCodec codec = new DefaultCodec();
+  codec.setConf(conf);
+
+  // a plain raster (inflated straight into the raster) and an encoded one
+  MrGeoRaster raster = TestUtils.createNumberedRaster(RASTER_SIZE, RASTER_SIZE, DataBuffer.TYPE_FLOAT);
+  RasterWritable[] writables = {
+      RasterWritable.toWritable(raster),
+      TileCodec.PREDICTIVE.encode(raster)
+  };
+
+  Decompressor decompressor = codec.createDecompressor();
+  for (RasterWritable writable : writables)
+  {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    try (CompressionOutputStream out = codec.createOutputStream(baos))
+    {
+      out.write(writable.getBytes());
+    }
+
+    RasterWritable compressed = RasterWritable.fromBytes(baos.toByteArray());
+    TestUtils.compareRasters(raster, RasterWritable.toMrGeoRaster(compressed, codec, decompressor));
+  }
+}
+
 private void testRaster(String testName) throws IOException
 {
   Path rasterFilePath = new Path(outputHdfs, "raster" + testName + ".seq");
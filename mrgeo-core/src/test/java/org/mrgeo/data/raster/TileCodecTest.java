@@ -0,0 +1,208 @@
+/*
+ * Copyright 2009-2017. DigitalGlobe, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.mrgeo.data.raster;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.mrgeo.junit.UnitTest;
+
+import java.awt.image.DataBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+@SuppressWarnings("all") // test code, not included in production
+public class TileCodecTest
+{
+private static final int[] types = {DataBuffer.TYPE_BYTE, DataBuffer.TYPE_SHORT, DataBuffer.TYPE_USHORT,
+    DataBuffer.TYPE_INT, DataBuffer.TYPE_FLOAT, DataBuffer.TYPE_DOUBLE};
+
+@Test
+@Category(UnitTest.class)
+public void roundTrip() throws Exception
+{
+  for (int type : types)
+  {
+    MrGeoRaster raster = createRaster(type, 3);
+
+    RasterWritable encoded = TileCodec.PREDICTIVE.encode(raster);
+    Assert.assertTrue(TileCodec.isEncoded(encoded.getBytes()));
+
+    MrGeoRaster decoded = RasterWritable.toMrGeoRaster(encoded);
+    assertEquals(raster, decoded);
+  }
+}
+
+@Test
+@Category(UnitTest.class)
+public void constantBands() throws Exception
+{
+  for (int type : types)
+  {
+    MrGeoRaster raster = createRaster(type, 3);
+
+    // band 0 all nodata, band 2 a constant value
+    raster.fill(0, Double.NaN);
+    raster.fill(2, 7);
+
+    RasterWritable encoded = TileCodec.PREDICTIVE.encode(raster);
+    assertEquals(raster, RasterWritable.toMrGeoRaster(encoded));
+
+    MrGeoRaster empty = MrGeoRaster.createEmptyRaster(256, 256, 2, type, -9999);
+    encoded = TileCodec.PREDICTIVE.encode(empty);
+
+    // just the header and the values
+    Assert.assertTrue(encoded.getSize() < 32);
+    assertEquals(empty, RasterWritable.toMrGeoRaster(encoded));
+  }
+}
+
+@Test
+@Category(UnitTest.class)
+public void compresses() throws Exception
+{
+  // better than deflating the raw bytes
+  for (int type : new int[]{DataBuffer.TYPE_SHORT, DataBuffer.TYPE_INT, DataBuffer.TYPE_FLOAT})
+  {
+    MrGeoRaster raster = createRaster(type, 1);
+    RasterWritable encoded = TileCodec.PREDICTIVE.encode(raster);
+
+    Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    deflater.setInput(raster.data(), raster.dataoffset(), raster.datasize());
+    deflater.finish();
+    byte[] deflated = new byte[raster.datalength() * 2];
+    int len = deflater.deflate(deflated);
+    deflater.end();
+
+    Assert.assertTrue("Encoded " + encoded.getSize() + " bytes, deflated " + len, encoded.getSize() < len);
+  }
+}
+
+@Test
+@Category(UnitTest.class)
+public void none() throws Exception
+{
+  MrGeoRaster raster = createRaster(DataBuffer.TYPE_INT, 1);
+  RasterWritable writable = TileCodec.NONE.encode(raster);
+
+  Assert.assertFalse(TileCodec.isEncoded(writable.getBytes()));
+  assertEquals(raster, RasterWritable.toMrGeoRaster(writable));
+
+  // already encoded tiles are passed through
+  RasterWritable encoded = TileCodec.PREDICTIVE.encode(raster);
+  Assert.assertSame(encoded, TileCodec.PREDICTIVE.encode(encoded));
+}
+
+@Test
+@Category(UnitTest.class)
+public void constantTiles() throws Exception
+{
+  for (int type : types)
+  {
+    MrGeoRaster empty = MrGeoRaster.createEmptyRaster(256, 256, 2, type, 200);
+    empty.fill(1, 12);
+
+    RasterWritable compacted = TileCodec.compact(empty);
+    Assert.assertTrue(compacted.getSize() < 32);
+    assertEquals(empty, RasterWritable.toMrGeoRaster(compacted));
+
+    // the same from the raw bytes, and compacting again changes nothing
+    Assert.assertArrayEquals(compacted.getBytes(), TileCodec.compact(RasterWritable.toWritable(empty)).getBytes());
+    Assert.assertSame(compacted, TileCodec.compact(compacted));
+
+    double[] values = TileCodec.constantValues(compacted);
+    Assert.assertArrayEquals(new double[]{200, 12}, values, 0.0);
+
+    RasterWritable constant = TileCodec.constant(compacted, type, new double[]{3, 4});
+    MrGeoRaster expanded = RasterWritable.toMrGeoRaster(constant);
+    Assert.assertEquals(256, expanded.width());
+    Assert.assertEquals(256, expanded.height());
+    Assert.assertEquals(4, expanded.getPixelDouble(255, 255, 1), 0.0);
+
+    // tiles that aren't constant aren't compacted
+    MrGeoRaster raster = createRaster(type, 2);
+    RasterWritable writable = TileCodec.compact(raster);
+    Assert.assertFalse(TileCodec.isEncoded(writable.getBytes()));
+    Assert.assertSame(writable, TileCodec.compact(writable));
+    Assert.assertNull(TileCodec.constantValues(writable));
+    Assert.assertNull(TileCodec.constantValues(TileCodec.PREDICTIVE.encode(raster)));
+  }
+}
+
+@Test
+@Category(UnitTest.class)
+public void allNodata() throws Exception
+{
+  double[] nodatas = {Double.NaN, -9999};
+
+  MrGeoRaster raster = MrGeoRaster.createEmptyRaster(64, 64, 2, DataBuffer.TYPE_FLOAT, nodatas);
+  Assert.assertTrue(raster.isAllNodata(nodatas));
+  Assert.assertTrue(TileCodec.isAllNodata(TileCodec.compact(raster), nodatas));
+  Assert.assertTrue(TileCodec.isAllNodata(RasterWritable.toWritable(raster), nodatas));
+
+  raster.setPixel(63, 63, 1, 1.0f);
+  Assert.assertFalse(raster.isAllNodata(nodatas));
+  Assert.assertFalse(TileCodec.isAllNodata(RasterWritable.toWritable(raster), nodatas));
+
+  Assert.assertFalse(TileCodec.isAllNodata(TileCodec.constant(64, 64, DataBuffer.TYPE_FLOAT,
+      new double[]{Double.NaN, 0}), nodatas));
+}
+
+@Test
+@Category(UnitTest.class)
+public void fromString()
+{
+  Assert.assertEquals(TileCodec.PREDICTIVE, TileCodec.fromString(" Predictive"));
+  Assert.assertEquals(TileCodec.NONE, TileCodec.fromString("none"));
+}
+
+// a smooth surface with some noise, like elevation
+private static MrGeoRaster createRaster(int type, int bands) throws Exception
+{
+  Random random = new Random(42);
+  MrGeoRaster raster = MrGeoRaster.createEmptyRaster(256, 256, bands, type);
+  for (int b = 0; b < bands; b++)
+  {
+    for (int y = 0; y < raster.height(); y++)
+    {
+      for (int x = 0; x < raster.width(); x++)
+      {
+        double v = 100 + x * 0.3 + y * 0.2 + b + random.nextDouble();
+        if (type == DataBuffer.TYPE_FLOAT || type == DataBuffer.TYPE_DOUBLE)
+        {
+          raster.setPixel(x, y, b, v);
+        }
+        else
+        {
+          raster.setPixel(x, y, b, (int) v);
+        }
+      }
+    }
+  }
+  return raster;
+}
+
+private static void assertEquals(MrGeoRaster expected, MrGeoRaster actual)
+{
+  Assert.assertEquals(expected.width(), actual.width());
+  Assert.assertEquals(expected.height(), actual.height());
+  Assert.assertEquals(expected.bands(), actual.bands());
+  Assert.assertTrue(Arrays.equals(
+      Arrays.copyOfRange(expected.data(), expected.dataoffset(), expected.datalength()),
+      Arrays.copyOfRange(actual.data(), actual.dataoffset(), actual.datalength())));
+}
+}
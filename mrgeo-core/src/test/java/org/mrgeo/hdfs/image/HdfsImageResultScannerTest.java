@@ -80,7 +80,6 @@ public void testConstructionWithZoom() throws Exception
 {
   zoom = 3;
   subject = createDefaultSubject(zoom, bounds);
-  Assert.assertTrue(subject.hasNext());
   assertIterateOverTiles(0, firstPartitionTileIds.length + secondPartitionTileIds.length - 1);
 }
 
@@ -91,7 +90,6 @@ public void testConstructionWithZoomOutOfLeftBound() throws Exception
   zoom = 3;
   bounds = new LongRectangle(1, 0, 7, 2);
   subject = createDefaultSubject(zoom, bounds);
-  Assert.assertTrue(subject.hasNext());
   assertIterateOverTiles(0, firstPartitionTileIds.length + secondPartitionTileIds.length - 1);
 }
 
@@ -102,7 +100,6 @@ public void testConstructionWithZoomOutOfRightBound() throws Exception
   zoom = 3;
   bounds = new LongRectangle(0, 0, 3, 2);
   subject = createDefaultSubject(zoom, bounds);
-  Assert.assertTrue(subject.hasNext());
   assertIterateOverTiles(0, firstPartitionTileIds.length + secondPartitionTileIds.length - 1);
 }
 
@@ -111,8 +108,6 @@ public void testConstructionWithZoomOutOfRightBound() throws Exception
 public void testStartEqualFirstTileEndEqualLast() throws Exception
 {
   subject = createDefaultSubject(firstPartitionTileIds[0], secondPartitionTileIds[secondPartitionTileIds.length - 1]);
-  // Need an initial hasNext so the readFirst flag will clear.  This behavior should probably be changed
-  Assert.assertTrue(subject.hasNext());
   assertIterateOverTiles(0, firstPartitionTileIds.length + secondPartitionTileIds.length - 1);
   Assert.assertFalse(subject.hasNext());
 }
@@ -123,8 +118,6 @@ public void testStartGreaterThanFirstTileEndEqualLast() throws Exception
 {
   subject = createDefaultSubject(firstPartitionTileIds[1], secondPartitionTileIds[secondPartitionTileIds.length - 1]);
 //        Assert.assertEquals(startIndex < firstPartitionTileIds.length ? 0 : 1, subject.curPartitionIndex);
-  // Need an initial hasNext so the readFirst flag will clear.  This behavior should probably be changed
-  Assert.assertTrue(subject.hasNext());
   assertIterateOverTiles(1, firstPartitionTileIds.length + secondPartitionTileIds.length - 1);
   Assert.assertFalse(subject.hasNext());
 }
@@ -135,8 +128,6 @@ public void testStartInSecondPartitionEndEqualLast() throws Exception
 {
   subject = createDefaultSubject(secondPartitionTileIds[0], secondPartitionTileIds[secondPartitionTileIds.length - 1]);
 //        Assert.assertEquals(startIndex < firstPartitionTileIds.length ? 0 : 1, subject.curPartitionIndex);
-  // Need an initial hasNext so the readFirst flag will clear.  This behavior should probably be changed
-  Assert.assertTrue(subject.hasNext());
   assertIterateOverTiles(firstPartitionTileIds.length,
       firstPartitionTileIds.length + secondPartitionTileIds.length - 1);
   Assert.assertFalse(subject.hasNext());
@@ -147,8 +138,6 @@ public void testStartInSecondPartitionEndEqualLast() throws Exception
 public void testStartEqualFirstTileEndBeforeLast() throws Exception
 {
   subject = createDefaultSubject(firstPartitionTileIds[0], secondPartitionTileIds[secondPartitionTileIds.length - 2]);
-  // Need an initial hasNext so the readFirst flag will clear.  This behavior should probably be changed
-  Assert.assertTrue(subject.hasNext());
   assertIterateOverTiles(0, firstPartitionTileIds.length + secondPartitionTileIds.length - 2);
   Assert.assertFalse(subject.hasNext());
 }
@@ -158,8 +147,6 @@ public void testStartEqualFirstTileEndBeforeLast() throws Exception
 public void testStartEqualFirstTileEndInFirstPartition() throws Exception
 {
   subject = createDefaultSubject(firstPartitionTileIds[0], firstPartitionTileIds[firstPartitionTileIds.length - 1]);
-  // Need an initial hasNext so the readFirst flag will clear.  This behavior should probably be changed
-  Assert.assertTrue(subject.hasNext());
   assertIterateOverTiles(0, firstPartitionTileIds.length - 1);
   Assert.assertFalse(subject.hasNext());
 }
@@ -169,8 +156,6 @@ public void testStartEqualFirstTileEndInFirstPartition() throws Exception
 public void testNullStart() throws Exception
 {
   subject = createDefaultSubject(null, secondPartitionTileIds[secondPartitionTileIds.length - 2]);
-  // Need an initial hasNext so the readFirst flag will clear.  This behavior should probably be changed
-  Assert.assertTrue(subject.hasNext());
   assertIterateOverTiles(0, firstPartitionTileIds.length + secondPartitionTileIds.length - 2);
   Assert.assertFalse(subject.hasNext());
 }
@@ -180,8 +165,6 @@ public void testNullStart() throws Exception
 public void testNullEnd() throws Exception
 {
   subject = createDefaultSubject(firstPartitionTileIds[1], null);
-  // Need an initial hasNext so the readFirst flag will clear.  This behavior should probably be changed
-  Assert.assertTrue(subject.hasNext());
   assertIterateOverTiles(1, firstPartitionTileIds.length + secondPartitionTileIds.length - 1);
   Assert.assertFalse(subject.hasNext());
 }
@@ -191,8 +174,6 @@ public void testNullEnd() throws Exception
 public void testNullStartAndEnd() throws Exception
 {
   subject = createDefaultSubject(null, null);
-  // Need an initial hasNext so the readFirst flag will clear.  This behavior should probably be changed
-  Assert.assertTrue(subject.hasNext());
   assertIterateOverTiles(0, firstPartitionTileIds.length + secondPartitionTileIds.length - 1);
   Assert.assertFalse(subject.hasNext());
 }
@@ -221,7 +202,6 @@ public void testEndAfterLastTile() throws Exception
 {
   subject = createDefaultSubject(null,
       new TileIdWritable(secondPartitionTileIds[secondPartitionTileIds.length - 1].get() + 1));
-  Assert.assertTrue(subject.hasNext());
   assertIterateOverTiles(0, firstPartitionTileIds.length + secondPartitionTileIds.length - 1);
   Assert.assertFalse(subject.hasNext());
 }
@@ -232,7 +212,6 @@ public void testEndNotEqualToKey() throws Exception
 {
   subject = createDefaultSubject(null,
       new TileIdWritable(secondPartitionTileIds[secondPartitionTileIds.length - 1].get() - 1));
-  Assert.assertTrue(subject.hasNext());
   assertIterateOverTiles(0, firstPartitionTileIds.length + secondPartitionTileIds.length - 2);
   Assert.assertFalse(subject.hasNext());
 }
@@ -244,8 +223,6 @@ public void testReaderCannotBeCached() throws Exception
   mockImageReader = createDefaultImageReader(0, false);
   subject = new HdfsImageResultScanner(firstPartitionTileIds[0],
       secondPartitionTileIds[secondPartitionTileIds.length - 1], mockImageReader);
-  // Need an initial hasNext so the readFirst flag will clear.  This behavior should probably be changed
-  Assert.assertTrue(subject.hasNext());
   assertIterateOverTiles(0, firstPartitionTileIds.length + secondPartitionTileIds.length - 1);
   Assert.assertFalse(subject.hasNext());
   verify(firstPartitionMockMapFileReader, atLeastOnce()).close();
@@ -4,21 +4,33 @@ import junit.framework.Assert;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.MapFile;
 import org.apache.hadoop.io.SequenceFile;
 import org.apache.hadoop.mapreduce.InputSplit;
 import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
 import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.mapreduce.task.TaskAttemptContextImpl;
 import org.junit.After;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
 import org.junit.experimental.categories.Category;
+import org.junit.rules.TemporaryFolder;
+import org.mrgeo.data.image.ImageInputFormatContext;
+import org.mrgeo.data.raster.MrGeoRaster;
 import org.mrgeo.data.raster.RasterWritable;
 import org.mrgeo.data.tile.TileIdWritable;
 import org.mrgeo.hdfs.utils.*;
 import org.mrgeo.junit.UnitTest;
 import org.mrgeo.mapreduce.splitters.TiledInputSplit;
+import org.mrgeo.utils.tms.Bounds;
+import org.mrgeo.utils.tms.TMSUtils;
 
+import java.awt.image.DataBuffer;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
@@ -26,6 +38,9 @@ import static org.mockito.Mockito.when;
 @SuppressWarnings("all") // test code, not included in production
 public class HdfsMrsPyramidRecordReaderTest
 {
+@Rule
+public TemporaryFolder folder = new TemporaryFolder();
+
 private TaskAttemptContext mockContext;
 private SequenceFile.Reader mockReader;
 private Configuration mockConfig;
@@ -149,6 +164,70 @@ public void testNextKeyValue() throws Exception
 }
 
 
+@Test
+@Category(UnitTest.class)
+public void testCroppedReadSeeks() throws Exception
+{
+  int zoom = 5;
+  int tilesize = 512;
+  long width = TMSUtils.numXTiles(zoom);
+
+  Configuration conf = new Configuration();
+  MapFile.Writer.setIndexInterval(conf, 4);
+
+  // every tile in the bottom 8 rows
+  Path dir = new Path(folder.getRoot().toURI().toString(), "00000");
+  RasterWritable raster = RasterWritable.toWritable(MrGeoRaster.createEmptyRaster(16, 16, 1, DataBuffer.TYPE_BYTE));
+  try (MapFile.Writer writer = new MapFile.Writer(conf, dir,
+      MapFile.Writer.keyClass(TileIdWritable.class),
+      SequenceFile.Writer.valueClass(RasterWritable.class)))
+  {
+    for (long ty = 0; ty < 8; ty++)
+    {
+      for (long tx = 0; tx < width; tx++)
+      {
+        writer.append(new TileIdWritable(TMSUtils.tileid(tx, ty, zoom)), raster);
+      }
+    }
+  }
+
+  // crop to tiles 10 - 12, 3 - 5 (shrink the bounds a bit so we don't pick up the neighbors)
+  Bounds ll = TMSUtils.tileBounds(10, 3, zoom, tilesize);
+  Bounds ur = TMSUtils.tileBounds(12, 5, zoom, tilesize);
+  double epsilon = ll.width() / 100.0;
+  Bounds crop = new Bounds(ll.w + epsilon, ll.s + epsilon, ur.e - epsilon, ur.n - epsilon);
+  new ImageInputFormatContext(zoom, tilesize, "foo", crop, null).save(conf);
+
+  Path data = new Path(dir, MapFile.DATA_FILE_NAME);
+  TiledInputSplit split = new TiledInputSplit(new FileSplit(data, 0, 0, null),
+      0, TMSUtils.tileid(width - 1, 7, zoom), zoom, tilesize);
+
+  HdfsMrsPyramidRecordReader reader = new HdfsMrsPyramidRecordReader();
+  reader.initialize(split, new TaskAttemptContextImpl(conf, new TaskAttemptID()));
+
+  List<Long> ids = new ArrayList<>();
+  while (reader.nextKeyValue())
+  {
+    ids.add(reader.getCurrentKey().get());
+    Assert.assertEquals(16, RasterWritable.toMrGeoRaster(reader.getCurrentValue()).width());
+  }
+  reader.close();
+
+  List<Long> expected = new ArrayList<>();
+  for (long ty = 3; ty <= 5; ty++)
+  {
+    for (long tx = 10; tx <= 12; tx++)
+    {
+      expected.add(TMSUtils.tileid(tx, ty, zoom));
+    }
+  }
+  Assert.assertEquals(expected, ids);
+
+  long length = data.getFileSystem(conf).getFileStatus(data).getLen();
+  Assert.assertTrue("skipped " + reader.getBytesSkipped(), reader.getBytesSkipped() > length / 2);
+  Assert.assertTrue("read " + reader.getBytesRead(), reader.getBytesRead() < length / 2);
+}
+
 //    @Test
 //    @Category(UnitTest.class)
 //    public void testInitialize() throws Exception {
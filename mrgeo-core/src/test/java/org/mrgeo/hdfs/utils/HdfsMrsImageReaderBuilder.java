@@ -5,6 +5,7 @@ import org.mockito.stubbing.Answer;
 import org.mrgeo.data.tile.TileIdWritable;
 import org.mrgeo.hdfs.image.HdfsMrsImageReader;
 import org.mrgeo.hdfs.utils.HadoopFileUtils.MapFileReaderWrapper;
+import org.mrgeo.utils.tms.TileOrder;
 
 import java.io.IOException;
 import java.util.ArrayList;
@@ -72,6 +73,8 @@ public HdfsMrsImageReader build() throws IOException
 
   when(hdfsMrsImageReader.getZoomlevel()).thenReturn(zoom);
 
+  when(hdfsMrsImageReader.getTileOrder()).thenReturn(TileOrder.ROW_MAJOR);
+
   return hdfsMrsImageReader;
 }
 }
@@ -140,8 +140,8 @@ public Writable getClosest(WritableComparable key, Writable value, boolean retur
   if (foundKey != null)
   {
     copyData(foundValue, value);
-    // Update the index.
-    index = keyIndex;
+    // Update the index, like MapFile.Reader, next() returns the key after the found one
+    index = keyIndex + 1;
     logger.debug("Found key " + foundKey);
     return foundKey;
   }
@@ -0,0 +1,321 @@
+/*
+ * Copyright 2009-2017. DigitalGlobe, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.mrgeo.hdfs.utils;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.MapFile;
+import org.apache.hadoop.io.SequenceFile;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.rules.TemporaryFolder;
+import org.mrgeo.junit.UnitTest;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+@SuppressWarnings("all") // Test code, not included in production
+public class RangedInputStreamTest
+{
+@Rule
+public TemporaryFolder folder = new TemporaryFolder();
+
+// An in-memory object that records the ranges read from it, standing in for S3
+private static class ByteSource implements RangedInputStream.Source
+{
+  final byte[] bytes;
+  final String name;
+  final List<long[]> reads = new ArrayList<>();
+
+  ByteSource(String name, int size)
+  {
+    this.name = name;
+    bytes = new byte[size];
+    for (int i = 0; i < size; i++)
+    {
+      bytes[i] = (byte) i;
+    }
+  }
+
+  @Override
+  public String name()
+  {
+    return name;
+  }
+
+  @Override
+  public long length()
+  {
+    return bytes.length;
+  }
+
+  @Override
+  public void read(long position, byte[] buffer, int offset, int length) throws IOException
+  {
+    reads.add(new long[]{position, length});
+    System.arraycopy(bytes, (int) position, buffer, offset, length);
+  }
+
+  @Override
+  public void close()
+  {
+  }
+}
+
+@Before
+public void setUp()
+{
+  RangedInputStream.clearCache();
+}
+
+@Test
+@Category(UnitTest.class)
+public void readAcrossBlocks() throws Exception
+{
+  ByteSource source = new ByteSource("across", 1000);
+  try (RangedInputStream stream = new RangedInputStream(source, 100))
+  {
+    stream.seek(150);
+    byte[] buffer = new byte[300];
+    assertEquals(300, stream.read(buffer, 0, buffer.length));
+    for (int i = 0; i < buffer.length; i++)
+    {
+      assertEquals((byte) (150 + i), buffer[i]);
+    }
+    assertEquals(450, stream.getPos());
+
+    // blocks 1 - 4, in a single request
+    assertEquals(1, source.reads.size());
+    assertEquals(100, source.reads.get(0)[0]);
+    assertEquals(400, source.reads.get(0)[1]);
+
+    // already cached
+    stream.seek(120);
+    assertEquals(120, stream.read());
+    assertEquals(1, source.reads.size());
+  }
+}
+
+@Test
+@Category(UnitTest.class)
+public void onlyMissingBlocksRead() throws Exception
+{
+  ByteSource source = new ByteSource("missing", 1000);
+  try (RangedInputStream stream = new RangedInputStream(source, 100))
+  {
+    stream.seek(250);
+    stream.read();
+
+    stream.seek(0);
+    byte[] buffer = new byte[500];
+    assertEquals(500, stream.read(buffer, 0, buffer.length));
+
+    // block 2, then 0 - 1 and 3 - 4
+    assertEquals(3, source.reads.size());
+    assertArrayEquals(new long[]{0, 200}, source.reads.get(1));
+    assertArrayEquals(new long[]{300, 200}, source.reads.get(2));
+  }
+}
+
+@Test
+@Category(UnitTest.class)
+public void endOfStream() throws Exception
+{
+  ByteSource source = new ByteSource("end", 250);
+  try (RangedInputStream stream = new RangedInputStream(source, 100))
+  {
+    stream.seek(240);
+    byte[] buffer = new byte[100];
+    assertEquals(10, stream.read(buffer, 0, buffer.length));
+    assertEquals((byte) 249, buffer[9]);
+    assertEquals(-1, stream.read());
+    assertEquals(-1, stream.read(buffer, 0, buffer.length));
+
+    try
+    {
+      stream.seek(251);
+      fail("Expected an EOFException");
+    }
+    catch (EOFException ignored)
+    {
+    }
+  }
+}
+
+@Test
+@Category(UnitTest.class)
+public void cacheSharedBetweenStreams() throws Exception
+{
+  ByteSource source = new ByteSource("shared", 1000);
+  try (RangedInputStream stream = new RangedInputStream(source, 100))
+  {
+    stream.seek(500);
+    stream.read();
+  }
+
+  long hits = RangedInputStream.getStatistics().hitCount();
+  try (RangedInputStream stream = new RangedInputStream(source, 100))
+  {
+    stream.seek(550);
+    assertEquals((byte) 550, (byte) stream.read());
+  }
+
+  assertEquals(1, source.reads.size());
+  assertTrue(RangedInputStream.getStatistics().hitCount() > hits);
+}
+
+@Test
+@Category(UnitTest.class)
+public void sequentialReadsReuseBlocks() throws Exception
+{
+  ByteSource source = new ByteSource("sequential", 1000);
+  try (RangedInputStream stream = new RangedInputStream(source, 100))
+  {
+    // a byte at a time, then in small pieces that don't cross a block, one request per block
+    for (int i = 0; i < 500; i++)
+    {
+      assertEquals((byte) i, (byte) stream.read());
+    }
+    byte[] buffer = new byte[10];
+    for (int i = 500; i < 1000; i += buffer.length)
+    {
+      assertEquals(buffer.length, stream.read(buffer, 0, buffer.length));
+      assertEquals((byte) i, buffer[0]);
+    }
+    assertEquals(-1, stream.read());
+
+    assertEquals(10, source.reads.size());
+    for (int i = 0; i < source.reads.size(); i++)
+    {
+      assertArrayEquals(new long[]{i * 100, 100}, source.reads.get(i));
+    }
+
+    // all of it again, without going back to the source
+    stream.seek(0);
+    buffer = new byte[1000];
+    assertEquals(1000, stream.read(buffer, 0, buffer.length));
+    assertEquals(10, source.reads.size());
+  }
+}
+
+@Test
+@Category(UnitTest.class)
+public void coalescesToThePartialLastBlock() throws Exception
+{
+  ByteSource source = new ByteSource("partial", 950);
+  try (RangedInputStream stream = new RangedInputStream(source, 100))
+  {
+    // blocks 2 and 5 are cached, the rest of the read coalesces into the runs between them
+    stream.seek(250);
+    stream.read();
+    stream.seek(550);
+    stream.read();
+
+    stream.seek(10);
+    byte[] buffer = new byte[940];
+    assertEquals(940, stream.read(buffer, 0, buffer.length));
+    for (int i = 0; i < buffer.length; i++)
+    {
+      assertEquals((byte) (10 + i), buffer[i]);
+    }
+
+    assertEquals(5, source.reads.size());
+    assertArrayEquals(new long[]{0, 200}, source.reads.get(2));
+    assertArrayEquals(new long[]{300, 200}, source.reads.get(3));
+    assertArrayEquals(new long[]{600, 350}, source.reads.get(4));
+  }
+}
+
+@Test
+@Category(UnitTest.class)
+public void blocksKeyedByBlockSize() throws Exception
+{
+  ByteSource source = new ByteSource("blocksize", 1000);
+  try (RangedInputStream stream = new RangedInputStream(source, 100))
+  {
+    stream.read();
+  }
+
+  // a different block size can't use the cached blocks
+  try (RangedInputStream stream = new RangedInputStream(source, 200))
+  {
+    stream.seek(50);
+    assertEquals((byte) 50, (byte) stream.read());
+  }
+
+  assertEquals(2, source.reads.size());
+  assertArrayEquals(new long[]{0, 200}, source.reads.get(1));
+}
+
+@Test
+@Category(UnitTest.class)
+public void mapFile() throws Exception
+{
+  Configuration conf = new Configuration();
+  Path dir = new Path(folder.getRoot().toURI().toString(), "mapfile");
+
+  try (MapFile.Writer writer = new MapFile.Writer(conf, dir,
+      MapFile.Writer.keyClass(LongWritable.class),
+      SequenceFile.Writer.valueClass(BytesWritable.class)))
+  {
+    for (long key = 0; key < 200; key++)
+    {
+      byte[] value = new byte[1000];
+      value[0] = (byte) key;
+      writer.append(new LongWritable(key), new BytesWritable(value));
+    }
+  }
+
+  MapFile.Reader reader = new RangedMapFileReader(dir, conf);
+  try
+  {
+    BytesWritable value = new BytesWritable();
+
+    assertNotNull(reader.get(new LongWritable(123), value));
+    assertEquals(1000, value.getLength());
+    assertEquals((byte) 123, value.getBytes()[0]);
+
+    assertNotNull(reader.get(new LongWritable(7), value));
+    assertEquals((byte) 7, value.getBytes()[0]);
+
+    assertNull(reader.get(new LongWritable(500), value));
+
+    // and in order
+    LongWritable key = new LongWritable();
+    reader.reset();
+    long count = 0;
+    while (reader.next(key, value))
+    {
+      assertEquals(count, key.get());
+      assertEquals((byte) count, value.getBytes()[0]);
+      count++;
+    }
+    assertEquals(200, count);
+  }
+  finally
+  {
+    reader.close();
+  }
+}
+}
@@ -3,6 +3,8 @@ package org.mrgeo.ingest;
 import org.junit.*;
 import org.junit.experimental.categories.Category;
 import org.junit.rules.TestName;
+import org.mrgeo.core.MrGeoConstants;
+import org.mrgeo.core.MrGeoProperties;
 import org.mrgeo.data.ProviderProperties;
 import org.mrgeo.data.raster.MrGeoRaster;
 import org.mrgeo.image.MrsImage;
@@ -20,6 +22,7 @@ import org.mrgeo.utils.tms.TMSUtils;
 import java.awt.image.DataBuffer;
 import java.io.IOException;
 import java.util.HashMap;
+import java.util.Properties;
 
 @SuppressWarnings("all") // test code, not included in production
 public class IngestImageTest extends LocalRunnerTest
@@ -215,6 +218,58 @@ public void ingestTileShifted() throws IOException
   }
 }
 
+@Test
+@Category(UnitTest.class)
+public void ingestMultipleWindows() throws IOException
+{
+  // shiftedtile covers 4 tiles, ingest it as a window per tile, then as a single window, they
+  // should give the same tiles
+  String input = testUtils.getInputLocalFor(shiftedtile);
+  String output = testUtils.getOutputHdfsFor(testname.getMethodName()).toString();
+
+  int tilesize = 512;
+  int zoom = GDALUtils.calculateZoom(input, tilesize);
+  Bounds bounds = GDALUtils.getBounds(GDALUtils.open(input));
+
+  Properties props = MrGeoProperties.getInstance();
+  String windowTiles = props.getProperty(MrGeoConstants.MRGEO_INGEST_WINDOW_TILES);
+  try
+  {
+    props.setProperty(MrGeoConstants.MRGEO_INGEST_WINDOW_TILES, "1");
+    IngestImage.localIngest(new String[]{input}, output + "-multiple", false, false, getConfiguration(),
+        bounds, zoom, tilesize, new double[]{-9999}, 1, DataBuffer.TYPE_FLOAT,
+        new HashMap<String, String>(), "", new ProviderProperties());
+
+    props.setProperty(MrGeoConstants.MRGEO_INGEST_WINDOW_TILES, "8");
+    IngestImage.localIngest(new String[]{input}, output + "-single", false, false, getConfiguration(),
+        bounds, zoom, tilesize, new double[]{-9999}, 1, DataBuffer.TYPE_FLOAT,
+        new HashMap<String, String>(), "", new ProviderProperties());
+  }
+  finally
+  {
+    if (windowTiles == null)
+    {
+      props.remove(MrGeoConstants.MRGEO_INGEST_WINDOW_TILES);
+    }
+    else
+    {
+      props.setProperty(MrGeoConstants.MRGEO_INGEST_WINDOW_TILES, windowTiles);
+    }
+  }
+
+  MrsPyramid multiple = MrsPyramid.open(output + "-multiple", getConfiguration());
+  MrsPyramid single = MrsPyramid.open(output + "-single", getConfiguration());
+
+  LongRectangle tb = multiple.getMetadata().getTileBounds(zoom);
+  Assert.assertEquals("Wrong number of tiles", 4, tb.getWidth() * tb.getHeight());
+  Assert.assertEquals("Tile bounds differ", single.getMetadata().getTileBounds(zoom), tb);
+
+  try (MrsImage m = multiple.getImage(zoom); MrsImage s = single.getImage(zoom))
+  {
+    TestUtils.compareRasters(s.getRaster(), m.getRaster());
+  }
+}
+
 // This test has differences between GDAL 1.x and GDAL 2.x.  We therefor need to have 2 golden images
 @Test
 @Category(IntegrationTest.class)
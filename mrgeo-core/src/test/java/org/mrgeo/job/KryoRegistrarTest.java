@@ -0,0 +1,147 @@
+/*
+ * Copyright 2009-2017. DigitalGlobe, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.mrgeo.job;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.mrgeo.data.raster.MrGeoRaster;
+import org.mrgeo.data.raster.RasterWritable;
+import org.mrgeo.data.tile.TileIdWritable;
+import org.mrgeo.data.vector.FeatureIdWritable;
+import org.mrgeo.geometry.Geometry;
+import org.mrgeo.geometry.GeometryFactory;
+import org.mrgeo.geometry.Point;
+import org.mrgeo.geometry.Polygon;
+import org.mrgeo.geometry.WritablePoint;
+import org.mrgeo.junit.UnitTest;
+
+import java.awt.image.DataBuffer;
+import java.util.HashMap;
+
+@SuppressWarnings("all") // Test code, not included in production
+public class KryoRegistrarTest
+{
+private Kryo kryo;
+
+@Before
+public void setUp()
+{
+  kryo = new Kryo();
+  new KryoRegistrar().registerClasses(kryo);
+}
+
+@Test
+@Category(UnitTest.class)
+public void tileId()
+{
+  TileIdWritable id = roundTrip(new TileIdWritable(123456789L));
+  Assert.assertEquals(123456789L, id.get());
+
+  FeatureIdWritable fid = roundTrip(new FeatureIdWritable(42L));
+  Assert.assertEquals(42L, fid.get());
+}
+
+@Test
+@Category(UnitTest.class)
+public void rasterWritable() throws Exception
+{
+  MrGeoRaster raster = MrGeoRaster.createEmptyRaster(16, 16, 2, DataBuffer.TYPE_FLOAT);
+  raster.setPixel(3, 4, 1, 12.5f);
+
+  RasterWritable writable = RasterWritable.toWritable(raster);
+  RasterWritable copy = roundTrip(writable);
+  Assert.assertEquals(writable, copy);
+
+  MrGeoRaster result = RasterWritable.toMrGeoRaster(copy);
+  Assert.assertEquals(12.5f, result.getPixelFloat(3, 4, 1), 0.0);
+
+  // only the raster bytes, plus the length
+  Assert.assertTrue(serialize(writable).length <= writable.getSize() + 5);
+
+  Assert.assertEquals(0, roundTrip(new RasterWritable()).getSize());
+}
+
+@Test
+@Category(UnitTest.class)
+public void mrgeoRaster() throws Exception
+{
+  int[] types = {DataBuffer.TYPE_BYTE, DataBuffer.TYPE_SHORT, DataBuffer.TYPE_INT, DataBuffer.TYPE_FLOAT,
+      DataBuffer.TYPE_DOUBLE};
+  for (int type : types)
+  {
+    MrGeoRaster raster = MrGeoRaster.createEmptyRaster(8, 8, 1, type);
+    raster.setPixel(7, 7, 0, 100);
+
+    MrGeoRaster copy = roundTrip(raster);
+    Assert.assertEquals(raster.getClass(), copy.getClass());
+    Assert.assertEquals(type, copy.datatype());
+    Assert.assertEquals(8, copy.width());
+    Assert.assertEquals(100, copy.getPixelInt(7, 7, 0));
+  }
+}
+
+@Test
+@Category(UnitTest.class)
+public void geometry()
+{
+  WritablePoint point = GeometryFactory.createPoint(1.5, -2.5);
+  point.setAttribute("name", "point");
+
+  Point p = (Point) roundTrip((Geometry) point);
+  Assert.assertEquals(1.5, p.getX(), 0.0);
+  Assert.assertEquals(-2.5, p.getY(), 0.0);
+  Assert.assertEquals("point", p.getAttribute("name"));
+
+  Polygon polygon = GeometryFactory.createPolygon(GeometryFactory.createPoint(0, 0), GeometryFactory.createPoint(1, 0),
+      GeometryFactory.createPoint(1, 1), GeometryFactory.createPoint(0, 0));
+  Polygon copy = (Polygon) roundTrip((Geometry) polygon);
+  Assert.assertEquals(polygon.getExteriorRing().getNumPoints(), copy.getExteriorRing().getNumPoints());
+}
+
+@Test
+@Category(UnitTest.class)
+public void geometryCollections()
+{
+  // these are registered, but not as geometries
+  HashMap<String, String> attributes = new HashMap<>();
+  attributes.put("name", "value");
+  HashMap<String, String> map = roundTrip(attributes);
+  Assert.assertEquals(attributes, map);
+
+  Geometry[] geometries = {GeometryFactory.createPoint(1, 2), GeometryFactory.createPoint(3, 4)};
+  Geometry[] array = roundTrip(geometries);
+  Assert.assertEquals(2, array.length);
+  Assert.assertEquals(3.0, ((Point) array[1]).getX(), 0.0);
+  Assert.assertEquals(4.0, ((Point) array[1]).getY(), 0.0);
+}
+
+private byte[] serialize(Object object)
+{
+  Output output = new Output(1024, -1);
+  kryo.writeClassAndObject(output, object);
+  return output.toBytes();
+}
+
+private <T> T roundTrip(T object)
+{
+  return (T) kryo.readClassAndObject(new Input(serialize(object)));
+}
+}
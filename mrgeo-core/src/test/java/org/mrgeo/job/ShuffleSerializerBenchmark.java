@@ -0,0 +1,174 @@
+/*
+ * Copyright 2009-2017. DigitalGlobe, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.mrgeo.job;
+
+import org.apache.spark.SparkConf;
+import org.apache.spark.api.java.JavaPairRDD;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.scheduler.SparkListener;
+import org.apache.spark.scheduler.SparkListenerTaskEnd;
+import org.apache.spark.serializer.KryoSerializer;
+import org.mrgeo.aggregators.MeanAggregator;
+import org.mrgeo.data.raster.MrGeoRaster;
+import org.mrgeo.data.raster.RasterWritable;
+import org.mrgeo.data.tile.TileIdWritable;
+import org.mrgeo.spark.FocalBuilder;
+import org.mrgeo.utils.tms.Bounds;
+import org.mrgeo.utils.tms.TMSUtils;
+import org.mrgeo.utils.tms.Tile;
+import org.mrgeo.utils.tms.TileBounds;
+import scala.Tuple2;
+
+import java.awt.image.DataBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares the shuffle bytes and time of the java serializer with kryo (and kryo with rdd.compress)
+ * for the two tile shuffles that dominate most jobs, the halo exchange in FocalBuilder and the
+ * decimate and mosaic of a BuildPyramid level (copied here, the real one is private to BuildPyramid).
+ * <p>
+ * Not a unit test, run it with main() from the test classpath.
+ */
+@SuppressWarnings("all") // test code, not included in production
+public class ShuffleSerializerBenchmark
+{
+private static final int tilesize = 256;
+private static final int tiles = 16;
+private static final int zoom = 10;
+private static final int iterations = 5;
+
+public static void main(String[] args) throws Exception
+{
+  run("java", false, false);
+  run("kryo", true, false);
+  run("kryo + rdd.compress", true, true);
+}
+
+private static void run(String name, boolean kryo, boolean compress) throws Exception
+{
+  SparkConf conf = new SparkConf()
+      .setMaster("local[4]")
+      .setAppName(ShuffleSerializerBenchmark.class.getSimpleName())
+      .set("spark.ui.enabled", "false")
+      .set("spark.rdd.compress", Boolean.toString(compress));
+  if (kryo)
+  {
+    conf.set("spark.serializer", KryoSerializer.class.getName())
+        .set("spark.kryo.registrator", KryoRegistrar.class.getName());
+  }
+  else
+  {
+    conf.set("spark.serializer", "org.apache.spark.serializer.JavaSerializer");
+  }
+
+  JavaSparkContext context = new JavaSparkContext(conf);
+  try
+  {
+    final AtomicLong shuffled = new AtomicLong();
+    context.sc().addSparkListener(new SparkListener()
+    {
+      @Override
+      public void onTaskEnd(SparkListenerTaskEnd taskEnd)
+      {
+        if (taskEnd.taskMetrics() != null)
+        {
+          shuffled.addAndGet(taskEnd.taskMetrics().shuffleWriteMetrics().bytesWritten());
+        }
+      }
+    });
+
+    TileBounds tb = new TileBounds(0, 0, tiles - 1, tiles - 1);
+    Bounds bounds = TMSUtils.tileToBounds(tb, zoom, tilesize);
+    double[] nodatas = {Double.NaN};
+
+    JavaPairRDD<TileIdWritable, RasterWritable> pyramid =
+        JavaPairRDD.fromJavaRDD(context.parallelize(createTiles(tb), 8)).cache();
+    pyramid.count();
+
+    for (int i = 0; i < iterations; i++)
+    {
+      shuffled.set(0);
+      long start = System.nanoTime();
+      FocalBuilder.create(pyramid.rdd(), 3, 3, bounds, zoom, nodatas, context.sc()).count();
+      long focal = System.nanoTime() - start;
+      long focalBytes = shuffled.get();
+
+      shuffled.set(0);
+      start = System.nanoTime();
+      buildLevel(pyramid, nodatas).persist(org.apache.spark.storage.StorageLevel.MEMORY_ONLY_SER()).count();
+      long level = System.nanoTime() - start;
+      long levelBytes = shuffled.get();
+
+      System.out.println(String.format("%-20s focal: %8d KB %6d ms   buildpyramid: %8d KB %6d ms", name,
+          focalBytes / 1024, focal / 1000000, levelBytes / 1024, level / 1000000));
+    }
+  }
+  finally
+  {
+    context.stop();
+  }
+}
+
+private static List<Tuple2<TileIdWritable, RasterWritable>> createTiles(TileBounds tb)
+    throws MrGeoRaster.MrGeoRasterException, java.io.IOException
+{
+  Random random = new Random(1);
+  List<Tuple2<TileIdWritable, RasterWritable>> list = new ArrayList<>();
+  for (long ty = tb.s; ty <= tb.n; ty++)
+  {
+    for (long tx = tb.w; tx <= tb.e; tx++)
+    {
+      MrGeoRaster raster = MrGeoRaster.createEmptyRaster(tilesize, tilesize, 1, DataBuffer.TYPE_FLOAT);
+      for (int y = 0; y < tilesize; y++)
+      {
+        for (int x = 0; x < tilesize; x++)
+        {
+          // smooth, like elevation, with a bit of noise
+          raster.setPixel(x, y, 0, (float) (1000.0 + (tx * tilesize + x) * 0.5 + (ty * tilesize + y) * 0.25 +
+              random.nextGaussian()));
+        }
+      }
+      list.add(new Tuple2<>(new TileIdWritable(TMSUtils.tileid(tx, ty, zoom)), RasterWritable.toWritable(raster)));
+    }
+  }
+  return list;
+}
+
+// the shape of BuildPyramid.buildlevel(), each tile is reduced and placed in a full sized tile of the
+// next level, and the four quarters are mosaicked together
+private static JavaPairRDD<TileIdWritable, RasterWritable> buildLevel(
+    JavaPairRDD<TileIdWritable, RasterWritable> pyramid, final double[] nodatas)
+{
+  return pyramid.mapToPair(tile -> {
+    Tile from = TMSUtils.tileid(tile._1.get(), zoom);
+    MrGeoRaster reduced = RasterWritable.toMrGeoRaster(tile._2).reduce(2, 2, new MeanAggregator(), nodatas);
+
+    MrGeoRaster to = reduced.createCompatibleEmptyRaster(tilesize, tilesize, nodatas);
+    to.copyFrom(0, 0, reduced.width(), reduced.height(), reduced,
+        (int) (from.tx % 2) * tilesize / 2, (int) (1 - from.ty % 2) * tilesize / 2);
+
+    return new Tuple2<>(new TileIdWritable(TMSUtils.tileid(from.tx / 2, from.ty / 2, zoom - 1)),
+        RasterWritable.toWritable(to));
+  }).reduceByKey((r1, r2) -> {
+    MrGeoRaster dst = RasterWritable.toMrGeoRaster(r1);
+    dst.mosaic(RasterWritable.toMrGeoRaster(r2), nodatas);
+    return RasterWritable.toWritable(dst);
+  });
+}
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2009-2017. DigitalGlobe, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.mrgeo.mapalgebra.vector.paint;
+
+import org.mrgeo.data.raster.RasterWritable;
+import org.mrgeo.geometry.Geometry;
+import org.mrgeo.geometry.GeometryFactory;
+import org.mrgeo.geometry.Point;
+import org.mrgeo.geometry.WritablePolygon;
+import org.mrgeo.mapalgebra.vector.paint.VectorPainter.AggregationType;
+import org.mrgeo.utils.tms.Bounds;
+import org.mrgeo.utils.tms.TMSUtils;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Paints a tile of a large polygon layer (parcels, building footprints) with VectorPainter's
+ * Java2D path and with the ScanlineRasterizer.
+ * <p>
+ * Not a unit test, run it with main() from the test classpath.
+ */
+@SuppressWarnings("all") // test code, not included in production
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Thread)
+public class ScanlineRasterizerBenchmark
+{
+private static final int zoom = 12;
+private static final int tilesize = 512;
+private static final long tx = 1000;
+private static final long ty = 1200;
+
+@Param({"mask", "sum", "average"})
+public String aggregation;
+
+@Param({"1000", "20000"})
+public int polygons;
+
+@Param({"8", "64"})
+public int vertices;
+
+private List<Geometry> features;
+private AggregationType type;
+private String column;
+private long tileid;
+
+public static void main(String[] args) throws RunnerException
+{
+  Options opt = new OptionsBuilder()
+      .include(ScanlineRasterizerBenchmark.class.getSimpleName())
+      .build();
+
+  new Runner(opt).run();
+}
+
+@Setup
+public void setup()
+{
+  type = AggregationType.valueOf(aggregation.toUpperCase());
+  column = (type == AggregationType.MASK) ? null : "value";
+  tileid = TMSUtils.tileid(tx, ty, zoom);
+
+  Bounds bounds = TMSUtils.tileBounds(tx, ty, zoom, tilesize);
+  double res = bounds.width() / tilesize;
+
+  // polygons of 2 - 40 pixels across, scattered over (and a little past) the tile
+  Random random = new Random(1234);
+  features = new ArrayList<>(polygons);
+  for (int i = 0; i < polygons; i++)
+  {
+    double cx = bounds.w + (random.nextDouble() * 1.1 - 0.05) * bounds.width();
+    double cy = bounds.s + (random.nextDouble() * 1.1 - 0.05) * bounds.height();
+    double radius = (1 + random.nextDouble() * 19) * res;
+
+    List<Point> points = new ArrayList<>(vertices + 1);
+    for (int v = 0; v < vertices; v++)
+    {
+      double angle = 2 * Math.PI * v / vertices;
+      double r = radius * (0.7 + random.nextDouble() * 0.3);
+      points.add(GeometryFactory.createPoint(cx + r * Math.cos(angle), cy + r * Math.sin(angle)));
+    }
+    points.add(points.get(0));
+
+    WritablePolygon polygon = GeometryFactory.createPolygon(points);
+    polygon.setAttribute("value", Integer.toString(random.nextInt(100)));
+    features.add(polygon);
+  }
+}
+
+@Benchmark
+public RasterWritable java2d() throws Exception
+{
+  VectorPainter painter = new VectorPainter(zoom, type, column, tilesize, 1.0f);
+  painter.beforePaintingTile(tileid);
+  for (Geometry feature : features)
+  {
+    painter.paintGeometry(feature);
+  }
+  return painter.afterPaintingTile();
+}
+
+@Benchmark
+public RasterWritable scanline() throws Exception
+{
+  ScanlineRasterizer rasterizer = new ScanlineRasterizer(zoom, type, column, tilesize, 1.0f);
+  rasterizer.beforePaintingTile(tileid);
+  for (Geometry feature : features)
+  {
+    rasterizer.paintGeometry(feature);
+  }
+  return rasterizer.afterPaintingTile();
+}
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright 2009-2017. DigitalGlobe, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.mrgeo.mapalgebra.vector.paint;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.mrgeo.data.raster.MrGeoRaster;
+import org.mrgeo.data.raster.RasterWritable;
+import org.mrgeo.geometry.*;
+import org.mrgeo.junit.UnitTest;
+import org.mrgeo.mapalgebra.vector.paint.VectorPainter.AggregationType;
+import org.mrgeo.utils.tms.Bounds;
+import org.mrgeo.utils.tms.TMSUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+@SuppressWarnings("all") // test code, not included in production
+public class ScanlineRasterizerTest
+{
+private static final int zoom = 10;
+private static final int tilesize = 256;
+private static final long tx = 300;
+private static final long ty = 400;
+
+private static final Bounds bounds = TMSUtils.tileBounds(tx, ty, zoom, tilesize);
+private static final long tileid = TMSUtils.tileid(tx, ty, zoom);
+
+@Test
+@Category(UnitTest.class)
+public void polygons() throws Exception
+{
+  Random random = new Random(42);
+  List<Geometry> features = new ArrayList<>();
+  for (int i = 0; i < 50; i++)
+  {
+    features.add(polygon(random, i));
+  }
+
+  for (AggregationType type : new AggregationType[]{AggregationType.MASK, AggregationType.MASK2,
+      AggregationType.SUM, AggregationType.MIN, AggregationType.MAX, AggregationType.AVERAGE})
+  {
+    compare(type, features, 1.0f);
+  }
+}
+
+@Test
+@Category(UnitTest.class)
+public void lines() throws Exception
+{
+  Random random = new Random(7);
+  List<Geometry> features = new ArrayList<>();
+  for (int i = 0; i < 50; i++)
+  {
+    WritableLineString line = GeometryFactory.createLineString();
+    for (int p = 0; p < 4; p++)
+    {
+      line.addPoint(point(random.nextDouble() * 280 - 12, random.nextDouble() * 280 - 12));
+    }
+    line.setAttribute("value", Integer.toString(i));
+    features.add(line);
+  }
+
+  compare(AggregationType.SUM, features, 1.0f);
+  compare(AggregationType.MAX, features, 4.0f);
+}
+
+@Test
+@Category(UnitTest.class)
+public void holes() throws Exception
+{
+  WritablePolygon polygon = GeometryFactory.createPolygon(point(10, 10), point(50, 10), point(50, 50),
+      point(10, 50), point(10, 10));
+  polygon.addInteriorRing(GeometryFactory.createLinearRing(point(20, 20), point(30, 20), point(30, 30),
+      point(20, 30), point(20, 20)));
+
+  ScanlineRasterizer rasterizer = new ScanlineRasterizer(zoom, AggregationType.MASK2, null, tilesize, 1.0f);
+  rasterizer.beforePaintingTile(tileid);
+  rasterizer.paintGeometry(polygon);
+  MrGeoRaster raster = RasterWritable.toMrGeoRaster(rasterizer.afterPaintingTile());
+
+  int count = 0;
+  for (int y = 0; y < tilesize; y++)
+  {
+    for (int x = 0; x < tilesize; x++)
+    {
+      count += raster.getPixelInt(x, y, 0);
+    }
+  }
+  Assert.assertEquals(40 * 40 - 10 * 10, count);
+  Assert.assertEquals(0, raster.getPixelInt(25, 25, 0));
+}
+
+@Test
+@Category(UnitTest.class)
+public void oncePerFeature() throws Exception
+{
+  // a line doubling back over itself still only counts once
+  WritableLineString line = GeometryFactory.createLineString();
+  line.addPoint(point(10.5, 20.5));
+  line.addPoint(point(100.5, 20.5));
+  line.addPoint(point(10.5, 20.5));
+
+  ScanlineRasterizer rasterizer = new ScanlineRasterizer(zoom, AggregationType.SUM, null, tilesize, 1.0f);
+  rasterizer.beforePaintingTile(tileid);
+  rasterizer.paintGeometry(line);
+  rasterizer.paintGeometry(line);
+  MrGeoRaster raster = RasterWritable.toMrGeoRaster(rasterizer.afterPaintingTile());
+
+  Assert.assertEquals(2.0f, raster.getPixelFloat(50, tilesize - 21, 0), 0.0f);
+}
+
+@Test
+@Category(UnitTest.class)
+public void partials() throws Exception
+{
+  Random random = new Random(11);
+  List<Geometry> features = new ArrayList<>();
+  for (int i = 0; i < 30; i++)
+  {
+    features.add(polygon(random, i + 1));
+  }
+
+  for (AggregationType type : new AggregationType[]{AggregationType.MASK, AggregationType.MASK2,
+      AggregationType.SUM, AggregationType.AVERAGE, AggregationType.MIN, AggregationType.MAX})
+  {
+    String column = (type == AggregationType.MASK || type == AggregationType.MASK2) ? null : "value";
+
+    ScanlineRasterizer rasterizer = new ScanlineRasterizer(zoom, type, column, tilesize, 1.0f);
+    rasterizer.beforePaintingTile(tileid);
+    for (Geometry feature : features)
+    {
+      rasterizer.paintGeometry(feature);
+    }
+    MrGeoRaster expected = RasterWritable.toMrGeoRaster(rasterizer.afterPaintingTile());
+
+    // the features painted into 3 partials, then merged
+    MrGeoRaster[] partials = new MrGeoRaster[3];
+    for (int i = 0; i < features.size(); i++)
+    {
+      rasterizer.beforePaintingTile(tileid, partials[i % 3]);
+      rasterizer.paintGeometry(features.get(i));
+      partials[i % 3] = rasterizer.partial();
+    }
+    MrGeoRaster merged = ScanlineRasterizer.merge(type, partials[0],
+        ScanlineRasterizer.merge(type, partials[1], partials[2]));
+    MrGeoRaster actual = RasterWritable.toMrGeoRaster(ScanlineRasterizer.finish(type, merged));
+
+    Assert.assertEquals(expected.datatype(), actual.datatype());
+    Assert.assertEquals(expected.bands(), actual.bands());
+    for (int y = 0; y < tilesize; y++)
+    {
+      for (int x = 0; x < tilesize; x++)
+      {
+        Assert.assertEquals(type + " " + x + ", " + y, expected.getPixelDouble(x, y, 0),
+            actual.getPixelDouble(x, y, 0), 1e-4);
+      }
+    }
+  }
+}
+
+// The rasterizer covers the same pixels as VectorPainter, except for a few where the edge
+// passes (within rounding) through the point sampled
+private static void compare(AggregationType type, List<Geometry> features, float width) throws Exception
+{
+  String column = (type == AggregationType.MASK || type == AggregationType.MASK2) ? null : "value";
+
+  VectorPainter painter = new VectorPainter(zoom, type, column, tilesize, width);
+  painter.beforePaintingTile(tileid);
+
+  ScanlineRasterizer rasterizer = new ScanlineRasterizer(zoom, type, column, tilesize, width);
+  rasterizer.beforePaintingTile(tileid);
+
+  for (Geometry feature : features)
+  {
+    painter.paintGeometry(feature);
+    rasterizer.paintGeometry(feature);
+  }
+
+  MrGeoRaster expected = RasterWritable.toMrGeoRaster(painter.afterPaintingTile());
+  MrGeoRaster actual = RasterWritable.toMrGeoRaster(rasterizer.afterPaintingTile());
+
+  Assert.assertEquals(expected.datatype(), actual.datatype());
+
+  int differ = 0;
+  for (int y = 0; y < tilesize; y++)
+  {
+    for (int x = 0; x < tilesize; x++)
+    {
+      double e = expected.getPixelDouble(x, y, 0);
+      double a = actual.getPixelDouble(x, y, 0);
+      if (!(Double.isNaN(e) && Double.isNaN(a)) && Math.abs(e - a) > 1e-4)
+      {
+        differ++;
+      }
+    }
+  }
+  Assert.assertTrue(type + ": " + differ + " pixels differ", differ < tilesize * tilesize / 500);
+}
+
+// a star shaped polygon, in pixels
+private static Polygon polygon(Random random, int value)
+{
+  double cx = random.nextDouble() * tilesize;
+  double cy = random.nextDouble() * tilesize;
+  int n = 3 + random.nextInt(8);
+
+  List<Point> points = new ArrayList<>();
+  for (int i = 0; i < n; i++)
+  {
+    double angle = 2 * Math.PI * i / n;
+    double radius = 5 + random.nextDouble() * 60;
+    points.add(point(cx + radius * Math.cos(angle), cy + radius * Math.sin(angle)));
+  }
+  points.add(points.get(0));
+
+  WritablePolygon polygon = GeometryFactory.createPolygon(points);
+  polygon.setAttribute("value", Integer.toString(value));
+  return polygon;
+}
+
+// pixel (from the lower left) to world
+private static Point point(double px, double py)
+{
+  return GeometryFactory.createPoint(bounds.w + px * bounds.width() / tilesize,
+      bounds.s + py * bounds.height() / tilesize);
+}
+}
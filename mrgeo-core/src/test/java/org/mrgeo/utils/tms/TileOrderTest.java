@@ -0,0 +1,173 @@
+/*
+ * Copyright 2009-2017. DigitalGlobe, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.mrgeo.utils.tms;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.mrgeo.junit.UnitTest;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+@SuppressWarnings("all") // test code, not included in production
+public class TileOrderTest
+{
+@Test
+@Category(UnitTest.class)
+public void roundTrip()
+{
+  int zoom = 6;
+  for (TileOrder order : TileOrder.values())
+  {
+    Set<Long> keys = new HashSet<>();
+    for (long ty = 0; ty < TMSUtils.numYTiles(zoom); ty++)
+    {
+      for (long tx = 0; tx < TMSUtils.numXTiles(zoom); tx++)
+      {
+        long key = order.toKey(tx, ty, zoom);
+        Assert.assertTrue(order + " key " + key + " repeated", keys.add(key));
+
+        Tile t = order.toTile(key, zoom);
+        Assert.assertEquals(order.toString(), tx, t.tx);
+        Assert.assertEquals(order.toString(), ty, t.ty);
+
+        long tileid = TMSUtils.tileid(tx, ty, zoom);
+        Assert.assertEquals(key, order.toKey(tileid, zoom));
+        Assert.assertEquals(tileid, order.toTileId(key, zoom));
+      }
+    }
+  }
+}
+
+@Test
+@Category(UnitTest.class)
+public void morton()
+{
+  Assert.assertEquals(0, TileOrder.MORTON.toKey(0, 0, 4));
+  Assert.assertEquals(1, TileOrder.MORTON.toKey(1, 0, 4));
+  Assert.assertEquals(2, TileOrder.MORTON.toKey(0, 1, 4));
+  Assert.assertEquals(3, TileOrder.MORTON.toKey(1, 1, 4));
+  Assert.assertEquals(4, TileOrder.MORTON.toKey(2, 0, 4));
+}
+
+@Test
+@Category(UnitTest.class)
+public void hilbertNeighbors()
+{
+  // consecutive keys on a hilbert curve are always adjacent tiles
+  int zoom = 5;
+  long side = 1L << zoom;
+  Tile last = TileOrder.HILBERT.toTile(0, zoom);
+  for (long key = 1; key < side * side; key++)
+  {
+    Tile t = TileOrder.HILBERT.toTile(key, zoom);
+    Assert.assertEquals("key " + key, 1, Math.abs(t.tx - last.tx) + Math.abs(t.ty - last.ty));
+    last = t;
+  }
+}
+
+@Test
+@Category(UnitTest.class)
+public void ranges()
+{
+  int zoom = 8;
+  TileBounds bounds = new TileBounds(13, 7, 42, 29);
+
+  for (TileOrder order : TileOrder.values())
+  {
+    List<long[]> ranges = order.ranges(bounds, zoom);
+
+    long count = 0;
+    long last = -1;
+    for (long[] range : ranges)
+    {
+      // sorted, non-adjacent
+      Assert.assertTrue(order.toString(), range[0] > last + 1);
+      Assert.assertTrue(order.toString(), range[1] >= range[0]);
+      for (long key = range[0]; key <= range[1]; key++)
+      {
+        Tile t = order.toTile(key, zoom);
+        Assert.assertTrue(order + " " + t.tx + ", " + t.ty + " is outside the bounds",
+            t.tx >= bounds.w && t.tx <= bounds.e && t.ty >= bounds.s && t.ty <= bounds.n);
+        count++;
+      }
+      last = range[1];
+    }
+
+    // every tile is covered
+    Assert.assertEquals(order.toString(), bounds.width() * bounds.height(), count);
+  }
+
+  // one range per row for row-major, an aligned block is a single range for the curves
+  Assert.assertEquals(bounds.height(), TileOrder.ROW_MAJOR.ranges(bounds, zoom).size());
+  Assert.assertTrue(TileOrder.MORTON.ranges(new TileBounds(16, 16, 31, 31), zoom).size() == 1);
+  Assert.assertTrue(TileOrder.HILBERT.ranges(new TileBounds(16, 16, 31, 31), zoom).size() == 1);
+}
+
+@Test
+@Category(UnitTest.class)
+public void tileIdRanges()
+{
+  int zoom = 5;
+  long start = TMSUtils.tileid(20, 3, zoom);
+  long end = TMSUtils.tileid(4, 6, zoom);
+
+  for (TileOrder order : TileOrder.values())
+  {
+    Set<Long> ids = new HashSet<>();
+    for (long[] range : order.ranges(start, end, zoom))
+    {
+      for (long key = range[0]; key <= range[1]; key++)
+      {
+        ids.add(order.toTileId(key, zoom));
+      }
+    }
+
+    Assert.assertEquals(order.toString(), end - start + 1, ids.size());
+    for (long id = start; id <= end; id++)
+    {
+      Assert.assertTrue(order + " missing " + id, ids.contains(id));
+    }
+  }
+}
+
+@Test
+@Category(UnitTest.class)
+public void intersects()
+{
+  List<long[]> ranges = TileOrder.MORTON.ranges(new TileBounds(2, 2, 3, 3), 4);
+  // the 2x2 block at 2, 2 is keys 12 - 15
+  Assert.assertEquals(1, ranges.size());
+  Assert.assertArrayEquals(new long[]{12, 15}, ranges.get(0));
+
+  Assert.assertTrue(TileOrder.intersects(ranges, 0, 12));
+  Assert.assertTrue(TileOrder.intersects(ranges, 15, 100));
+  Assert.assertFalse(TileOrder.intersects(ranges, 0, 11));
+  Assert.assertFalse(TileOrder.intersects(ranges, 16, 100));
+}
+
+@Test
+@Category(UnitTest.class)
+public void fromString()
+{
+  Assert.assertEquals(TileOrder.ROW_MAJOR, TileOrder.fromString("row"));
+  Assert.assertEquals(TileOrder.MORTON, TileOrder.fromString("zorder"));
+  Assert.assertEquals(TileOrder.MORTON, TileOrder.fromString("Morton"));
+  Assert.assertEquals(TileOrder.HILBERT, TileOrder.fromString(" hilbert "));
+}
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2009-2017. DigitalGlobe, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.mrgeo.buildpyramid
+
+import java.awt.image.DataBuffer
+
+import org.junit.Test
+import org.junit.experimental.categories.Category
+import org.mrgeo.aggregators.MeanAggregator
+import org.mrgeo.data.raster.{MrGeoRaster, RasterWritable, TileCodec}
+import org.mrgeo.data.rdd.RasterRDD
+import org.mrgeo.data.tile.TileIdWritable
+import org.mrgeo.junit.UnitTest
+import org.mrgeo.test.SparkLocalRunnerTest
+import org.mrgeo.utils.tms.TMSUtils
+import org.scalatest.junit.AssertionsForJUnit
+
+@SuppressWarnings(Array("all")) // test code, not included in production
+class BuildPyramidTest extends SparkLocalRunnerTest with AssertionsForJUnit {
+  private val tilesize = 16
+  private val nodatas = Array(-9999.0)
+
+  @Test
+  @Category(Array[Class[_]] {
+    classOf[UnitTest]
+  })
+  def buildlevels():Unit = {
+    val fromlevel = 6
+    val tolevel = 3
+
+    // an 8x8 block of tiles with a few holes, and some nodata in every tile
+    val tiles = for (ty <- 8 to 15; tx <- 8 to 15 if (tx * 7 + ty) % 5 != 0) yield {
+      val raster = MrGeoRaster.createEmptyRaster(tilesize, tilesize, 1, DataBuffer.TYPE_FLOAT)
+      for (y <- 0 until tilesize; x <- 0 until tilesize) {
+        val v = if ((x + y * 3 + tx) % 9 == 0) nodatas(0) else tx * 100 + ty + x * 0.25 - y * 0.5
+        raster.setPixel(x, y, 0, v)
+      }
+      (new TileIdWritable(TMSUtils.tileid(tx, ty, fromlevel)), RasterWritable.toWritable(raster))
+    }
+
+    val bp = new BuildPyramid("test", new MeanAggregator, null)
+
+    val built = bp.buildlevels(RasterRDD(sparkContext.parallelize(tiles, 4)), fromlevel, tolevel, tilesize, nodatas)
+        .collect().groupBy(_._1)
+
+    assertResult((tolevel until fromlevel).toSet)(built.keySet)
+
+    var pyramid = RasterRDD(sparkContext.parallelize(tiles, 4))
+    var level = fromlevel
+    while (level > tolevel) {
+      pyramid = RasterRDD(bp.buildlevel(pyramid, level, tilesize, nodatas))
+      level -= 1
+
+      val expected = collect(pyramid.collect())
+      val actual = collect(built(level).map(_._2))
+
+      assertResult(expected.keySet, "tiles in level " + level)(actual.keySet)
+      expected.foreach(tile => {
+        val raster = actual(tile._1)
+        for (y <- 0 until tilesize; x <- 0 until tilesize) {
+          assertResult(tile._2.getPixelDouble(x, y, 0), s"level $level tile ${tile._1} pixel ($x, $y)")(
+            raster.getPixelDouble(x, y, 0))
+        }
+      })
+    }
+  }
+
+  @Test
+  @Category(Array[Class[_]] {
+    classOf[UnitTest]
+  })
+  def dropEmpty():Unit = {
+    val fromlevel = 6
+    val tolevel = 4
+
+    // every third tile is all nodata, alternately as a raw and a constant tile
+    val tiles = for (ty <- 8 to 15; tx <- 8 to 15) yield {
+      val raster = MrGeoRaster.createEmptyRaster(tilesize, tilesize, 1, DataBuffer.TYPE_FLOAT, nodatas(0))
+      val n = tx * 8 + ty
+      if (n % 3 != 0) {
+        raster.setPixel((tx % tilesize).toInt, (ty % tilesize).toInt, 0, tx + ty * 0.5)
+      }
+      val writable = if (n % 2 == 0) TileCodec.compact(raster) else RasterWritable.toWritable(raster)
+      (new TileIdWritable(TMSUtils.tileid(tx, ty, fromlevel)), writable)
+    }
+
+    val bp = new BuildPyramid("test", new MeanAggregator, null)
+    val pyramid = RasterRDD(sparkContext.parallelize(tiles, 4))
+
+    val dropped = bp.dropEmpty(pyramid, nodatas).collect().map(_._1.get).toSet
+    val empty = tiles.filter(tile => RasterWritable.toMrGeoRaster(tile._2).isAllNodata(nodatas)).map(_._1.get).toSet
+    assert(empty.nonEmpty)
+    assertResult(tiles.map(_._1.get).toSet -- empty)(dropped)
+
+    // the levels built without the empty tiles only lack the empty tiles built from them
+    val all = bp.buildlevels(pyramid, fromlevel, tolevel, tilesize, nodatas).collect()
+    val skipped = bp.buildlevels(bp.dropEmpty(pyramid, nodatas), fromlevel, tolevel, tilesize, nodatas).collect()
+    for (level <- tolevel until fromlevel) {
+      val expected = collect(all.filter(_._1 == level).map(_._2)).filter(!_._2.isAllNodata(nodatas))
+      val actual = collect(skipped.filter(_._1 == level).map(_._2))
+
+      assertResult(expected.keySet, "tiles in level " + level)(actual.keySet)
+      expected.foreach(tile => {
+        val raster = actual(tile._1)
+        for (y <- 0 until tilesize; x <- 0 until tilesize) {
+          assertResult(tile._2.getPixelDouble(x, y, 0), s"level $level tile ${tile._1} pixel ($x, $y)")(
+            raster.getPixelDouble(x, y, 0))
+        }
+      })
+    }
+  }
+
+  private def collect(tiles:Array[(TileIdWritable, RasterWritable)]):Map[Long, MrGeoRaster] = {
+    tiles.map(tile => (tile._1.get(), RasterWritable.toMrGeoRaster(tile._2))).toMap
+  }
+}
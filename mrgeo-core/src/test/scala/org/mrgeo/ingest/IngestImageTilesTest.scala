@@ -0,0 +1,82 @@
+/*
+ * Copyright 2009-2017. DigitalGlobe, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.mrgeo.ingest
+
+import org.junit.Test
+import org.junit.experimental.categories.Category
+import org.mrgeo.core.{MrGeoConstants, MrGeoProperties}
+import org.mrgeo.data.raster.RasterWritable
+import org.mrgeo.junit.UnitTest
+import org.mrgeo.test.{LocalRunnerTest, TestUtils}
+import org.mrgeo.utils.GDALUtils
+import org.mrgeo.utils.tms.{TMSUtils, TileBounds}
+import org.scalatest.junit.AssertionsForJUnit
+
+@SuppressWarnings(Array("all")) // test code, not included in production
+class IngestImageTilesTest extends LocalRunnerTest with AssertionsForJUnit {
+  private val testUtils = new TestUtils(classOf[IngestImageTest])
+  private val tilesize = 512
+  private val nodata = Array(-9999.0)
+
+  @Test
+  @Category(Array[Class[_]] {
+    classOf[UnitTest]
+  })
+  def skipEmptyTiles():Unit = {
+    val input = testUtils.getInputLocalFor("onetile.tif")
+    val zoom = GDALUtils.calculateZoom(input, tilesize)
+
+    val src = GDALUtils.open(input)
+    val image = try {
+      TMSUtils.boundsToTile(GDALUtils.getBounds(src), zoom, tilesize)
+    }
+    finally {
+      GDALUtils.close(src)
+    }
+
+    // a window with a ring of tiles around the image, which are all nodata
+    val window = IngestWindow(input, new TileBounds(image.w - 1, image.s - 1, image.e + 1, image.n + 1))
+
+    val all = tiles(window, zoom, skipEmpty = false)
+    assertResult(window.tiles.width() * window.tiles.height())(all.size.toLong)
+
+    val nonEmpty = all.filter(tile => !RasterWritable.toMrGeoRaster(tile._2).isAllNodata(nodata)).keySet
+    assert(nonEmpty.nonEmpty)
+    assert(nonEmpty.size < all.size)
+
+    val skipped = tiles(window, zoom, skipEmpty = true)
+    assertResult(nonEmpty)(skipped.keySet)
+    skipped.foreach(tile => assertResult(all(tile._1).getBytes.toSeq)(tile._2.getBytes.toSeq))
+  }
+
+  private def tiles(window:IngestWindow, zoom:Int, skipEmpty:Boolean):Map[Long, RasterWritable] = {
+    val props = MrGeoProperties.getInstance()
+    val old = props.getProperty(MrGeoConstants.MRGEO_SKIP_EMPTY_TILES)
+    props.setProperty(MrGeoConstants.MRGEO_SKIP_EMPTY_TILES, skipEmpty.toString)
+    try {
+      IngestImage.makeTiles(window, zoom, tilesize, categorical = false, nodata)._1
+          .map(tile => (tile._1.get, tile._2)).toMap
+    }
+    finally {
+      if (old == null) {
+        props.remove(MrGeoConstants.MRGEO_SKIP_EMPTY_TILES)
+      }
+      else {
+        props.setProperty(MrGeoConstants.MRGEO_SKIP_EMPTY_TILES, old)
+      }
+    }
+  }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2009-2017. DigitalGlobe, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.mrgeo.quantiles
+
+import java.awt.image.DataBuffer
+import java.util.Random
+
+import org.junit.Test
+import org.junit.experimental.categories.Category
+import org.mrgeo.data.raster.{MrGeoRaster, RasterWritable}
+import org.mrgeo.data.rdd.RasterRDD
+import org.mrgeo.data.tile.TileIdWritable
+import org.mrgeo.image.MrsPyramidMetadata
+import org.mrgeo.junit.UnitTest
+import org.mrgeo.test.SparkLocalRunnerTest
+import org.scalatest.junit.AssertionsForJUnit
+
+@SuppressWarnings(Array("all")) // test code, not included in production
+class QuantilesTest extends SparkLocalRunnerTest with AssertionsForJUnit {
+  @Test
+  @Category(Array[Class[_]] {
+    classOf[UnitTest]
+  })
+  def exact():Unit = {
+    for (datatype <- Array(DataBuffer.TYPE_BYTE, DataBuffer.TYPE_SHORT, DataBuffer.TYPE_INT,
+      DataBuffer.TYPE_FLOAT, DataBuffer.TYPE_DOUBLE)) {
+      val (rdd, meta, values) = create(datatype)
+      val quantiles = Quantiles.compute(rdd, 10, None, meta)
+
+      assertResult(2)(quantiles.length)
+      for (b <- 0 until 2) {
+        val sorted = values(b).sorted
+        val expected = Array.tabulate(9)(i => {
+          val qFraction = 1.0f / 10.0f * (i + 1).toFloat
+          val v = sorted((qFraction * sorted.length).ceil.toInt)
+          if (datatype == DataBuffer.TYPE_FLOAT) v.toFloat.toString.toDouble else v
+        })
+        assertResult(expected, "datatype " + datatype + " band " + b)(quantiles(b))
+      }
+    }
+  }
+
+  @Test
+  @Category(Array[Class[_]] {
+    classOf[UnitTest]
+  })
+  def exactManyQuantiles():Unit = {
+    // lots of quantiles spread the refinement passes over many sparse buckets
+    for (datatype <- Array(DataBuffer.TYPE_INT, DataBuffer.TYPE_DOUBLE)) {
+      val (rdd, meta, values) = create(datatype)
+      val quantiles = Quantiles.compute(rdd, 100, None, meta)
+
+      for (b <- 0 until 2) {
+        val sorted = values(b).sorted
+        val expected = Array.tabulate(99)(i => {
+          val qFraction = 1.0f / 100.0f * (i + 1).toFloat
+          sorted((qFraction * sorted.length).ceil.toInt)
+        })
+        assertResult(expected, "datatype " + datatype + " band " + b)(quantiles(b))
+      }
+    }
+  }
+
+  @Test
+  @Category(Array[Class[_]] {
+    classOf[UnitTest]
+  })
+  def keyCounts():Unit = {
+    val random = new Random(3)
+    val expected = scala.collection.mutable.Map.empty[Long, Long]
+
+    val c1 = new KeyCounts(2)
+    val c2 = new KeyCounts()
+    for (i <- 0 until 10000) {
+      val key = (random.nextInt(5000) * 65536L) + random.nextInt(3)
+      expected(key) = expected.getOrElse(key, 0L) + 1
+      (if (i % 2 == 0) c1 else c2).add(key)
+    }
+    c1.merge(c2)
+
+    assertResult(expected.size)(c1.size)
+    val (keys, counts) = c1.sorted()
+    assertResult(expected.keys.toArray.sorted)(keys)
+    assertResult(keys.map(expected))(counts)
+    assertResult(0L)(c1.get(-1L))
+  }
+
+  @Test
+  @Category(Array[Class[_]] {
+    classOf[UnitTest]
+  })
+  def approximate():Unit = {
+    val (rdd, meta, values) = create(DataBuffer.TYPE_DOUBLE)
+    val quantiles = Quantiles.compute(rdd, 4, None, meta, approximate = true)
+
+    val sorted = values(0).sorted
+    for (i <- 0 until 3) {
+      val rank = java.util.Arrays.binarySearch(sorted, quantiles.head(i))
+      val expected = sorted.length * (i + 1) / 4
+      assert(Math.abs(rank - expected) < sorted.length * 0.02, "quantile " + i)
+    }
+  }
+
+  @Test
+  @Category(Array[Class[_]] {
+    classOf[UnitTest]
+  })
+  def notEnoughValues():Unit = {
+    val nodata = -9999.0
+    val raster = MrGeoRaster.createEmptyRaster(4, 4, 1, DataBuffer.TYPE_INT, nodata)
+    raster.setPixel(0, 0, 0, 5)
+
+    val meta = new MrsPyramidMetadata
+    meta.setBands(1)
+    meta.setTileType(DataBuffer.TYPE_INT)
+    meta.setDefaultValues(Array(nodata))
+
+    val rdd = RasterRDD(sparkContext.parallelize(Seq((new TileIdWritable(1), RasterWritable.toWritable(raster)))))
+    assertResult(null)(Quantiles.compute(rdd, 4, None, meta).head)
+  }
+
+  @Test
+  @Category(Array[Class[_]] {
+    classOf[UnitTest]
+  })
+  def sketch():Unit = {
+    val s1 = new QuantileSketch()
+    val s2 = new QuantileSketch()
+    for (i <- 0 until 100000) {
+      s1.update(i)
+      s2.update(100000 + i)
+    }
+    s1.merge(s2)
+
+    assertResult(200000)(s1.count)
+    for (rank <- Array(0L, 50000L, 100000L, 199999L)) {
+      assert(Math.abs(s1.quantile(rank) - rank) < 200000 * 0.02, "rank " + rank)
+    }
+  }
+
+  // 2 bands of values (with some nodata) in 6 tiles, and the (valid) values of each band
+  private def create(datatype:Int):(RasterRDD, MrsPyramidMetadata, Array[Array[Double]]) = {
+    val random = new Random(7)
+    val nodata = if (datatype == DataBuffer.TYPE_BYTE) 255.0 else -9999.0
+    val values = Array.fill(2)(Array.newBuilder[Double])
+
+    val tiles = for (t <- 0 until 6) yield {
+      val raster = MrGeoRaster.createEmptyRaster(32, 32, 2, datatype, nodata)
+      for (b <- 0 until 2; y <- 0 until 32; x <- 0 until 32) {
+        if (random.nextInt(10) != 0) {
+          val v = datatype match {
+            case DataBuffer.TYPE_BYTE => random.nextInt(200).toDouble
+            case DataBuffer.TYPE_SHORT => (random.nextInt(2000) - 1000).toDouble
+            case DataBuffer.TYPE_INT => (random.nextInt() / 2).toDouble
+            case DataBuffer.TYPE_FLOAT => (random.nextGaussian() * 100).toFloat.toDouble
+            case _ => random.nextGaussian() * 1e6
+          }
+          raster.setPixel(x, y, b, v)
+          values(b) += v
+        }
+      }
+      (new TileIdWritable(t), RasterWritable.toWritable(raster))
+    }
+
+    val meta = new MrsPyramidMetadata
+    meta.setBands(2)
+    meta.setTileType(datatype)
+    meta.setDefaultValues(Array(nodata, nodata))
+
+    (RasterRDD(sparkContext.parallelize(tiles, 3)), meta, values.map(_.result()))
+  }
+}
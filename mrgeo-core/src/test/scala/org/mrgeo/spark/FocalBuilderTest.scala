@@ -0,0 +1,138 @@
+/*
+ * Copyright 2009-2017. DigitalGlobe, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.mrgeo.spark
+
+import java.awt.image.DataBuffer
+import java.util
+
+import org.apache.spark.HashPartitioner
+import org.apache.spark.rdd.{PairRDDFunctions, RDD}
+import org.junit.Test
+import org.junit.experimental.categories.Category
+import org.mrgeo.data.raster.{MrGeoRaster, RasterWritable}
+import org.mrgeo.data.tile.TileIdWritable
+import org.mrgeo.junit.UnitTest
+import org.mrgeo.test.SparkLocalRunnerTest
+import org.mrgeo.utils.tms.{TMSUtils, TileBounds}
+import org.scalatest.junit.AssertionsForJUnit
+
+import scala.collection.mutable.ArrayBuffer
+
+@SuppressWarnings(Array("all")) // test code, not included in production
+class FocalBuilderTest extends SparkLocalRunnerTest with AssertionsForJUnit {
+  private val zoom = 10
+  private val tilesize = 16
+  private val nodatas = Array(-9999.0)
+  private val bounds = new TileBounds(100, 200, 105, 204)
+
+  @Test
+  @Category(Array[Class[_]] {
+    classOf[UnitTest]
+  })
+  def unpartitioned():Unit = {
+    val tiles = sparkContext.parallelize(create(), 4)
+    assert(tiles.partitioner.isEmpty)
+
+    compare(tiles, 3, 2)
+    compare(tiles, 15, 1)
+  }
+
+  @Test
+  @Category(Array[Class[_]] {
+    classOf[UnitTest]
+  })
+  def partitioned():Unit = {
+    val tiles = new PairRDDFunctions(sparkContext.parallelize(create(), 4)).partitionBy(new HashPartitioner(3))
+    assert(tiles.partitioner.isDefined)
+
+    compare(tiles, 3, 2)
+    compare(tiles, 15, 1)
+  }
+
+  // the focal tiles should be the same as the ones grouped by the original groupByKey version
+  private def compare(tiles:RDD[(TileIdWritable, RasterWritable)], bufferX:Int, bufferY:Int):Unit = {
+    val bnds = TMSUtils.tileToBounds(bounds, zoom, tilesize)
+
+    val expected = collect(grouped(tiles, bufferX, bufferY))
+    val actual = collect(FocalBuilder.create(tiles, bufferX, bufferY, bnds, zoom, nodatas, sparkContext))
+
+    assertResult(expected.keySet)(actual.keySet)
+    expected.foreach(tile => {
+      assert(util.Arrays.equals(tile._2, actual(tile._1)), s"tile ${tile._1} with buffer $bufferX, $bufferY")
+    })
+  }
+
+  // a block of tiles with a few holes, every pixel different
+  private def create():Seq[(TileIdWritable, RasterWritable)] = {
+    for (ty <- bounds.s to bounds.n; tx <- bounds.w to bounds.e if (tx + ty * 3) % 7 != 0) yield {
+      val raster = MrGeoRaster.createEmptyRaster(tilesize, tilesize, 1, DataBuffer.TYPE_FLOAT)
+      for (y <- 0 until tilesize; x <- 0 until tilesize) {
+        raster.setPixel(x, y, 0, (tx - 100) * 1000 + (ty - 200) * 100 + x + y * 0.01)
+      }
+      (new TileIdWritable(TMSUtils.tileid(tx, ty, zoom)), RasterWritable.toWritable(raster))
+    }
+  }
+
+  private def collect(tiles:RDD[(TileIdWritable, RasterWritable)]):Map[Long, Array[Byte]] = {
+    tiles.map(tile => (tile._1.get, tile._2.copyBytes())).collect().toMap
+  }
+
+  // the focal tiles built by grouping all the pieces of each tile (buffers must be less than a tile)
+  private def grouped(tiles:RDD[(TileIdWritable, RasterWritable)], bufferX:Int,
+                      bufferY:Int):RDD[(TileIdWritable, RasterWritable)] = {
+    val dstW = tilesize + bufferX * 2
+    val dstH = tilesize + bufferY * 2
+    val tb = bounds
+    val z = zoom
+    val ts = tilesize
+    val nd = nodatas
+
+    val pieces = tiles.flatMap(tile => {
+      val pieces = ArrayBuffer.empty[(Long, (Int, Int, Int, Int, RasterWritable))]
+      val from = TMSUtils.tileid(tile._1.get(), z)
+      val src = RasterWritable.toMrGeoRaster(tile._2)
+
+      for (y <- -1 to 1; x <- -1 to 1) {
+        val tx = from.tx + x
+        val ty = from.ty + y
+        if (ty >= tb.s && ty <= tb.n && tx >= tb.w && tx <= tb.e) {
+          val (srcX, dstX, width) = x match {
+            case 1 => (ts - bufferX, 0, bufferX)
+            case -1 => (0, dstW - bufferX, bufferX)
+            case _ => (0, bufferX, ts)
+          }
+          val (srcY, dstY, height) = y match {
+            case -1 => (ts - bufferY, 0, bufferY)
+            case 1 => (0, dstH - bufferY, bufferY)
+            case _ => (0, bufferY, ts)
+          }
+
+          pieces.append((TMSUtils.tileid(tx, ty, z),
+              (dstX, dstY, width, height, RasterWritable.toWritable(src.clip(srcX, srcY, width, height)))))
+        }
+      }
+      pieces.iterator
+    })
+
+    new PairRDDFunctions(pieces).groupByKey().map(tile => {
+      val dst = RasterWritable.toMrGeoRaster(tile._2.head._5).createCompatibleEmptyRaster(dstW, dstH, nd)
+      tile._2.foreach(piece => {
+        dst.copyFrom(0, 0, piece._3, piece._4, RasterWritable.toMrGeoRaster(piece._5), piece._1, piece._2)
+      })
+      (new TileIdWritable(tile._1), RasterWritable.toWritable(dst))
+    })
+  }
+}
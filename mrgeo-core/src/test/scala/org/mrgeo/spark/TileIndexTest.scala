@@ -0,0 +1,67 @@
+/*
+ * Copyright 2009-2017. DigitalGlobe, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.mrgeo.spark
+
+import java.awt.image.DataBuffer
+
+import org.junit.Test
+import org.junit.experimental.categories.Category
+import org.mrgeo.data.raster.{MrGeoRaster, RasterWritable}
+import org.mrgeo.data.rdd.RasterRDD
+import org.mrgeo.data.tile.TileIdWritable
+import org.mrgeo.junit.UnitTest
+import org.mrgeo.test.SparkLocalRunnerTest
+import org.mrgeo.utils.tms.{TMSUtils, TileBounds}
+import org.scalatest.junit.AssertionsForJUnit
+
+@SuppressWarnings(Array("all")) // test code, not included in production
+class TileIndexTest extends SparkLocalRunnerTest with AssertionsForJUnit {
+
+  @Test
+  @Category(Array[Class[_]] {
+    classOf[UnitTest]
+  })
+  def get():Unit = {
+    val zoom = 10
+    val bounds = new TileBounds(100, 200, 109, 209)
+
+    val tiles = for (ty <- bounds.s to bounds.n; tx <- bounds.w to bounds.e) yield {
+      val raster = MrGeoRaster.createEmptyRaster(4, 4, 1, DataBuffer.TYPE_INT)
+      raster.setPixel(0, 0, 0, (tx * 1000 + ty).toInt)
+      (new TileIdWritable(TMSUtils.tileid(tx, ty, zoom)), RasterWritable.toWritable(raster))
+    }
+
+    val index = TileIndex(RasterRDD(sparkContext.parallelize(tiles, 5)), bounds, zoom)
+    try {
+      val wanted = Seq(TMSUtils.tileid(100, 200, zoom), TMSUtils.tileid(101, 200, zoom),
+        TMSUtils.tileid(105, 207, zoom))
+      val found = index.get(wanted :+ TMSUtils.tileid(120, 200, zoom))
+
+      // the one outside the bounds isn't there
+      assertResult(wanted.toSet)(found.keySet)
+      assertResult(105207)(RasterWritable.toMrGeoRaster(found(TMSUtils.tileid(105, 207, zoom))).getPixelInt(0, 0, 0))
+
+      assert(index.get(TMSUtils.tileid(100, 209, zoom)).isDefined)
+      assert(index.get(Seq.empty).isEmpty)
+
+      // the tiles are in 2 partitions (rows 200 - 201 and 206 - 207), only those are looked at
+      assertResult(Set(0, 3))(wanted.map(id => index.partitioner.getPartition(id)).toSet)
+    }
+    finally {
+      index.unpersist()
+    }
+  }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2009-2017. DigitalGlobe, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.mrgeo.spark
+
+import org.apache.spark.rdd.CoGroupedRDD
+import org.apache.spark.{HashPartitioner, OneToOneDependency}
+import org.junit.Test
+import org.junit.experimental.categories.Category
+import org.mrgeo.data.rdd.RasterRDD
+import org.mrgeo.data.raster.RasterWritable
+import org.mrgeo.data.tile.TileIdWritable
+import org.mrgeo.junit.UnitTest
+import org.mrgeo.test.SparkLocalRunnerTest
+import org.mrgeo.utils.tms.{TMSUtils, TileBounds}
+import org.scalatest.junit.AssertionsForJUnit
+
+@SuppressWarnings(Array("all")) // test code, not included in production
+class TileRangePartitionerTest extends SparkLocalRunnerTest with AssertionsForJUnit {
+
+  @Test
+  @Category(Array[Class[_]] {
+    classOf[UnitTest]
+  })
+  def partitions():Unit = {
+    val partitioner = new TileRangePartitioner(Array[Long](10, 20, 30))
+
+    assertResult(3)(partitioner.numPartitions)
+    assertResult(0)(partitioner.getPartition(new TileIdWritable(0)))
+    assertResult(0)(partitioner.getPartition(new TileIdWritable(10)))
+    assertResult(1)(partitioner.getPartition(new TileIdWritable(11)))
+    assertResult(2)(partitioner.getPartition(30L))
+
+    // past the end goes in the last partition
+    assertResult(2)(partitioner.getPartition(100L))
+  }
+
+  @Test
+  @Category(Array[Class[_]] {
+    classOf[UnitTest]
+  })
+  def equality():Unit = {
+    assertResult(new TileRangePartitioner(Array[Long](10, 20)))(new TileRangePartitioner(Array[Long](10, 20)))
+    assert(new TileRangePartitioner(Array[Long](10, 20)) != new TileRangePartitioner(Array[Long](10, 21)))
+
+    assert(TileRangePartitioner.fromSplits(Array[Long](10, 10)).isEmpty)
+    assert(TileRangePartitioner.fromSplits(Array[Long]()).isEmpty)
+  }
+
+  @Test
+  @Category(Array[Class[_]] {
+    classOf[UnitTest]
+  })
+  def rowPlan():Unit = {
+    val zoom = 10
+    val bounds = new TileBounds(100, 200, 109, 209)
+    val plan = TileRangePartitioner(bounds, zoom, 5)
+
+    assertResult(5)(plan.numPartitions)
+    // 2 rows per partition
+    assertResult(0)(plan.getPartition(TMSUtils.tileid(100, 200, zoom)))
+    assertResult(0)(plan.getPartition(TMSUtils.tileid(109, 201, zoom)))
+    assertResult(1)(plan.getPartition(TMSUtils.tileid(100, 202, zoom)))
+    assertResult(4)(plan.getPartition(TMSUtils.tileid(109, 209, zoom)))
+
+    // deterministic
+    assertResult(plan)(TileRangePartitioner(bounds, zoom, 5))
+
+    // never more partitions than rows
+    assertResult(10)(TileRangePartitioner(bounds, zoom, 100).numPartitions)
+  }
+
+  @Test
+  @Category(Array[Class[_]] {
+    classOf[UnitTest]
+  })
+  def cogroupWithoutShuffle():Unit = {
+    val plan = new TileRangePartitioner(Array[Long](9, 19))
+
+    def load(ids:Seq[Long]) = {
+      // 2 partitions, 0 - 9 and 10 - 19, like a pyramid's splits
+      val rdd = sparkContext.parallelize(ids.sorted.map(id => (new TileIdWritable(id), new RasterWritable())),
+        2)
+      RasterRDD(TileRangePartitioner.assume(rdd, plan))
+    }
+
+    val rdd1 = load(Seq(0, 1, 10, 11))
+    val rdd2 = load(Seq(1, 2, 11, 12))
+
+    // RasterRDD keeps the partitioner
+    assertResult(Some(plan))(rdd1.partitioner)
+
+    val partitioner = TileRangePartitioner.cogroupPartitioner(Seq(rdd1, rdd2))
+    assertResult(plan)(partitioner)
+
+    val groups = new CoGroupedRDD[TileIdWritable](Seq(rdd1, rdd2), partitioner)
+    assert(groups.dependencies.forall(_.isInstanceOf[OneToOneDependency[_]]))
+
+    val ids = groups.map(_._1.get()).collect().sorted
+    assertResult(Array[Long](0, 1, 2, 10, 11, 12))(ids)
+
+    // no range partitioners, the old behavior
+    val plain = sparkContext.parallelize(Seq((new TileIdWritable(1), new RasterWritable())), 3)
+    assertResult(new HashPartitioner(3))(TileRangePartitioner.cogroupPartitioner(Seq(plain)))
+  }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2009-2017. DigitalGlobe, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.mrgeo.utils
+
+import java.awt.image.DataBuffer
+
+import org.junit.Test
+import org.junit.experimental.categories.Category
+import org.mrgeo.data.raster.{MrGeoRaster, RasterWritable}
+import org.mrgeo.data.rdd.RasterRDD
+import org.mrgeo.data.tile.TileIdWritable
+import org.mrgeo.junit.UnitTest
+import org.mrgeo.test.SparkLocalRunnerTest
+import org.mrgeo.utils.tms.{TMSUtils, TileBounds}
+import org.scalatest.junit.AssertionsForJUnit
+
+@SuppressWarnings(Array("all")) // test code, not included in production
+class SparkUtilsTest extends SparkLocalRunnerTest with AssertionsForJUnit {
+  private val zoom = 10
+  private val tilesize = 16
+  private val nodatas = Array(-9999.0)
+  private val bounds = new TileBounds(100, 200, 105, 204)
+
+  @Test
+  @Category(Array[Class[_]] {
+    classOf[UnitTest]
+  })
+  def mergeTiles():Unit = {
+    // the default strips hold all the rows, 1 byte strips hold a single row of tiles
+    for (stripbytes <- Array(64L * 1024 * 1024, 1L)) {
+      val merged = SparkUtils.mergeTiles(rdd(), zoom, tilesize, nodatas, null, stripbytes)
+      verify(merged, bounds)
+    }
+  }
+
+  @Test
+  @Category(Array[Class[_]] {
+    classOf[UnitTest]
+  })
+  def mergeTilesCropped():Unit = {
+    // the tiles outside the bounds are left out
+    val cropped = new TileBounds(101, 201, 103, 203)
+    val merged = SparkUtils.mergeTiles(rdd(), zoom, tilesize, nodatas, TMSUtils.tileToBounds(cropped, zoom, tilesize),
+      1L)
+    verify(merged, cropped)
+  }
+
+  // a block of tiles, with a few missing
+  private def rdd():RasterRDD = {
+    val tiles = for (ty <- bounds.s to bounds.n; tx <- bounds.w to bounds.e if !missing(tx, ty)) yield {
+      val raster = MrGeoRaster.createEmptyRaster(tilesize, tilesize, 1, DataBuffer.TYPE_FLOAT)
+      for (y <- 0 until tilesize; x <- 0 until tilesize) {
+        raster.setPixel(x, y, 0, value(tx, ty, x, y))
+      }
+      (new TileIdWritable(TMSUtils.tileid(tx, ty, zoom)), RasterWritable.toWritable(raster))
+    }
+
+    RasterRDD(sparkContext.parallelize(tiles, 4))
+  }
+
+  private def missing(tx:Long, ty:Long) = (tx + ty * 3) % 7 == 0
+
+  private def value(tx:Long, ty:Long, x:Int, y:Int) = (tx - 100) * 1000 + (ty - 200) * 100 + x + y * 0.01
+
+  private def verify(merged:MrGeoRaster, expected:TileBounds):Unit = {
+    assertResult(expected.width().toInt * tilesize)(merged.width())
+    assertResult(expected.height().toInt * tilesize)(merged.height())
+
+    // the top row of the merged raster is the north edge
+    for (y <- 0 until merged.height(); x <- 0 until merged.width()) {
+      val tx = expected.w + x / tilesize
+      val ty = expected.n - y / tilesize
+      val v = if (missing(tx, ty)) nodatas(0) else value(tx, ty, x % tilesize, y % tilesize)
+      assertResult(v.toFloat.toDouble, s"pixel ($x, $y)")(merged.getPixelDouble(x, y, 0))
+    }
+  }
+}
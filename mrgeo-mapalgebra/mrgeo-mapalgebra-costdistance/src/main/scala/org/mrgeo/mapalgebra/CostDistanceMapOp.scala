@@ -22,8 +22,11 @@ import java.util
 
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings
 import org.apache.commons.lang3.builder.HashCodeBuilder
+import org.apache.hadoop.conf.Configuration
+import org.apache.hadoop.fs.Path
 import org.apache.spark._
 import org.apache.spark.rdd.RDD
+import org.apache.spark.scheduler.{SparkListener, SparkListenerApplicationEnd}
 import org.apache.spark.storage.StorageLevel
 import org.mrgeo.data.{DataProviderFactory, ProviderProperties}
 import org.mrgeo.data.raster.{MrGeoRaster, RasterWritable}
@@ -31,6 +34,7 @@ import org.mrgeo.data.rdd.{RasterRDD, VectorRDD}
 import org.mrgeo.data.tile.TileIdWritable
 import org.mrgeo.data.vector.FeatureIdWritable
 import org.mrgeo.geometry.{Geometry, GeometryFactory, Point}
+import org.mrgeo.hdfs.utils.HadoopFileUtils
 import org.mrgeo.job.JobArguments
 import org.mrgeo.mapalgebra.parser.{ParserException, ParserNode}
 import org.mrgeo.mapalgebra.raster.RasterMapOp
@@ -66,21 +70,24 @@ import scala.collection.mutable.ListBuffer
   * bands contain those friction values, and the last band contains the current
   * cost to reach that pixel from the source point. The source point and the tile
   * it resides in are included in the set of changed pixels. The code loops until
-  * there are no more changed pixels. Each pass through the loop performs a Spark
-  * "map" operation over the tiles. If there are no pixel changes for that
-  * tile, the original tile is simply returned. If there are changes, the tile
-  * is re-computed based on the algorithm described above to update other pixels
-  * within that tile. If any edge pixels in that tile change, they are added to
-  * the accumulator. After the map operation completes, the content of the
-  * accumulator becomes the list of changed pixels to process during the next
-  * pass through the loop. This is continued until there are no more pixels
-  * to process. Note that the result of each pass through the loop can result in
-  * pixel changes across many tiles (which get processed in the next pass).
+  * there are no more changed pixels. The cost tiles and the changed pixels are
+  * partitioned the same way (by tile id), and each pass through the loop only
+  * re-computes the tiles that have changes, based on the algorithm described
+  * above. Tiles without changes, and whole partitions without any, are passed
+  * along untouched. If any edge pixels in a re-computed tile change, they become
+  * changes for the neighboring tiles, and are shuffled to those tiles' partitions
+  * for the next pass through the loop. This is continued until there are no more
+  * pixels to process. Every few passes the costs and changes are checkpointed, so the
+  * lineage doesn't keep growing. Note that the result of each pass through the loop can result
+  * in pixel changes across many tiles (which get processed in the next pass).
   * Note that the same tile can get processed multiple times before the
   * algorithm completes.
   */
 object CostDistanceMapOp extends MapOpRegistrar {
 
+  // iterations between checkpoints of the costs and changes, each iteration adds to their lineage
+  private val CheckpointInterval = 10
+
   override def register:Array[String] = {
     Array[String]("costDistance", "cd")
   }
@@ -107,6 +114,9 @@ class CostDistanceMapOp extends RasterMapOp with Externalizable with Logging {
   var maxCost:Float = -1
   var providerProperties:ProviderProperties = _
   private var rasterRDD:Option[RasterRDD] = None
+  // the checkpoint directory made in execute(), when the context didn't already have one
+  private var checkpointDir:Option[Path] = None
+  private var checkpointConf:Option[Configuration] = None
 
   override def rdd():Option[RasterRDD] = rasterRDD
 
@@ -119,7 +129,10 @@ class CostDistanceMapOp extends RasterMapOp with Externalizable with Logging {
     true
   }
 
-  override def teardown(job:JobArguments, conf:SparkConf):Boolean = true
+  override def teardown(job:JobArguments, conf:SparkConf):Boolean = {
+    deleteCheckpointDir()
+    true
+  }
 
   override def getZoomLevel(): Int = {
     frictionZoom.getOrElse(friction.getOrElse(throw new IOException("Raster input was not specified")).getZoomLevel())
@@ -240,99 +253,118 @@ class CostDistanceMapOp extends RasterMapOp with Externalizable with Logging {
     // job.
     val numTasks = numExecutors * numCoresPerExecutor
     val isDynamicAlloc = context.getConf.getBoolean("spark.dynamicAllocation.enabled", defaultValue = false)
-    val repartitioned = if (!isDynamicAlloc && numTasks > 1) {
+    val partitions = if (!isDynamicAlloc && numTasks > 1) {
       logInfo("Repartitioning to " + numTasks + " partitions")
-      val partitions = frictionRDD.partitions.length
-      if (partitions < numTasks) {
-        frictionRDD.repartition(numTasks)
-      }
-      else if (partitions > numTasks) {
-        frictionRDD.coalesce(numTasks)
-      }
-      else {
-        frictionRDD
-      }
+      numTasks
     }
     else {
-      //      logInfo("No need to repartition")
-      frictionRDD
+      frictionRDD.partitions.length
     }
 
+    // The costs and the changes to them are partitioned alike, so a tile's changes are always
+    // in the same partition as the tile.
+    val partitioner = new HashPartitioner(partitions)
+
     val pixelSizeMeters = (res * LatLng.METERS_PER_DEGREE).toFloat
 
+    if (context.getCheckpointDir.isEmpty) {
+      val dir = HadoopFileUtils.createJobTmp(context.hadoopConfiguration)
+      context.setCheckpointDir(dir.toString)
+      checkpointDir = Some(dir)
+      checkpointConf = Some(context.hadoopConfiguration)
+
+      // The result falls back to the checkpoints for any cached partitions it loses, so they can
+      // only go when the context does. Mapops aren't always torn down, so don't wait for that.
+      context.addSparkListener(new SparkListener {
+        override def onApplicationEnd(applicationEnd:SparkListenerApplicationEnd):Unit = {
+          deleteCheckpointDir()
+        }
+      })
+    }
 
-    var costs = makeRasters(repartitioned)
-    var changes = buildInitialPoints(costs, frictionNoDatas, startPts, context, pixelSizeMeters)
+    // Stored deserialized, so the tiles that don't change can be passed from one iteration's
+    // costs to the next by reference
+    var costs = makeRasters(frictionRDD).partitionBy(partitioner).persist(StorageLevel.MEMORY_AND_DISK)
+    val initial = buildInitialPoints(costs, frictionNoDatas, startPts, context, pixelSizeMeters)
+
+    var changes = context.parallelize(initial.keySet().toSeq.map(tileid => {
+      (new TileIdWritable(tileid), initial.get(tileid).toArray)
+    })).partitionBy(partitioner).persist(StorageLevel.MEMORY_AND_DISK_SER)
 
     // Force the RDD to materialize
     costs.count()
 
-
     // Process changes until there aren't any more
     var counter:Long = 0
-    do {
-//      val t0 = System.currentTimeMillis()
-      // Use an accumulator to capture changes for the neighbor tiles as we process.
-      val changesAccum = context.accumulator(new NeighborChangedPoints)(NeighborChangesAccumulator)
-
+    var pending = changes.count()
+    while (pending > 0) {
       val previous = costs
-
-      var mapAccum = context.accumulator(0, "Tiles Mapped")
-      var processedAccum = context.accumulator(0, "Tiles Processed")
-
-      //      costs.foreach(tile => {
-      //        val raster = RasterWritable.toRaster(tile._2)
-      //
-      //        val t = TMSUtils.tileid(tile._1.get, zoom)
-      //        GDALUtils.saveRasterTile(raster, "/data/export/costs/tile-" + tile._1.get,
-      //          t.tx, t.ty, zoom, Float.NaN)
-      //      })
-
-      costs = previous.map(tile => {
-        mapAccum += 1
-        val tileid = tile._1.get
-//        val t2 = System.currentTimeMillis()
-        val tileChanges = changes.get(tileid)
-//        logError("Looking up changes took " + (System.currentTimeMillis() - t2))
-        if (tileChanges != null) {
-          processedAccum += 1
-          //          changesToProcess.dump(zoomLevel)
-
-          // This tile has changes to process. Update the pixel values within the
-          // tile accordingly while accumulating changes to this tile's neighbors.
-          val raster = RasterWritable.toMrGeoRaster(tile._2)
-
-//          val t1 = System.currentTimeMillis()
-          processTile(tileid, raster, frictionNoDatas, tileChanges, changesAccum, zoom, pixelSizeMeters, tileBounds)
-//          logError("Time for processTile on " + tileid + " is " + (System.currentTimeMillis() - t1))
-
-          (tile._1, RasterWritable.toWritable(raster))
+      val previousChanges = changes
+
+      // Re-compute only the tiles with changes, giving their new costs and the changes for their
+      // neighbors.
+      val processed = previous.zipPartitions(previousChanges, preservesPartitioning = true)((tiles, tileChanges) => {
+        if (tileChanges.hasNext) {
+          val byTile = tileChanges.map(change => (change._1.get(), change._2)).toMap
+          tiles.filter(tile => byTile.contains(tile._1.get())).map(tile => {
+            val tileid = tile._1.get()
+
+            // copy the tile, the previous costs still have it
+            val raster = RasterWritable.toMrGeoRaster(tile._2.copy())
+            val edgePoints = processTile(tileid, raster, frictionNoDatas, byTile(tileid), zoom, pixelSizeMeters,
+              tileBounds)
+
+            val neighbors = edgePoints.keySet().toSeq.map(neighbor => {
+              (new TileIdWritable(neighbor), edgePoints.get(neighbor).toArray)
+            }).toArray
+            (tile._1, (RasterWritable.toWritable(raster), neighbors))
+          })
         }
         else {
-          (tile._1, tile._2.copy())
+          Iterator.empty
         }
       }).persist(StorageLevel.MEMORY_AND_DISK_SER)
 
-      // Force the rdd to materialize
-      costs.count()
-
-      previous.unpersist()
+      // The edge changes go straight to the partitions of the neighboring tiles
+      changes = processed.flatMap(tile => tile._2._2).reduceByKey(partitioner, _ ++ _)
+          .persist(StorageLevel.MEMORY_AND_DISK_SER)
+
+      costs = previous.zipPartitions(processed, preservesPartitioning = true)((tiles, updated) => {
+        if (updated.hasNext) {
+          val byTile = updated.map(tile => (tile._1.get(), tile._2._1)).toMap
+          tiles.map(tile => {
+            byTile.get(tile._1.get()) match {
+              case Some(raster) => (tile._1, raster)
+              case None => tile
+            }
+          })
+        }
+        else {
+          // nothing changed in this partition
+          tiles
+        }
+      }).persist(StorageLevel.MEMORY_AND_DISK)
 
-      //      costs.foreach(tile => {
-      //        val raster = RasterWritable.toRaster(tile._2)
-      //
-      //        val t = TMSUtils.tileid(tile._1.get, zoom)
-      //        GDALUtils.saveRasterTile(raster, "/data/export/costs/tile-" + tile._1.get,
-      //          t.tx, t.ty, zoom, Float.NaN)
-      //      })
+      // Cut the lineage every so often, otherwise it (and the time to schedule each iteration) keeps
+      // growing.  Both are persisted, so the checkpoints are written from the cached partitions.
+      if ((counter + 1) % CostDistanceMapOp.CheckpointInterval == 0) {
+        costs.checkpoint()
+        changes.checkpoint()
+      }
 
-      changes = changesAccum.value
+      // Force the rdds to materialize
+      pending = changes.count()
+      costs.count()
 
+      processed.unpersist()
+      previousChanges.unpersist()
+      previous.unpersist()
 
-      logInfo("Changes after iteration " + counter + ": " + changes.totalCount())
+      logInfo("Tiles with changes after iteration " + counter + ": " + pending)
       counter += 1
-//      logError("Processing time for loop iteration is " + (System.currentTimeMillis() - t0))
-    } while (changes.size() > 0)
+    }
+
+    changes.unpersist()
 
 
     rasterRDD = Some(RasterRDD(costs.map(tile => {
@@ -363,6 +395,19 @@ class CostDistanceMapOp extends RasterMapOp with Externalizable with Logging {
     true
   }
 
+  private def deleteCheckpointDir():Unit = synchronized {
+    checkpointDir.foreach(dir => {
+      try {
+        HadoopFileUtils.delete(checkpointConf.get, dir)
+      }
+      catch {
+        case e:IOException => logWarning("Unable to delete the checkpoint directory " + dir, e)
+      }
+    })
+    checkpointDir = None
+    checkpointConf = None
+  }
+
   /**
     * Given one or more source points, compute a Bounds surrounding those points that
     * extends out to maxCost above, below, and the left and right of the MBR of those
@@ -423,16 +468,17 @@ class CostDistanceMapOp extends RasterMapOp with Externalizable with Logging {
     }
   }
 
+  /**
+    * Apply the changes to the tile's costs, and return the changes the tile's edges make to
+    * its neighbors.
+    */
   def processTile(tileid:Long,
                   raster:MrGeoRaster,
                   frictionNoData: Array[Float],
-                  changes:List[CostPoint],
-                  changesAccum:Accumulator[NeighborChangedPoints],
+                  changes:Seq[CostPoint],
                   zoom:Int,
                   pixelsize:Float,
-                  tileBounds:TileBounds):Unit = {
-    val startTime = System.nanoTime()
-
+                  tileBounds:TileBounds):NeighborChangedPoints = {
     val tile = TMSUtils.tileid(tileid, zoom)
 
     // length of the pixel diagonal
@@ -527,8 +573,6 @@ class CostDistanceMapOp extends RasterMapOp with Externalizable with Logging {
     val origLeftEdgeValues:Array[Float] = new Array[Float](height)
     val origRightEdgeValues:Array[Float] = new Array[Float](height)
 
-    val preStart:Double = System.nanoTime()
-
     var px:Int = 0
     while (px < width) {
       origTopEdgeValues(px) = raster.getPixelFloat(px, 0, costBand)
@@ -544,7 +588,7 @@ class CostDistanceMapOp extends RasterMapOp with Externalizable with Logging {
     }
 
     // apply the incoming values...
-    val queue = new java.util.PriorityQueue[CostPoint]()
+    val queue = new PixelCostHeap()
     changes.foreach(pt => {
       // we'll do the cost check here since maintaining the priority queue is expensive
       val currentCost = raster.getPixelFloat(pt.px, pt.py, costBand)
@@ -555,7 +599,7 @@ class CostDistanceMapOp extends RasterMapOp with Externalizable with Logging {
         val newCost = pt.cost + pt.pixelCost
 
         if (isSmallerMaxCost(newCost, currentCost)) {
-          queue.add(pt)
+          queue.add(newCost, pt.px + pt.py * width)
         }
       }
       else {
@@ -570,7 +614,7 @@ class CostDistanceMapOp extends RasterMapOp with Externalizable with Logging {
           val newCost = pt.cost + pt.pixelCost
 
           if (isSmallerMaxCost(newCost, currentCost)) {
-            queue.add(pt)
+            queue.add(newCost, pt.px + pt.py * width)
           }
         }
       }
@@ -585,48 +629,18 @@ class CostDistanceMapOp extends RasterMapOp with Externalizable with Logging {
     // for the neighbor point. If a point around the perimeter of the tile
     // changes, then add an entry to local changedPoints.
 
-    // val preProcessingTime:Double = System.nanoTime() - preStart
-    var totalEnqueue:Double = 0.0
-    var totalDequeue:Double = 0.0
-    // var counter:Long = 0L
-
-    val costPointPool = new mutable.Queue[CostPoint]()
-//    var reuseCount:Long = 0
-//    var newCount:Long = 0
     // Process the queue of changed points until it is empty
     while (!queue.isEmpty) {
-      //      counter += 1
-      //      println("pass: " + counter + " queue size: " + queue.size())
-      //      val q = new java.util.PriorityQueue[CostPoint]()
-      //      for (p <- queue.toArray) {
-      //        p match {
-      //        case cp: CostPoint => q.add(cp)
-      //        case _ =>
-      //        }
-      //      }
-      //
-      //      var cnt = 0
-      //
-      //      while (!q.isEmpty) {
-      //        val cp = q.poll()
-      //        println("  " + cnt + " x: " + (cp.px - 74) + " y: " + (cp.py - 197) + " cost: " +
-      //            cp.cost + " pc: " + cp.pixelCost + " tot: " + (cp.cost + cp.pixelCost))
-      ////        println("%2d\t%2d\t%6.3f".format(cp.px - 74, cp.py - 197, cp.cost + cp.pixelCost))
-      //        cnt += 1
-      //      }
-
-      var t0 = System.nanoTime()
-
-      val point = queue.poll()
-
-      totalDequeue = totalDequeue + (System.nanoTime() - t0)
-
-      val newCost = point.cost + point.pixelCost
-      val currentCost = raster.getPixelFloat(point.px, point.py, costBand)
+      val newCost = queue.headCost
+      val pointPx = queue.headPixel % width
+      val pointPy = queue.headPixel / width
+      queue.poll()
+
+      val currentCost = raster.getPixelFloat(pointPx, pointPy, costBand)
 
       // check for a lower cost
       if (isSmallerMaxCost(newCost, currentCost)) {
-        raster.setPixel(point.px, point.py, costBand, newCost)
+        raster.setPixel(pointPx, pointPy, costBand, newCost)
 
         // Since this point has a new cost, check to see if the cost to each
         // of its neighbors is smaller than the current cost assigned to those
@@ -637,79 +651,46 @@ class CostDistanceMapOp extends RasterMapOp with Externalizable with Logging {
         while (neighbor < neighborData.length) {
           val direction = neighborData(neighbor)
 
-          val pxNeighbor = (point.px + direction.dx).toShort
-          val pyNeighbor = (point.py + direction.dy).toShort
+          val pxNeighbor = pointPx + direction.dx
+          val pyNeighbor = pointPy + direction.dy
 
           // check for edge of the image
           if (pxNeighbor >= 0 && pxNeighbor < width && pyNeighbor >= 0 && pyNeighbor < height) {
-            // compute the new cost to the neighbor
+            // compute the new cost to the neighbor, NaN if there is no friction
             val friction = if (multiband) {
               // multiband friction
-              val f = raster.getPixelFloat(point.px, point.py, direction.multibandNdx)
+              val f = raster.getPixelFloat(pointPx, pointPy, direction.multibandNdx)
               if (isNoData(f, frictionNoData(direction.multibandNdx))) {
-                None
+                Float.NaN
               }
               else {
-                Some(f)
+                f
               }
             }
             else {
               val neighborFriction = raster.getPixelFloat(pxNeighbor, pyNeighbor, 0)
               if (isNoData(neighborFriction, frictionNoData(0))) {
-                None
+                Float.NaN
               }
               else {
-                Some((raster.getPixelFloat(point.px, point.py, 0) +
-                  neighborFriction) * 0.5f)
+                (raster.getPixelFloat(pointPx, pointPy, 0) + neighborFriction) * 0.5f
               }
             }
 
-            friction match {
-              case Some(f) =>
-                val currentNeighborCost = raster.getPixelFloat(pxNeighbor, pyNeighbor, costBand)
-                val pixelCost = f * direction.dist
-                val neighborCost = newCost + pixelCost
-
-                if (isSmallerMaxCost(neighborCost, currentNeighborCost)) {
-                  // the costpoint contains the current friction and cost to get to the neighbor
-                  val neighborPoint = {
-                    if (costPointPool.isEmpty) {
-                      //                    newCount += 1
-                      new CostPoint(pxNeighbor, pyNeighbor, newCost, pixelCost)
-                    }
-                    else {
-                      //                    reuseCount += 1
-                      val cp = costPointPool.dequeue()
-                      cp.px = pxNeighbor
-                      cp.py = pyNeighbor
-                      cp.cost = newCost
-                      cp.pixelCost = pixelCost
-                      cp.diagonal = false
-                      cp
-                    }
-                  }
-
-                  t0 = System.nanoTime()
-
-                  queue.add(neighborPoint)
-
-                  totalEnqueue = totalEnqueue + (System.nanoTime() - t0)
-                }
-              case None => // do nothing
+            if (!friction.isNaN) {
+              val currentNeighborCost = raster.getPixelFloat(pxNeighbor, pyNeighbor, costBand)
+              val neighborCost = newCost + friction * direction.dist
+
+              if (isSmallerMaxCost(neighborCost, currentNeighborCost)) {
+                queue.add(neighborCost, pxNeighbor + pyNeighbor * width)
+              }
             }
           }
           neighbor += 1
         }
-        costPointPool.enqueue(point)
       }
     }
 
-
-//    logError("reuseCount = " + reuseCount)
-//    logError("newCount = " + newCount)
-//    logError("totalDequeue = " + totalDequeue)
-//    logError("totalEnqueue = " + totalEnqueue)
-    val t0 = System.nanoTime()
     val edgePoints = new NeighborChangedPoints
 
     val neighborTileIds = Array.ofDim[Long](neighborData.length)
@@ -884,12 +865,7 @@ class CostDistanceMapOp extends RasterMapOp with Externalizable with Logging {
       })
     }
 
-    if (edgePoints.size() > 0) {
-      changesAccum.add(edgePoints)
-    }
-
-    // val postProcessingTime:Double = System.nanoTime() - t0
-    // val totalTime:Double = System.nanoTime() - startTime
+    edgePoints
   }
 
   override def writeExternal(out:ObjectOutput):Unit = {
@@ -901,7 +877,8 @@ class CostDistanceMapOp extends RasterMapOp with Externalizable with Logging {
   }
 
   override def registerClasses():Array[Class[_]] = {
-    GeometryFactory.getClasses ++ Array[Class[_]](classOf[FeatureIdWritable], classOf[Pixel])
+    GeometryFactory.getClasses ++ Array[Class[_]](classOf[FeatureIdWritable], classOf[Pixel],
+      classOf[CostPoint], classOf[Array[CostPoint]])
   }
 
   def buildInitialPoints(frictionRDD:RDD[(TileIdWritable, RasterWritable)],
@@ -1134,6 +1111,75 @@ class CostPoint(var px:Short, var py:Short, var cost:Float, var pixelCost:Float,
   }
 }
 
+/**
+  * A min heap of pixels (x + y * width) ordered by their cost, in primitive arrays so the
+  * pixels queued while processing a tile aren't each an object.
+  */
+class PixelCostHeap(initialCapacity:Int = 1024) {
+  private var costs = new Array[Float](initialCapacity)
+  private var pixels = new Array[Int](initialCapacity)
+  private var count = 0
+
+  def isEmpty:Boolean = count == 0
+
+  def size:Int = count
+
+  // the lowest cost in the heap, and its pixel
+  def headCost:Float = costs(0)
+
+  def headPixel:Int = pixels(0)
+
+  def add(cost:Float, pixel:Int):Unit = {
+    if (count == costs.length) {
+      costs = util.Arrays.copyOf(costs, count * 2)
+      pixels = util.Arrays.copyOf(pixels, count * 2)
+    }
+
+    // sift up
+    var ndx = count
+    var parent = (ndx - 1) >>> 1
+    while (ndx > 0 && costs(parent) > cost) {
+      costs(ndx) = costs(parent)
+      pixels(ndx) = pixels(parent)
+      ndx = parent
+      parent = (ndx - 1) >>> 1
+    }
+    costs(ndx) = cost
+    pixels(ndx) = pixel
+    count += 1
+  }
+
+  // remove the head
+  def poll():Unit = {
+    count -= 1
+    if (count > 0) {
+      val cost = costs(count)
+      val pixel = pixels(count)
+
+      // sift down
+      var ndx = 0
+      var child = 1
+      var done = false
+      while (!done && child < count) {
+        if (child + 1 < count && costs(child + 1) < costs(child)) {
+          child += 1
+        }
+        if (costs(child) < cost) {
+          costs(ndx) = costs(child)
+          pixels(ndx) = pixels(child)
+          ndx = child
+          child = 2 * ndx + 1
+        }
+        else {
+          done = true
+        }
+      }
+      costs(ndx) = cost
+      pixels(ndx) = pixel
+    }
+  }
+}
+
 // Stores points from a source tile that changed value and forced
 // the target tile to be recomputed. The key in the hash map is the
 // direction from the source tile to the target tile.
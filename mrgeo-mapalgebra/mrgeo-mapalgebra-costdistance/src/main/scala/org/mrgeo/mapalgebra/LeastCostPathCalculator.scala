@@ -20,12 +20,12 @@ import java.text.DecimalFormat
 
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings
 import org.apache.spark.SparkContext
-import org.apache.spark.storage.StorageLevel
 import org.mrgeo.data.raster.{MrGeoRaster, RasterWritable}
-import org.mrgeo.data.rdd.{RasterRDD, VectorRDD}
+import org.mrgeo.data.rdd.VectorRDD
 import org.mrgeo.geometry.{Geometry, GeometryFactory, Point}
 import org.mrgeo.image.MrsPyramidMetadata
 import org.mrgeo.mapalgebra.raster.RasterMapOp
+import org.mrgeo.spark.TileIndex
 import org.mrgeo.utils.tms.{Pixel, TMSUtils, Tile}
 import org.mrgeo.utils.{LatLng, Logging}
 
@@ -41,18 +41,17 @@ object LeastCostPathCalculator extends Logging {
                (throw new IOException("Can't load metadata! Ouch! " + costDist.getClass.getName))
     val rdd = costDist.rdd() getOrElse (throw new IOException("Can't load RDD! Ouch! " + costDist.getClass.getName))
 
-    val localPersist = rdd.getStorageLevel == StorageLevel.NONE
+    // the paths fetch the tiles they need from the index, only touching the partitions with those tiles
+    val index = TileIndex(rdd, TMSUtils.boundsToTile(meta.getBounds, meta.getMaxZoomLevel, meta.getTilesize),
+      meta.getMaxZoomLevel)
 
-    if (localPersist) {
-      rdd.persist(StorageLevel.MEMORY_AND_DISK_SER)
-    }
-
-    val lcps = destination.collect.map(feature => {
+    // the paths are independent, trace them at the same time
+    val lcps = destination.collect.par.map(feature => {
       val lcp = GeometryFactory.createLineString()
 
       feature._2 match {
         case pt:Point =>
-          val calculator = new LeastCostPathCalculator(pt, rdd, meta)
+          val calculator = new LeastCostPathCalculator(pt, index, meta)
 
           while (calculator.hasnext) {
             lcp.addPoint(calculator.point)
@@ -80,11 +79,9 @@ object LeastCostPathCalculator extends Logging {
         case g:Geometry =>
           throw new IOException("Expected a point to be passed to LeastCostPath, but instead got " + g)
       }
-    })
+    }).toArray
 
-    if (localPersist) {
-      rdd.unpersist()
-    }
+    index.unpersist()
 
     VectorRDD(context.parallelize(lcps))
   }
@@ -94,7 +91,7 @@ object LeastCostPathCalculator extends Logging {
 @SuppressFBWarnings(
   value = Array("NM_FIELD_NAMING_CONVENTION", "FE_FLOATING_POINT_EQUALITY", "RV_RETURN_VALUE_IGNORED_NO_SIDE_EFFECT"),
   justification = "1) false positive - case class NeighborData correctly named, 2 & 3) Scala generated code")
-private class LeastCostPathCalculator(start:Point, rdd:RasterRDD, meta:MrsPyramidMetadata) extends Logging {
+private class LeastCostPathCalculator(start:Point, index:TileIndex, meta:MrsPyramidMetadata) extends Logging {
   val zoom:Int = meta.getMaxZoomLevel
   val tilesize:Int = meta.getTilesize
   private val pixelsize = (TMSUtils.resolution(zoom, tilesize) * LatLng.METERS_PER_DEGREE).toFloat
@@ -230,7 +227,7 @@ private class LeastCostPathCalculator(start:Point, rdd:RasterRDD, meta:MrsPyrami
     val tilebuilder = Array.newBuilder[Long]
 
     // 1st see if any of the new tiles are already loaded.  If so, just copy them into the new cache.
-    // if not, put them into an array, so the filter can find them
+    // if not, put them into an array, so the index can find them
     var dy = t.ty - CACHE_HALFWIDTH
     while (dy <= t.ty + CACHE_HALFWIDTH) {
       var dx = t.tx - CACHE_HALFWIDTH
@@ -250,11 +247,9 @@ private class LeastCostPathCalculator(start:Point, rdd:RasterRDD, meta:MrsPyrami
 
     val tilelist = tilebuilder.result()
 
-    // filter the new tiles and put them into the new cache
-    rdd.filter(tile => {
-      tilelist.contains(tile._1.get)
-    }).collect.foreach(tile => {
-      newcache.put(tile._1.get, RasterWritable.toMrGeoRaster(tile._2))
+    // fetch the new tiles and put them into the new cache
+    index.get(tilelist).foreach(tile => {
+      newcache.put(tile._1, RasterWritable.toMrGeoRaster(tile._2))
     })
 
     cache = newcache
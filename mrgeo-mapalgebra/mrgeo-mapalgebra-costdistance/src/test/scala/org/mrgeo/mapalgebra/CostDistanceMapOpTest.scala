@@ -16,9 +16,15 @@
 
 package org.mrgeo.mapalgebra
 
+import java.awt.image.DataBuffer
+
+import org.mrgeo.data.raster.MrGeoRaster
 import org.mrgeo.utils.LatLng
+import org.mrgeo.utils.tms.{TMSUtils, TileBounds}
 import org.scalatest.FlatSpec
 
+import scala.util.Random
+
 @SuppressWarnings(Array("all")) // Test code, not included in production
 class CostDistanceMapOpTest extends FlatSpec {
   behavior of "bounds calculation (with maxCost of METERS_PER_DEGREE seconds/meter and min friction value of 0.5"
@@ -90,4 +96,144 @@ class CostDistanceMapOpTest extends FlatSpec {
   //    Assert.assertEquals(-178.0, b.getMaxX, EPSILON)
   //    Assert.assertEquals(90.0, b.getMaxY, EPSILON)
   //  }
+
+  behavior of "processTile"
+
+  private val zoom = 10
+  private val tx = 500
+  private val ty = 300
+  private val tilesize = 32
+  private val pixelsize = 30.0f
+
+  it should "compute the same costs as the PriorityQueue version for single band friction" in {
+    compareToOld(1, 0.0f, Array(new CostPoint(16, 16, 0.0f, 0.0f)), startCost = false)
+  }
+
+  it should "compute the same costs as the PriorityQueue version for multiband friction" in {
+    compareToOld(8, 0.0f, Array(new CostPoint(16, 16, 0.0f, 0.0f)), startCost = false)
+  }
+
+  it should "compute the same costs as the PriorityQueue version for edge changes with a max cost" in {
+    // changes coming in from the tile to the left, into a tile that already has some costs
+    val changes = (0 until tilesize by 3).map(y => new CostPoint(0, y.toShort, 1000.0f + y * 10, 15.0f,
+      y % 2 == 0)).toArray
+    compareToOld(1, 5000.0f, changes, startCost = true)
+  }
+
+  private def friction(bands:Int, startCost:Boolean):MrGeoRaster = {
+    val random = new Random(bands)
+    val raster = MrGeoRaster.createEmptyRaster(tilesize, tilesize, bands + 1, DataBuffer.TYPE_FLOAT)
+    for (y <- 0 until tilesize; x <- 0 until tilesize) {
+      for (b <- 0 until bands) {
+        // some nodata holes, but never under the start point
+        val hole = random.nextInt(20) == 0 && (x != 16 || y != 16)
+        raster.setPixel(x, y, b, if (hole) Float.NaN else 0.5f + random.nextFloat() * 2)
+      }
+      raster.setPixel(x, y, bands, if (startCost && x > tilesize / 2) 1500.0f + y * 50 else Float.NaN)
+    }
+    raster
+  }
+
+  private def copy(changes:Array[CostPoint]) = {
+    changes.map(pt => new CostPoint(pt.px, pt.py, pt.cost, pt.pixelCost, pt.diagonal))
+  }
+
+  private def compareToOld(bands:Int, maxCost:Float, changes:Array[CostPoint], startCost:Boolean):Unit = {
+    val nodatas = Array.fill[Float](bands)(Float.NaN)
+    val tileBounds = new TileBounds(tx - 1, ty - 1, tx + 1, ty + 1)
+
+    val op = new CostDistanceMapOp()
+    op.maxCost = if (maxCost > 0) maxCost else -1
+
+    val expected = friction(bands, startCost)
+    oldProcessTile(expected, nodatas, copy(changes), op.maxCost)
+
+    val actual = friction(bands, startCost)
+    op.processTile(TMSUtils.tileid(tx, ty, zoom), actual, nodatas, copy(changes), zoom, pixelsize, tileBounds)
+
+    var computed = 0
+    for (y <- 0 until tilesize; x <- 0 until tilesize) {
+      val e = expected.getPixelFloat(x, y, bands)
+      val a = actual.getPixelFloat(x, y, bands)
+      if (e.isNaN) {
+        assert(a.isNaN, s"pixel ($x, $y): expected NaN, got $a")
+      }
+      else {
+        assert(Math.abs(e - a) <= 1e-4 * Math.max(1.0, Math.abs(e)), s"pixel ($x, $y): expected $e, got $a")
+        computed += 1
+      }
+    }
+    assert(computed > tilesize)
+  }
+
+  // processTile's cost computation before the primitive heap, with a PriorityQueue of CostPoints
+  private def oldProcessTile(raster:MrGeoRaster, frictionNoData:Array[Float], changes:Seq[CostPoint],
+                             maxCost:Float):Unit = {
+    val pixelsizediag = Math.sqrt(2.0 * pixelsize * pixelsize).toFloat
+    val costBand = raster.bands() - 1
+    val multiband = costBand > 1
+    val width = raster.width()
+    val height = raster.height()
+
+    // dx, dy, multiband friction band, distance
+    val neighborData = Array[(Int, Int, Int, Float)](
+      (-1, -1, 7, pixelsizediag), (0, -1, 0, pixelsize), (1, -1, 1, pixelsizediag), (-1, 0, 6, pixelsize),
+      (1, 0, 2, pixelsize), (-1, 1, 5, pixelsizediag), (0, 1, 4, pixelsize), (1, 1, 3, pixelsizediag))
+
+    def isNoData(value:Float, nodata:Float) = if (nodata.isNaN) value.isNaN else value == nodata
+
+    def isSmallerMaxCost(newcost:Float, oldcost:Float):Boolean = {
+      (maxCost <= 0.0 || newcost <= (maxCost + 1e-8)) &&
+      !newcost.isNaN && (oldcost.isNaN || newcost < (oldcost - 1e-7))
+    }
+
+    val queue = new java.util.PriorityQueue[CostPoint]()
+    changes.foreach(pt => {
+      val currentCost = raster.getPixelFloat(pt.px, pt.py, costBand)
+      if (multiband) {
+        if (isSmallerMaxCost(pt.cost + pt.pixelCost, currentCost)) {
+          queue.add(pt)
+        }
+      }
+      else {
+        val friction = raster.getPixelFloat(pt.px, pt.py, 0)
+        if (!isNoData(friction, frictionNoData(0))) {
+          pt.pixelCost += friction * (if (pt.diagonal) pixelsizediag else pixelsize) * 0.5f
+          if (isSmallerMaxCost(pt.cost + pt.pixelCost, currentCost)) {
+            queue.add(pt)
+          }
+        }
+      }
+    })
+
+    while (!queue.isEmpty) {
+      val point = queue.poll()
+      val newCost = point.cost + point.pixelCost
+      if (isSmallerMaxCost(newCost, raster.getPixelFloat(point.px, point.py, costBand))) {
+        raster.setPixel(point.px, point.py, costBand, newCost)
+
+        neighborData.foreach(direction => {
+          val nx = point.px + direction._1
+          val ny = point.py + direction._2
+          if (nx >= 0 && nx < width && ny >= 0 && ny < height) {
+            val friction = if (multiband) {
+              val f = raster.getPixelFloat(point.px, point.py, direction._3)
+              if (isNoData(f, frictionNoData(direction._3))) None else Some(f)
+            }
+            else {
+              val nf = raster.getPixelFloat(nx, ny, 0)
+              if (isNoData(nf, frictionNoData(0))) None else Some((raster.getPixelFloat(point.px, point.py, 0) + nf) * 0.5f)
+            }
+
+            friction.foreach(f => {
+              val pixelCost = f * direction._4
+              if (isSmallerMaxCost(newCost + pixelCost, raster.getPixelFloat(nx, ny, costBand))) {
+                queue.add(new CostPoint(nx.toShort, ny.toShort, newCost, pixelCost))
+              }
+            })
+          }
+        })
+      }
+    }
+  }
 }
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2009-2016 DigitalGlobe, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+package org.mrgeo.mapalgebra
+
+import org.scalatest.FlatSpec
+
+import scala.util.Random
+
+@SuppressWarnings(Array("all")) // Test code, not included in production
+class PixelCostHeapTest extends FlatSpec {
+  behavior of "PixelCostHeap"
+
+  it should "be empty when created" in {
+    val heap = new PixelCostHeap()
+    assert(heap.isEmpty)
+    assertResult(0)(heap.size)
+  }
+
+  it should "poll the costs in order, growing past its initial capacity" in {
+    val random = new Random(1)
+    val costs = Array.fill(1000)(random.nextFloat() * 100)
+
+    val heap = new PixelCostHeap(4)
+    costs.zipWithIndex.foreach(cost => heap.add(cost._1, cost._2))
+    assertResult(costs.length)(heap.size)
+
+    val polled = drain(heap)
+    assertResult(costs.sorted.toSeq)(polled.map(_._1))
+
+    // each pixel came back with its own cost
+    polled.foreach(pixel => assertResult(costs(pixel._2))(pixel._1))
+  }
+
+  it should "keep duplicate costs and pixels" in {
+    val heap = new PixelCostHeap(2)
+    heap.add(1.0f, 5)
+    heap.add(1.0f, 5)
+    heap.add(0.5f, 5)
+    heap.add(1.0f, 7)
+
+    val polled = drain(heap)
+    assertResult(Seq(0.5f, 1.0f, 1.0f, 1.0f))(polled.map(_._1))
+    assertResult(Seq(5, 5, 5, 7))(polled.map(_._2).sorted)
+  }
+
+  it should "match a priority queue when adds and polls are interleaved" in {
+    val random = new Random(2)
+    val heap = new PixelCostHeap(8)
+    val queue = new java.util.PriorityQueue[java.lang.Float]()
+
+    for (i <- 0 until 5000) {
+      if (queue.isEmpty || random.nextInt(3) > 0) {
+        val cost = random.nextInt(500) * 0.25f
+        heap.add(cost, i)
+        queue.add(cost)
+      }
+      else {
+        assertResult(queue.poll().floatValue())(heap.headCost)
+        heap.poll()
+      }
+      assertResult(queue.size())(heap.size)
+    }
+
+    while (!queue.isEmpty) {
+      assertResult(queue.poll().floatValue())(heap.headCost)
+      heap.poll()
+    }
+    assert(heap.isEmpty)
+  }
+
+  private def drain(heap:PixelCostHeap):Seq[(Float, Int)] = {
+    val polled = Seq.newBuilder[(Float, Int)]
+    while (!heap.isEmpty) {
+      polled += ((heap.headCost, heap.headPixel))
+      heap.poll()
+    }
+    polled.result()
+  }
+}
@@ -0,0 +1,352 @@
+/*
+ * Copyright 2009-2017. DigitalGlobe, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.mrgeo.kernel
+
+/**
+  * Weighted sums of a kernel over a (buffered) tile, on primitive arrays.  The output pixel (x, y)
+  * is the sum of weight(kx, ky) * src(x + kx, y + ky) over the kernel, so the output is the kernel
+  * width - 1 narrower, and the kernel height - 1 shorter, than the source.
+  *
+  * correlate() picks the cheapest way to compute them: two 1-D passes if the kernel is separable
+  * (the outer product of a column and a row), an FFT (overlap-save, in blocks) if the kernel is
+  * large, otherwise the weights are summed directly.
+  */
+object Convolution {
+  // non-separable kernels with at least this many weights use the FFT
+  val FftMinWeights:Int = 15 * 15
+
+  // the smallest FFT block.  The blocks are at least 4 times the kernel size, so most of each
+  // block's result isn't overlap.
+  private val MinFftSize = 64
+
+  // relative error allowed in the weights of a separated kernel
+  private val SeparableTolerance = 1e-6
+
+  def correlate(src:Array[Float], srcWidth:Int, srcHeight:Int,
+                weights:Array[Float], kernelWidth:Int, kernelHeight:Int):Array[Float] = {
+    separate(weights, kernelWidth, kernelHeight) match {
+      case Some((column, row)) =>
+        separable(src, srcWidth, srcHeight, column, row)
+      case None =>
+        if (kernelWidth * kernelHeight >= FftMinWeights) {
+          fft(src, srcWidth, srcHeight, weights, kernelWidth, kernelHeight)
+        }
+        else {
+          direct(src, srcWidth, srcHeight, weights, kernelWidth, kernelHeight)
+        }
+    }
+  }
+
+  /**
+    * The column and row whose outer product is the kernel, if there are any
+    */
+  def separate(weights:Array[Float], kernelWidth:Int, kernelHeight:Int):Option[(Array[Float], Array[Float])] = {
+    // the largest weight, its row and column make up the kernel
+    var pivot = 0
+    var i = 1
+    while (i < weights.length) {
+      if (Math.abs(weights(i)) > Math.abs(weights(pivot))) {
+        pivot = i
+      }
+      i += 1
+    }
+
+    val largest = weights(pivot)
+    if (largest == 0.0f) {
+      None
+    }
+    else {
+      val px = pivot % kernelWidth
+      val py = pivot / kernelWidth
+
+      val row = Array.tabulate[Float](kernelWidth)(kx => weights(py * kernelWidth + kx))
+      val column = Array.tabulate[Float](kernelHeight)(ky => weights(ky * kernelWidth + px) / largest)
+
+      val tolerance = Math.abs(largest) * SeparableTolerance
+      var separable = true
+      var ky = 0
+      while (separable && ky < kernelHeight) {
+        var kx = 0
+        while (separable && kx < kernelWidth) {
+          separable = Math.abs(column(ky) * row(kx) - weights(ky * kernelWidth + kx)) <= tolerance
+          kx += 1
+        }
+        ky += 1
+      }
+
+      if (separable) Some((column, row)) else None
+    }
+  }
+
+  def direct(src:Array[Float], srcWidth:Int, srcHeight:Int,
+             weights:Array[Float], kernelWidth:Int, kernelHeight:Int):Array[Float] = {
+    val width = srcWidth - kernelWidth + 1
+    val height = srcHeight - kernelHeight + 1
+    val dst = new Array[Float](width * height)
+
+    // only the non-zero weights, and where they are in the source, relative to the output pixel
+    val nonzero = weights.indices.filter(weights(_) != 0.0f).toArray
+    val w = nonzero.map(weights(_))
+    val offsets = nonzero.map(ndx => (ndx / kernelWidth) * srcWidth + ndx % kernelWidth)
+
+    var y = 0
+    while (y < height) {
+      var x = 0
+      while (x < width) {
+        val start = y * srcWidth + x
+        var sum = 0.0
+        var k = 0
+        while (k < w.length) {
+          sum += w(k).toDouble * src(start + offsets(k))
+          k += 1
+        }
+        dst(y * width + x) = sum.toFloat
+        x += 1
+      }
+      y += 1
+    }
+    dst
+  }
+
+  def separable(src:Array[Float], srcWidth:Int, srcHeight:Int, column:Array[Float], row:Array[Float]):Array[Float] = {
+    val width = srcWidth - row.length + 1
+    val height = srcHeight - column.length + 1
+
+    // across the rows, then down the columns
+    val across = new Array[Double](width * srcHeight)
+    var y = 0
+    while (y < srcHeight) {
+      val start = y * srcWidth
+      var x = 0
+      while (x < width) {
+        var sum = 0.0
+        var k = 0
+        while (k < row.length) {
+          sum += row(k).toDouble * src(start + x + k)
+          k += 1
+        }
+        across(y * width + x) = sum
+        x += 1
+      }
+      y += 1
+    }
+
+    val dst = new Array[Float](width * height)
+    y = 0
+    while (y < height) {
+      var x = 0
+      while (x < width) {
+        var sum = 0.0
+        var k = 0
+        while (k < column.length) {
+          sum += column(k) * across((y + k) * width + x)
+          k += 1
+        }
+        dst(y * width + x) = sum.toFloat
+        x += 1
+      }
+      y += 1
+    }
+    dst
+  }
+
+  /**
+    * The weighted sums by overlap-save: the source is cut into overlapping n x n blocks, each
+    * multiplied by the kernel in the frequency domain.  The part of each block's (circular) result
+    * that didn't wrap around is a block of the output.
+    */
+  def fft(src:Array[Float], srcWidth:Int, srcHeight:Int,
+          weights:Array[Float], kernelWidth:Int, kernelHeight:Int):Array[Float] = {
+    val width = srcWidth - kernelWidth + 1
+    val height = srcHeight - kernelHeight + 1
+    val dst = new Array[Float](width * height)
+
+    val largest = Math.max(srcWidth, srcHeight)
+    val n = {
+      val blocked = nextPowerOf2(Math.max(MinFftSize, 4 * Math.max(kernelWidth, kernelHeight)))
+      if (blocked >= largest) nextPowerOf2(largest) else blocked
+    }
+    val blockWidth = n - kernelWidth + 1
+    val blockHeight = n - kernelHeight + 1
+
+    // the kernel, reversed (wrapping around), so the circular convolution is the weighted sums
+    val kre = new Array[Double](n * n)
+    val kim = new Array[Double](n * n)
+    var ky = 0
+    while (ky < kernelHeight) {
+      var kx = 0
+      while (kx < kernelWidth) {
+        kre(((n - ky) % n) * n + (n - kx) % n) = weights(ky * kernelWidth + kx)
+        kx += 1
+      }
+      ky += 1
+    }
+    fft2d(kre, kim, n, inverse = false)
+
+    val re = new Array[Double](n * n)
+    val im = new Array[Double](n * n)
+
+    var by = 0
+    while (by < height) {
+      var bx = 0
+      while (bx < width) {
+        // the source block, padded with 0 past the edges
+        java.util.Arrays.fill(im, 0.0)
+        var y = 0
+        while (y < n) {
+          var x = 0
+          while (x < n) {
+            val sx = bx + x
+            val sy = by + y
+            re(y * n + x) = if (sx < srcWidth && sy < srcHeight) src(sy * srcWidth + sx) else 0.0
+            x += 1
+          }
+          y += 1
+        }
+
+        fft2d(re, im, n, inverse = false)
+        var i = 0
+        while (i < n * n) {
+          val r = re(i) * kre(i) - im(i) * kim(i)
+          im(i) = re(i) * kim(i) + im(i) * kre(i)
+          re(i) = r
+          i += 1
+        }
+        fft2d(re, im, n, inverse = true)
+
+        y = 0
+        while (y < blockHeight && by + y < height) {
+          var x = 0
+          while (x < blockWidth && bx + x < width) {
+            dst((by + y) * width + bx + x) = re(y * n + x).toFloat
+            x += 1
+          }
+          y += 1
+        }
+        bx += blockWidth
+      }
+      by += blockHeight
+    }
+    dst
+  }
+
+  private def nextPowerOf2(value:Int):Int = {
+    var p = 1
+    while (p < value) {
+      p <<= 1
+    }
+    p
+  }
+
+  // The FFT of the rows, then the columns, of an n x n array (n a power of 2)
+  private def fft2d(re:Array[Double], im:Array[Double], n:Int, inverse:Boolean):Unit = {
+    val rowRe = new Array[Double](n)
+    val rowIm = new Array[Double](n)
+
+    var y = 0
+    while (y < n) {
+      System.arraycopy(re, y * n, rowRe, 0, n)
+      System.arraycopy(im, y * n, rowIm, 0, n)
+      fft1d(rowRe, rowIm, inverse)
+      System.arraycopy(rowRe, 0, re, y * n, n)
+      System.arraycopy(rowIm, 0, im, y * n, n)
+      y += 1
+    }
+
+    var x = 0
+    while (x < n) {
+      var i = 0
+      while (i < n) {
+        rowRe(i) = re(i * n + x)
+        rowIm(i) = im(i * n + x)
+        i += 1
+      }
+      fft1d(rowRe, rowIm, inverse)
+      i = 0
+      while (i < n) {
+        re(i * n + x) = rowRe(i)
+        im(i * n + x) = rowIm(i)
+        i += 1
+      }
+      x += 1
+    }
+  }
+
+  // In place, iterative radix-2 FFT.  The inverse is scaled by 1/n.
+  private def fft1d(re:Array[Double], im:Array[Double], inverse:Boolean):Unit = {
+    val n = re.length
+
+    // bit reversed order
+    var j = 0
+    var i = 1
+    while (i < n) {
+      var bit = n >> 1
+      while ((j & bit) != 0) {
+        j ^= bit
+        bit >>= 1
+      }
+      j |= bit
+      if (i < j) {
+        val tr = re(i)
+        re(i) = re(j)
+        re(j) = tr
+        val ti = im(i)
+        im(i) = im(j)
+        im(j) = ti
+      }
+      i += 1
+    }
+
+    var len = 2
+    while (len <= n) {
+      val angle = (if (inverse) 2.0 else -2.0) * Math.PI / len
+      val wr = Math.cos(angle)
+      val wi = Math.sin(angle)
+      var start = 0
+      while (start < n) {
+        var cr = 1.0
+        var ci = 0.0
+        var k = 0
+        while (k < len / 2) {
+          val a = start + k
+          val b = a + len / 2
+          val xr = re(b) * cr - im(b) * ci
+          val xi = re(b) * ci + im(b) * cr
+          re(b) = re(a) - xr
+          im(b) = im(a) - xi
+          re(a) += xr
+          im(a) += xi
+
+          val ncr = cr * wr - ci * wi
+          ci = cr * wi + ci * wr
+          cr = ncr
+          k += 1
+        }
+        start += len
+      }
+      len <<= 1
+    }
+
+    if (inverse) {
+      i = 0
+      while (i < n) {
+        re(i) /= n
+        im(i) /= n
+        i += 1
+      }
+    }
+  }
+}
@@ -34,14 +34,21 @@ object FocalStatMapOp extends MapOpRegistrar {
   val Min:String = "min"
   val Mean:String = "mean"
   val Median:String = "median"
+  val Mode:String = "mode"
+  val Percentile:String = "percentile"
   val Range:String = "range"
   val StdDev:String = "stddev"
   val Sum:String = "sum"
   val Variance:String = "variance"
+  val Variety:String = "variety"
 
   def create(raster:RasterMapOp, stat:String, neighborhoodSize:String, ignoreNoData:Boolean):MapOp =
     new FocalStatMapOp(Some(raster), stat, neighborhoodSize, ignoreNoData)
 
+  def create(raster:RasterMapOp, stat:String, neighborhoodSize:String, ignoreNoData:Boolean,
+             percentile:Double):MapOp =
+    new FocalStatMapOp(Some(raster), stat, neighborhoodSize, ignoreNoData, percentile)
+
   override def register:Array[String] = {
     Array[String]("focalstat")
   }
@@ -55,10 +62,14 @@ class FocalStatMapOp extends RawFocalMapOp with Externalizable {
   private var neighborhoodSize:String = _
   private var neighborhoodPixels:Int = 0
   private var ignoreNoData:Boolean = false
+  private var percentile:Double = 50.0
   private var outputTileType:Option[Int] = None
   private var outputNoDatas:Option[Array[Double]] = None
   private var neighborhoodValues:Array[Double] = _
 
+  // the order statistics are kept in a sliding histogram, made when first used (one per task)
+  private var window:FocalWindow = _
+
   override def registerClasses():Array[Class[_]] = {
     Array[Class[_]](classOf[Array[Float]])
   }
@@ -75,6 +86,7 @@ class FocalStatMapOp extends RawFocalMapOp with Externalizable {
   override def beforeExecute(meta:MrsPyramidMetadata):Unit = {
     // Make sure that neighborhood values is re-initialized at the start of map op execution
     neighborhoodValues = null
+    window = null
     neighborhoodPixels = neighborhoodSize match {
       case ns if ns.endsWith("p") => ns.dropRight(1).toInt
       case ns if ns.endsWith("m") =>
@@ -86,14 +98,14 @@ class FocalStatMapOp extends RawFocalMapOp with Externalizable {
         "Invalid value for neighborhood size. Must specifiy either meters (e.g. 300m) or pixels (e.g. 10p)")
     }
     stat.toLowerCase match {
-      case FocalStatMapOp.Count =>
+      case FocalStatMapOp.Count | FocalStatMapOp.Variety =>
         outputTileType = Some(DataBuffer.TYPE_INT)
         outputNoDatas = Some(Array.fill[Double](meta.getBands)(Int.MinValue))
-      case FocalStatMapOp.Max | FocalStatMapOp.Min | FocalStatMapOp.Range =>
+      case FocalStatMapOp.Max | FocalStatMapOp.Min | FocalStatMapOp.Range | FocalStatMapOp.Mode =>
         outputTileType = Some(meta.getTileType)
         val nodatas = meta.getDefaultValuesNumber
         outputNoDatas = Some(nodatas)
-      case FocalStatMapOp.Mean | FocalStatMapOp.Median | FocalStatMapOp.StdDev |
+      case FocalStatMapOp.Mean | FocalStatMapOp.Median | FocalStatMapOp.Percentile | FocalStatMapOp.StdDev |
            FocalStatMapOp.Sum | FocalStatMapOp.Variance =>
         outputTileType = Some(DataBuffer.TYPE_FLOAT)
         outputNoDatas = Some(Array.fill[Double](meta.getBands)(Float.NaN))
@@ -109,6 +121,51 @@ class FocalStatMapOp extends RawFocalMapOp with Externalizable {
                                  processX:Int, processY:Int, processBand:Int,
                                  xLeftOffset:Int, neighborhoodWidth:Int,
                                  yAboveOffset:Int, neighborhoodHeight:Int, tileId:Long):Double = {
+    stat match {
+      case FocalStatMapOp.Count | FocalStatMapOp.Max | FocalStatMapOp.Min | FocalStatMapOp.Median |
+           FocalStatMapOp.Mode | FocalStatMapOp.Percentile | FocalStatMapOp.Range | FocalStatMapOp.Variety =>
+        computeOrderStat(raster, notnodata, outNoData, processX, processY, processBand,
+          xLeftOffset, neighborhoodWidth, yAboveOffset, neighborhoodHeight)
+      case _ =>
+        computeMoments(raster, notnodata, outNoData, processX, processY, processBand,
+          xLeftOffset, neighborhoodWidth, yAboveOffset, neighborhoodHeight)
+    }
+  }
+
+  // The pixels are computed along each row, so the neighborhood's histogram slides along with them
+  private def computeOrderStat(raster:MrGeoRaster, notnodata:MrGeoRaster, outNoData:Double,
+                               processX:Int, processY:Int, processBand:Int,
+                               xLeftOffset:Int, neighborhoodWidth:Int,
+                               yAboveOffset:Int, neighborhoodHeight:Int):Double = {
+    if (window == null) {
+      window = new FocalWindow
+    }
+    window.set(raster, notnodata, processBand)
+    window.moveTo(processX - xLeftOffset, processY - yAboveOffset, neighborhoodWidth, neighborhoodHeight)
+
+    if (!ignoreNoData && window.nodataCount > 0) {
+      // If there is a NoData pixel anywhere in the neighborhood, and we're not ignoring
+      // NoData, then just return NoData for the pixel.
+      outNoData
+    }
+    else {
+      stat match {
+        case FocalStatMapOp.Count => window.count
+        case FocalStatMapOp.Max => window.max
+        case FocalStatMapOp.Min => window.min
+        case FocalStatMapOp.Median => window.median
+        case FocalStatMapOp.Mode => window.mode
+        case FocalStatMapOp.Percentile => window.percentile(percentile)
+        case FocalStatMapOp.Range => window.range
+        case FocalStatMapOp.Variety => window.variety
+      }
+    }
+  }
+
+  private def computeMoments(raster:MrGeoRaster, notnodata:MrGeoRaster, outNoData:Double,
+                             processX:Int, processY:Int, processBand:Int,
+                             xLeftOffset:Int, neighborhoodWidth:Int,
+                             yAboveOffset:Int, neighborhoodHeight:Int):Double = {
     var x:Int = processX - xLeftOffset
     val maxX = x + neighborhoodWidth
     var y:Int = processY - yAboveOffset
@@ -137,12 +194,7 @@ class FocalStatMapOp extends RawFocalMapOp with Externalizable {
     }
 
     stat match {
-      case FocalStatMapOp.Count => neighborhoodValueIndex
-      case FocalStatMapOp.Max => computeMax(neighborhoodValues, neighborhoodValueIndex)
-      case FocalStatMapOp.Min => computeMin(neighborhoodValues, neighborhoodValueIndex)
       case FocalStatMapOp.Mean => computeStat(neighborhoodValues, neighborhoodValueIndex, stat)
-      case FocalStatMapOp.Median => computeMedian(neighborhoodValues, neighborhoodValueIndex)
-      case FocalStatMapOp.Range => computeRange(neighborhoodValues, neighborhoodValueIndex)
       case FocalStatMapOp.StdDev => computeStat(neighborhoodValues, neighborhoodValueIndex, stat)
       case FocalStatMapOp.Sum => computeSum(neighborhoodValues, neighborhoodValueIndex)
       case FocalStatMapOp.Variance => computeStat(neighborhoodValues, neighborhoodValueIndex, stat)
@@ -204,6 +256,7 @@ class FocalStatMapOp extends RawFocalMapOp with Externalizable {
     stat = in.readUTF()
     neighborhoodSize = in.readUTF()
     ignoreNoData = in.readBoolean()
+    percentile = in.readDouble()
     neighborhoodPixels = in.readInt()
     val hasTileType = in.readBoolean()
     outputTileType = if (hasTileType) {
@@ -241,6 +294,7 @@ class FocalStatMapOp extends RawFocalMapOp with Externalizable {
     out.writeUTF(stat)
     out.writeUTF(neighborhoodSize)
     out.writeBoolean(ignoreNoData)
+    out.writeDouble(percentile)
     out.writeInt(neighborhoodPixels)
     outputTileType match {
       case None => out.writeBoolean(false)
@@ -292,11 +346,19 @@ class FocalStatMapOp extends RawFocalMapOp with Externalizable {
     init
   }
 
+  private[mapalgebra] def this(raster:Option[RasterMapOp], stat:String, neighborhoodSize:String,
+                               ignoreNoData:Boolean, percentile:Double) = {
+    this(raster, stat, neighborhoodSize, ignoreNoData)
+    this.percentile = percentile
+    checkPercentile()
+  }
+
   private[mapalgebra] def this(node:ParserNode, variables:String => Option[ParserNode]) = {
     this()
 
-    if (node.getNumChildren != 4) {
-      throw new ParserException("Usage: focalStat(<stat>, <raster>, <neighborhood size>, <ignoreNoData>)")
+    if (node.getNumChildren < 4 || node.getNumChildren > 5) {
+      throw new ParserException(
+        "Usage: focalStat(<stat>, <raster>, <neighborhood size>, <ignoreNoData>, [<percentile (0 - 100)>])")
     }
 
     stat = MapOp.decodeString(node.getChild(0), variables) match {
@@ -314,7 +376,20 @@ class FocalStatMapOp extends RawFocalMapOp with Externalizable {
       case Some(b) => ignoreNoData = b
       case _ => throw new ParserException("Error decoding boolean for ignoreNoData")
     }
+    if (node.getNumChildren == 5) {
+      percentile = MapOp.decodeDouble(node.getChild(4), variables) match {
+        case Some(p) => p
+        case _ => throw new ParserException("Error decoding double for percentile")
+      }
+    }
     init
+    checkPercentile()
+  }
+
+  private def checkPercentile():Unit = {
+    if (percentile < 0.0 || percentile > 100.0) {
+      throw new ParserException("The percentile must be from 0 to 100: " + percentile)
+    }
   }
 
   private def init:Unit = {
@@ -324,67 +399,17 @@ class FocalStatMapOp extends RawFocalMapOp with Externalizable {
       case FocalStatMapOp.Min =>
       case FocalStatMapOp.Mean =>
       case FocalStatMapOp.Median =>
+      case FocalStatMapOp.Mode =>
+      case FocalStatMapOp.Percentile =>
       case FocalStatMapOp.Range =>
       case FocalStatMapOp.StdDev =>
       case FocalStatMapOp.Sum =>
       case FocalStatMapOp.Variance =>
+      case FocalStatMapOp.Variety =>
       case _ => throw new ParserException("Bad focalStat stat: " + stat)
     }
   }
 
-  private def computeMax(values:Array[Double], maxIndex:Int):Double = {
-    var maxValue:Double = values(0)
-    var index:Int = 1
-    while (index < maxIndex) {
-      maxValue = maxValue.max(values(index))
-      index += 1
-    }
-    maxValue
-  }
-
-  private def computeMin(values:Array[Double], maxIndex:Int):Double = {
-    var minValue:Double = values(0)
-    var index:Int = 1
-    while (index < maxIndex) {
-      minValue = minValue.min(values(index))
-      index += 1
-    }
-    minValue
-  }
-
-  private def computeMedian(values:Array[Double], maxIndex:Int):Double = {
-    // Set the end of the array that we're not interested in to the max double value
-    // so they are sorted at the end. We don't want these values to be considered.
-    var index = maxIndex
-    while (index < values.length) {
-      values(index) = Double.MaxValue
-      index += 1
-    }
-    val sortedValues = values.sorted
-    if ((maxIndex & 1) == 1) {
-      // Odd number of elements, return the one right in the middle
-      sortedValues(maxIndex / 2)
-    }
-    else {
-      // Even number of elements, return the average of the two in the middle
-      val midIndex = maxIndex / 2
-      (sortedValues(midIndex) + sortedValues(midIndex - 1)) / 2.0
-    }
-  }
-
-  private def computeRange(values:Array[Double], maxIndex:Int):Double = {
-    var minValue:Double = values(0)
-    var maxValue:Double = minValue
-    var index:Int = 1
-    while (index < maxIndex) {
-      val v = values(index)
-      minValue = minValue.min(v)
-      maxValue = maxValue.max(v)
-      index += 1
-    }
-    maxValue - minValue
-  }
-
   private def computeSum(values:Array[Double], maxIndex:Int):Double = {
     var sumValue:Double = 0.0
     var index:Int = 0
@@ -0,0 +1,274 @@
+/*
+ * Copyright 2009-2017. DigitalGlobe, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.mrgeo.mapalgebra
+
+import java.util
+
+import org.mrgeo.data.raster.MrGeoRaster
+
+/**
+  * The order statistics (count, min, max, median, percentiles, mode and variety) of a focal
+  * neighborhood, kept as a histogram while the neighborhood slides along a row.  Moving the
+  * neighborhood one pixel only removes the column leaving it and adds the column entering it,
+  * so the cost per pixel is proportional to the neighborhood height, not its area.
+  *
+  * The values of a raster band are replaced by their rank among the distinct values in it (found
+  * with one sort when the band is set), so the histogram works the same for integer and floating
+  * point data.  The histogram is a tree of counts over the ranks, giving the k-th value, and the
+  * most frequent one, in log(distinct values) steps.
+  *
+  * Not thread safe, use one per task.
+  */
+private[mapalgebra] class FocalWindow {
+  private var raster:MrGeoRaster = _
+  private var band:Int = -1
+  private var width:Int = 0
+
+  // the rank of each pixel's value in values, -1 for nodata
+  private var ranks:Array[Int] = _
+  private var values:Array[Double] = _
+
+  // a tree of the counts of the ranks, with the leaves at size + rank, and the largest count
+  // under each node
+  private var size:Int = 0
+  private var counts:Array[Int] = _
+  private var maxes:Array[Int] = _
+
+  private var distinct:Int = 0
+  private var nodata:Int = 0
+
+  // the neighborhood in the histogram (left, top, width, height)
+  private var left:Int = 0
+  private var top:Int = 0
+  private var neighborhoodWidth:Int = 0
+  private var neighborhoodHeight:Int = -1
+
+  /**
+    * Set the raster band the neighborhoods are in, if it isn't the one already set.
+    */
+  def set(raster:MrGeoRaster, notnodata:MrGeoRaster, band:Int):Unit = {
+    if (!(raster eq this.raster) || band != this.band) {
+      this.raster = raster
+      this.band = band
+      width = raster.width()
+
+      val height = raster.height()
+      val pixels = new Array[Double](width * height)
+      var valid = 0
+      var y = 0
+      while (y < height) {
+        var x = 0
+        while (x < width) {
+          if (notnodata.getPixelByte(x, y, 0) == 1) {
+            // adding 0.0 turns -0.0 into 0.0, the sort and binary search would otherwise treat them as different
+            pixels(valid) = raster.getPixelDouble(x, y, band) + 0.0
+            valid += 1
+          }
+          x += 1
+        }
+        y += 1
+      }
+
+      // the distinct values, sorted
+      util.Arrays.sort(pixels, 0, valid)
+      var n = 0
+      var i = 0
+      while (i < valid) {
+        if (n == 0 || java.lang.Double.compare(pixels(i), pixels(n - 1)) != 0) {
+          pixels(n) = pixels(i)
+          n += 1
+        }
+        i += 1
+      }
+      values = util.Arrays.copyOf(pixels, n)
+
+      ranks = new Array[Int](width * height)
+      y = 0
+      while (y < height) {
+        var x = 0
+        while (x < width) {
+          ranks(y * width + x) = if (notnodata.getPixelByte(x, y, 0) == 1) {
+            util.Arrays.binarySearch(values, 0, n, raster.getPixelDouble(x, y, band) + 0.0)
+          }
+          else {
+            -1
+          }
+          x += 1
+        }
+        y += 1
+      }
+
+      size = 1
+      while (size < n) {
+        size <<= 1
+      }
+      counts = new Array[Int](size * 2)
+      maxes = new Array[Int](size * 2)
+      distinct = 0
+      nodata = 0
+      neighborhoodHeight = -1
+    }
+  }
+
+  /**
+    * Move the neighborhood, sliding it if it moved right along the same rows, otherwise filling
+    * it anew.
+    */
+  def moveTo(left:Int, top:Int, neighborhoodWidth:Int, neighborhoodHeight:Int):Unit = {
+    if (top == this.top && neighborhoodHeight == this.neighborhoodHeight &&
+        neighborhoodWidth == this.neighborhoodWidth &&
+        left >= this.left && left - this.left < neighborhoodWidth) {
+      while (this.left < left) {
+        column(this.left, -1)
+        column(this.left + neighborhoodWidth, 1)
+        this.left += 1
+      }
+    }
+    else {
+      if (this.neighborhoodHeight >= 0) {
+        var x = this.left
+        while (x < this.left + this.neighborhoodWidth) {
+          column(x, -1)
+          x += 1
+        }
+      }
+
+      this.left = left
+      this.top = top
+      this.neighborhoodWidth = neighborhoodWidth
+      this.neighborhoodHeight = neighborhoodHeight
+
+      var x = left
+      while (x < left + neighborhoodWidth) {
+        column(x, 1)
+        x += 1
+      }
+    }
+  }
+
+  /**
+    * The number of values (not counting nodata) in the neighborhood
+    */
+  def count:Int = counts(1)
+
+  /**
+    * The number of nodata pixels in the neighborhood
+    */
+  def nodataCount:Int = nodata
+
+  /**
+    * The number of distinct values in the neighborhood
+    */
+  def variety:Int = distinct
+
+  def min:Double = kth(0)
+
+  def max:Double = kth(count - 1)
+
+  def range:Double = max - min
+
+  /**
+    * The median, the average of the middle two values for an even count
+    */
+  def median:Double = {
+    val n = count
+    if ((n & 1) == 1) {
+      kth(n / 2)
+    }
+    else {
+      (kth(n / 2) + kth(n / 2 - 1)) / 2.0
+    }
+  }
+
+  /**
+    * The percentile (0 - 100), interpolated between the values around it
+    */
+  def percentile(p:Double):Double = {
+    val pos = p / 100.0 * (count - 1)
+    val lo = pos.floor.toInt
+    val hi = pos.ceil.toInt
+    val v = kth(lo)
+    if (hi == lo) {
+      v
+    }
+    else {
+      v + (kth(hi) - v) * (pos - lo)
+    }
+  }
+
+  /**
+    * The most frequent value, the smallest one if there is a tie
+    */
+  def mode:Double = {
+    val most = maxes(1)
+    var node = 1
+    while (node < size) {
+      node = if (maxes(node * 2) == most) node * 2 else node * 2 + 1
+    }
+    values(node - size)
+  }
+
+  // The value with the k-th (from 0) rank in the neighborhood
+  private def kth(k:Int):Double = {
+    var remaining = k
+    var node = 1
+    while (node < size) {
+      val l = counts(node * 2)
+      if (remaining < l) {
+        node = node * 2
+      }
+      else {
+        remaining -= l
+        node = node * 2 + 1
+      }
+    }
+    values(node - size)
+  }
+
+  private def column(x:Int, delta:Int):Unit = {
+    var y = top
+    while (y < top + neighborhoodHeight) {
+      val rank = ranks(y * width + x)
+      if (rank < 0) {
+        nodata += delta
+      }
+      else {
+        update(rank, delta)
+      }
+      y += 1
+    }
+  }
+
+  private def update(rank:Int, delta:Int):Unit = {
+    var node = size + rank
+    val c = counts(node) + delta
+    if (c == 0) {
+      distinct -= 1
+    }
+    else if (c == delta) {
+      distinct += 1
+    }
+    counts(node) = c
+    maxes(node) = c
+
+    node >>= 1
+    while (node > 0) {
+      counts(node) = counts(node * 2) + counts(node * 2 + 1)
+      maxes(node) = Math.max(maxes(node * 2), maxes(node * 2 + 1))
+      node >>= 1
+    }
+  }
+}
@@ -25,7 +25,7 @@ import org.mrgeo.data.raster.{MrGeoRaster, RasterWritable}
 import org.mrgeo.data.rdd.RasterRDD
 import org.mrgeo.data.tile.TileIdWritable
 import org.mrgeo.job.JobArguments
-import org.mrgeo.kernel.{GaussianGeographicKernel, Kernel, LaplacianGeographicKernel}
+import org.mrgeo.kernel.{Convolution, GaussianGeographicKernel, Kernel, LaplacianGeographicKernel}
 import org.mrgeo.mapalgebra.parser.{ParserException, ParserNode}
 import org.mrgeo.mapalgebra.raster.RasterMapOp
 import org.mrgeo.spark.FocalBuilder
@@ -94,7 +94,7 @@ class KernelMapOp extends RasterMapOp with Externalizable {
 
     rasterRDD = Some(RasterRDD(kernel.getKernel match {
       case Some(kernelData) =>
-        naiveKernel(focal, kernel, nodatas, context)
+        convolveKernel(focal, kernel, nodatas, context)
       case _ =>
         focal.flatMap(tile => {
           kernel.calculate(tile._1.get(), RasterWritable.toMrGeoRaster(tile._2), nodatas) match {
@@ -110,41 +110,25 @@ class KernelMapOp extends RasterMapOp with Externalizable {
     true
   }
 
+  /**
+    * Apply a kernel with explicit weights.  Each output pixel is the weighted sum of the source
+    * pixels under the kernel (nodata counting as 0), divided by the sum of the weights.  The sums
+    * are computed by Convolution, on primitive arrays, as two 1-D passes if the kernel is
+    * separable, or with an FFT if it is large.
+    */
   @SuppressFBWarnings(value = Array[String]("URF_UNREAD_FIELD"),
     justification = "Scala generated code, fields are actually used")
-  def naiveKernel(focal:RDD[(TileIdWritable, RasterWritable)], kernel:Kernel, nodatas:Array[Double],
-                  context:SparkContext):RDD[(TileIdWritable, RasterWritable)] = {
+  def convolveKernel(focal:RDD[(TileIdWritable, RasterWritable)], kernel:Kernel, nodatas:Array[Double],
+                     context:SparkContext):RDD[(TileIdWritable, RasterWritable)] = {
 
     val weights = context.broadcast(kernel.getKernel.get)
 
     val kernelW = kernel.getWidth
     val kernelH = kernel.getHeight
 
-    //    if (log.isDebugEnabled()) {
-    //      val localWeights = kernel.getKernel
-    //      log.info("Kernel w, h " + kernelW + ", " + kernelH)
-    //      for (ky <- 0 until kernelH) {
-    //        // log.info(ky + ": ")
-    //        val sb = new StringBuffer()
-    //        for (kx <- 0 until kernelW) {
-    //          sb.append(localWeights(ky * kernelW + kx) + "     ")
-    //        }
-    //        log.info(sb.toString)
-    //      }
-    //    }
-
-    val halfKernelW = kernelW / 2 + 1
-    val halfKernelH = kernelH / 2 + 1
-
-    //val resolution = TMSUtils.resolution(zoom, tilesize)
-
-    val startmaptime = System.currentTimeMillis()
-
     focal.map(tile => {
       val startTime = System.currentTimeMillis()
 
-      val logging = log.isInfoEnabled
-
       val nodata = nodatas(0).doubleValue()
 
       def isNodata(value:Double):Boolean = {
@@ -156,96 +140,60 @@ class KernelMapOp extends RasterMapOp with Externalizable {
         }
       }
 
-      val src = RasterWritable.toMrGeoRaster(tile._2)
-      val tileWidth = src.width()
-      val tilesize = tileWidth - kernelW + 1
-      val dst = MrGeoRaster.createEmptyRaster(tilesize, tilesize, 1, DataBuffer.TYPE_FLOAT)
-      val dstValues = Array.fill[Float](tilesize * tilesize)(Float.NaN)
       val useWeights = weights.value
-      val notNodataValues = MrGeoRaster.createEmptyRaster(src.width(), src.height(), 1, DataBuffer.TYPE_BYTE)
+
+      var weight:Float = 0.0f
+      var k = 0
+      while (k < useWeights.length) {
+        if (useWeights(k) != 0.0) {
+          weight += useWeights(k)
+        }
+        k += 1
+      }
+
+      val src = RasterWritable.toMrGeoRaster(tile._2)
+      val srcWidth = src.width()
+      val srcHeight = src.height()
+      val tilesize = srcWidth - kernelW + 1
+
+      // the source values, with nodata as 0
+      val values = new Array[Float](srcWidth * srcHeight)
+      val notNodata = new Array[Boolean](srcWidth * srcHeight)
 
       var y:Int = 0
       var x:Int = 0
-      while (y < src.height()) {
+      while (y < srcHeight) {
         x = 0
-        while (x < src.width()) {
-          if (isNodata(src.getPixelDouble(x, y, 0))) {
-            notNodataValues.setPixel(x, y, 0, 0.toByte)
-          }
-          else {
-            notNodataValues.setPixel(x, y, 0, 1.toByte)
+        while (x < srcWidth) {
+          val v = src.getPixelDouble(x, y, 0)
+          if (!isNodata(v)) {
+            values(y * srcWidth + x) = v.toFloat
+            notNodata(y * srcWidth + x) = true
           }
           x += 1
         }
         y += 1
       }
 
-      val tileStart = System.currentTimeMillis()
+      val sums = Convolution.correlate(values, srcWidth, srcHeight, useWeights, kernelW, kernelH)
 
-      var loopMin:Long = Long.MaxValue
-      var loopMax:Long = Long.MinValue
-      var loopTot:Long = 0
-      var loopRuns:Long = 0
-
-      y = 0
-      x = 0
-      var result:Float = 0.0f
-      var weight:Float = 0.0f
-      var kx:Int = 0
-      var ky:Int = 0
-      while (y < tilesize) {
-        x = 0
-        val off = (y + halfKernelH) * tileWidth + halfKernelW
-        while (x < tilesize) {
-          if (notNodataValues.getPixelByte(x, y, 0) == 1) {
-            val loopStart = System.currentTimeMillis()
-
-            result = 0.0f
-            weight = 0.0f
-
-            ky = 0
-            while (ky < kernelH) {
-              kx = 0
-              while (kx < kernelW) {
-                val w = useWeights((ky * kernelW) + kx)
-                if (w != 0.0) {
-                  weight += w
-                  val v = if (notNodataValues.getPixelByte(x + kx, y + ky, 0) == 1) {
-                    src.getPixelFloat(x + kx, y + ky, 0)
-                  }
-                  else {
-                    0.0f
-                  }
-                  result += v * w
-                }
-                kx += 1
-              }
-              ky += 1
-            }
-            if (logging) {
-              val loopTime = System.currentTimeMillis() - loopStart
-              loopMin = Math.min(loopMin, loopTime)
-              loopMax = Math.max(loopMax, loopTime)
-              loopTot += loopTime
-              loopRuns += 1
-            }
-            if (weight != 0.0) {
-              dst.setPixel(x, y, 0, result / weight)
+      val dst = MrGeoRaster.createEmptyRaster(tilesize, tilesize, 1, DataBuffer.TYPE_FLOAT)
+      if (weight != 0.0) {
+        y = 0
+        while (y < tilesize) {
+          x = 0
+          while (x < tilesize) {
+            if (notNodata(y * srcWidth + x)) {
+              dst.setPixel(x, y, 0, sums(y * tilesize + x) / weight)
             }
+            x += 1
           }
-          x += 1
+          y += 1
         }
-        y += 1
       }
 
       if (log.isDebugEnabled()) {
-        val endTime = System.currentTimeMillis()
-        logDebug("Time to process tile " + tile._1.get + " is " + (endTime - startTime))
-        logDebug("  prep " + (tileStart - startTime))
-        logDebug("  loop " + loopTot)
-        logDebug("  tile " + (endTime - tileStart - loopTot))
-        logDebug("  loopMin = " + loopMin + ", loopMax = " + loopMax +
-                 ", loopAvg = " + (loopTot.toDouble / loopRuns) + ", loopRuns = " + loopRuns)
+        logDebug("Time to process tile " + tile._1.get + " is " + (System.currentTimeMillis() - startTime))
       }
 
       (tile._1, RasterWritable.toWritable(dst))
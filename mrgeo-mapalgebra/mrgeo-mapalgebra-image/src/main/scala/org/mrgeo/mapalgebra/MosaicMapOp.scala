@@ -19,13 +19,14 @@ import java.io.{Externalizable, IOException, ObjectInput, ObjectOutput}
 
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings
 import org.apache.spark.rdd.CoGroupedRDD
-import org.apache.spark.{HashPartitioner, SparkConf, SparkContext}
+import org.apache.spark.{SparkConf, SparkContext}
 import org.mrgeo.data.raster.{MrGeoRaster, RasterWritable}
 import org.mrgeo.data.rdd.RasterRDD
 import org.mrgeo.data.tile.TileIdWritable
 import org.mrgeo.job.JobArguments
 import org.mrgeo.mapalgebra.parser.{ParserException, ParserNode}
 import org.mrgeo.mapalgebra.raster.RasterMapOp
+import org.mrgeo.spark.TileRangePartitioner
 import org.mrgeo.utils.SparkUtils
 import org.mrgeo.utils.tms.{Bounds, TMSUtils, TileBounds}
 
@@ -153,14 +154,8 @@ class MosaicMapOp extends RasterMapOp with Externalizable {
     logDebug("Bounds: " + bounds.toString)
     logDebug("TileBounds: " + tileBounds.toString)
 
-    // cogroup needs a partitioner, so we'll give one here...
-    var maxpartitions = 0
-    val partitions = pyramids.foreach(p => {
-      if (p.partitions.length > maxpartitions) {
-        maxpartitions = p.partitions.length
-      }
-    })
-    val groups = new CoGroupedRDD(pyramids, new HashPartitioner(maxpartitions))
+    // cogroup needs a partitioner, use the inputs' own if they have one (no shuffle)
+    val groups = new CoGroupedRDD(pyramids, TileRangePartitioner.cogroupPartitioner(pyramids))
 
     rasterRDD = Some(RasterRDD(groups.map(U => {
 
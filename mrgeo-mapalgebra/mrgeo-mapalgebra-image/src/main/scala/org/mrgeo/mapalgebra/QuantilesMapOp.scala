@@ -17,7 +17,6 @@ package org.mrgeo.mapalgebra
 
 import java.io.{Externalizable, IOException, ObjectInput, ObjectOutput}
 
-import edu.umd.cs.findbugs.annotations.SuppressFBWarnings
 import org.apache.spark.{SparkConf, SparkContext}
 import org.mrgeo.data.rdd.RasterRDD
 import org.mrgeo.job.JobArguments
@@ -33,8 +32,8 @@ object QuantilesMapOp extends MapOpRegistrar {
     Array[String]("quantiles")
   }
 
-  def create(raster:RasterMapOp, numQuantiles:Int, fraction:Float = 1.0f) =
-    new QuantilesMapOp(Some(raster), Some(numQuantiles), Some(fraction))
+  def create(raster:RasterMapOp, numQuantiles:Int, fraction:Float = 1.0f, approximate:Boolean = false) =
+    new QuantilesMapOp(Some(raster), Some(numQuantiles), Some(fraction), approximate)
 
   override def apply(node:ParserNode, variables:String => Option[ParserNode]):MapOp =
     new QuantilesMapOp(node, variables)
@@ -46,13 +45,14 @@ class QuantilesMapOp extends RasterMapOp with Externalizable {
   private var inputMapOp:Option[RasterMapOp] = None
   private var numQuantiles:Option[Int] = None
   private var fraction:Option[Float] = None
+  private var approximate:Boolean = false
 
   def this(node:ParserNode, variables:String => Option[ParserNode]) {
     this()
 
-    if ((node.getNumChildren < 2) || (node.getNumChildren > 3)) {
+    if ((node.getNumChildren < 2) || (node.getNumChildren > 4)) {
       throw new ParserException(
-        "quantiles usage: quantiles(source raster, num quantiles, [percent of pixels to use])")
+        "quantiles usage: quantiles(source raster, num quantiles, [percent of pixels to use], [approximate])")
     }
 
     inputMapOp = RasterMapOp.decodeToRaster(node.getChild(0), variables)
@@ -72,6 +72,10 @@ class QuantilesMapOp extends RasterMapOp with Externalizable {
           "The value for the fraction parameter must be a number between 0.0 and 1.0");
       }
     }
+    if (node.getNumChildren > 3) {
+      approximate = MapOp.decodeBoolean(node.getChild(3), variables) getOrElse
+                    (throw new ParserException("The value for the approximate parameter must be true or false"))
+    }
   }
 
   override def rdd():Option[RasterRDD] = {
@@ -92,30 +96,8 @@ class QuantilesMapOp extends RasterMapOp with Externalizable {
     inputMapOp.getOrElse(throw new IOException("No raster input specified")).getZoomLevel()
   }
 
-  @SuppressFBWarnings(value = Array("RV_RETURN_VALUE_IGNORED_NO_SIDE_EFFECT"),
-    justification = "implicits - false positivie")
   override def execute(context:SparkContext):Boolean = {
 
-    implicit val doubleOrdering = new Ordering[Double] {
-      override def compare(x:Double, y:Double):Int = x.compareTo(y)
-    }
-
-    implicit val floatOrdering = new Ordering[Float] {
-      override def compare(x:Float, y:Float):Int = x.compareTo(y)
-    }
-
-    implicit val intOrdering = new Ordering[Int] {
-      override def compare(x:Int, y:Int):Int = x.compareTo(y)
-    }
-
-    implicit val shortOrdering = new Ordering[Short] {
-      override def compare(x:Short, y:Short):Int = x.compareTo(y)
-    }
-
-    implicit val byteOrdering = new Ordering[Byte] {
-      override def compare(x:Byte, y:Byte):Int = x.compareTo(y)
-    }
-
     val input:RasterMapOp = inputMapOp getOrElse (throw new IOException("Input MapOp not valid!"))
     val numberOfQuantiles = numQuantiles getOrElse (throw new IOException("numQuantiles not valid!"))
 
@@ -130,10 +112,13 @@ class QuantilesMapOp extends RasterMapOp with Externalizable {
     //      bounds = meta.getBounds, calcStats = false))
 
     // Compute the quantile values and save them to metadata
-    val quantiles = Quantiles.compute(rdd, numberOfQuantiles, fraction, meta)
+    val quantiles = Quantiles.compute(rdd, numberOfQuantiles, fraction, meta, approximate)
     var b:Int = 0
     while (b < quantiles.length) {
-      meta.setQuantiles(b, quantiles(b))
+      // null when the band doesn't have enough values
+      if (quantiles(b) != null) {
+        meta.setQuantiles(b, quantiles(b))
+      }
       b += 1
     }
     metadata(meta)
@@ -153,11 +138,12 @@ class QuantilesMapOp extends RasterMapOp with Externalizable {
   override def writeExternal(out:ObjectOutput):Unit = {}
 
   private[mapalgebra] def this(raster:Option[RasterMapOp], numQuantiles:Option[Int],
-                               fraction:Option[Float]) = {
+                               fraction:Option[Float], approximate:Boolean) = {
     this()
 
     this.inputMapOp = raster
     this.numQuantiles = numQuantiles
     this.fraction = fraction
+    this.approximate = approximate
   }
 }
\ No newline at end of file
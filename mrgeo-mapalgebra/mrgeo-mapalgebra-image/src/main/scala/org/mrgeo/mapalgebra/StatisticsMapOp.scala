@@ -19,7 +19,7 @@ import java.awt.image.DataBuffer
 import java.io.{Externalizable, IOException, ObjectInput, ObjectOutput}
 
 import org.apache.spark.rdd.CoGroupedRDD
-import org.apache.spark.{HashPartitioner, SparkConf, SparkContext}
+import org.apache.spark.{SparkConf, SparkContext}
 import org.mrgeo.data.DataProviderFactory.AccessMode
 import org.mrgeo.data.raster.{MrGeoRaster, RasterWritable}
 import org.mrgeo.data.rdd.RasterRDD
@@ -27,6 +27,7 @@ import org.mrgeo.data.{DataProviderFactory, ProviderProperties}
 import org.mrgeo.job.JobArguments
 import org.mrgeo.mapalgebra.parser.{ParserException, ParserNode}
 import org.mrgeo.mapalgebra.raster.{MrsPyramidMapOp, RasterMapOp}
+import org.mrgeo.spark.TileRangePartitioner
 import org.mrgeo.utils.SparkUtils
 
 import scala.collection.mutable
@@ -188,15 +189,8 @@ class StatisticsMapOp extends RasterMapOp with Externalizable {
     val pyramids = mapopbuilder.result()
         .map(_.rdd(zoom) getOrElse (throw new IOException("Can't load RDD! Ouch! " + getClass.getName)))
 
-    // cogroup needs a partitioner, so we'll give one here...
-    var maxpartitions = 0
-    val partitions = pyramids.foreach(p => {
-      if (p.partitions.length > maxpartitions) {
-        maxpartitions = p.partitions.length
-      }
-    })
-
-    val groups = new CoGroupedRDD(pyramids, new HashPartitioner(maxpartitions))
+    // cogroup needs a partitioner, use the inputs' own if they have one (no shuffle)
+    val groups = new CoGroupedRDD(pyramids, TileRangePartitioner.cogroupPartitioner(pyramids))
 
     rasterRDD = Some(RasterRDD(groups.map(tile => {
 
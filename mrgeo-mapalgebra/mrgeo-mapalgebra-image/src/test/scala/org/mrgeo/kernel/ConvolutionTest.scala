@@ -0,0 +1,119 @@
+/*
+ * Copyright 2009-2017. DigitalGlobe, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.mrgeo.kernel
+
+import java.util.Random
+
+import org.junit.Test
+import org.junit.experimental.categories.Category
+import org.mrgeo.junit.UnitTest
+import org.mrgeo.test.LocalRunnerTest
+import org.scalatest.junit.AssertionsForJUnit
+
+@SuppressWarnings(Array("all")) // test code, not included in production
+class ConvolutionTest extends LocalRunnerTest with AssertionsForJUnit {
+  private val random = new Random(5)
+
+  @Test
+  @Category(Array[Class[_]] {
+    classOf[UnitTest]
+  })
+  def separable():Unit = {
+    // a gaussian
+    val size = 21
+    val g = Array.tabulate[Double](size)(i => Math.exp(-(i - size / 2) * (i - size / 2) / 18.0))
+    val weights = Array.tabulate[Float](size * size)(i => (g(i / size) * g(i % size)).toFloat)
+
+    assert(Convolution.separate(weights, size, size).isDefined)
+
+    val (src, width, height) = source(150, 140)
+    compare(reference(src, width, height, weights, size, size),
+      Convolution.correlate(src, width, height, weights, size, size))
+  }
+
+  @Test
+  @Category(Array[Class[_]] {
+    classOf[UnitTest]
+  })
+  def direct():Unit = {
+    val weights = Array.fill[Float](5 * 3)(random.nextFloat())
+    weights(7) = 0.0f
+
+    assert(Convolution.separate(weights, 5, 3).isEmpty)
+
+    val (src, width, height) = source(60, 70)
+    compare(reference(src, width, height, weights, 5, 3),
+      Convolution.correlate(src, width, height, weights, 5, 3))
+  }
+
+  @Test
+  @Category(Array[Class[_]] {
+    classOf[UnitTest]
+  })
+  def fft():Unit = {
+    // a ring, which isn't separable, in a kernel taller than it is wide
+    val (kw, kh) = (17, 23)
+    val weights = Array.tabulate[Float](kw * kh)(i => {
+      val dx = i % kw - kw / 2
+      val dy = i / kw - kh / 2
+      val r = Math.sqrt(dx * dx + dy * dy)
+      if (r > 5 && r < 8) 1.0f + random.nextFloat() else 0.0f
+    })
+
+    assert(Convolution.separate(weights, kw, kh).isEmpty)
+    assert(kw * kh >= Convolution.FftMinWeights)
+
+    // several blocks, ending partway through one
+    val (src, width, height) = source(300, 250)
+    val expected = reference(src, width, height, weights, kw, kh)
+    compare(expected, Convolution.correlate(src, width, height, weights, kw, kh))
+    compare(expected, Convolution.fft(src, width, height, weights, kw, kh))
+
+    // a single block
+    val (small, sw, sh) = source(40, 50)
+    compare(reference(small, sw, sh, weights, kw, kh), Convolution.fft(small, sw, sh, weights, kw, kh))
+  }
+
+  // random values, some 0 (nodata)
+  private def source(width:Int, height:Int):(Array[Float], Int, Int) = {
+    (Array.fill[Float](width * height)(if (random.nextInt(6) == 0) 0.0f else (random.nextGaussian() * 100).toFloat),
+        width, height)
+  }
+
+  // the weighted sums, walking the whole kernel for each pixel
+  private def reference(src:Array[Float], width:Int, height:Int,
+                        weights:Array[Float], kw:Int, kh:Int):Array[Float] = {
+    val ow = width - kw + 1
+    val oh = height - kh + 1
+    Array.tabulate[Float](ow * oh)(i => {
+      val x = i % ow
+      val y = i / ow
+      var sum = 0.0
+      for (ky <- 0 until kh; kx <- 0 until kw) {
+        sum += weights(ky * kw + kx).toDouble * src((y + ky) * width + x + kx)
+      }
+      sum.toFloat
+    })
+  }
+
+  private def compare(expected:Array[Float], actual:Array[Float]):Unit = {
+    assertResult(expected.length)(actual.length)
+    for (i <- expected.indices) {
+      assert(Math.abs(expected(i) - actual(i)) <= 1e-4 * (1.0 + Math.abs(expected(i))),
+        "pixel " + i + ": " + expected(i) + " " + actual(i))
+    }
+  }
+}
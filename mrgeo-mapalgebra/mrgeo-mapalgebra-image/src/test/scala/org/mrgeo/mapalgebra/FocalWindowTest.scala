@@ -0,0 +1,120 @@
+/*
+ * Copyright 2009-2017. DigitalGlobe, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.mrgeo.mapalgebra
+
+import java.awt.image.DataBuffer
+import java.util.Random
+
+import org.junit.Test
+import org.junit.experimental.categories.Category
+import org.mrgeo.data.raster.MrGeoRaster
+import org.mrgeo.junit.UnitTest
+import org.mrgeo.test.LocalRunnerTest
+import org.scalatest.junit.AssertionsForJUnit
+
+@SuppressWarnings(Array("all")) // test code, not included in production
+class FocalWindowTest extends LocalRunnerTest with AssertionsForJUnit {
+  private val size = 40
+  private val nodata = -9999.0
+
+  @Test
+  @Category(Array[Class[_]] {
+    classOf[UnitTest]
+  })
+  def slidingMatchesNeighborhood():Unit = {
+    for (datatype <- Array(DataBuffer.TYPE_INT, DataBuffer.TYPE_FLOAT)) {
+      val (raster, notnodata) = create(datatype)
+      val window = new FocalWindow
+      window.set(raster, notnodata, 0)
+
+      for (y <- 0 to size - 4) {
+        // skip some pixels, like the nodata ones are
+        for (x <- 0 to size - 5 if (x * 7 + y) % 5 != 0) {
+          window.moveTo(x, y, 5, 4)
+
+          val values = for (ny <- y until y + 4; nx <- x until x + 5 if notnodata.getPixelByte(nx, ny, 0) == 1)
+            yield raster.getPixelDouble(nx, ny, 0)
+          val sorted = values.sorted
+          val n = sorted.length
+          val where = "(" + x + ", " + y + ")"
+
+          assertResult(n, where)(window.count)
+          assertResult(20 - n, where)(window.nodataCount)
+          if (n > 0) {
+            assertResult(sorted.head, where)(window.min)
+            assertResult(sorted.last, where)(window.max)
+            assertResult(sorted.last - sorted.head, where)(window.range)
+            assertResult(sorted.distinct.length, where)(window.variety)
+
+            val median = if (n % 2 == 1) sorted(n / 2) else (sorted(n / 2) + sorted(n / 2 - 1)) / 2.0
+            assertResult(median, where)(window.median)
+
+            val pos = 0.9 * (n - 1)
+            val percentile = sorted(pos.floor.toInt) + (sorted(pos.ceil.toInt) - sorted(pos.floor.toInt)) *
+                (pos - pos.floor)
+            assert(Math.abs(percentile - window.percentile(90)) < 1e-9, where)
+
+            // the most frequent, the smallest of them if there's a tie
+            val counts = sorted.groupBy(v => v).mapValues(_.length)
+            val most = counts.values.max
+            assertResult(counts.filter(_._2 == most).keys.min, where)(window.mode)
+          }
+        }
+      }
+    }
+  }
+
+  @Test
+  @Category(Array[Class[_]] {
+    classOf[UnitTest]
+  })
+  def negativeZero():Unit = {
+    // -0.0 and 0.0 are the same value
+    val raster = MrGeoRaster.createEmptyRaster(3, 1, 1, DataBuffer.TYPE_FLOAT, nodata)
+    val notnodata = MrGeoRaster.createEmptyRaster(3, 1, 1, DataBuffer.TYPE_BYTE, 0)
+    raster.setPixel(0, 0, 0, -0.0)
+    raster.setPixel(1, 0, 0, 0.0)
+    raster.setPixel(2, 0, 0, 1.0)
+    for (x <- 0 until 3) {
+      notnodata.setPixel(x, 0, 0, 1.toByte)
+    }
+
+    val window = new FocalWindow
+    window.set(raster, notnodata, 0)
+    window.moveTo(0, 0, 3, 1)
+
+    assertResult(3)(window.count)
+    assertResult(2)(window.variety)
+    assertResult(0.0)(window.min)
+    assertResult(0.0)(window.mode)
+    assertResult(1.0)(window.max)
+  }
+
+  // a band of a few repeating values, with some nodata, and which pixels aren't nodata
+  private def create(datatype:Int):(MrGeoRaster, MrGeoRaster) = {
+    val random = new Random(3)
+    val raster = MrGeoRaster.createEmptyRaster(size, size, 1, datatype, nodata)
+    val notnodata = MrGeoRaster.createEmptyRaster(size, size, 1, DataBuffer.TYPE_BYTE, 0)
+    for (y <- 0 until size; x <- 0 until size) {
+      if (random.nextInt(8) != 0) {
+        val v = if (datatype == DataBuffer.TYPE_FLOAT) random.nextInt(12) * 0.25 else random.nextInt(10)
+        raster.setPixel(x, y, 0, v)
+        notnodata.setPixel(x, y, 0, 1.toByte)
+      }
+    }
+    (raster, notnodata)
+  }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2009-2017. DigitalGlobe, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.mrgeo.mapalgebra
+
+import java.awt.image.DataBuffer
+
+import org.mrgeo.data.raster.{MrGeoRaster, RasterWritable}
+import org.mrgeo.mapalgebra.binarymath.{GreaterThanMapOp, MultMapOp, PlusMapOp}
+import org.mrgeo.mapalgebra.raster.{FusedRasterMapOp, PixelMapOp, RasterMapOp}
+import org.mrgeo.mapalgebra.unarymath.AbsMapOp
+import org.mrgeo.mapalgebra.utils.RasterMapOpTestVerifySupport
+import org.scalatest.{BeforeAndAfter, FlatSpec}
+
+@SuppressWarnings(Array("all")) // Test code, not included in production
+class FusedRasterMapOpTest extends FlatSpec with BeforeAndAfter with RasterMapOpTestVerifySupport {
+  private val zoomLevel = 3
+  private val tileSize = 16
+  private val nodataA = -9999.0
+
+  // a has all 4 tiles (19 is all nodata), b is missing 20 (12 is all nodata)
+  private var a:RasterMapOp = _
+  private var b:RasterMapOp = _
+
+  before {
+    a = createRasterMapOp(Array(11, 12, 19, 20), zoomLevel, tileSize, imageNoData = Array(nodataA),
+      rasterGenerator = (tileId, size, _, _) => {
+        val raster = MrGeoRaster.createEmptyRaster(size, size, 1, DataBuffer.TYPE_INT)
+        for (y <- 0 until size; x <- 0 until size) {
+          val v = if (tileId == 19 || (x * 3 + y) % 7 == 0) nodataA else ((x + y + tileId) % 10).toDouble
+          raster.setPixel(x, y, 0, v)
+        }
+        raster
+      })
+
+    b = createRasterMapOp(Array(11, 12, 19), zoomLevel, tileSize, imageNoData = Array(Double.NaN),
+      rasterGenerator = (tileId, size, _, _) => {
+        val raster = MrGeoRaster.createEmptyRaster(size, size, 1, DataBuffer.TYPE_FLOAT)
+        for (y <- 0 until size; x <- 0 until size) {
+          val v = if (tileId == 12 || (x + y * 5) % 11 == 0) Double.NaN else x * 0.5 - y * 0.25
+          raster.setPixel(x, y, 0, v)
+        }
+        raster
+      })
+  }
+
+  after {
+    stopSparkContext
+  }
+
+  behavior of "FusedRasterMapOp"
+
+  it should "match the unfused operations for nested binary and unary math" in {
+    // abs(a + b) * 2.5
+    val plus = PlusMapOp.create(a, b).asInstanceOf[RasterMapOp]
+    val abs = AbsMapOp.create(plus).asInstanceOf[RasterMapOp]
+    val mult = MultMapOp.create(abs, 2.5).asInstanceOf[RasterMapOp]
+
+    compare(Array(plus, abs, mult), 2)
+  }
+
+  it should "match the unfused operations for math on a single raster" in {
+    // abs(a * -1.5) + 1, all 4 tiles, including the all nodata one
+    val mult = MultMapOp.create(a, -1.5).asInstanceOf[RasterMapOp]
+    val abs = AbsMapOp.create(mult).asInstanceOf[RasterMapOp]
+    val plus = PlusMapOp.create(abs, 1.0).asInstanceOf[RasterMapOp]
+
+    compare(Array(mult, abs, plus), 2)
+  }
+
+  it should "match the unfused operations for con with missing tiles" in {
+    // con(a > 5, a, b)
+    val gt = GreaterThanMapOp.create(a, 5.0).asInstanceOf[RasterMapOp]
+    val con = ConMapOp.create(gt, a, b).asInstanceOf[RasterMapOp]
+
+    compare(Array(gt, con), 1)
+  }
+
+  it should "drop tiles a nested con has no data in, like the unfused operations" in {
+    // con(a > 5, a, b) + a, con has nothing in 19, so the sum has no tile there either
+    val gt = GreaterThanMapOp.create(a, 5.0).asInstanceOf[RasterMapOp]
+    val con = ConMapOp.create(gt, a, b).asInstanceOf[RasterMapOp]
+    val plus = PlusMapOp.create(con, a).asInstanceOf[RasterMapOp]
+
+    val tiles = compare(Array(gt, con, plus), 2)
+    assert(!tiles.contains(19L))
+  }
+
+  // Run the operations one at a time, then as one fused operation rooted at the last one, and
+  // check they produce the same tiles
+  private def compare(ops:Array[RasterMapOp], absorbed:Int):Set[Long] = {
+    val context = sparkContext.get
+
+    ops.foreach(_.execute(context))
+    val expected = collect(ops.last)
+
+    val fused = FusedRasterMapOp(ops.last.asInstanceOf[PixelMapOp], _ => true)
+    assertResult(absorbed)(fused.fused().length)
+    fused.execute(context)
+    val actual = collect(fused)
+
+    assertResult(expected.keySet)(actual.keySet)
+    expected.foreach(tile => {
+      val raster = actual(tile._1)
+      assertResult(tile._2.datatype(), "datatype of tile " + tile._1)(raster.datatype())
+      assertResult(tile._2.bands(), "bands of tile " + tile._1)(raster.bands())
+      forEachSampleInRaster(tile._2, (band, x, y, sample) => {
+        val v = raster.getPixelDouble(x, y, band)
+        assert((sample.isNaN && v.isNaN) || sample == v,
+          s"tile ${tile._1} pixel ($x, $y, $band): expected $sample, got $v")
+      })
+    })
+
+    expected.keySet
+  }
+
+  private def collect(op:RasterMapOp):Map[Long, MrGeoRaster] = {
+    op.rdd().get.collect().map(tile => {
+      (tile._1.get(), RasterWritable.toMrGeoRaster(tile._2))
+    }).toMap
+  }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2009-2017. DigitalGlobe, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.mrgeo.mapalgebra
+
+import java.awt.image.DataBuffer
+
+import org.apache.spark.{SparkConf, SparkContext}
+import org.mrgeo.data.raster.{MrGeoRaster, RasterWritable, TileCodec}
+import org.mrgeo.data.rdd.RasterRDD
+import org.mrgeo.job.JobArguments
+import org.mrgeo.mapalgebra.binarymath.BinaryMinusMapOp
+import org.mrgeo.mapalgebra.raster.RasterMapOp
+import org.mrgeo.mapalgebra.utils.RasterMapOpTestVerifySupport
+import org.scalatest.{BeforeAndAfter, FlatSpec}
+
+@SuppressWarnings(Array("all")) // Test code, not included in production
+class RawBinaryMathMapOpTest extends FlatSpec with BeforeAndAfter with RasterMapOpTestVerifySupport {
+  private val zoomLevel = 3
+  private val tileSize = 16
+  private val nodataA = -9999.0
+
+  // a: 11 is constant, 12 is all nodata, 19 varies.  b: 11 and 19 are constant, 12 varies
+  private var a:RasterMapOp = _
+  private var b:RasterMapOp = _
+
+  before {
+    a = createRasterMapOp(Array(11, 12, 19), zoomLevel, tileSize, imageNoData = Array(nodataA),
+      rasterGenerator = (tileId, size, _, _) => {
+        val raster = MrGeoRaster.createEmptyRaster(size, size, 1, DataBuffer.TYPE_FLOAT)
+        for (y <- 0 until size; x <- 0 until size) {
+          val v = tileId match {
+            case 11 => 3.0
+            case 12 => nodataA
+            case _ => if ((x * 3 + y) % 7 == 0) nodataA else x * 0.5 + y
+          }
+          raster.setPixel(x, y, 0, v)
+        }
+        raster
+      })
+
+    b = createRasterMapOp(Array(11, 12, 19), zoomLevel, tileSize, imageNoData = Array(Double.NaN),
+      rasterGenerator = (tileId, size, _, _) => {
+        val raster = MrGeoRaster.createEmptyRaster(size, size, 1, DataBuffer.TYPE_FLOAT)
+        for (y <- 0 until size; x <- 0 until size) {
+          val v = tileId match {
+            case 11 => 2.0
+            case 19 => 4.0
+            case _ => if ((x + y * 5) % 11 == 0) Double.NaN else x - y * 0.25
+          }
+          raster.setPixel(x, y, 0, v)
+        }
+        raster
+      })
+  }
+
+  after {
+    stopSparkContext
+  }
+
+  behavior of "RawBinaryMathMapOp"
+
+  it should "compute constant tiles of two rasters as constants" in {
+    val expected = collect(BinaryMinusMapOp.create(a, b))
+    val actual = collect(BinaryMinusMapOp.create(new Compacted(a), new Compacted(b)))
+
+    compare(expected, actual)
+    assertConstant(actual, 11L, 1.0)
+  }
+
+  it should "compute constant tiles of a raster and a constant as constants" in {
+    // a - 2.5
+    val expected = collect(BinaryMinusMapOp.create(a, 2.5))
+    val actual = collect(BinaryMinusMapOp.create(new Compacted(a), 2.5))
+
+    compare(expected, actual)
+    assertConstant(actual, 11L, 0.5)
+    assertConstant(actual, 12L, nodataA)
+  }
+
+  it should "compute constant tiles of a constant and a raster as constants" in {
+    // 10 - a
+    val expected = collect(BinaryMinusMapOp.rcreate(a, 10))
+    val actual = collect(BinaryMinusMapOp.rcreate(new Compacted(a), 10))
+
+    compare(expected, actual)
+    assertConstant(actual, 11L, 7.0)
+    assertConstant(actual, 12L, nodataA)
+  }
+
+  private def collect(op:MapOp):Map[Long, RasterWritable] = {
+    val raster = op.asInstanceOf[RasterMapOp]
+    raster.execute(sparkContext.get)
+    raster.rdd().get.collect().map(tile => (tile._1.get(), tile._2)).toMap
+  }
+
+  // the same tiles, with the same pixels, whether or not they are constant tiles
+  private def compare(expected:Map[Long, RasterWritable], actual:Map[Long, RasterWritable]):Unit = {
+    assertResult(expected.keySet)(actual.keySet)
+    expected.foreach(tile => {
+      val raster = RasterWritable.toMrGeoRaster(actual(tile._1))
+      val original = RasterWritable.toMrGeoRaster(tile._2)
+      assertResult(original.datatype(), "datatype of tile " + tile._1)(raster.datatype())
+      forEachSampleInRaster(original, (band, x, y, sample) => {
+        val v = raster.getPixelDouble(x, y, band)
+        assert((sample.isNaN && v.isNaN) || sample == v,
+          s"tile ${tile._1} pixel ($x, $y, $band): expected $sample, got $v")
+      })
+    })
+  }
+
+  private def assertConstant(tiles:Map[Long, RasterWritable], tileId:Long, value:Double):Unit = {
+    val values = TileCodec.constantValues(tiles(tileId))
+    assert(values != null, s"tile $tileId is not a constant tile")
+    assert((value.isNaN && values(0).isNaN) || value == values(0), s"tile $tileId: expected $value, got ${values(0)}")
+  }
+
+  // the raster's tiles, with the constant ones stored as constant tiles
+  private class Compacted(raster:RasterMapOp) extends RasterMapOp {
+    metadata(raster.metadata().get)
+
+    override def rdd():Option[RasterRDD] = {
+      Some(RasterRDD(raster.rdd().get.mapValues(tile => TileCodec.compact(tile))))
+    }
+
+    override def getZoomLevel():Int = raster.getZoomLevel()
+
+    override def execute(context:SparkContext):Boolean = true
+
+    override def setup(job:JobArguments, conf:SparkConf):Boolean = true
+
+    override def teardown(job:JobArguments, conf:SparkConf):Boolean = true
+  }
+}
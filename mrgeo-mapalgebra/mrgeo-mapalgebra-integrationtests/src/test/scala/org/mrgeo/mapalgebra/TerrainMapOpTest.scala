@@ -0,0 +1,168 @@
+/*
+ * Copyright 2009-2017. DigitalGlobe, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.mrgeo.mapalgebra
+
+import java.awt.image.DataBuffer
+
+import org.mrgeo.data.raster.{MrGeoRaster, RasterWritable}
+import org.mrgeo.mapalgebra.raster.RasterMapOp
+import org.mrgeo.mapalgebra.utils.RasterMapOpTestVerifySupport
+import org.mrgeo.utils.LatLng
+import org.mrgeo.utils.tms.TMSUtils
+import org.scalatest.{BeforeAndAfter, FlatSpec}
+
+@SuppressWarnings(Array("all")) // Test code, not included in production
+class TerrainMapOpTest extends FlatSpec with BeforeAndAfter with RasterMapOpTestVerifySupport {
+  private val zoomLevel = 3
+  private val tileSize = 64
+  private val nodata = -9999.0
+
+  // a 2x2 block of tiles, (3, 2) (4, 2) on top of (3, 1) (4, 1)
+  private val tileIds = Array(11L, 12L, 19L, 20L)
+
+  // meters per pixel
+  private val m = TMSUtils.resolution(zoomLevel, tileSize) * LatLng.METERS_PER_DEGREE
+
+  after {
+    stopSparkContext
+  }
+
+  behavior of "TerrainMapOp"
+
+  it should "match the slope, aspect and tpi map ops" in {
+    val dem = createDem((col, row) => {
+      if ((col * 3 + row) % 37 == 0) nodata else 5000.0 * Math.sin(col / 7.0) + 3000.0 * Math.cos(row / 5.0) + col
+    })
+
+    // not in the usual order, the bands are in the order asked for
+    val terrain = TerrainMapOp.create(dem, "tpi, slope, aspect", "deg").asInstanceOf[RasterMapOp]
+    val ops = Array(TpiMapOp.create(dem), SlopeMapOp.create(dem, "deg"), AspectMapOp.create(dem, "deg"))
+        .map(_.asInstanceOf[RasterMapOp])
+
+    val context = sparkContext.get
+    terrain.execute(context)
+    ops.foreach(_.execute(context))
+
+    val actual = collect(terrain)
+    ops.indices.foreach(band => {
+      val expected = collect(ops(band))
+
+      assertResult(expected.keySet)(actual.keySet)
+      expected.foreach(tile => {
+        val raster = actual(tile._1)
+        assertResult(ops.length, "bands of tile " + tile._1)(raster.bands())
+        forEachSampleInRaster(tile._2, (_, x, y, sample) => {
+          val v = raster.getPixelDouble(x, y, band)
+          assert((sample.isNaN && v.isNaN) || Math.abs(sample - v) <= 1e-4 * Math.max(1.0, Math.abs(sample)),
+            s"tile ${tile._1} pixel ($x, $y, $band): expected $sample, got $v")
+        })
+      })
+    })
+  }
+
+  it should "give the curvature of a known surface" in {
+    // the second differences along the rows and columns are both m^2
+    val dem = createDem((col, row) => m * m * (col * col + row * row))
+
+    val terrain = TerrainMapOp.create(dem, "curvature").asInstanceOf[RasterMapOp]
+    terrain.execute(sparkContext.get)
+
+    verifyInside(terrain, (_, v) => assert(Math.abs(v - -400.0) < 1e-3, s"expected -400, got $v"))
+  }
+
+  it should "give the slope, aspect, curvature and hillshade of a plane" in {
+    // rising 1 meter per meter to the east, so it is a 45 degree slope facing west
+    val dem = createDem((col, _) => m * col)
+
+    val lit = TerrainMapOp.create(dem, "slope, aspect, curvature, hillshade", "deg",
+      azimuth = 270.0, altitude = 45.0).asInstanceOf[RasterMapOp]
+    val shadowed = TerrainMapOp.create(dem, "hillshade", azimuth = 90.0, altitude = 45.0).asInstanceOf[RasterMapOp]
+    val angled = TerrainMapOp.create(dem, "hillshade").asInstanceOf[RasterMapOp]
+
+    val context = sparkContext.get
+    Array(lit, shadowed, angled).foreach(_.execute(context))
+
+    verifyInside(lit, (band, v) => {
+      val expected = band match {
+        case 0 => 45.0
+        case 1 => 270.0
+        case 2 => 0.0
+        case 3 => 255.0 // lit straight on
+      }
+      assert(Math.abs(v - expected) < 1e-3, s"band $band: expected $expected, got $v")
+    })
+
+    // lit from behind, at the same angle as the slope
+    verifyInside(shadowed, (_, v) => assert(Math.abs(v) < 1e-3, s"expected 0, got $v"))
+
+    // the default, lit from the northwest
+    val expected = 255.0 * (0.5 + 0.5 * Math.cos(Math.toRadians(45.0)))
+    verifyInside(angled, (_, v) => assert(Math.abs(v - expected) < 1e-3, s"expected $expected, got $v"))
+  }
+
+  it should "give the hillshade of flat ground" in {
+    val dem = createDem((_, _) => 100.0)
+
+    val terrain = TerrainMapOp.create(dem, "hillshade", altitude = 30.0).asInstanceOf[RasterMapOp]
+    terrain.execute(sparkContext.get)
+
+    // the sun's angle above the ground
+    val expected = 255.0 * Math.sin(Math.toRadians(30.0))
+    verifyInside(terrain, (_, v) => assert(Math.abs(v - expected) < 1e-3, s"expected $expected, got $v"))
+
+    // everything is flat, even at the edges
+    assertResult(tileIds.toSet)(collect(terrain).keySet)
+    collect(terrain).values.foreach(raster => {
+      forEachSampleInRaster(raster, (_, _, _, v) => assert(Math.abs(v - expected) < 1e-3))
+    })
+  }
+
+  // An elevation raster of the tiles, from the column and row (down) of each pixel in the whole block
+  private def createDem(elevation:(Long, Long) => Double):RasterMapOp = {
+    createRasterMapOp(tileIds, zoomLevel, tileSize, imageNoData = Array(nodata),
+      rasterGenerator = (tileId, size, zoom, _) => {
+        val tile = TMSUtils.tileid(tileId, zoom)
+        val raster = MrGeoRaster.createEmptyRaster(size, size, 1, DataBuffer.TYPE_DOUBLE)
+        for (y <- 0 until size; x <- 0 until size) {
+          raster.setPixel(x, y, 0, elevation(tile.tx * size + x, -tile.ty * size + y))
+        }
+        raster
+      })
+  }
+
+  // Check every band of the pixels whose 3x3 neighborhood is inside the block of tiles
+  private def verifyInside(op:RasterMapOp, verify:(Int, Double) => Unit):Unit = {
+    val tiles = collect(op)
+    assertResult(tileIds.toSet)(tiles.keySet)
+
+    tiles.foreach(tile => {
+      val t = TMSUtils.tileid(tile._1, zoomLevel)
+      forEachSampleInRaster(tile._2, (band, x, y, sample) => {
+        val edge = (t.tx == 3 && x == 0) || (t.tx == 4 && x == tileSize - 1) ||
+                   (t.ty == 2 && y == 0) || (t.ty == 1 && y == tileSize - 1)
+        if (!edge) {
+          verify(band, sample)
+        }
+      })
+    })
+  }
+
+  private def collect(op:RasterMapOp):Map[Long, MrGeoRaster] = {
+    op.rdd().get.collect().map(tile => {
+      (tile._1.get(), RasterWritable.toMrGeoRaster(tile._2))
+    }).toMap
+  }
+}
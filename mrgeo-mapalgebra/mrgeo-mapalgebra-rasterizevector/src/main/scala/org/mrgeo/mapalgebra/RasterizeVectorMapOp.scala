@@ -21,21 +21,23 @@ import com.vividsolutions.jts.io.WKTWriter
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings
 import org.apache.hadoop.fs.Path
 import org.apache.spark.AccumulatorParam
-import org.apache.spark.rdd.{PairRDDFunctions, RDD}
-import org.apache.spark.storage.StorageLevel
-import org.mrgeo.data.raster.RasterWritable
+import org.apache.spark.rdd.RDD
+import org.mrgeo.data.raster.{MrGeoRaster, RasterWritable}
 import org.mrgeo.data.rdd.VectorRDD
 import org.mrgeo.data.tile.TileIdWritable
 import org.mrgeo.data.vector.FeatureIdWritable
-import org.mrgeo.geometry.{Geometry, GeometryFactory, WktConverter}
+import org.mrgeo.geometry.{Geometry, GeometryCollection, GeometryFactory, Polygon}
 import org.mrgeo.hdfs.utils.HadoopFileUtils
 import org.mrgeo.mapalgebra.parser.ParserNode
 import org.mrgeo.mapalgebra.raster.RasterMapOp
 import org.mrgeo.mapalgebra.vector.VectorMapOp
-import org.mrgeo.mapalgebra.vector.paint.VectorPainter
+import org.mrgeo.mapalgebra.vector.paint.ScanlineRasterizer
+import org.mrgeo.mapalgebra.vector.paint.VectorPainter.AggregationType
+import org.mrgeo.spark.TileRangePartitioner
 import org.mrgeo.utils.GeometryUtils
 import org.mrgeo.utils.tms.{Bounds, TMSUtils, TileBounds}
 
+import scala.collection.JavaConversions._
 import scala.collection.mutable.ListBuffer
 
 object RasterizeVectorMapOp extends MapOpRegistrar {
@@ -53,6 +55,21 @@ object RasterizeVectorMapOp extends MapOpRegistrar {
   def create(vector:VectorMapOp, aggregator:String, cellsize:String, column:String = null, lineWidth:Float = 1.0f):RasterizeVectorMapOp = {
     new RasterizeVectorMapOp(Some(vector), aggregator, cellsize, column, null.asInstanceOf[String], lineWidth)
   }
+
+  // Paints fragments into partial rasters of their tiles.  The rasterizer is made when it is first
+  // used, so there is one per task.
+  class TilePainter(zoom:Int, aggregationType:AggregationType, column:String, tilesize:Int, lineWidthPx:Float)
+      extends Serializable {
+    @transient private lazy val rasterizer =
+      new ScanlineRasterizer(zoom, aggregationType, column, tilesize, lineWidthPx)
+
+    def paint(partial:MrGeoRaster, tileid:Long, geom:Geometry):MrGeoRaster = {
+      rasterizer.beforePaintingTile(tileid, partial)
+      rasterizer.paintGeometry(geom)
+      rasterizer.partial()
+    }
+  }
+
 }
 
 
@@ -82,41 +99,37 @@ class RasterizeVectorMapOp extends AbstractRasterizeVectorMapOp with Externaliza
     GeometryFactory.getClasses ++ Array[Class[_]](classOf[FeatureIdWritable])
   }
 
+  /**
+    * Each tile's fragments (see vectorsToTiledRDD) are painted into a partial raster of the tile,
+    * and the partials are combined with the aggregation.  The painting and combining starts on the
+    * map side, so a tile never needs all of its geometries at once, only a partial raster (the size
+    * of a tile) per tile per partition is shuffled.
+    *
+    * The tiles are partitioned by rows of the tiles the fragments cover, with as many tiles in a
+    * partition as there are partial rasters in a block.  The tiles are counted by the fragments
+    * (there can't be more tiles than fragments), with the area of the tile bounds as the upper
+    * bound, so a sparse input spread over a large area doesn't get a partition per empty block
+    * of tiles.
+    */
   override def rasterize(vectorRDD:VectorRDD):RDD[(TileIdWritable, RasterWritable)] = {
-    val tiledVectors = vectorsToTiledRDD(vectorRDD).persist(StorageLevel.MEMORY_AND_DISK)
-    val localRdd = new PairRDDFunctions(tiledVectors)
-    val groupedGeometries = localRdd.groupByKey().persist(StorageLevel.MEMORY_AND_DISK)
+    val (fragments, tiles, fragmentcnt) = vectorsToTiledRDD(vectorRDD)
 
-    try {
-      rasterize(groupedGeometries)
-    }
-    finally {
-      groupedGeometries.unpersist()
-      tiledVectors.unpersist()
-    }
-  }
+    val painter = new RasterizeVectorMapOp.TilePainter(zoom, aggregationType, column.orNull, tilesize, lineWidthPx)
+    val aggregation = aggregationType
 
-  def rasterize(groupedGeometries:RDD[(TileIdWritable, Iterable[Geometry])]):RDD[(TileIdWritable, RasterWritable)] = {
-    val result = groupedGeometries.map(U => {
-      val tileId = U._1
-      val rvp = new VectorPainter(zoom,
-        aggregationType,
-        column match {
-          case Some(c) => c
-          case None => null
-        },
-        tilesize, lineWidthPx)
-      rvp.beforePaintingTile(tileId.get)
-      //var cnt = 0
-      for (geom <- U._2) {
-        rvp.paintGeometry(geom)
-        //cnt += 1
-      }
-      //println("t: " + tileId.get() + " cnt: " + cnt)
-      val raster = rvp.afterPaintingTile()
-      (tileId, raster)
-    })
-    result
+    // a partial is at most 2 bands (AVERAGE keeps the counts) of doubles
+    val partialbytes = 2L * 8 * tilesize * tilesize
+    val tilesPerPartition = Math.max(1L, defaultBlockSize() / partialbytes)
+    val tilecnt = Math.min(fragmentcnt, tiles.width() * tiles.height())
+    val partitions = Math.max(1L, Math.min(Int.MaxValue, tilecnt / tilesPerPartition + 1)).toInt
+    log.info("Using " + partitions + " partitions for at most " + tilecnt + " tiles")
+
+    val partials = fragments.map(fragment => (fragment._1, (fragment._1.get(), fragment._2)))
+        .aggregateByKey(null.asInstanceOf[MrGeoRaster], TileRangePartitioner(tiles, zoom, partitions))(
+          (partial, fragment) => painter.paint(partial, fragment._1, fragment._2),
+          (partial1, partial2) => ScanlineRasterizer.merge(aggregation, partial1, partial2))
+
+    partials.map(tile => (tile._1, ScanlineRasterizer.finish(aggregation, tile._2)))
   }
 
   def splitFeature(fid:FeatureIdWritable, geom:Geometry, buffer:Double, maxFeatureSize:Double, maxFeatureArea:Double):
@@ -196,11 +209,15 @@ class RasterizeVectorMapOp extends AbstractRasterizeVectorMapOp with Externaliza
     * This method iterates through each of the features in the vectorRDD input and
     * returns a new RDD of TileIdWritable and Geometry tuples. The idea is that for
     * each feature, it identifies which tiles that feature intersects and then adds
-    * a tuple to the resulting RDD for each of this tiles paired with that feature.
+    * a tuple to the resulting RDD for each of this tiles paired with the part of
+    * that feature in the tile (clipped to a little outside the tile, so the clip
+    * doesn't paint anything in it).
     * For example, if a feature intersects 5 tiles, then it adds 5 records for that
     * feature to the returned RDD.
+    * The tile bounds of all the records, and (at most) the number of records, are
+    * returned with the RDD.
     */
-  def vectorsToTiledRDD(vectorRDD:VectorRDD):RDD[(TileIdWritable, Geometry)] = {
+  def vectorsToTiledRDD(vectorRDD:VectorRDD):(RDD[(TileIdWritable, Geometry)], TileBounds, Long) = {
     val sizeAccumulator = vectorRDD.context.accumulator(0)(MaxSizeAccumulator)
 
     val singletile = TMSUtils.tileBounds(0, 0, zoom, tilesize)
@@ -217,6 +234,10 @@ class RasterizeVectorMapOp extends AbstractRasterizeVectorMapOp with Externaliza
       -lineWidthPx * TMSUtils.resolution(zoom, tilesize)
     }
 
+    // the clipped edges of polygons are kept this far outside the (buffered) tile, so they don't
+    // paint anything in it
+    val margin = 2 * TMSUtils.resolution(zoom, tilesize)
+
     val splitfeatures = vectorRDD.flatMap(feature => {
 
       var result = new ListBuffer[(FeatureIdWritable, Geometry)]
@@ -265,16 +286,23 @@ class RasterizeVectorMapOp extends AbstractRasterizeVectorMapOp with Externaliza
     // Need to materialize the RDD in order for the accumulator to compute the
     // max geometry size.
 
-    val splitfeaturescnt = splitfeatures.count()
+    // the bounds (of the geometries in the tiles they're painted in) and the number of fragments
+    // (the tiles each feature overlaps, before the intersection test) are found in the same pass
+    val (splitfeaturescnt, splitbounds, fragmentcnt) =
+      splitfeatures.aggregate((0L, null.asInstanceOf[Bounds], 0L))(
+        (result, feature) => {
+          val tb = TMSUtils.boundsToTile(feature._2.getBounds, zoom, tilesize)
+          (result._1 + 1, union(result._2, feature._2.getBounds.expandBy(buffer)),
+              result._3 + Math.max(0L, tb.width() * tb.height()))
+        },
+        (result1, result2) => (result1._1 + result2._1, union(result1._2, result2._2), result1._3 + result2._3))
     log.info("Max geometry serialized size is " + maxfeaturebytes)
 
     // The divide by 2 is not scientific. It simply doubles the number of partitions
     // which, during testing, significatnly improved performance.
     // val geomsPerPartition = Integer.MAX_VALUE / maxSize / 2
 
-    val path = new Path("/")
-    val fs = HadoopFileUtils.getFileSystem(path)
-    val blocksize = fs.getDefaultBlockSize(path)
+    val blocksize = defaultBlockSize()
 
     val geomsPerPartition = blocksize / maxfeaturebytes
 
@@ -292,24 +320,70 @@ class RasterizeVectorMapOp extends AbstractRasterizeVectorMapOp with Externaliza
         val t = TMSUtils.tileid(tileId.get(), zoom)
 
         // it's easier to expand the tile bounds here than the geometry, so we will
-        val tb = GeometryUtils.toPoly(TMSUtils.tileBounds(t, zoom, tilesize).expandBy(buffer))
-        if (GeometryUtils.intersects(tb, geom)) {
-          result += ((tileId, geom))
+        val tb = TMSUtils.tileBounds(t, zoom, tilesize).expandBy(buffer)
+        if (GeometryUtils.intersects(GeometryUtils.toPoly(tb), geom)) {
+          result += ((tileId, clipToTile(geom, tb.expandBy(margin))))
         }
       }
 
       result
     })
 
-    val count = tilefeatures.count()
-    log.info("Created " + count + " tile/geometry combos")
+    val tilebounds = if (splitbounds != null && splitbounds.intersects(Bounds.WORLD)) {
+      TMSUtils.boundsToTile(splitbounds.intersection(Bounds.WORLD), zoom, tilesize)
+    }
+    else {
+      new TileBounds(0, 0, 0, 0)
+    }
 
-    // The divide by 2 is not scientific. It simply doubles the number of partitions
-    // which, during testing, significatnly improved performance.
-    val partitions = (count / geomsPerPartition).toInt + 1
-    log.info("Using " + partitions + " partitions for RasterizeVector")
+    // The fragments are small (no bigger than a tile), so there's no need to repartition them,
+    // rasterize() shuffles them into tiles.
+    (tilefeatures, tilebounds, fragmentcnt)
+  }
+
+  private def union(b1:Bounds, b2:Bounds):Bounds = {
+    if (b1 == null) b2 else if (b2 == null) b1 else b1.union(b2)
+  }
+
+  private def defaultBlockSize():Long = {
+    val path = new Path("/")
+    val fs = HadoopFileUtils.getFileSystem(path)
+    fs.getDefaultBlockSize(path)
+  }
+
+  // The part of the geometry in the tile bounds.  Like splitFeature, if JTS can't clip the geometry,
+  // the whole geometry is used.  Only polygons are clipped, clipping a line would give it new ends,
+  // which the rasterizer snaps (to a pixel center, or a quarter pixel for wide lines), changing the
+  // slope of the line in the tile.  The rasterizer only paints the part of a line in the tile anyway.
+  private def clipToTile(geom:Geometry, tileBounds:Bounds):Geometry = {
+    geom match {
+      case _ if !polygonal(geom) => geom
+      case _ if tileBounds.contains(geom.getBounds) => geom
+      case _ =>
+        try {
+          val clipped = geom.clip(tileBounds)
+          if (clipped == null) {
+            log.error("Got a bad clipping... " + geom)
+            geom
+          }
+          else {
+            clipped
+          }
+        }
+        catch {
+          case _:Throwable =>
+            log.error("Got a bad clipping... " + geom)
+            geom
+        }
+    }
+  }
 
-    tilefeatures.repartition(partitions)
+  private def polygonal(geom:Geometry):Boolean = {
+    geom match {
+      case _:Polygon => true
+      case collection:GeometryCollection => collection.getGeometries.forall(polygonal)
+      case _ => false
+    }
   }
 
   def getOverlappingTiles(zoom:Int, tileSize:Int, bounds:Bounds):List[TileIdWritable] = {
@@ -20,13 +20,15 @@ import java.io.{Externalizable, IOException, ObjectInput, ObjectOutput}
 
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings
 import org.apache.spark.rdd.CoGroupedRDD
-import org.apache.spark.{HashPartitioner, SparkConf, SparkContext}
+import org.apache.spark.{SparkConf, SparkContext}
 import org.mrgeo.data.raster.{MrGeoRaster, RasterUtils, RasterWritable}
 import org.mrgeo.data.rdd.RasterRDD
 import org.mrgeo.data.tile.TileIdWritable
 import org.mrgeo.job.JobArguments
 import org.mrgeo.mapalgebra.parser._
-import org.mrgeo.mapalgebra.raster.RasterMapOp
+import org.mrgeo.mapalgebra.raster.PixelMapOp.{ConstantTerm, RasterTerm, Term, TermInfo}
+import org.mrgeo.mapalgebra.raster.{PixelKernel, PixelMapOp, RasterMapOp}
+import org.mrgeo.spark.TileRangePartitioner
 import org.mrgeo.utils.SparkUtils
 
 import scala.collection.JavaConversions._
@@ -55,7 +57,7 @@ object ConMapOp extends MapOpRegistrar {
     new ConMapOp(node, variables)
 }
 
-class ConMapOp extends RasterMapOp with Externalizable {
+class ConMapOp extends RasterMapOp with PixelMapOp with Externalizable {
 
   private val rddMap = mutable.Map.empty[Int, Int]
   // maps input order (key) to cogrouped position (value)
@@ -103,20 +105,16 @@ class ConMapOp extends RasterMapOp with Externalizable {
 
     // gather all the RDDs and cogroup them
     val rddBuilder = mutable.ArrayBuilder.make[RasterRDD]
-    var maxpartitions = 0
     inputs.foreach(mapop => {
       rddBuilder += (mapop.rdd() match {
-        case Some(r) =>
-          if (r.partitions.length > maxpartitions) {
-            maxpartitions = r.partitions.length
-          }
-          r
+        case Some(r) => r
         case _ => throw new IOException("Can't load RDD! Ouch! " + mapop.getClass.getName)
       })
     })
+    val rdds = rddBuilder.result()
 
-    // cogroup needs a partitioner, so we'll give one here...
-    val groups = new CoGroupedRDD(rddBuilder.result(), new HashPartitioner(maxpartitions))
+    // cogroup needs a partitioner, use the inputs' own if they have one (no shuffle)
+    val groups = new CoGroupedRDD(rdds, TileRangePartitioner.cogroupPartitioner(rdds))
 
     // copy these here to avoid serializing the whole mapop
     nodatas = Array.fill[Double](isRdd.length)(Double.NaN)
@@ -248,6 +246,58 @@ class ConMapOp extends RasterMapOp with Externalizable {
     true
   }
 
+  override def pixelTerms():Array[Term] = {
+    isRdd.indices.map(i => {
+      if (isRdd(i)) {
+        RasterTerm(inputs(rddMap(i)))
+      }
+      else {
+        ConstantTerm(constMap(i).getOrElse(Double.NaN))
+      }
+    }).toArray[Term]
+  }
+
+  override def pixelKernel(terms:Array[TermInfo]):PixelKernel = {
+    val t = calculateLargestType(i => terms(i).datatype)
+    val datatype:Int = t._2
+    val dataindex:Int = t._1
+
+    // same output type and nodata rules as execute(), only the first band's nodata is used for the inputs
+    val nodata = RasterUtils.getDefaultNoDataForType(terms(dataindex).datatype)
+    val outputNodatas = Array.fill[Double](terms(dataindex).nodatas.length)(nodata)
+    val termNodatas = terms.map(_.nodatas(0))
+    val termCount = terms.length
+
+    new PixelKernel(datatype, outputNodatas, skipEmptyTiles = true) {
+      override def evaluate(values:Array[Double], band:Int):Double = {
+        var i:Int = 0
+        while (i < termCount - 1) {
+          val v = values(i)
+          if (RasterMapOp.isNodata(v, termNodatas(i))) {
+            return nodata
+          }
+          // greater than 0, so take the true case
+          else if (!RasterMapOp.nearZero(v)) {
+            return result(values(i + 1), termNodatas(i + 1))
+          }
+          i += 2
+        }
+
+        // didn't find one in the loop, take the last entry (the else)
+        result(values(termCount - 1), termNodatas(termCount - 1))
+      }
+
+      private def result(v:Double, termNodata:Double):Double = {
+        if (RasterMapOp.isNotNodata(v, termNodata)) {
+          v
+        }
+        else {
+          nodata
+        }
+      }
+    }
+  }
+
   override def setup(job:JobArguments, conf:SparkConf):Boolean = true
 
   override def teardown(job:JobArguments, conf:SparkConf):Boolean = true
@@ -459,12 +509,12 @@ class ConMapOp extends RasterMapOp with Externalizable {
 
   }
 
-  private def calculateLargestType() = {
-    var d = calculateType()
+  private def calculateLargestType(tileType:Int => Int = inputTileType) = {
+    var d = calculateType(tileType)
 
     // this means all the outputs are constant, so we'll need to check the input conditionals
     if (d._1 < 0) {
-      d = calculateType(false)
+      d = calculateType(tileType, useOutputs = false)
       if (d._1 < 0) {
         throw new IOException("Error!  There are no raster datasets in the con(...)")
       }
@@ -478,7 +528,14 @@ class ConMapOp extends RasterMapOp with Externalizable {
 
   }
 
-  private def calculateType(useOutputs:Boolean = true) = {
+  private def inputTileType(i:Int):Int = {
+    // look up the rdd in the input->rdd map
+    val input = inputs(rddMap(i))
+    input.metadata()
+        .getOrElse(throw new IOException("Can't load metadata! Ouch! " + inputs(i).getClass.getName)).getTileType
+  }
+
+  private def calculateType(tileType:Int => Int, useOutputs:Boolean = true) = {
     // even inputs, except the last one, are conditionals, odd, and the last one, are outputs..
     var index = -1
     var datatype = -1
@@ -491,11 +548,8 @@ class ConMapOp extends RasterMapOp with Externalizable {
     }
     while (i < isRdd.length) {
       if (isRdd(i)) {
-        // look up the rdd in the input->rdd map
-        val input = inputs(rddMap(i))
         var replaceLargest:Boolean = false
-        val dt:Int = input.metadata()
-            .getOrElse(throw new IOException("Can't load metadata! Ouch! " + inputs(i).getClass.getName)).getTileType
+        val dt:Int = tileType(i)
 
         // When choosing the largest data type, unfortunately we can't just use a numeric
         // comparison of the dataType values because the value of USHORT is less than SHORT.
@@ -23,7 +23,8 @@ import org.mrgeo.data.raster.{MrGeoRaster, RasterWritable}
 import org.mrgeo.data.rdd.RasterRDD
 import org.mrgeo.job.JobArguments
 import org.mrgeo.mapalgebra.parser._
-import org.mrgeo.mapalgebra.raster.RasterMapOp
+import org.mrgeo.mapalgebra.raster.PixelMapOp.{RasterTerm, Term, TermInfo}
+import org.mrgeo.mapalgebra.raster.{PixelKernel, PixelMapOp, RasterMapOp}
 import org.mrgeo.utils.SparkUtils
 
 object LogMapOp extends MapOpRegistrar {
@@ -38,7 +39,7 @@ object LogMapOp extends MapOpRegistrar {
     new LogMapOp(node, variables)
 }
 
-class LogMapOp extends RasterMapOp with Externalizable {
+class LogMapOp extends RasterMapOp with PixelMapOp with Externalizable {
 
   private var inputMapOp:Option[RasterMapOp] = None
   private var base:Option[Double] = None
@@ -104,6 +105,34 @@ class LogMapOp extends RasterMapOp with Externalizable {
     true
   }
 
+  override def pixelTerms():Array[Term] = {
+    Array(RasterTerm(inputMapOp getOrElse (throw new IOException("Input MapOp not valid!"))))
+  }
+
+  override def pixelKernel(terms:Array[TermInfo]):PixelKernel = {
+    val baseVal =
+      if (base.isDefined) {
+        Math.log(base.get)
+      }
+      else {
+        1
+      }
+
+    val nodata = terms(0).nodatas
+    val outputnodata = Array.fill[Double](nodata.length)(Float.NaN)
+
+    new PixelKernel(DataBuffer.TYPE_FLOAT, outputnodata) {
+      override def evaluate(values:Array[Double], band:Int):Double = {
+        if (RasterMapOp.isNotNodata(values(0), nodata(band))) {
+          Math.log(values(0)) / baseVal
+        }
+        else {
+          outputnodata(band)
+        }
+      }
+    }
+  }
+
   override def setup(job:JobArguments, conf:SparkConf):Boolean = true
 
   override def teardown(job:JobArguments, conf:SparkConf):Boolean = true
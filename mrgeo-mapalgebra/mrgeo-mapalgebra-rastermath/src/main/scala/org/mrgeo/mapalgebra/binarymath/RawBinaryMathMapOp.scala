@@ -20,17 +20,19 @@ import java.io.{Externalizable, IOException, ObjectInput, ObjectOutput}
 
 import org.apache.spark.rdd.PairRDDFunctions
 import org.apache.spark.{SparkConf, SparkContext}
-import org.mrgeo.data.raster.{MrGeoRaster, RasterWritable}
+import org.mrgeo.data.raster.{MrGeoRaster, RasterWritable, TileCodec}
 import org.mrgeo.data.rdd.RasterRDD
 import org.mrgeo.data.tile.TileIdWritable
 import org.mrgeo.job.JobArguments
 import org.mrgeo.mapalgebra.MapOp
 import org.mrgeo.mapalgebra.parser._
-import org.mrgeo.mapalgebra.raster.RasterMapOp
+import org.mrgeo.mapalgebra.raster.PixelMapOp.{ConstantTerm, RasterTerm, Term, TermInfo}
+import org.mrgeo.mapalgebra.raster.{PixelKernel, PixelMapOp, RasterMapOp}
+import org.mrgeo.spark.TileRangePartitioner
 import org.mrgeo.utils.SparkUtils
 import org.mrgeo.utils.tms.Bounds
 
-abstract class RawBinaryMathMapOp extends RasterMapOp with Externalizable {
+abstract class RawBinaryMathMapOp extends RasterMapOp with PixelMapOp with Externalizable {
   var constA:Option[Double] = None
   var constB:Option[Double] = None
 
@@ -94,6 +96,68 @@ abstract class RawBinaryMathMapOp extends RasterMapOp with Externalizable {
     rasterRDD
   }
 
+  override def pixelTerms():Array[Term] = {
+    Array(term(constA, varA), term(constB, varB))
+  }
+
+  override def pixelKernel(terms:Array[TermInfo]):PixelKernel = {
+    val termA = terms(0)
+    val termB = terms(1)
+
+    // same output nodata rules as compute() and computeWithConstantX()
+    val outputnodata = if (termA.isConstant) {
+      if (datatype == termB.datatype) {
+        termB.nodatas
+      }
+      else {
+        Array.fill[Double](termB.nodatas.length)(nodata())
+      }
+    }
+    else if (termB.isConstant) {
+      if (datatype == termA.datatype) {
+        termA.nodatas
+      }
+      else {
+        Array.fill[Double](termA.nodatas.length)(nodata())
+      }
+    }
+    else if (datatype == termA.datatype) {
+      termA.nodatas
+    }
+    else if (datatype == termB.datatype) {
+      termB.nodatas
+    }
+    else {
+      Array.fill[Double](termA.nodatas.length)(nodata())
+    }
+
+    // constants are never checked for nodata
+    val checkA = !termA.isConstant
+    val checkB = !termB.isConstant
+    val nodataA = termA.nodatas
+    val nodataB = termB.nodatas
+
+    new PixelKernel(datatype(), outputnodata) {
+      override def evaluate(values:Array[Double], band:Int):Double = {
+        if ((checkA && RasterMapOp.isNodata(values(0), nodataA(band))) ||
+            (checkB && RasterMapOp.isNodata(values(1), nodataB(band)))) {
+          outputnodata(band)
+        }
+        else {
+          function(values(0), values(1))
+        }
+      }
+    }
+  }
+
+  private def term(const:Option[Double], raster:Option[RasterMapOp]):Term = {
+    const match {
+      case Some(c) => ConstantTerm(c)
+      case _ => RasterTerm(raster.getOrElse(throw new IOException("No raster input specified for " +
+                                                                   this.getClass.getName)))
+    }
+  }
+
   private[binarymath] def initialize(node:ParserNode, variables:String => Option[ParserNode]) = {
 
     if (node.getNumChildren < 2) {
@@ -165,35 +229,44 @@ abstract class RawBinaryMathMapOp extends RasterMapOp with Externalizable {
     }
 
     val answer = RasterRDD(rdd.map(tile => {
-      val raster = RasterWritable.toMrGeoRaster(tile._2)
-
-      val width = raster.width()
-      val height = raster.height()
-      val bands = raster.bands()
-
-      val output = MrGeoRaster.createEmptyRaster(width, height, bands, datatype())
-
-      var b:Int = 0
-      while (b < bands) {
-        var y:Int = 0
-        while (y < height) {
-          var x:Int = 0
-          while (x < width) {
-            val v = raster.getPixelDouble(x, y, b)
-            if (RasterMapOp.isNotNodata(v, nodatas(b))) {
-              output.setPixel(x, y, b, function(const, v))
-            }
-            else {
-              output.setPixel(x, y, b, outputnodata(b))
-            }
+      val constant = TileCodec.constantValues(tile._2)
+      if (constant != null) {
+        // a constant tile stays constant, only calculate each band's value
+        val values = constant.indices.map(b =>
+          if (RasterMapOp.isNotNodata(constant(b), nodatas(b))) function(const, constant(b)) else outputnodata(b)).toArray
+        (tile._1, TileCodec.constant(tile._2, datatype(), values))
+      }
+      else {
+        val raster = RasterWritable.toMrGeoRaster(tile._2)
+
+        val width = raster.width()
+        val height = raster.height()
+        val bands = raster.bands()
+
+        val output = MrGeoRaster.createEmptyRaster(width, height, bands, datatype())
+
+        var b:Int = 0
+        while (b < bands) {
+          var y:Int = 0
+          while (y < height) {
+            var x:Int = 0
+            while (x < width) {
+              val v = raster.getPixelDouble(x, y, b)
+              if (RasterMapOp.isNotNodata(v, nodatas(b))) {
+                output.setPixel(x, y, b, function(const, v))
+              }
+              else {
+                output.setPixel(x, y, b, outputnodata(b))
+              }
 
-            x += 1
+              x += 1
+            }
+            y += 1
           }
-          y += 1
+          b += 1
         }
-        b += 1
+        (tile._1, RasterWritable.toWritable(output))
       }
-      (tile._1, RasterWritable.toWritable(output))
     }))
 
     metadata(SparkUtils.calculateMetadata(answer, raster.metadata().get.getMaxZoomLevel, outputnodata,
@@ -223,34 +296,43 @@ abstract class RawBinaryMathMapOp extends RasterMapOp with Externalizable {
     }
 
     val answer = RasterRDD(rdd.map(tile => {
-      val raster = RasterWritable.toMrGeoRaster(tile._2)
-
-      val width = raster.width()
-      val height = raster.height()
-      val bands = raster.bands()
-
-      val output = MrGeoRaster.createEmptyRaster(width, height, bands, datatype())
-
-      var b:Int = 0
-      while (b < bands) {
-        var y:Int = 0
-        while (y < height) {
-          var x:Int = 0
-          while (x < width) {
-            val v = raster.getPixelDouble(x, y, b)
-            if (RasterMapOp.isNotNodata(v, nodatas(b))) {
-              output.setPixel(x, y, b, function(v, const))
-            }
-            else {
-              output.setPixel(x, y, b, outputnodata(b))
+      val constant = TileCodec.constantValues(tile._2)
+      if (constant != null) {
+        // a constant tile stays constant, only calculate each band's value
+        val values = constant.indices.map(b =>
+          if (RasterMapOp.isNotNodata(constant(b), nodatas(b))) function(constant(b), const) else outputnodata(b)).toArray
+        (tile._1, TileCodec.constant(tile._2, datatype(), values))
+      }
+      else {
+        val raster = RasterWritable.toMrGeoRaster(tile._2)
+
+        val width = raster.width()
+        val height = raster.height()
+        val bands = raster.bands()
+
+        val output = MrGeoRaster.createEmptyRaster(width, height, bands, datatype())
+
+        var b:Int = 0
+        while (b < bands) {
+          var y:Int = 0
+          while (y < height) {
+            var x:Int = 0
+            while (x < width) {
+              val v = raster.getPixelDouble(x, y, b)
+              if (RasterMapOp.isNotNodata(v, nodatas(b))) {
+                output.setPixel(x, y, b, function(v, const))
+              }
+              else {
+                output.setPixel(x, y, b, outputnodata(b))
+              }
+              x += 1
             }
-            x += 1
+            y += 1
           }
-          y += 1
+          b += 1
         }
-        b += 1
+        (tile._1, RasterWritable.toWritable(output))
       }
-      (tile._1, RasterWritable.toWritable(output))
     }))
 
     metadata(SparkUtils.calculateMetadata(answer, raster.metadata().get.getMaxZoomLevel, outputnodata,
@@ -293,7 +375,7 @@ abstract class RawBinaryMathMapOp extends RasterMapOp with Externalizable {
     //val convertr2 = r2.getSampleModel.getDataType != datatype || !(nodata1 sameElements nodata2)
 
     // group the RDDs
-    val group = new PairRDDFunctions(rdd1).cogroup(rdd2)
+    val group = new PairRDDFunctions(rdd1).cogroup(rdd2, TileRangePartitioner.cogroupPartitioner(Seq(rdd1, rdd2)))
 
     val answer = RasterRDD(group.flatMap(tile => {
       val iter1 = tile._2._1
@@ -302,45 +384,60 @@ abstract class RawBinaryMathMapOp extends RasterMapOp with Externalizable {
       // if raster 1 or 2 is missing, we can't do the binary math
       if (iter1.nonEmpty && iter2.nonEmpty) {
         // we know there are only 1 item in each group's iterator, so we can use head()
-        val raster1 = RasterWritable.toMrGeoRaster(iter1.head)
-        val raster2 = RasterWritable.toMrGeoRaster(iter2.head)
-
-        val output = if (convertr1) {
-          MrGeoRaster.createEmptyRaster(raster1.width(), raster1.height(), raster1.bands(), datatype())
+        val constant1 = TileCodec.constantValues(iter1.head)
+        val constant2 = if (constant1 != null) TileCodec.constantValues(iter2.head) else null
+        if (constant2 != null) {
+          // both tiles are constant, so is the answer
+          val values = constant1.indices.map(b =>
+            if (RasterMapOp.isNotNodata(constant1(b), nodata1(b)) && RasterMapOp.isNotNodata(constant2(b), nodata2(b))) {
+              function(constant1(b), constant2(b))
+            }
+            else {
+              outputnodata(b)
+            }).toArray
+          Array((tile._1, TileCodec.constant(iter1.head, datatype(), values))).iterator
         }
         else {
-          raster1
-        }
+          val raster1 = RasterWritable.toMrGeoRaster(iter1.head)
+          val raster2 = RasterWritable.toMrGeoRaster(iter2.head)
 
-        val width = raster1.width()
-        var b:Int = 0
-        while (b < raster1.bands()) {
-          var y:Int = 0
-          while (y < raster1.height()) {
-            var x:Int = 0
-            while (x < width) {
-              val v1 = raster1.getPixelDouble(x, y, b)
-              if (RasterMapOp.isNotNodata(v1, nodata1(b))) {
-                val v2 = raster2.getPixelDouble(x, y, b)
-                if (RasterMapOp.isNotNodata(v2, nodata2(b))) {
-                  output.setPixel(x, y, b, function(v1, v2))
+          val output = if (convertr1) {
+            MrGeoRaster.createEmptyRaster(raster1.width(), raster1.height(), raster1.bands(), datatype())
+          }
+          else {
+            raster1
+          }
+
+          val width = raster1.width()
+          var b:Int = 0
+          while (b < raster1.bands()) {
+            var y:Int = 0
+            while (y < raster1.height()) {
+              var x:Int = 0
+              while (x < width) {
+                val v1 = raster1.getPixelDouble(x, y, b)
+                if (RasterMapOp.isNotNodata(v1, nodata1(b))) {
+                  val v2 = raster2.getPixelDouble(x, y, b)
+                  if (RasterMapOp.isNotNodata(v2, nodata2(b))) {
+                    output.setPixel(x, y, b, function(v1, v2))
+                  }
+                  else {
+                    // if raster2 is nodata, we need to set raster1's pixel to nodata as well
+                    output.setPixel(x, y, b, outputnodata(b))
+                  }
                 }
-                else {
-                  // if raster2 is nodata, we need to set raster1's pixel to nodata as well
+                else if (convertr1) {
                   output.setPixel(x, y, b, outputnodata(b))
                 }
+                x += 1
               }
-              else if (convertr1) {
-                output.setPixel(x, y, b, outputnodata(b))
-              }
-              x += 1
+              y += 1
             }
-            y += 1
+            b += 1
           }
-          b += 1
-        }
 
-        Array((tile._1, RasterWritable.toWritable(output))).iterator
+          Array((tile._1, RasterWritable.toWritable(output))).iterator
+        }
       }
       else {
         Array.empty[(TileIdWritable, RasterWritable)].iterator
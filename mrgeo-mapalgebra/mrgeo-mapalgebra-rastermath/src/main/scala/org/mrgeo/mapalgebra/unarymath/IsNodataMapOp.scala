@@ -105,6 +105,9 @@ class IsNodataMapOp extends RawUnaryMathMapOp {
     true
   }
 
+  // tiles missing from the input become all ones, which a per-pixel kernel can't produce
+  override def fusable():Boolean = false
+
   protected def getOutputBounds(inputMetadata:MrsPyramidMetadata):Bounds = {
     inputMetadata.getBounds
   }
@@ -23,10 +23,11 @@ import org.mrgeo.data.raster.{MrGeoRaster, RasterWritable}
 import org.mrgeo.data.rdd.RasterRDD
 import org.mrgeo.job.JobArguments
 import org.mrgeo.mapalgebra.parser._
-import org.mrgeo.mapalgebra.raster.RasterMapOp
+import org.mrgeo.mapalgebra.raster.PixelMapOp.{RasterTerm, Term, TermInfo}
+import org.mrgeo.mapalgebra.raster.{PixelKernel, PixelMapOp, RasterMapOp}
 import org.mrgeo.utils.SparkUtils
 
-abstract class RawUnaryMathMapOp extends RasterMapOp with Externalizable {
+abstract class RawUnaryMathMapOp extends RasterMapOp with PixelMapOp with Externalizable {
   var input:Option[RasterMapOp] = None
   var rasterRDD:Option[RasterRDD] = None
 
@@ -106,6 +107,42 @@ abstract class RawUnaryMathMapOp extends RasterMapOp with Externalizable {
     rasterRDD
   }
 
+  override def pixelTerms():Array[Term] = {
+    Array(RasterTerm(input.getOrElse(throw new IOException("No raster input specified"))))
+  }
+
+  override def pixelKernel(terms:Array[TermInfo]):PixelKernel = {
+    val term = terms(0)
+
+    // same output type and nodata rules as execute()
+    val convert = datatype() != DataBuffer.TYPE_UNDEFINED && term.datatype != datatype()
+    val nodatas = term.nodatas
+    val outputnodata = if (convert) {
+      Array.fill[Double](nodatas.length)(nodata())
+    }
+    else {
+      nodatas
+    }
+
+    val outputdatatype = if (convert) {
+      datatype()
+    }
+    else {
+      term.datatype
+    }
+
+    new PixelKernel(outputdatatype, outputnodata) {
+      override def evaluate(values:Array[Double], band:Int):Double = {
+        if (RasterMapOp.isNotNodata(values(0), nodatas(band))) {
+          function(values(0))
+        }
+        else {
+          outputnodata(band)
+        }
+      }
+    }
+  }
+
   private[unarymath] def initialize(node:ParserNode, variables:String => Option[ParserNode]) = {
 
     if (node.getNumChildren < 1) {
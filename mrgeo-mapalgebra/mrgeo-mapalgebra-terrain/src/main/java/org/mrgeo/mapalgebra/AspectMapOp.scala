@@ -19,7 +19,6 @@ import java.io.{ObjectInput, ObjectOutput}
 
 import org.mrgeo.mapalgebra.parser.{ParserException, ParserNode}
 import org.mrgeo.mapalgebra.raster.RasterMapOp
-import org.mrgeo.utils.FloatUtils
 
 object AspectMapOp extends MapOpRegistrar {
   override def register:Array[String] = {
@@ -35,28 +34,10 @@ object AspectMapOp extends MapOpRegistrar {
 }
 
 class AspectMapOp extends SlopeAspectMapOp {
-  final val TWO_PI:Double = 2 * Math.PI
-  final val THREE_PI_OVER_2:Double = (3.0 * Math.PI) / 2.0
-
   var flatValue:Double = -1.0
 
   override def computeTheta(normal:(Double, Double, Double)):Double = {
-    // if the z component of the normal is 1.0, the cell is flat, so the aspect is undefined.
-    // For now, we'llset it to 0.0, but another value could be more appropriate.
-    if (FloatUtils.isEqual(normal._3, 1.0)) {
-      flatValue
-    }
-    else {
-      // change from (-Pi to Pi) to ( [0 to 2Pi) ), make 0 deg north (+ 3pi/2)
-      // convert to clockwise
-      val t = TWO_PI - (Math.atan2(normal._2, normal._1) + THREE_PI_OVER_2) % TWO_PI
-      if (FloatUtils.isEqual(t, TWO_PI)) {
-        flatValue
-      }
-      else {
-        t
-      }
-    }
+    SlopeAspectMapOp.aspect(normal, flatValue)
   }
 
   override def readExternal(in:ObjectInput):Unit = {
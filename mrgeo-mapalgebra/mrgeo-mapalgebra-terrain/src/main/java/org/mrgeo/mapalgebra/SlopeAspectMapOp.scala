@@ -28,7 +28,7 @@ import org.mrgeo.mapalgebra.parser._
 import org.mrgeo.mapalgebra.raster.RasterMapOp
 import org.mrgeo.spark.FocalBuilder
 import org.mrgeo.utils.tms.TMSUtils
-import org.mrgeo.utils.{LatLng, SparkUtils}
+import org.mrgeo.utils.{FloatUtils, LatLng, SparkUtils}
 
 @SuppressFBWarnings(value = Array("UPM_UNCALLED_PRIVATE_METHOD"), justification = "Scala constant")
 @SuppressFBWarnings(value = Array("UUF_UNUSED_FIELD"), justification = "Scala constant")
@@ -36,6 +36,9 @@ object SlopeAspectMapOp {
 
   final val RAD_2_DEG:Double = 57.2957795
 
+  final private val TWO_PI:Double = 2 * Math.PI
+  final private val THREE_PI_OVER_2:Double = (3.0 * Math.PI) / 2.0
+
   final private val np = 0
   final private val zp = 1
   final private val pp = 2
@@ -80,14 +83,78 @@ object SlopeAspectMapOp {
     v == nodata
   }
 
-  private def calculateNormal(raster:MrGeoRaster, x:Int, y:Int, mpd:Double,
-                              nodata:Double):(Double, Double, Double) = {
-    val z = Array.ofDim[Double](9)
-
+  /**
+    * The (up pointing) unit normal of the surface at the center of a 3x3 grid of elevations (in
+    * rows, starting at the upper left), mpd meters apart.  x is east, y is north.
+    */
+  private[mapalgebra] def calculateNormal(z:Array[Double], mpd:Double):(Double, Double, Double) = {
     val vx = new Vector3d()
     val vy = new Vector3d()
     val normal = new Vector3d()
 
+    vx.x = mpd
+    vx.y = 0.0
+    vx.z = ((z(pp) + z(pz) * 2 + z(pn)) - (z(np) + z(nz) * 2 + z(nn))) / 8.0
+
+    vy.x = 0.0
+    vy.y = mpd
+    vy.z = ((z(pp) + z(zp) * 2 + z(np)) - (z(pn) + z(zn) * 2 + z(nn))) / 8.0
+
+    normal.cross(vx, vy)
+    normal.normalize()
+
+    // we want the normal to always point up.
+    normal.z = Math.abs(normal.z)
+
+    (normal.x, normal.y, normal.z)
+  }
+
+  /**
+    * The slope (radians) of a surface with the normal
+    */
+  private[mapalgebra] def slope(normal:(Double, Double, Double)):Double = {
+    val up = new Vector3d(0, 0, 1.0) // z (up) direction
+    Math.acos(up.dot(new Vector3d(normal._1, normal._2, normal._3)))
+  }
+
+  /**
+    * The aspect (radians, clockwise from north) of a surface with the normal, flatValue if it is flat
+    */
+  private[mapalgebra] def aspect(normal:(Double, Double, Double), flatValue:Double):Double = {
+    // if the z component of the normal is 1.0, the cell is flat, so the aspect is undefined.
+    // For now, we'llset it to 0.0, but another value could be more appropriate.
+    if (FloatUtils.isEqual(normal._3, 1.0)) {
+      flatValue
+    }
+    else {
+      // change from (-Pi to Pi) to ( [0 to 2Pi) ), make 0 deg north (+ 3pi/2)
+      // convert to clockwise
+      val t = TWO_PI - (Math.atan2(normal._2, normal._1) + THREE_PI_OVER_2) % TWO_PI
+      if (FloatUtils.isEqual(t, TWO_PI)) {
+        flatValue
+      }
+      else {
+        t
+      }
+    }
+  }
+
+  /**
+    * An angle (radians) in the units ("deg", "rad", "percent" or "gradient")
+    */
+  private[mapalgebra] def toUnits(theta:Double, units:String):Float = {
+    units match {
+      case "deg" => (theta * RAD_2_DEG).toFloat
+      case "rad" => theta.toFloat
+      case "percent" => (Math.tan(theta) * 100.0).toFloat
+      case _ => Math.tan(theta).toFloat
+    }
+  }
+
+  private def calculateNormal(raster:MrGeoRaster, x:Int, y:Int, mpd:Double,
+                              nodata:Double):(Double, Double, Double) = {
+    val z = Array.ofDim[Double](9)
+
     // if the origin pixel is nodata, the normal is nodata
     val origin = raster.getPixelDouble(x, y, 0)
     if (isnodata(origin, nodata)) {
@@ -112,21 +179,7 @@ object SlopeAspectMapOp {
       dy += 1
     }
 
-    vx.x = mpd
-    vx.y = 0.0
-    vx.z = ((z(pp) + z(pz) * 2 + z(pn)) - (z(np) + z(nz) * 2 + z(nn))) / 8.0
-
-    vy.x = 0.0
-    vy.y = mpd
-    vy.z = ((z(pp) + z(zp) * 2 + z(np)) - (z(pn) + z(zn) * 2 + z(nn))) / 8.0
-
-    normal.cross(vx, vy)
-    normal.normalize()
-
-    // we want the normal to always point up.
-    normal.z = Math.abs(normal.z)
-
-    (normal.x, normal.y, normal.z)
+    calculateNormal(z, mpd)
   }
 
 }
@@ -239,13 +292,7 @@ abstract class SlopeAspectMapOp extends RasterMapOp with Externalizable {
       return Float.NaN
     }
 
-    val theta = computeTheta(normal)
-    units match {
-      case "deg" => (theta * SlopeAspectMapOp.RAD_2_DEG).toFloat
-      case "rad" => theta.toFloat
-      case "percent" => (Math.tan(theta) * 100.0).toFloat
-      case _ => Math.tan(theta).toFloat
-    }
+    SlopeAspectMapOp.toUnits(computeTheta(normal), units)
   }
 
 }
@@ -15,7 +15,6 @@
 
 package org.mrgeo.mapalgebra
 
-import org.mrgeo.mapalgebra.SlopeAspectMapOp.Vector3d
 import org.mrgeo.mapalgebra.parser.{ParserException, ParserNode}
 import org.mrgeo.mapalgebra.raster.RasterMapOp
 
@@ -33,10 +32,8 @@ object SlopeMapOp extends MapOpRegistrar {
 }
 
 class SlopeMapOp extends SlopeAspectMapOp {
-  val up = new Vector3d(0, 0, 1.0) // z (up) direction
-
   override def computeTheta(normal:(Double, Double, Double)):Double = {
-    Math.acos(up.dot(new Vector3d(normal._1, normal._2, normal._3)))
+    SlopeAspectMapOp.slope(normal)
   }
 
   private[mapalgebra] def this(inputMapOp:Option[RasterMapOp], units:String) = {
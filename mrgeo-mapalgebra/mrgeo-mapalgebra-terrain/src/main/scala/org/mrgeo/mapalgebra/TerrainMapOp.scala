@@ -0,0 +1,394 @@
+/*
+ * Copyright 2009-2017. DigitalGlobe, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.mrgeo.mapalgebra
+
+import java.awt.image.DataBuffer
+import java.io.{Externalizable, IOException, ObjectInput, ObjectOutput}
+
+import org.apache.spark.rdd.RDD
+import org.apache.spark.{SparkConf, SparkContext}
+import org.mrgeo.data.raster.{MrGeoRaster, RasterWritable}
+import org.mrgeo.data.rdd.RasterRDD
+import org.mrgeo.data.tile.TileIdWritable
+import org.mrgeo.job.JobArguments
+import org.mrgeo.mapalgebra.parser.{ParserException, ParserNode}
+import org.mrgeo.mapalgebra.raster.RasterMapOp
+import org.mrgeo.spark.FocalBuilder
+import org.mrgeo.utils.tms.TMSUtils
+import org.mrgeo.utils.{LatLng, SparkUtils}
+
+object TerrainMapOp extends MapOpRegistrar {
+  final val Slope = "slope"
+  final val Aspect = "aspect"
+  final val Hillshade = "hillshade"
+  final val Curvature = "curvature"
+  final val Tpi = "tpi"
+
+  private[mapalgebra] val Derivatives = Array[String](Slope, Aspect, Hillshade, Curvature, Tpi)
+
+  override def register:Array[String] = {
+    Array[String]("terrain")
+  }
+
+  def create(raster:RasterMapOp, derivatives:String, units:String = "rad", tpiSize:Int = 67,
+             azimuth:Double = 315.0, altitude:Double = 45.0):MapOp = {
+    new TerrainMapOp(Some(raster), derivatives, units, tpiSize, azimuth, altitude)
+  }
+
+  override def apply(node:ParserNode, variables:String => Option[ParserNode]):MapOp =
+    new TerrainMapOp(node, variables)
+}
+
+/**
+  * Any of slope, aspect, hillshade, curvature and TPI of an elevation raster, computed together
+  * from one buffered copy of each tile, instead of a neighborhood shuffle for each of them.  Each
+  * derivative asked for is a band of the output, in the order asked for (use bandextract to pull
+  * them apart).
+  *
+  * slope and aspect are the same as the slope and aspect map ops, in the units given.  hillshade
+  * (0 - 255) is lit from the azimuth (degrees clockwise from north) and altitude (degrees above the
+  * horizon).  curvature is the second derivative of the surface (positive is convex, in 1/100 of
+  * the elevation units), and tpi is the same as the tpi map op, over a tpiSize neighborhood.
+  */
+class TerrainMapOp extends RasterMapOp with Externalizable {
+  private var inputMapOp:Option[RasterMapOp] = None
+  private var derivatives:Array[String] = Array[String]()
+  private var units:String = "rad"
+  // the same default as TpiMapOp
+  private var tpiSize:Int = 67
+  private var azimuth:Double = 315.0
+  private var altitude:Double = 45.0
+
+  private var rasterRDD:Option[RasterRDD] = None
+
+  override def rdd():Option[RasterRDD] = rasterRDD
+
+  override def setup(job:JobArguments, conf:SparkConf):Boolean = {
+    true
+  }
+
+  override def getZoomLevel(): Int = {
+    inputMapOp.getOrElse(throw new IOException("No raster input specified")).getZoomLevel()
+  }
+
+  override def execute(context:SparkContext):Boolean = {
+    val input:RasterMapOp = inputMapOp getOrElse (throw new IOException("Input MapOp not valid!"))
+
+    val meta = input.metadata() getOrElse
+               (throw new IOException("Can't load metadata! Ouch! " + input.getClass.getName))
+    val rdd = input.rdd() getOrElse (throw new IOException("Can't load RDD! Ouch! " + inputMapOp.getClass.getName))
+
+    val zoom = meta.getMaxZoomLevel
+    val tilesize = meta.getTilesize
+
+    val nodatas = meta.getDefaultValuesNumber
+
+    // enough for the 3x3 grid, and the tpi neighborhood if it is asked for
+    val buffer = if (derivatives.contains(TerrainMapOp.Tpi)) Math.max(1, tpiSize / 2) else 1
+
+    val tiles = FocalBuilder.create(rdd, buffer, buffer, meta.getBounds, zoom, nodatas, context)
+
+    rasterRDD =
+        Some(RasterRDD(calculate(tiles, buffer, nodatas(0).doubleValue(), zoom, tilesize)))
+
+    metadata(SparkUtils.calculateMetadata(rasterRDD.get, zoom, Array.fill(derivatives.length)(Double.NaN),
+      bounds = meta.getBounds, calcStats = false))
+
+    true
+  }
+
+  override def teardown(job:JobArguments, conf:SparkConf):Boolean = {
+    true
+  }
+
+  override def readExternal(in:ObjectInput):Unit = {
+    derivatives = Array.fill(in.readInt())(in.readUTF())
+    units = in.readUTF()
+    tpiSize = in.readInt()
+    azimuth = in.readDouble()
+    altitude = in.readDouble()
+  }
+
+  override def writeExternal(out:ObjectOutput):Unit = {
+    out.writeInt(derivatives.length)
+    derivatives.foreach(out.writeUTF)
+    out.writeUTF(units)
+    out.writeInt(tpiSize)
+    out.writeDouble(azimuth)
+    out.writeDouble(altitude)
+  }
+
+  private[mapalgebra] def this(inputMapOp:Option[RasterMapOp], derivatives:String, units:String, tpiSize:Int,
+                               azimuth:Double, altitude:Double) = {
+    this()
+
+    this.inputMapOp = inputMapOp
+    initialize(derivatives, units, tpiSize, azimuth, altitude)
+  }
+
+  private[mapalgebra] def this(node:ParserNode, variables:String => Option[ParserNode]) = {
+    this()
+
+    if (node.getNumChildren < 2 || node.getNumChildren > 6) {
+      throw new ParserException(
+        "terrain usage: terrain(rasterInput, derivatives, [units], [tpi size], [azimuth], [altitude])")
+    }
+
+    inputMapOp = RasterMapOp.decodeToRaster(node.getChild(0), variables)
+
+    val derivatives = MapOp.decodeString(node.getChild(1), variables) match {
+      case Some(s) => s
+      case _ => throw new ParserException("Error decoding string")
+    }
+
+    val units = if (node.getNumChildren > 2) {
+      MapOp.decodeString(node.getChild(2), variables) match {
+        case Some(s) => s
+        case _ => throw new ParserException("Error decoding string")
+      }
+    }
+    else {
+      this.units
+    }
+
+    val tpiSize = if (node.getNumChildren > 3) {
+      MapOp.decodeInt(node.getChild(3), variables) match {
+        case Some(k) => k
+        case None => throw new ParserException("Expected a number for the tpi neighborhood size")
+      }
+    }
+    else {
+      this.tpiSize
+    }
+
+    val azimuth = if (node.getNumChildren > 4) {
+      MapOp.decodeDouble(node.getChild(4), variables) match {
+        case Some(d) => d
+        case None => throw new ParserException("Expected a number for the azimuth")
+      }
+    }
+    else {
+      this.azimuth
+    }
+
+    val altitude = if (node.getNumChildren > 5) {
+      MapOp.decodeDouble(node.getChild(5), variables) match {
+        case Some(d) => d
+        case None => throw new ParserException("Expected a number for the altitude")
+      }
+    }
+    else {
+      this.altitude
+    }
+
+    initialize(derivatives, units, tpiSize, azimuth, altitude)
+  }
+
+  private def initialize(derivatives:String, units:String, tpiSize:Int, azimuth:Double, altitude:Double):Unit = {
+    this.derivatives = derivatives.split(",").map(_.trim.toLowerCase).filter(_.nonEmpty)
+    if (this.derivatives.isEmpty) {
+      throw new ParserException("terrain needs at least one of " + TerrainMapOp.Derivatives.mkString(", "))
+    }
+    this.derivatives.foreach(d => {
+      if (!TerrainMapOp.Derivatives.contains(d)) {
+        throw new ParserException("Unknown terrain derivative \"" + d + "\", it must be one of " +
+                                  TerrainMapOp.Derivatives.mkString(", "))
+      }
+    })
+    if (this.derivatives.distinct.length != this.derivatives.length) {
+      throw new ParserException("terrain derivatives can only be asked for once")
+    }
+
+    if (!(units.equalsIgnoreCase("deg") || units.equalsIgnoreCase("rad") || units.equalsIgnoreCase("gradient") ||
+          units.equalsIgnoreCase("percent"))) {
+      throw new ParserException("units must be \"deg\", \"rad\", \"gradient\", or \"percent\".")
+    }
+    this.units = units
+
+    if (tpiSize < 2) {
+      throw new ParserException("The tpi neighborhood size must be greater than 1")
+    }
+    this.tpiSize = tpiSize
+
+    if (altitude < 0.0 || altitude > 90.0) {
+      throw new ParserException("The altitude must be between 0 and 90 degrees")
+    }
+    this.azimuth = azimuth
+    this.altitude = altitude
+  }
+
+  private def calculate(tiles:RDD[(TileIdWritable, RasterWritable)], buffer:Int, nodata:Double,
+                        zoom:Int, tilesize:Int) = {
+    val derivatives = this.derivatives
+    val units = this.units
+    val tpiSize = this.tpiSize
+
+    val slopeBand = derivatives.indexOf(TerrainMapOp.Slope)
+    val aspectBand = derivatives.indexOf(TerrainMapOp.Aspect)
+    val hillshadeBand = derivatives.indexOf(TerrainMapOp.Hillshade)
+    val curvatureBand = derivatives.indexOf(TerrainMapOp.Curvature)
+    val tpiBand = derivatives.indexOf(TerrainMapOp.Tpi)
+    val needsNormal = slopeBand >= 0 || aspectBand >= 0 || hillshadeBand >= 0
+
+    val sunAzimuth = Math.toRadians(azimuth)
+    val zenith = Math.toRadians(90.0 - altitude)
+    val cosZenith = Math.cos(zenith)
+    val sinZenith = Math.sin(zenith)
+
+    // the same neighborhood as TpiMapOp, one pixel more to the right (below) than the left (above)
+    // when the size is even
+    val tpiOffset = if ((tpiSize % 2) == 0) (tpiSize / 2) - 1 else tpiSize / 2
+
+    tiles.map(tile => {
+      val raster = RasterWritable.toMrGeoRaster(tile._2)
+
+      val rasterWidth = raster.width()
+      val rasterHeight = raster.height()
+      val width = rasterWidth - buffer * 2
+      val height = rasterHeight - buffer * 2
+
+      // the elevations, read once, with nodata as NaN
+      val elevations = new Array[Double](rasterWidth * rasterHeight)
+      var y:Int = 0
+      while (y < rasterHeight) {
+        var x:Int = 0
+        while (x < rasterWidth) {
+          val v = raster.getPixelDouble(x, y, 0)
+          elevations(y * rasterWidth + x) = if (v == nodata) Double.NaN else v
+          x += 1
+        }
+        y += 1
+      }
+
+      // summed-area tables of the elevations and how many there are, so each tpi neighborhood is
+      // 4 lookups, not a walk over the whole neighborhood
+      val stride = rasterWidth + 1
+      val (sums, counts) = if (tpiBand >= 0) {
+        val sums = new Array[Double](stride * (rasterHeight + 1))
+        val counts = new Array[Int](stride * (rasterHeight + 1))
+        y = 0
+        while (y < rasterHeight) {
+          var rowSum = 0.0
+          var rowCount = 0
+          var x:Int = 0
+          while (x < rasterWidth) {
+            val v = elevations(y * rasterWidth + x)
+            if (!v.isNaN) {
+              rowSum += v
+              rowCount += 1
+            }
+            val ndx = (y + 1) * stride + x + 1
+            sums(ndx) = sums(ndx - stride) + rowSum
+            counts(ndx) = counts(ndx - stride) + rowCount
+            x += 1
+          }
+          y += 1
+        }
+        (sums, counts)
+      }
+      else {
+        (null, null)
+      }
+
+      val m = TMSUtils.resolution(zoom, tilesize) * LatLng.METERS_PER_DEGREE
+      val m2 = m * m
+
+      val answer = MrGeoRaster.createEmptyRaster(width, height, derivatives.length, DataBuffer.TYPE_FLOAT)
+      val z = Array.ofDim[Double](9)
+
+      y = 0
+      while (y < height) {
+        var x:Int = 0
+        while (x < width) {
+          val cx = x + buffer
+          val cy = y + buffer
+          val origin = elevations(cy * rasterWidth + cx)
+
+          if (origin.isNaN) {
+            var band = 0
+            while (band < derivatives.length) {
+              answer.setPixel(x, y, band, Float.NaN)
+              band += 1
+            }
+          }
+          else {
+            // the 3x3 grid of elevations, if a neighbor is nodata, make the elevation the same as
+            // the origin, like the slope and aspect map ops
+            var ndx = 0
+            var dy:Int = cy - 1
+            while (dy <= cy + 1) {
+              var dx:Int = cx - 1
+              while (dx <= cx + 1) {
+                val v = elevations(dy * rasterWidth + dx)
+                z(ndx) = if (v.isNaN) origin else v
+                ndx += 1
+                dx += 1
+              }
+              dy += 1
+            }
+
+            if (needsNormal) {
+              val normal = SlopeAspectMapOp.calculateNormal(z, m)
+              val slope = SlopeAspectMapOp.slope(normal)
+
+              if (slopeBand >= 0) {
+                answer.setPixel(x, y, slopeBand, SlopeAspectMapOp.toUnits(slope, units))
+              }
+              if (aspectBand >= 0) {
+                answer.setPixel(x, y, aspectBand,
+                  SlopeAspectMapOp.toUnits(SlopeAspectMapOp.aspect(normal, -1.0), units))
+              }
+              if (hillshadeBand >= 0) {
+                // the aspect doesn't matter when it is flat, sin(slope) is 0
+                val aspect = SlopeAspectMapOp.aspect(normal, 0.0)
+                val shade = 255.0 * (cosZenith * Math.cos(slope) +
+                                     sinZenith * Math.sin(slope) * Math.cos(sunAzimuth - aspect))
+                answer.setPixel(x, y, hillshadeBand, Math.max(0.0, shade).toFloat)
+              }
+            }
+
+            if (curvatureBand >= 0) {
+              // Zevenbergen & Thorne, the second derivatives along the rows and columns
+              val d = ((z(3) + z(5)) / 2.0 - z(4)) / m2
+              val e = ((z(1) + z(7)) / 2.0 - z(4)) / m2
+              answer.setPixel(x, y, curvatureBand, (-2.0 * (d + e) * 100.0).toFloat)
+            }
+
+            if (tpiBand >= 0) {
+              val left = cx - tpiOffset
+              val top = cy - tpiOffset
+              val right = left + tpiSize
+              val bottom = top + tpiSize
+
+              // not counting the origin
+              val sum = sums(bottom * stride + right) - sums(top * stride + right) -
+                        sums(bottom * stride + left) + sums(top * stride + left) - origin
+              val count = counts(bottom * stride + right) - counts(top * stride + right) -
+                          counts(bottom * stride + left) + counts(top * stride + left) - 1
+
+              answer.setPixel(x, y, tpiBand, if (count > 0) (origin - sum / count).toFloat else Float.NaN)
+            }
+          }
+          x += 1
+        }
+        y += 1
+      }
+
+      (new TileIdWritable(tile._1), RasterWritable.toWritable(answer))
+    })
+  }
+
+}
@@ -23,6 +23,7 @@ import org.gdal.gdalconst.gdalconstConstants;
 import org.gdal.osr.CoordinateTransformation;
 import org.gdal.osr.SpatialReference;
 import org.mrgeo.core.MrGeoConstants;
+import org.mrgeo.core.MrGeoProperties;
 import org.mrgeo.data.*;
 import org.mrgeo.data.DataProviderFactory.AccessMode;
 import org.mrgeo.data.image.MrsImageDataProvider;
@@ -300,10 +301,21 @@ public MrGeoRaster renderImage(String pyramidName, Bounds requestBounds, int wid
 
     Bounds wgs84Bounds = requestBounds;
 
+    // render in java unless it is turned off, or we need GDAL for the projection
+    boolean javaRender = RasterWarper.isSupported(epsg) && Boolean.parseBoolean(
+        MrGeoProperties.getInstance().getProperty(MrGeoConstants.MRGEO_WMS_JAVA_RENDER, "true"));
+
     // We need to transform the image if the destination SRS is different from the source (4326)
     if (epsg != null && !epsg.equalsIgnoreCase("epsg:4326"))
     {
-      wgs84Bounds = RequestUtils.reprojectBoundsToWGS84(requestBounds, epsg);
+      if (javaRender)
+      {
+        wgs84Bounds = RasterWarper.toWGS84(requestBounds, epsg);
+      }
+      else
+      {
+        wgs84Bounds = RequestUtils.reprojectBoundsToWGS84(requestBounds, epsg);
+      }
     }
 
     // get the correct zoom level based on the requested bounds
@@ -358,6 +370,17 @@ public MrGeoRaster renderImage(String pyramidName, Bounds requestBounds, int wid
       log.error("Image " + pyramidName + "does not exist");
       throw new IOException("Image " + pyramidName + "does not exist");
     }
+    else if (javaRender)
+    {
+      try
+      {
+        return renderInJava(image, pyramidMetadata, wgs84Bounds, width, height, epsg);
+      }
+      finally
+      {
+        image.close();
+      }
+    }
     else
     {
       Dataset src = null;
@@ -443,6 +466,77 @@ public MrGeoRaster renderImage(String pyramidName, Bounds requestBounds, int wid
   }
 }
 
+/**
+ * Renders the request without GDAL, the tiles are mosaicked straight into a raster, which is
+ * then resampled (and reprojected) to the requested size.
+ */
+private static MrGeoRaster renderInJava(MrsImage image, MrsPyramidMetadata metadata, Bounds wgs84Bounds,
+    int width, int height, String epsg) throws IOException
+{
+  int zoom = image.getZoomlevel();
+  int tilesize = metadata.getTilesize();
+  double[] nodatas = metadata.getDefaultValues();
+
+  TileBounds tileBounds = TMSUtils.boundsToTile(wgs84Bounds, zoom, tilesize);
+  Bounds mosaicBounds = TMSUtils.tileToBounds(tileBounds, zoom, tilesize);
+
+  MrGeoRaster mosaic = mosaic(image, zoom, tileBounds, metadata);
+
+  RasterWarper.Resampling resampling = RasterWarper.resampling(metadata);
+
+  Bounds dstBounds = RasterWarper.fromWGS84(wgs84Bounds, epsg);
+
+  log.debug("Resampling {} x {} mosaic to {} x {}", mosaic.width(), mosaic.height(), width, height);
+  return RasterWarper.warp(mosaic, mosaicBounds.w, mosaicBounds.n, TMSUtils.resolution(zoom, tilesize),
+      epsg, dstBounds, width, height, resampling, nodatas);
+}
+
+// Copy the tiles covering the tile bounds into a single raster.  The tiles line up with the pixels,
+// so there is no resampling, just copying.
+private static MrGeoRaster mosaic(MrsImage image, int zoomlevel, TileBounds tileBounds,
+    MrsPyramidMetadata metadata) throws IOException
+{
+  int tilesize = metadata.getTilesize();
+  int mosaicWidth = (int) (tileBounds.e - tileBounds.w + 1) * tilesize;
+  int mosaicHeight = (int) (tileBounds.n - tileBounds.s + 1) * tilesize;
+
+  MrGeoRaster mosaic = MrGeoRaster.createEmptyRaster(mosaicWidth, mosaicHeight, metadata.getBands(),
+      metadata.getTileType(), metadata.getDefaultValues());
+
+  for (long row = tileBounds.s; row <= tileBounds.n; row++)
+  {
+    TileIdWritable rowStart = new TileIdWritable(TMSUtils.tileid(tileBounds.w, row, zoomlevel));
+    TileIdWritable rowEnd = new TileIdWritable(TMSUtils.tileid(tileBounds.e, row, zoomlevel));
+
+    KVIterator<TileIdWritable, MrGeoRaster> iter = image.getTiles(rowStart, rowEnd);
+    try
+    {
+      while (iter.hasNext())
+      {
+        MrGeoRaster source = iter.currentValue();
+        if (source != null)
+        {
+          Tile tile = TMSUtils.tileid(iter.currentKey().get(), zoomlevel);
+
+          // tile y goes up, pixel y goes down
+          int x = (int) (tile.tx - tileBounds.w) * tilesize;
+          int y = (int) (tileBounds.n - tile.ty) * tilesize;
+          mosaic.copyFrom(0, 0, source.width(), source.height(), source, x, y);
+        }
+      }
+    }
+    finally
+    {
+      if (iter instanceof CloseableKVIterator)
+      {
+        ((CloseableKVIterator) iter).close();
+      }
+    }
+  }
+
+  return mosaic;
+}
+
 Dataset mosaicToDataset(MrsImage image, int zoomlevel,
                         Bounds requestedBounds, double[] nodatas) throws IOException
 {
@@ -15,13 +15,17 @@
 
 package org.mrgeo.services.mrspyramid.rendering;
 
+import org.mrgeo.core.MrGeoConstants;
+import org.mrgeo.core.MrGeoProperties;
 import org.mrgeo.data.raster.MrGeoRaster;
+import org.mrgeo.data.raster.RasterImageEncoder;
 import org.mrgeo.utils.GDALJavaUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.Properties;
 
 /**
  * Writes JPEG images to an HTTP response
@@ -57,7 +61,17 @@ public String[] getWmsFormats()
 public void writeToStream(MrGeoRaster raster, double[] defaults, ByteArrayOutputStream byteStream)
     throws IOException
 {
-  GDALJavaUtils.saveRaster(raster.toDataset(null, defaults), byteStream, "jpeg");
+  Properties props = MrGeoProperties.getInstance();
+  if (RasterImageEncoder.canEncodeJpeg(raster) &&
+      !props.getProperty(MrGeoConstants.MRGEO_IMAGE_ENCODER, "java").equalsIgnoreCase("gdal"))
+  {
+    int quality = Integer.parseInt(props.getProperty(MrGeoConstants.MRGEO_JPEG_QUALITY, "75"));
+    RasterImageEncoder.writeJpeg(raster, byteStream, quality);
+  }
+  else
+  {
+    GDALJavaUtils.saveRaster(raster.toDataset(null, defaults), byteStream, "jpeg");
+  }
   byteStream.close();
 }
 }
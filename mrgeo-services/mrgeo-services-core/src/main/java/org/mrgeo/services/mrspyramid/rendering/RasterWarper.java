@@ -0,0 +1,432 @@
+/*
+ * Copyright 2009-2017. DigitalGlobe, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.mrgeo.services.mrspyramid.rendering;
+
+import org.mrgeo.data.raster.MrGeoRaster;
+import org.mrgeo.image.MrsPyramidMetadata;
+import org.mrgeo.utils.tms.Bounds;
+
+import java.awt.image.DataBuffer;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Resamples (and reprojects) a WGS84 mosaic into a requested image, without going through GDAL.
+ * Only WGS84 and spherical (web) mercator destinations are supported, everything else still needs
+ * GDAL.
+ * <p>
+ * For both of these projections a destination column always maps to the same source column, and a
+ * destination row to the same source row, so the inverse mapping grid is just one array of source
+ * x's and one of source y's, and it is exact.
+ */
+final class RasterWarper
+{
+enum Resampling
+{
+  NEAREST, BILINEAR, MODE
+}
+
+private static final double RADIUS = 6378137.0;
+private static final double MAX_LAT = 85.051128779806589;
+
+// destination srs -> is it mercator
+private static final Map<String, Boolean> supported = new HashMap<>();
+
+static
+{
+  supported.put("epsg:4326", false);
+  supported.put("crs:84", false);
+  supported.put("epsg:3857", true);
+  supported.put("epsg:900913", true);
+  supported.put("epsg:3785", true);
+  supported.put("epsg:102100", true);
+  supported.put("epsg:102113", true);
+}
+
+private RasterWarper()
+{
+}
+
+static boolean isSupported(String epsg)
+{
+  return epsg == null || supported.containsKey(epsg.toLowerCase(Locale.ENGLISH));
+}
+
+/**
+ * The resampling for the pyramid: mode for categorical data, or if the pyramid was built with mode,
+ * nearest if it was built with nearest, and bilinear for everything else
+ */
+static Resampling resampling(MrsPyramidMetadata metadata)
+{
+  if (metadata.getClassification() == MrsPyramidMetadata.Classification.Categorical)
+  {
+    return Resampling.MODE;
+  }
+
+  String method = metadata.getResamplingMethod();
+  if (method != null)
+  {
+    if (method.equalsIgnoreCase(Resampling.MODE.name()))
+    {
+      return Resampling.MODE;
+    }
+    if (method.equalsIgnoreCase(Resampling.NEAREST.name()))
+    {
+      return Resampling.NEAREST;
+    }
+  }
+  return Resampling.BILINEAR;
+}
+
+/**
+ * The WGS84 bounds of bounds given in the epsg projection
+ */
+static Bounds toWGS84(Bounds bounds, String epsg)
+{
+  if (!isMercator(epsg))
+  {
+    return bounds.clone();
+  }
+
+  return new Bounds(mercatorToLon(bounds.w), mercatorToLat(bounds.s),
+      mercatorToLon(bounds.e), mercatorToLat(bounds.n));
+}
+
+/**
+ * The bounds, in the epsg projection, of WGS84 bounds
+ */
+static Bounds fromWGS84(Bounds bounds, String epsg)
+{
+  if (!isMercator(epsg))
+  {
+    return bounds.clone();
+  }
+
+  return new Bounds(lonToMercator(bounds.w), latToMercator(bounds.s),
+      lonToMercator(bounds.e), latToMercator(bounds.n));
+}
+
+/**
+ * Resample a WGS84 source raster into a width x height raster covering dstBounds (in the epsg projection).
+ *
+ * @param src        source (WGS84) raster
+ * @param srcW       longitude of the left edge of the source
+ * @param srcN       latitude of the top edge of the source
+ * @param srcRes     source pixel size, in degrees
+ * @param epsg       destination projection
+ * @param dstBounds  destination bounds, in the destination projection
+ * @param width      destination width
+ * @param height     destination height
+ * @param resampling resampling method
+ * @param nodatas    nodata values for each band (for both source and destination)
+ */
+static MrGeoRaster warp(MrGeoRaster src, double srcW, double srcN, double srcRes, String epsg,
+    Bounds dstBounds, int width, int height, Resampling resampling, double[] nodatas)
+    throws MrGeoRaster.MrGeoRasterException
+{
+  boolean mercator = isMercator(epsg);
+
+  double dstResX = dstBounds.width() / width;
+  double dstResY = dstBounds.height() / height;
+
+  // the inverse mapping grid, source pixel coordinates of each destination column and row edge.
+  // The centers are the odd entries
+  double[] xs = new double[width * 2 + 1];
+  for (int i = 0; i < xs.length; i++)
+  {
+    double x = dstBounds.w + (i * 0.5) * dstResX;
+    double lon = mercator ? mercatorToLon(x) : x;
+    xs[i] = (lon - srcW) / srcRes;
+  }
+
+  double[] ys = new double[height * 2 + 1];
+  for (int i = 0; i < ys.length; i++)
+  {
+    double y = dstBounds.n - (i * 0.5) * dstResY;
+    double lat = mercator ? mercatorToLat(y) : y;
+    ys[i] = (srcN - lat) / srcRes;
+  }
+
+  MrGeoRaster dst = MrGeoRaster.createEmptyRaster(width, height, src.bands(), src.datatype(), nodatas);
+  boolean integral = src.datatype() != DataBuffer.TYPE_FLOAT && src.datatype() != DataBuffer.TYPE_DOUBLE;
+
+  ValueCounter counter = resampling == Resampling.MODE ? new ValueCounter() : null;
+
+  for (int b = 0; b < src.bands(); b++)
+  {
+    double nodata = nodatas[b];
+    for (int y = 0; y < height; y++)
+    {
+      double sy = ys[y * 2 + 1];
+      for (int x = 0; x < width; x++)
+      {
+        double sx = xs[x * 2 + 1];
+
+        double v;
+        switch (resampling)
+        {
+        case BILINEAR:
+          v = bilinear(src, sx, sy, b, nodata);
+          if (integral && !isNodata(v, nodata))
+          {
+            v = Math.round(v);
+          }
+          break;
+        case MODE:
+          v = mode(src, xs[x * 2], xs[x * 2 + 2], ys[y * 2], ys[y * 2 + 2], sx, sy, b, nodata, counter);
+          break;
+        default:
+          v = nearest(src, sx, sy, b, nodata);
+          break;
+        }
+
+        if (!isNodata(v, nodata))
+        {
+          dst.setPixel(x, y, b, v);
+        }
+      }
+    }
+  }
+
+  return dst;
+}
+
+private static boolean isMercator(String epsg)
+{
+  if (epsg == null)
+  {
+    return false;
+  }
+  Boolean mercator = supported.get(epsg.toLowerCase(Locale.ENGLISH));
+  return mercator != null && mercator;
+}
+
+private static boolean isNodata(double value, double nodata)
+{
+  return Double.isNaN(nodata) ? Double.isNaN(value) : value == nodata;
+}
+
+private static double nearest(MrGeoRaster src, double sx, double sy, int b, double nodata)
+{
+  int x = (int) Math.floor(sx);
+  int y = (int) Math.floor(sy);
+
+  if (x < 0 || y < 0 || x >= src.width() || y >= src.height())
+  {
+    return nodata;
+  }
+  return src.getPixelDouble(x, y, b);
+}
+
+// bilinear, using only the neighbors that aren't nodata (and renormalizing the weights)
+private static double bilinear(MrGeoRaster src, double sx, double sy, int b, double nodata)
+{
+  // move to pixel centers
+  double cx = sx - 0.5;
+  double cy = sy - 0.5;
+
+  int x0 = (int) Math.floor(cx);
+  int y0 = (int) Math.floor(cy);
+  double fx = cx - x0;
+  double fy = cy - y0;
+
+  double sum = 0;
+  double weight = 0;
+
+  for (int dy = 0; dy <= 1; dy++)
+  {
+    int y = y0 + dy;
+    if (y < 0 || y >= src.height())
+    {
+      continue;
+    }
+    double wy = dy == 0 ? 1.0 - fy : fy;
+
+    for (int dx = 0; dx <= 1; dx++)
+    {
+      int x = x0 + dx;
+      if (x < 0 || x >= src.width())
+      {
+        continue;
+      }
+      double w = wy * (dx == 0 ? 1.0 - fx : fx);
+      if (w <= 0)
+      {
+        continue;
+      }
+
+      double v = src.getPixelDouble(x, y, b);
+      if (!isNodata(v, nodata))
+      {
+        sum += v * w;
+        weight += w;
+      }
+    }
+  }
+
+  if (weight <= 0)
+  {
+    // all the contributing pixels were nodata, fall back to the pixel we're in
+    return nearest(src, sx, sy, b, nodata);
+  }
+  return sum / weight;
+}
+
+// the most common value of the source pixels whose centers fall within the destination pixel,
+// in a tie, the value that got to that count first wins
+private static double mode(MrGeoRaster src, double sx0, double sx1, double sy0, double sy1,
+    double sx, double sy, int b, double nodata, ValueCounter counter)
+{
+  int x0 = Math.max((int) Math.ceil(Math.min(sx0, sx1) - 0.5), 0);
+  int x1 = Math.min((int) Math.ceil(Math.max(sx0, sx1) - 0.5), src.width());
+  int y0 = Math.max((int) Math.ceil(Math.min(sy0, sy1) - 0.5), 0);
+  int y1 = Math.min((int) Math.ceil(Math.max(sy0, sy1) - 0.5), src.height());
+
+  // smaller than a source pixel (or a single one), no need to count anything
+  if (x1 - x0 <= 1 && y1 - y0 <= 1)
+  {
+    return nearest(src, sx, sy, b, nodata);
+  }
+
+  counter.clear();
+
+  double best = nodata;
+  int bestCount = 0;
+
+  for (int y = y0; y < y1; y++)
+  {
+    for (int x = x0; x < x1; x++)
+    {
+      double v = src.getPixelDouble(x, y, b);
+      if (isNodata(v, nodata))
+      {
+        continue;
+      }
+
+      int count = counter.add(v);
+      if (count > bestCount)
+      {
+        bestCount = count;
+        best = v;
+      }
+    }
+  }
+
+  return best;
+}
+
+private static double mercatorToLon(double x)
+{
+  return Math.toDegrees(x / RADIUS);
+}
+
+private static double mercatorToLat(double y)
+{
+  return Math.toDegrees(2.0 * Math.atan(Math.exp(y / RADIUS)) - Math.PI / 2.0);
+}
+
+private static double lonToMercator(double lon)
+{
+  return RADIUS * Math.toRadians(lon);
+}
+
+private static double latToMercator(double lat)
+{
+  double clamped = Math.max(Math.min(lat, MAX_LAT), -MAX_LAT);
+  return RADIUS * Math.log(Math.tan(Math.PI / 4.0 + Math.toRadians(clamped) / 2.0));
+}
+
+// Counts how many times each value was added, with an open addressing hash table.  It is
+// reused for every destination pixel, so clearing it only touches the slots that were used.
+static final class ValueCounter
+{
+  private long[] keys = new long[64];
+  private int[] counts = new int[64];
+  private int[] used = new int[32];
+  private int size = 0;
+
+  void clear()
+  {
+    for (int i = 0; i < size; i++)
+    {
+      counts[used[i]] = 0;
+    }
+    size = 0;
+  }
+
+  // add the value, returning the number of times it has been added since the last clear()
+  int add(double value)
+  {
+    // + 0.0 makes -0.0 the same as 0.0
+    long key = Double.doubleToLongBits(value + 0.0);
+
+    int mask = keys.length - 1;
+    int slot = hash(key) & mask;
+    while (counts[slot] != 0)
+    {
+      if (keys[slot] == key)
+      {
+        return ++counts[slot];
+      }
+      slot = (slot + 1) & mask;
+    }
+
+    if (size == used.length)
+    {
+      grow();
+      return add(value);
+    }
+
+    keys[slot] = key;
+    counts[slot] = 1;
+    used[size++] = slot;
+    return 1;
+  }
+
+  private static int hash(long key)
+  {
+    long h = key * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32));
+  }
+
+  // double the table (keeping it at most half full), rehashing the values in it
+  private void grow()
+  {
+    long[] oldKeys = keys;
+    int[] oldCounts = counts;
+    int[] oldUsed = used;
+
+    keys = new long[oldKeys.length * 2];
+    counts = new int[oldCounts.length * 2];
+    used = new int[oldUsed.length * 2];
+
+    int mask = keys.length - 1;
+    for (int i = 0; i < size; i++)
+    {
+      int old = oldUsed[i];
+      int slot = hash(oldKeys[old]) & mask;
+      while (counts[slot] != 0)
+      {
+        slot = (slot + 1) & mask;
+      }
+      keys[slot] = oldKeys[old];
+      counts[slot] = oldCounts[old];
+      used[i] = slot;
+    }
+  }
+}
+}
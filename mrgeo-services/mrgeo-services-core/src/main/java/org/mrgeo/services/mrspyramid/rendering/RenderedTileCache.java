@@ -0,0 +1,633 @@
+/*
+ * Copyright 2009-2017. DigitalGlobe, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.mrgeo.services.mrspyramid.rendering;
+
+import com.google.common.base.Charsets;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+import com.google.common.hash.Hashing;
+import org.mrgeo.core.MrGeoConstants;
+import org.mrgeo.core.MrGeoProperties;
+import org.mrgeo.data.ProviderProperties;
+import org.mrgeo.image.MrsPyramidMetadata;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.ws.rs.core.Response;
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-process cache of encoded (rendered, color scaled and written) tiles for the TMS and WMS
+ * endpoints, so identical requests don't have to re-render the tile.  The cache is bounded by the
+ * total size of the encoded tiles, and can optionally keep a second tier on local disk, bounded by
+ * the total size of the tile files, least recently used first.
+ * <p>
+ * Cached tiles are tied to the metadata of the pyramid they came from; when the metadata changes
+ * (i.e. the pyramid was rebuilt) all the tiles for that pyramid are thrown away.
+ */
+public class RenderedTileCache
+{
+private static final Logger log = LoggerFactory.getLogger(RenderedTileCache.class);
+
+private static final long MB = 1024L * 1024L;
+
+private static RenderedTileCache instance = null;
+
+private final Cache<String, CachedTile> cache;
+private final File diskDir;
+
+// tile file -> its size, so the disk tier can be bounded like the memory tier (null without a disk tier)
+private final Cache<String, Long> diskIndex;
+
+// pyramid name -> the metadata we last saw for it, and its fingerprint
+private final Map<String, Object[]> fingerprints = new ConcurrentHashMap<>();
+
+private final AtomicLong diskHits = new AtomicLong();
+private final AtomicLong diskWrites = new AtomicLong();
+private final AtomicLong sizeEvictions = new AtomicLong();
+private final AtomicLong diskEvictions = new AtomicLong();
+private final AtomicLong invalidations = new AtomicLong();
+
+RenderedTileCache(long maxBytes, File diskDir, long maxDiskBytes)
+{
+  cache = CacheBuilder.newBuilder()
+      .maximumWeight(maxBytes)
+      .weigher(new Weigher<String, CachedTile>()
+      {
+        @Override
+        public int weigh(String key, CachedTile tile)
+        {
+          return key.length() + tile.size();
+        }
+      })
+      .removalListener(new RemovalListener<String, CachedTile>()
+      {
+        @Override
+        public void onRemoval(RemovalNotification<String, CachedTile> notification)
+        {
+          if (notification.getCause() == RemovalCause.SIZE)
+          {
+            sizeEvictions.incrementAndGet();
+          }
+        }
+      })
+      .recordStats()
+      .build();
+
+  this.diskDir = diskDir;
+  if (diskDir != null)
+  {
+    diskIndex = CacheBuilder.newBuilder()
+        .maximumWeight(maxDiskBytes)
+        .weigher(new Weigher<String, Long>()
+        {
+          @Override
+          public int weigh(String file, Long size)
+          {
+            return (int) Math.min(Integer.MAX_VALUE, size);
+          }
+        })
+        .removalListener(new RemovalListener<String, Long>()
+        {
+          @Override
+          public void onRemoval(RemovalNotification<String, Long> notification)
+          {
+            if (notification.getCause() == RemovalCause.SIZE)
+            {
+              diskEvictions.incrementAndGet();
+              File file = new File(notification.getKey());
+              if (file.exists() && !file.delete())
+              {
+                log.warn("Can't delete cached tile " + file);
+              }
+            }
+          }
+        })
+        .build();
+
+    indexDisk();
+  }
+  else
+  {
+    diskIndex = null;
+  }
+}
+
+/**
+ * The shared cache, configured from the MrGeo properties, or null if tile caching is turned off.
+ */
+public static synchronized RenderedTileCache getInstance()
+{
+  if (instance == null)
+  {
+    Properties props = MrGeoProperties.getInstance();
+    if (!Boolean.parseBoolean(props.getProperty(MrGeoConstants.MRGEO_TILE_CACHE, "true")))
+    {
+      return null;
+    }
+
+    long size = Long.parseLong(props.getProperty(MrGeoConstants.MRGEO_TILE_CACHE_SIZE, "256")) * MB;
+    long diskSize = Long.parseLong(props.getProperty(MrGeoConstants.MRGEO_TILE_CACHE_DISK_SIZE, "1024")) * MB;
+
+    File dir = null;
+    String dirname = props.getProperty(MrGeoConstants.MRGEO_TILE_CACHE_DIR);
+    if (dirname != null && !dirname.isEmpty())
+    {
+      dir = new File(dirname);
+      if (!dir.isDirectory() && !dir.mkdirs())
+      {
+        log.warn("Can't create the tile cache directory " + dirname + ", not caching tiles on disk");
+        dir = null;
+      }
+    }
+
+    log.info("Caching up to " + (size / MB) + "MB of rendered tiles" +
+        (dir == null ? "" : ", with a disk cache of up to " + (diskSize / MB) + "MB in " + dir));
+    instance = new RenderedTileCache(size, dir, diskSize);
+  }
+
+  return instance;
+}
+
+/**
+ * Builds the cache key for a tile.  The first part must be the pyramid name, then the user the tile
+ * was rendered for (a user only sees what their roles allow, so tiles can't be shared between
+ * users), the rest are anything that changes the encoded tile (level, tile, format, color scale,
+ * min/max, etc.).
+ */
+public static String key(String pyramid, ProviderProperties providerProperties, Object... parts)
+{
+  StringBuilder sb = new StringBuilder(pyramid);
+  sb.append('|');
+  if (providerProperties != null)
+  {
+    // the order of the roles doesn't matter
+    List<String> roles = new ArrayList<>(providerProperties.getRoles());
+    Collections.sort(roles);
+
+    sb.append(providerProperties.getUserName());
+    for (String role : roles)
+    {
+      sb.append(',').append(role);
+    }
+  }
+
+  for (Object part : parts)
+  {
+    sb.append('|').append(part);
+  }
+  return sb.toString();
+}
+
+/**
+ * Make sure the cached tiles for the pyramid are from the given metadata, throwing them away if
+ * they aren't.  Call this before get() or put() for the pyramid.
+ */
+public void validate(String pyramid, MrsPyramidMetadata metadata)
+{
+  Object[] seen = fingerprints.get(pyramid);
+
+  // the metadata is usually cached by the caller, so only fingerprint it when we get a new one
+  if (seen != null && seen[0] == metadata)
+  {
+    return;
+  }
+
+  String fingerprint = fingerprint(metadata);
+  if (seen != null && !seen[1].equals(fingerprint))
+  {
+    log.info("Metadata for " + pyramid + " has changed, removing its cached tiles");
+    invalidate(pyramid);
+  }
+  else if (seen == null && diskDir != null)
+  {
+    // tiles on disk may be from an earlier run, when the pyramid was different
+    String previous = readFingerprint(pyramid);
+    if (previous != null && !previous.equals(fingerprint))
+    {
+      invalidate(pyramid);
+    }
+  }
+
+  fingerprints.put(pyramid, new Object[]{metadata, fingerprint});
+  writeFingerprint(pyramid, fingerprint);
+}
+
+/**
+ * The cached response for the key, or null if it isn't cached
+ */
+public Response.ResponseBuilder get(String key)
+{
+  CachedTile tile = cache.getIfPresent(key);
+  if (tile == null && diskDir != null)
+  {
+    tile = readTile(key);
+    if (tile != null)
+    {
+      diskHits.incrementAndGet();
+      cache.put(key, tile);
+    }
+  }
+
+  return tile == null ? null : tile.toResponse();
+}
+
+/**
+ * Caches the response, if it is a successful response with an encoded image, and returns
+ * a builder for the same response (a built response can't be sent again).
+ */
+public Response.ResponseBuilder put(String key, Response.ResponseBuilder builder)
+{
+  Response response = builder.build();
+  if (response.getStatus() != Response.Status.OK.getStatusCode() || !(response.getEntity() instanceof byte[]))
+  {
+    return Response.fromResponse(response);
+  }
+
+  CachedTile tile = new CachedTile(response);
+  cache.put(key, tile);
+
+  if (diskDir != null)
+  {
+    writeTile(key, tile);
+  }
+
+  return tile.toResponse();
+}
+
+/**
+ * Removes all the cached tiles for the pyramid
+ */
+public void invalidate(String pyramid)
+{
+  invalidations.incrementAndGet();
+
+  String prefix = pyramid + "|";
+  List<String> remove = new ArrayList<>();
+  for (String key : cache.asMap().keySet())
+  {
+    if (key.startsWith(prefix))
+    {
+      remove.add(key);
+    }
+  }
+  cache.invalidateAll(remove);
+
+  if (diskDir != null)
+  {
+    File dir = pyramidDir(pyramid);
+    delete(dir.toPath());
+
+    String dirPrefix = dir.getPath() + File.separator;
+    List<String> files = new ArrayList<>();
+    for (String file : diskIndex.asMap().keySet())
+    {
+      if (file.startsWith(dirPrefix))
+      {
+        files.add(file);
+      }
+    }
+    diskIndex.invalidateAll(files);
+  }
+}
+
+/**
+ * Hit, miss and eviction counts, and the current size, so the cache can be sized
+ */
+public Map<String, Long> getStatistics()
+{
+  CacheStats stats = cache.stats();
+
+  Map<String, Long> result = new LinkedHashMap<>();
+  result.put("hits", stats.hitCount());
+  result.put("misses", stats.missCount());
+  result.put("diskHits", diskHits.get());
+  result.put("diskWrites", diskWrites.get());
+  result.put("evictions", sizeEvictions.get());
+  result.put("diskEvictions", diskEvictions.get());
+  result.put("invalidations", invalidations.get());
+  result.put("tiles", cache.size());
+
+  long bytes = 0;
+  for (CachedTile tile : cache.asMap().values())
+  {
+    bytes += tile.size();
+  }
+  result.put("bytes", bytes);
+
+  if (diskIndex != null)
+  {
+    long diskBytes = 0;
+    for (Long size : diskIndex.asMap().values())
+    {
+      diskBytes += size;
+    }
+    result.put("diskTiles", diskIndex.size());
+    result.put("diskBytes", diskBytes);
+  }
+
+  return result;
+}
+
+private static String hash(String value)
+{
+  return Hashing.md5().hashString(value, Charsets.UTF_8).toString();
+}
+
+private static String fingerprint(MrsPyramidMetadata metadata)
+{
+  try
+  {
+    ByteArrayOutputStream stream = new ByteArrayOutputStream();
+    metadata.save(stream);
+    return Hashing.md5().hashBytes(stream.toByteArray()).toString();
+  }
+  catch (IOException e)
+  {
+    // can't tell if it changed, so make sure it looks like it did
+    log.warn("Can't fingerprint the metadata for " + metadata.getPyramid(), e);
+    return Long.toString(System.nanoTime());
+  }
+}
+
+private File pyramidDir(String pyramid)
+{
+  return new File(diskDir, hash(pyramid));
+}
+
+private File tileFile(String key)
+{
+  String pyramid = key.substring(0, key.indexOf('|'));
+  return new File(pyramidDir(pyramid), hash(key));
+}
+
+private String readFingerprint(String pyramid)
+{
+  File file = new File(pyramidDir(pyramid), "fingerprint");
+  if (file.exists())
+  {
+    try
+    {
+      return new String(Files.readAllBytes(file.toPath()), Charsets.UTF_8);
+    }
+    catch (IOException e)
+    {
+      log.warn("Can't read " + file, e);
+    }
+  }
+  return null;
+}
+
+private void writeFingerprint(String pyramid, String fingerprint)
+{
+  if (diskDir != null)
+  {
+    File dir = pyramidDir(pyramid);
+    if (dir.isDirectory() || dir.mkdirs())
+    {
+      try
+      {
+        Files.write(new File(dir, "fingerprint").toPath(), fingerprint.getBytes(Charsets.UTF_8));
+      }
+      catch (IOException e)
+      {
+        log.warn("Can't write the tile cache fingerprint for " + pyramid, e);
+      }
+    }
+  }
+}
+
+private CachedTile readTile(String key)
+{
+  File file = tileFile(key);
+  if (!file.exists())
+  {
+    return null;
+  }
+
+  try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file))))
+  {
+    // the key is stored too, in case of a hash collision
+    if (!in.readUTF().equals(key))
+    {
+      return null;
+    }
+    CachedTile tile = CachedTile.read(in);
+
+    // mark the file as used, so it's the last to be evicted
+    if (diskIndex.getIfPresent(file.getPath()) == null)
+    {
+      diskIndex.put(file.getPath(), file.length());
+    }
+    return tile;
+  }
+  catch (IOException e)
+  {
+    log.warn("Can't read cached tile " + file, e);
+    return null;
+  }
+}
+
+private void writeTile(String key, CachedTile tile)
+{
+  File file = tileFile(key);
+  File dir = file.getParentFile();
+  if (!dir.isDirectory() && !dir.mkdirs())
+  {
+    return;
+  }
+
+  // write to a temp file and move it, so a concurrent reader never sees a partial tile
+  try
+  {
+    File tmp = File.createTempFile(file.getName(), ".tmp", dir);
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp))))
+    {
+      out.writeUTF(key);
+      tile.write(out);
+    }
+    Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    diskWrites.incrementAndGet();
+    diskIndex.put(file.getPath(), file.length());
+  }
+  catch (IOException e)
+  {
+    log.warn("Can't write cached tile " + file, e);
+  }
+}
+
+// The tiles already on disk (from an earlier run), oldest first, so the oldest are evicted first if
+// there are too many of them.  Partially written tiles are deleted.
+private void indexDisk()
+{
+  final List<Object[]> files = new ArrayList<>();
+  try
+  {
+    Files.walkFileTree(diskDir.toPath(), new SimpleFileVisitor<Path>()
+    {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException
+      {
+        String name = file.getFileName().toString();
+        if (name.endsWith(".tmp"))
+        {
+          Files.delete(file);
+        }
+        else if (!name.equals("fingerprint"))
+        {
+          files.add(new Object[]{file.toString(), attrs.lastModifiedTime().toMillis(), attrs.size()});
+        }
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+  catch (IOException e)
+  {
+    log.warn("Can't read the cached tiles in " + diskDir, e);
+  }
+
+  Collections.sort(files, new Comparator<Object[]>()
+  {
+    @Override
+    public int compare(Object[] f1, Object[] f2)
+    {
+      return Long.compare((Long) f1[1], (Long) f2[1]);
+    }
+  });
+
+  for (Object[] file : files)
+  {
+    diskIndex.put((String) file[0], (Long) file[2]);
+  }
+}
+
+private static void delete(Path path)
+{
+  if (!Files.exists(path))
+  {
+    return;
+  }
+
+  try
+  {
+    Files.walkFileTree(path, new SimpleFileVisitor<Path>()
+    {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException
+      {
+        Files.delete(file);
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException
+      {
+        Files.delete(dir);
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+  catch (IOException e)
+  {
+    log.warn("Can't delete cached tiles in " + path, e);
+  }
+}
+
+// The encoded image and the response headers (mime type, content disposition, etc.)
+static class CachedTile
+{
+  private final byte[] data;
+  private final String[] headers;
+
+  CachedTile(byte[] data, String[] headers)
+  {
+    this.data = data;
+    this.headers = headers;
+  }
+
+  CachedTile(Response response)
+  {
+    data = (byte[]) response.getEntity();
+
+    List<String> hdrs = new ArrayList<>();
+    for (Map.Entry<String, List<Object>> header : response.getMetadata().entrySet())
+    {
+      for (Object value : header.getValue())
+      {
+        hdrs.add(header.getKey());
+        hdrs.add(String.valueOf(value));
+      }
+    }
+    headers = hdrs.toArray(new String[hdrs.size()]);
+  }
+
+  static CachedTile read(DataInput in) throws IOException
+  {
+    String[] headers = new String[in.readInt()];
+    for (int i = 0; i < headers.length; i++)
+    {
+      headers[i] = in.readUTF();
+    }
+
+    byte[] data = new byte[in.readInt()];
+    in.readFully(data);
+
+    return new CachedTile(data, headers);
+  }
+
+  void write(DataOutput out) throws IOException
+  {
+    out.writeInt(headers.length);
+    for (String header : headers)
+    {
+      out.writeUTF(header);
+    }
+    out.writeInt(data.length);
+    out.write(data);
+  }
+
+  int size()
+  {
+    return data.length;
+  }
+
+  Response.ResponseBuilder toResponse()
+  {
+    Response.ResponseBuilder builder = Response.ok().entity(data);
+    for (int i = 0; i < headers.length; i += 2)
+    {
+      builder.header(headers[i], headers[i + 1]);
+    }
+    return builder;
+  }
+}
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2009-2017. DigitalGlobe, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.mrgeo.services.mrspyramid.rendering;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.mrgeo.data.raster.MrGeoRaster;
+import org.mrgeo.image.MrsPyramidMetadata;
+import org.mrgeo.junit.UnitTest;
+import org.mrgeo.utils.tms.Bounds;
+
+import java.awt.image.DataBuffer;
+
+import static org.junit.Assert.*;
+
+@SuppressWarnings("all") // Test code, not included in production
+public class RasterWarperTest
+{
+private static final double epsilon = 0.000001;
+
+// 10 x 10 pixels of 1 degree, with the upper left at 0, 10
+private static MrGeoRaster numbered() throws MrGeoRaster.MrGeoRasterException
+{
+  MrGeoRaster raster = MrGeoRaster.createEmptyRaster(10, 10, 1, DataBuffer.TYPE_FLOAT);
+  for (int y = 0; y < 10; y++)
+  {
+    for (int x = 0; x < 10; x++)
+    {
+      raster.setPixel(x, y, 0, y * 10 + x);
+    }
+  }
+  return raster;
+}
+
+@Test
+@Category(UnitTest.class)
+public void supported()
+{
+  assertTrue(RasterWarper.isSupported(null));
+  assertTrue(RasterWarper.isSupported("EPSG:4326"));
+  assertTrue(RasterWarper.isSupported("epsg:3857"));
+  assertFalse(RasterWarper.isSupported("EPSG:32618"));
+}
+
+@Test
+@Category(UnitTest.class)
+public void mercatorBounds()
+{
+  Bounds wgs84 = new Bounds(-10.0, -20.0, 30.0, 40.0);
+  Bounds mercator = RasterWarper.fromWGS84(wgs84, "EPSG:3857");
+
+  assertEquals(-1113194.9079327357, mercator.w, 0.001);
+  assertEquals(3339584.723798207, mercator.e, 0.001);
+  assertEquals(4865942.279503176, mercator.n, 0.001);
+
+  Bounds back = RasterWarper.toWGS84(mercator, "EPSG:3857");
+  assertEquals(wgs84.w, back.w, epsilon);
+  assertEquals(wgs84.s, back.s, epsilon);
+  assertEquals(wgs84.e, back.e, epsilon);
+  assertEquals(wgs84.n, back.n, epsilon);
+}
+
+@Test
+@Category(UnitTest.class)
+public void identity() throws Exception
+{
+  MrGeoRaster src = numbered();
+  Bounds bounds = new Bounds(0, 0, 10, 10);
+
+  for (RasterWarper.Resampling resampling : RasterWarper.Resampling.values())
+  {
+    MrGeoRaster dst = RasterWarper.warp(src, 0, 10, 1.0, "EPSG:4326", bounds, 10, 10, resampling,
+        new double[]{Double.NaN});
+    assertArrayEquals(resampling.toString(), src.data(), dst.data());
+  }
+}
+
+@Test
+@Category(UnitTest.class)
+public void bilinearHalfPixel() throws Exception
+{
+  MrGeoRaster src = numbered();
+
+  // shifted half a pixel right and down, so each pixel is the average of 4
+  MrGeoRaster dst = RasterWarper.warp(src, 0, 10, 1.0, null, new Bounds(0.5, 0.5, 9.5, 9.5), 9, 9,
+      RasterWarper.Resampling.BILINEAR, new double[]{Double.NaN});
+
+  assertEquals((0 + 1 + 10 + 11) / 4.0, dst.getPixelDouble(0, 0, 0), epsilon);
+  assertEquals((44 + 45 + 54 + 55) / 4.0, dst.getPixelDouble(4, 4, 0), epsilon);
+}
+
+@Test
+@Category(UnitTest.class)
+public void bilinearSkipsNodata() throws Exception
+{
+  MrGeoRaster src = numbered();
+  src.setPixel(1, 0, 0, Double.NaN);
+
+  MrGeoRaster dst = RasterWarper.warp(src, 0, 10, 1.0, null, new Bounds(0.5, 0.5, 9.5, 9.5), 9, 9,
+      RasterWarper.Resampling.BILINEAR, new double[]{Double.NaN});
+
+  assertEquals((0 + 10 + 11) / 3.0, dst.getPixelDouble(0, 0, 0), epsilon);
+}
+
+@Test
+@Category(UnitTest.class)
+public void modeDownsample() throws Exception
+{
+  MrGeoRaster src = MrGeoRaster.createEmptyRaster(4, 4, 1, DataBuffer.TYPE_BYTE);
+  for (int y = 0; y < 4; y++)
+  {
+    for (int x = 0; x < 4; x++)
+    {
+      src.setPixel(x, y, 0, (x + y) % 2 == 0 ? 3 : 5);
+    }
+  }
+  src.setPixel(1, 0, 0, 3);
+
+  MrGeoRaster dst = RasterWarper.warp(src, 0, 4, 1.0, null, new Bounds(0, 0, 4, 4), 2, 2,
+      RasterWarper.Resampling.MODE, new double[]{0});
+
+  // the upper left 2x2 block is 3, 3, 5, 3
+  assertEquals(3, dst.getPixelInt(0, 0, 0));
+  // the rest are ties, the first one to get there wins
+  assertEquals(5, dst.getPixelInt(1, 0, 0));
+}
+
+@Test
+@Category(UnitTest.class)
+public void resamplingFromMetadata()
+{
+  MrsPyramidMetadata metadata = new MrsPyramidMetadata();
+  assertEquals(RasterWarper.Resampling.BILINEAR, RasterWarper.resampling(metadata));
+
+  metadata.setResamplingMethod("MEAN");
+  assertEquals(RasterWarper.Resampling.BILINEAR, RasterWarper.resampling(metadata));
+
+  metadata.setResamplingMethod("NEAREST");
+  assertEquals(RasterWarper.Resampling.NEAREST, RasterWarper.resampling(metadata));
+
+  metadata.setResamplingMethod("MODE");
+  assertEquals(RasterWarper.Resampling.MODE, RasterWarper.resampling(metadata));
+
+  metadata.setResamplingMethod("NEAREST");
+  metadata.setClassification(MrsPyramidMetadata.Classification.Categorical);
+  assertEquals(RasterWarper.Resampling.MODE, RasterWarper.resampling(metadata));
+}
+
+@Test
+@Category(UnitTest.class)
+public void valueCounter()
+{
+  RasterWarper.ValueCounter counter = new RasterWarper.ValueCounter();
+
+  // enough values to make it grow a few times
+  for (int i = 0; i < 1000; i++)
+  {
+    assertEquals(1, counter.add(i));
+  }
+  for (int i = 0; i < 1000; i++)
+  {
+    assertEquals(2, counter.add(i));
+  }
+  assertEquals(3, counter.add(-0.0));
+
+  counter.clear();
+  assertEquals(1, counter.add(0.0));
+  assertEquals(1, counter.add(999));
+  assertEquals(1, counter.add(Double.NaN));
+  assertEquals(2, counter.add(Double.NaN));
+}
+}
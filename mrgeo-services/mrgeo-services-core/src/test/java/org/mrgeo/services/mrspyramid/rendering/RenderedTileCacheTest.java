@@ -0,0 +1,221 @@
+/*
+ * Copyright 2009-2017. DigitalGlobe, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.mrgeo.services.mrspyramid.rendering;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.rules.TemporaryFolder;
+import org.mrgeo.data.ProviderProperties;
+import org.mrgeo.image.MrsPyramidMetadata;
+import org.mrgeo.junit.UnitTest;
+
+import javax.ws.rs.core.Response;
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+@SuppressWarnings("all") // Test code, not included in production
+public class RenderedTileCacheTest
+{
+@Rule
+public TemporaryFolder folder = new TemporaryFolder();
+
+private static final ProviderProperties user = new ProviderProperties("user", "a,b");
+
+private static MrsPyramidMetadata metadata(String pyramid, int maxzoom)
+{
+  MrsPyramidMetadata metadata = new MrsPyramidMetadata();
+  metadata.setPyramid(pyramid);
+  metadata.setMaxZoomLevel(maxzoom);
+  return metadata;
+}
+
+private static Response.ResponseBuilder png(int size)
+{
+  return Response.ok().entity(new byte[size]).header("Content-type", "image/png");
+}
+
+@Test
+@Category(UnitTest.class)
+public void hitAndMiss() throws Exception
+{
+  RenderedTileCache cache = new RenderedTileCache(1024 * 1024, null, 0);
+  cache.validate("foo", metadata("foo", 10));
+
+  String key = RenderedTileCache.key("foo", user, 10, 1, 2, "png", null, 0.0, 1.0);
+  assertNull(cache.get(key));
+
+  Response put = cache.put(key, png(100)).build();
+  assertEquals(100, ((byte[]) put.getEntity()).length);
+
+  Response cached = cache.get(key).build();
+  assertEquals(200, cached.getStatus());
+  assertEquals(100, ((byte[]) cached.getEntity()).length);
+  assertEquals("image/png", cached.getMetadata().getFirst("Content-type"));
+
+  assertEquals(1L, (long) cache.getStatistics().get("hits"));
+  assertEquals(1L, (long) cache.getStatistics().get("misses"));
+  assertEquals(1L, (long) cache.getStatistics().get("tiles"));
+}
+
+@Test
+@Category(UnitTest.class)
+public void errorsNotCached() throws Exception
+{
+  RenderedTileCache cache = new RenderedTileCache(1024 * 1024, null, 0);
+
+  String key = RenderedTileCache.key("foo", user, 10, 1, 2, "png");
+  Response response = cache.put(key, Response.serverError().entity("Internal Error")).build();
+
+  assertEquals(500, response.getStatus());
+  assertNull(cache.get(key));
+}
+
+@Test
+@Category(UnitTest.class)
+public void evicts() throws Exception
+{
+  RenderedTileCache cache = new RenderedTileCache(10 * 1000, null, 0);
+
+  for (int i = 0; i < 100; i++)
+  {
+    cache.put(RenderedTileCache.key("foo", user, 10, i, 0, "png"), png(1000));
+  }
+
+  assertTrue(cache.getStatistics().get("evictions") > 0);
+  assertTrue(cache.getStatistics().get("bytes") <= 10 * 1000);
+}
+
+@Test
+@Category(UnitTest.class)
+public void metadataChangeInvalidates() throws Exception
+{
+  RenderedTileCache cache = new RenderedTileCache(1024 * 1024, folder.getRoot(), 1024 * 1024);
+
+  String foo = RenderedTileCache.key("foo", user, 10, 1, 2, "png");
+  String bar = RenderedTileCache.key("bar", user, 10, 1, 2, "png");
+
+  cache.validate("foo", metadata("foo", 10));
+  cache.validate("bar", metadata("bar", 10));
+  cache.put(foo, png(10));
+  cache.put(bar, png(10));
+
+  // same metadata, different object
+  cache.validate("foo", metadata("foo", 10));
+  assertNotNull(cache.get(foo));
+
+  // the pyramid was rebuilt
+  cache.validate("foo", metadata("foo", 11));
+  assertNull(cache.get(foo));
+  assertNotNull(cache.get(bar));
+}
+
+@Test
+@Category(UnitTest.class)
+public void diskTier() throws Exception
+{
+  RenderedTileCache cache = new RenderedTileCache(1024 * 1024, folder.getRoot(), 1024 * 1024);
+  cache.validate("foo", metadata("foo", 10));
+
+  String key = RenderedTileCache.key("foo", user, 10, 1, 2, "png");
+  cache.put(key, png(100));
+
+  // a new cache (i.e. after a restart) finds the tile on disk
+  RenderedTileCache restarted = new RenderedTileCache(1024 * 1024, folder.getRoot(), 1024 * 1024);
+  restarted.validate("foo", metadata("foo", 10));
+
+  Response cached = restarted.get(key).build();
+  assertEquals(100, ((byte[]) cached.getEntity()).length);
+  assertEquals("image/png", cached.getMetadata().getFirst("Content-type"));
+  assertEquals(1L, (long) restarted.getStatistics().get("diskHits"));
+
+  // but not if the pyramid changed in the meantime
+  RenderedTileCache changed = new RenderedTileCache(1024 * 1024, folder.getRoot(), 1024 * 1024);
+  changed.validate("foo", metadata("foo", 12));
+  assertNull(changed.get(key));
+}
+
+@Test
+@Category(UnitTest.class)
+public void diskEvicts() throws Exception
+{
+  // a tiny memory tier, so the tiles are read from disk
+  RenderedTileCache cache = new RenderedTileCache(1000, folder.getRoot(), 10 * 1000);
+  cache.validate("foo", metadata("foo", 10));
+
+  for (int i = 0; i < 100; i++)
+  {
+    cache.put(RenderedTileCache.key("foo", user, 10, i, 0, "png"), png(1000));
+  }
+
+  assertTrue(cache.getStatistics().get("diskEvictions") > 0);
+  assertTrue(cache.getStatistics().get("diskBytes") <= 10 * 1000);
+  assertEquals((long) cache.getStatistics().get("diskBytes"), tileBytes(folder.getRoot()));
+
+  // the last tile is still on disk
+  assertNotNull(cache.get(RenderedTileCache.key("foo", user, 10, 99, 0, "png")));
+
+  // a restart with a smaller disk tier evicts the tiles left over from before
+  RenderedTileCache restarted = new RenderedTileCache(1000, folder.getRoot(), 3 * 1000);
+  assertTrue(restarted.getStatistics().get("diskBytes") <= 3 * 1000);
+  assertEquals((long) restarted.getStatistics().get("diskBytes"), tileBytes(folder.getRoot()));
+}
+
+// the size of the cached tile files under the directory
+private static long tileBytes(File dir)
+{
+  long bytes = 0;
+  for (File file : dir.listFiles())
+  {
+    if (file.isDirectory())
+    {
+      bytes += tileBytes(file);
+    }
+    else if (!file.getName().equals("fingerprint"))
+    {
+      bytes += file.length();
+    }
+  }
+  return bytes;
+}
+
+@Test
+@Category(UnitTest.class)
+public void keyedByUser() throws Exception
+{
+  RenderedTileCache cache = new RenderedTileCache(1024 * 1024, null, 0);
+  cache.validate("foo", metadata("foo", 10));
+
+  String key = RenderedTileCache.key("foo", user, 10, 1, 2, "png");
+  cache.put(key, png(100));
+
+  // the same user with the roles in a different order
+  assertEquals(key, RenderedTileCache.key("foo", new ProviderProperties("user", "b,a"), 10, 1, 2, "png"));
+
+  // different roles, a different user, or no user at all can't see the tile
+  assertNull(cache.get(RenderedTileCache.key("foo", new ProviderProperties("user", "a"), 10, 1, 2, "png")));
+  assertNull(cache.get(RenderedTileCache.key("foo", new ProviderProperties("other", "a,b"), 10, 1, 2, "png")));
+  assertNull(cache.get(RenderedTileCache.key("foo", null, 10, 1, 2, "png")));
+
+  // all the users' tiles go when the pyramid changes
+  String other = RenderedTileCache.key("foo", null, 10, 1, 2, "png");
+  cache.put(other, png(100));
+  cache.validate("foo", metadata("foo", 11));
+  assertNull(cache.get(key));
+  assertNull(cache.get(other));
+}
+}
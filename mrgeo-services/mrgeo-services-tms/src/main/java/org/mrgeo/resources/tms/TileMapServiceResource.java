@@ -21,6 +21,7 @@ import org.mrgeo.colorscale.ColorScaleManager;
 import org.mrgeo.colorscale.applier.ColorScaleApplier;
 import org.mrgeo.core.MrGeoConstants;
 import org.mrgeo.data.DataProviderFactory;
+import org.mrgeo.data.DataProviderNotFound;
 import org.mrgeo.data.ProviderProperties;
 import org.mrgeo.data.image.MrsImageDataProvider;
 import org.mrgeo.data.image.MrsPyramidMetadataReader;
@@ -65,6 +66,7 @@ import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.concurrent.ExecutionException;
 
@@ -217,9 +219,21 @@ public Response getTile(@PathParam("version") final String version,
 
     // TODO: Need to construct provider properties from the WebRequest using
     // a new security layer and pass those properties.
-    // Apply mask if requested
     ProviderProperties providerProperties = SecurityUtils.getProviderProperties();
 
+    final RenderedTileCache tileCache = RenderedTileCache.getInstance();
+    final String cacheKey = cacheKey(tileCache, providerProperties, pyramid, profile, z, x, y, format,
+        colorScaleName, colorScale, min, max, maskMax, mask);
+    if (cacheKey != null)
+    {
+      Response.ResponseBuilder cached = tileCache.get(cacheKey);
+      if (cached != null)
+      {
+        return cached.build();
+      }
+    }
+
+    // Apply mask if requested
     if (index == WGS84)
     {
       if (mask != null && !mask.isEmpty())
@@ -269,9 +283,15 @@ public Response getTile(@PathParam("version") final String version,
         cs = ColorScaleManager.fromJSON(colorScale);
       }
       else {
-        MrsImageDataProvider dp = DataProviderFactory.getMrsImageDataProvider(pyramid,
-            DataProviderFactory.AccessMode.READ, providerProperties);
-        MrsPyramidMetadata meta = dp.getMetadataReader().read();
+        MrsPyramidMetadata meta;
+        try
+        {
+          meta = service.getMetadata(pyramid);
+        }
+        catch (ExecutionException e)
+        {
+          throw new IOException("Can not read metadata for " + pyramid, e);
+        }
 
         String csname = meta.getTag(MrGeoConstants.MRGEO_DEFAULT_COLORSCALE);
         if (csname != null)
@@ -305,8 +325,13 @@ public Response getTile(@PathParam("version") final String version,
           .getDefaultValues(), renderer.getQuantiles());
     }
 
-    return ((ImageResponseWriter) ImageHandlerFactory.getHandler(format,
-        ImageResponseWriter.class)).write(raster, renderer.getDefaultValues()).build();
+    Response.ResponseBuilder builder = ((ImageResponseWriter) ImageHandlerFactory.getHandler(format,
+        ImageResponseWriter.class)).write(raster, renderer.getDefaultValues());
+    if (cacheKey != null)
+    {
+      builder = tileCache.put(cacheKey, builder);
+    }
+    return builder.build();
 
   }
   catch (final IllegalArgumentException e)
@@ -371,6 +396,31 @@ public Response getTile(@PathParam("version") final String version,
   return Response.status(Status.INTERNAL_SERVER_ERROR).entity(GENERAL_ERROR).build();
 }
 
+@GET
+@Produces(MediaType.APPLICATION_JSON)
+@Path("/cache/stats")
+public Response getTileCacheStats()
+{
+  RenderedTileCache tileCache = RenderedTileCache.getInstance();
+  if (tileCache == null)
+  {
+    return Response.status(Status.NOT_FOUND).entity("The tile cache is turned off").build();
+  }
+
+  StringBuilder json = new StringBuilder("{");
+  for (Map.Entry<String, Long> stat : tileCache.getStatistics().entrySet())
+  {
+    if (json.length() > 1)
+    {
+      json.append(", ");
+    }
+    json.append('"').append(stat.getKey()).append("\": ").append(stat.getValue());
+  }
+  json.append('}');
+
+  return Response.ok(json.toString(), MediaType.APPLICATION_JSON).build();
+}
+
 @SuppressFBWarnings(value = "JAXRS_ENDPOINT", justification = "verified")
 @GET
 @Produces("text/xml")
@@ -434,6 +484,39 @@ public Response getTileMapService(@PathParam("version") final String version,
   }
 }
 
+// The key for the rendered tile in the tile cache, or null if the tile shouldn't be cached
+@SuppressWarnings("squid:S1166") // Exceptions caught and handled
+private String cacheKey(RenderedTileCache tileCache, ProviderProperties providerProperties, String pyramid,
+    String profile, int z, int x, int y, String format, String colorScaleName, String colorScale,
+    Double min, Double max, Double maskMax, String mask)
+{
+  if (tileCache == null)
+  {
+    return null;
+  }
+
+  try
+  {
+    // make sure the user can read the pyramid before handing them a cached tile (the provider
+    // is cached per user, so this is cheap)
+    DataProviderFactory.getMrsImageDataProvider(pyramid, DataProviderFactory.AccessMode.READ, providerProperties);
+    if (mask != null && !mask.isEmpty())
+    {
+      DataProviderFactory.getMrsImageDataProvider(mask, DataProviderFactory.AccessMode.READ, providerProperties);
+    }
+
+    tileCache.validate(pyramid, service.getMetadata(pyramid));
+  }
+  catch (DataProviderNotFound | ExecutionException e)
+  {
+    // let the rendering report the missing (or forbidden) pyramid
+    return null;
+  }
+
+  return RenderedTileCache.key(pyramid, providerProperties, profile, z, x, y, format, colorScaleName,
+      colorScale, min, max, mask, (mask == null || mask.isEmpty()) ? null : maskMax);
+}
+
 Document mrsPyramidMetadataToTileMapXml(final String raster, final String profilename, final String url,
     final MrsPyramidMetadata mpm) throws ParserConfigurationException
 {
@@ -15,6 +15,8 @@
 
 package org.mrgeo.resources.wms;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import org.apache.commons.lang3.StringUtils;
 import org.mrgeo.colorscale.ColorScale;
 import org.mrgeo.colorscale.ColorScaleManager;
@@ -55,6 +57,9 @@ import java.awt.image.DataBuffer;
 import java.io.IOException;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 //import javax.servlet.http.HttpServlet;
 //import javax.servlet.http.HttpServletRequest;
@@ -75,6 +80,15 @@ static final String TIFF_MIME_TYPE = "image/tiff";
 private static final Logger log = LoggerFactory.getLogger(WmsGenerator.class);
 private static final String WMS_VERSION = "1.3.0";
 private static final String WMS_SERVICE = "wms";
+
+// layer and user -> the opened pyramid, so tile requests don't reopen it each time.  Opening it
+// checks the user can read it, and validates the tile cache against its metadata.  Entries are
+// short lived so revoked access and rebuilt pyramids are picked up.
+private static final Cache<String, MrsPyramid> pyramids = CacheBuilder.newBuilder()
+    .maximumSize(1000)
+    .expireAfterWrite(1, TimeUnit.MINUTES)
+    .build();
+
 private Version version = new Version(WMS_VERSION);
 
 public WmsGenerator()
@@ -731,14 +745,32 @@ private Response getTile(MultivaluedMap<String, String> allParams,
   }
   try
   {
+    MrsPyramid pyramid = openPyramid(layer, providerProperties);
+
+    RenderedTileCache tileCache = isCacheOff(allParams) ? null : RenderedTileCache.getInstance();
+    String cacheKey = null;
+    if (tileCache != null)
+    {
+      cacheKey = RenderedTileCache.key(layer, providerProperties, "wms", tileCol, tileRow, scale, format, style);
+
+      Response.ResponseBuilder cached = tileCache.get(cacheKey);
+      if (cached != null)
+      {
+        return setupCaching(cached, allParams).build();
+      }
+    }
+
     MrGeoRaster result = renderer.renderImage(layer, tileCol, tileRow, scale, providerProperties);
 
     result = colorRaster(layer, style, format, renderer, result, providerProperties);
 
     Response.ResponseBuilder builder = ((ImageResponseWriter) ImageHandlerFactory
         .getHandler(format, ImageResponseWriter.class))
-        .write(result, tileCol, tileRow, scale,
-            MrsPyramid.open(layer, providerProperties));
+        .write(result, tileCol, tileRow, scale, pyramid);
+    if (cacheKey != null)
+    {
+      builder = tileCache.put(cacheKey, builder);
+    }
     return setupCaching(builder, allParams).build();
   }
   catch (IOException | ImageRendererException | IllegalAccessException | InstantiationException e)
@@ -748,6 +780,37 @@ private Response getTile(MultivaluedMap<String, String> allParams,
   }
 }
 
+private static MrsPyramid openPyramid(final String layer, final ProviderProperties providerProperties)
+    throws IOException
+{
+  try
+  {
+    return pyramids.get(RenderedTileCache.key(layer, providerProperties), new Callable<MrsPyramid>()
+    {
+      @Override
+      public MrsPyramid call() throws IOException
+      {
+        MrsPyramid pyramid = MrsPyramid.open(layer, providerProperties);
+
+        RenderedTileCache tileCache = RenderedTileCache.getInstance();
+        if (tileCache != null)
+        {
+          tileCache.validate(layer, pyramid.getMetadata());
+        }
+        return pyramid;
+      }
+    });
+  }
+  catch (ExecutionException e)
+  {
+    if (e.getCause() instanceof IOException)
+    {
+      throw (IOException) e.getCause();
+    }
+    throw new IOException("Can not open " + layer, e.getCause());
+  }
+}
+
 /*
  * DescribeTiles implementation
  */